@@ -0,0 +1,94 @@
+package org.eclipse.jetty.nosql.kvs.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.nosql.kvs.session.AbstractSessionFactory;
+import org.eclipse.jetty.nosql.kvs.session.ISerializableSession;
+import org.eclipse.jetty.nosql.kvs.session.compression.DeflateCodec;
+import org.eclipse.jetty.nosql.kvs.session.compression.ICompressionCodec;
+import org.eclipse.jetty.nosql.kvs.session.compression.LZ4Codec;
+import org.eclipse.jetty.nosql.kvs.session.compression.SnappyCodec;
+import org.eclipse.jetty.nosql.kvs.session.kryo.KryoSessionFactory;
+import org.eclipse.jetty.nosql.kvs.session.serializable.SerializableSessionFactory;
+import org.eclipse.jetty.nosql.kvs.session.xstream.XStreamSessionFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link AbstractSessionFactory#pack(ISerializableSession)} and
+ * {@link AbstractSessionFactory#unpack(byte[])} for each factory and session shape.
+ *
+ * Run with "-prof gc" to see allocation rates. The packed size of each combination is printed on setup.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class SessionFactoryBenchmark {
+  @Param( { "serializable", "kryo", "xstream" } )
+  public String factory;
+
+  @Param( { "FEW_LARGE", "MANY_SMALL", "NESTED_COLLECTIONS", "STRING_MAP" } )
+  public SessionShape shape;
+
+  @Param( { "none" } )
+  public String codec;
+
+  private AbstractSessionFactory sessionFactory;
+  private ISerializableSession session;
+  private byte[] packed;
+
+  @Setup( Level.Trial )
+  public void setUp() {
+    sessionFactory = newSessionFactory( factory );
+    sessionFactory.setCompressionCodec( newCompressionCodec( codec ) );
+    session = shape.create( sessionFactory );
+    packed = sessionFactory.pack( session );
+    System.out.println( "packed size: factory=" + factory + ", shape=" + shape + ", codec=" + codec + ", bytes="
+        + packed.length );
+  }
+
+  static AbstractSessionFactory newSessionFactory( String name ) {
+    if ( "serializable".equals( name ) )
+      return new SerializableSessionFactory();
+    if ( "kryo".equals( name ) )
+      return new KryoSessionFactory();
+    if ( "xstream".equals( name ) )
+      return new XStreamSessionFactory();
+    throw new IllegalArgumentException( "unknown factory: " + name );
+  }
+
+  static ICompressionCodec newCompressionCodec( String name ) {
+    if ( "none".equals( name ) )
+      return null;
+    if ( "lz4".equals( name ) )
+      return new LZ4Codec();
+    if ( "snappy".equals( name ) )
+      return new SnappyCodec();
+    if ( "deflate".equals( name ) )
+      return new DeflateCodec();
+    throw new IllegalArgumentException( "unknown codec: " + name );
+  }
+
+  @Benchmark
+  public byte[] pack() {
+    return sessionFactory.pack( session );
+  }
+
+  @Benchmark
+  public ISerializableSession unpack() {
+    return sessionFactory.unpack( packed );
+  }
+}
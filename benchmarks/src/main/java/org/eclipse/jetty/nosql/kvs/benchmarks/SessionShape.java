@@ -0,0 +1,107 @@
+package org.eclipse.jetty.nosql.kvs.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.eclipse.jetty.nosql.kvs.session.AbstractSessionFactory;
+import org.eclipse.jetty.nosql.kvs.session.ISerializableSession;
+
+/**
+ * Typical contents of web application sessions. Only JDK types are used so that every transcoder can handle them
+ * without registration. Sessions are generated from a fixed seed to make runs comparable.
+ */
+public enum SessionShape {
+  /**
+   * a few large attributes, e.g. cached report data or an uploaded file.
+   */
+  FEW_LARGE {
+    @Override
+    void fill( ISerializableSession session, Random random ) {
+      byte[] blob = new byte[64 * 1024];
+      random.nextBytes( blob );
+      session.setAttribute( "upload", blob );
+      session.setAttribute( "report", randomString( random, 16 * 1024 ) );
+      List<Long> ids = new ArrayList<Long>();
+      for ( int i = 0; i < 2000; i++ ) {
+        ids.add( random.nextLong() );
+      }
+      session.setAttribute( "searchResult", ids );
+    }
+  },
+  /**
+   * many small attributes, e.g. flags and counters set by various parts of the application.
+   */
+  MANY_SMALL {
+    @Override
+    void fill( ISerializableSession session, Random random ) {
+      for ( int i = 0; i < 200; i++ ) {
+        Object value;
+        switch ( i % 4 ) {
+          case 0: value = Integer.valueOf( random.nextInt() ); break;
+          case 1: value = Long.valueOf( random.nextLong() ); break;
+          case 2: value = Boolean.valueOf( random.nextBoolean() ); break;
+          default: value = randomString( random, 12 ); break;
+        }
+        session.setAttribute( "attribute" + i, value );
+      }
+    }
+  },
+  /**
+   * nested collections, e.g. a shopping cart.
+   */
+  NESTED_COLLECTIONS {
+    @Override
+    void fill( ISerializableSession session, Random random ) {
+      List<Map<String, Object>> cart = new ArrayList<Map<String, Object>>();
+      for ( int i = 0; i < 50; i++ ) {
+        Map<String, Object> item = new HashMap<String, Object>();
+        item.put( "sku", randomString( random, 10 ) );
+        item.put( "name", randomString( random, 40 ) );
+        item.put( "quantity", Integer.valueOf( 1 + random.nextInt( 5 ) ) );
+        item.put( "price", Double.valueOf( random.nextInt( 100000 ) / 100.0 ) );
+        item.put( "added", new Date( 1400000000000L + random.nextInt() ) );
+        item.put( "tags", new ArrayList<String>( Arrays.asList( randomString( random, 8 ), randomString( random, 8 ),
+            randomString( random, 8 ) ) ) );
+        cart.add( item );
+      }
+      session.setAttribute( "cart", cart );
+      session.setAttribute( "userId", Long.valueOf( random.nextLong() ) );
+    }
+  },
+  /**
+   * a map with many string entries, e.g. user preferences or localized messages.
+   */
+  STRING_MAP {
+    @Override
+    void fill( ISerializableSession session, Random random ) {
+      Map<String, String> preferences = new HashMap<String, String>();
+      for ( int i = 0; i < 500; i++ ) {
+        preferences.put( "preference." + i, randomString( random, 30 ) );
+      }
+      session.setAttribute( "preferences", preferences );
+    }
+  };
+
+  private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 ";
+
+  abstract void fill( ISerializableSession session, Random random );
+
+  public ISerializableSession create( AbstractSessionFactory factory ) {
+    ISerializableSession session = factory.create( "benchmark-" + name().toLowerCase(), 1400000000000L, 1400000060000L );
+    fill( session, new Random( 0x5e55 ) );
+    return session;
+  }
+
+  static String randomString( Random random, int length ) {
+    char[] chars = new char[length];
+    for ( int i = 0; i < length; i++ ) {
+      chars[i] = ALPHABET.charAt( random.nextInt( ALPHABET.length() ) );
+    }
+    return new String( chars );
+  }
+}
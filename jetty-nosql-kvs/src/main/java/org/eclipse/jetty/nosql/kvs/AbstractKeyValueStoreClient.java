@@ -1,8 +1,18 @@
 package org.eclipse.jetty.nosql.kvs;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
 public abstract class AbstractKeyValueStoreClient implements IKeyValueStoreClient {
 	protected String _serverString = null;
 	protected int _timeoutInMs = 1000;
+	private Executor _asyncExecutor = null;
 
 	public AbstractKeyValueStoreClient(String serverString) {
 		setServerString(serverString);
@@ -23,4 +33,68 @@ public abstract class AbstractKeyValueStoreClient implements IKeyValueStoreClien
 	public void setTimeoutInMs(int _timeoutInMs) {
 		this._timeoutInMs = _timeoutInMs;
 	}
+
+	/**
+	 * Fall back on get and touch for stores which cannot do both in a single operation.
+	 */
+	@Override
+	public byte[] getAndTouch(String key, int exp) throws KeyValueStoreClientException {
+		byte[] raw = get(key);
+		if (raw != null) {
+			touch(key, exp);
+		}
+		return raw;
+	}
+
+	/**
+	 * Run a blocking operation of the client on the async executor.
+	 * Used by clients whose underlying library does not provide non-blocking operations.
+	 */
+	protected <T> CompletableFuture<T> callAsync(final Callable<T> task) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			getAsyncExecutor().execute(() -> {
+				try {
+					future.complete(task.call());
+				} catch (KeyValueStoreClientException error) {
+					future.completeExceptionally(error);
+				} catch (Throwable error) {
+					future.completeExceptionally(new KeyValueStoreClientException(error));
+				}
+			});
+		} catch (RejectedExecutionException error) {
+			future.completeExceptionally(new KeyValueStoreClientException(error));
+		}
+		return future;
+	}
+
+	protected synchronized Executor getAsyncExecutor() {
+		if (_asyncExecutor == null) {
+			_asyncExecutor = newAsyncExecutor();
+		}
+		return _asyncExecutor;
+	}
+
+	protected Executor newAsyncExecutor() {
+		final String name = getClass().getSimpleName();
+		final AtomicLong threadCount = new AtomicLong();
+		return Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + " Async Thread " + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Should be called on shutdown by clients which use {@link #callAsync(Callable)}.
+	 */
+	protected synchronized void shutdownAsyncExecutor() {
+		if (_asyncExecutor instanceof ExecutorService) {
+			((ExecutorService) _asyncExecutor).shutdown();
+		}
+		_asyncExecutor = null;
+	}
 }
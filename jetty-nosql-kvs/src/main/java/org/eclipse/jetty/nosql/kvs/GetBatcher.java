@@ -0,0 +1,199 @@
+package org.eclipse.jetty.nosql.kvs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Collects lookups of concurrent requests and issues them as one {@link IKeyValueStoreClient#getBulk(java.util.Collection)}.
+ *
+ * A batch is closed when the window has elapsed since its first lookup, or when it is full. Batches are run on a small
+ * pool so that collecting the next batch does not wait for the round trip of the previous one.
+ */
+public class GetBatcher {
+  private final static Logger log = Log.getLogger( "org.eclipse.jetty.nosql.kvs.GetBatcher" );
+
+  private static class Lookup {
+    private final String key;
+    private final CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+
+    Lookup( String key ) {
+      this.key = key;
+    }
+  }
+
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong lookups = new AtomicLong();
+  private final BlockingQueue<Lookup> queue = new LinkedBlockingQueue<Lookup>();
+  private final IKeyValueStoreClient client;
+  private final long windowNanos;
+  private final int maxBatchSize;
+  private final int threads;
+  private final int timeoutMs;
+  private volatile boolean running = false;
+  private Thread collector = null;
+  private ExecutorService executor = null;
+
+  public GetBatcher( final IKeyValueStoreClient client, final long windowMicros, final int maxBatchSize,
+      final int threads, final int timeoutMs ) {
+    this.client = client;
+    this.windowNanos = TimeUnit.MICROSECONDS.toNanos( windowMicros );
+    this.maxBatchSize = Math.max( 1, maxBatchSize );
+    this.threads = Math.max( 1, threads );
+    this.timeoutMs = timeoutMs;
+  }
+
+  public synchronized void start() {
+    final AtomicLong threadCount = new AtomicLong();
+    executor = Executors.newFixedThreadPool( threads, new ThreadFactory() {
+      @Override
+      public Thread newThread( Runnable r ) {
+        Thread t = new Thread( r, "GetBatcher Thread " + threadCount.incrementAndGet() );
+        t.setDaemon( true );
+        return t;
+      }
+    } );
+    running = true;
+    collector = new Thread( () -> collect(), "GetBatcher Collector Thread" );
+    collector.setDaemon( true );
+    collector.start();
+  }
+
+  public synchronized void stop() {
+    running = false;
+    if ( collector != null ) {
+      collector.interrupt();
+      try {
+        collector.join( timeoutMs );
+      }
+      catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+      }
+      collector = null;
+    }
+    if ( executor != null ) {
+      executor.shutdown();
+      executor = null;
+    }
+    List<Lookup> left = new ArrayList<Lookup>();
+    queue.drainTo( left );
+    fail( left, new IllegalStateException( "batcher stopped" ) );
+  }
+
+  /**
+   * Look up the key in the next batch and wait for the result.
+   */
+  public byte[] get( final String key ) throws KeyValueStoreClientException {
+    if ( !running ) {
+      throw new KeyValueStoreClientException( new IllegalStateException( "batcher not started" ) );
+    }
+    Lookup lookup = new Lookup( key );
+    queue.add( lookup );
+    try {
+      return lookup.future.get( timeoutMs + TimeUnit.NANOSECONDS.toMillis( windowNanos ), TimeUnit.MILLISECONDS );
+    }
+    catch ( ExecutionException e ) {
+      if ( e.getCause() instanceof KeyValueStoreClientException )
+        throw (KeyValueStoreClientException)e.getCause();
+      throw new KeyValueStoreClientException( e.getCause() );
+    }
+    catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new KeyValueStoreClientException( e );
+    }
+    catch ( Exception e ) {
+      throw new KeyValueStoreClientException( e );
+    }
+  }
+
+  private void collect() {
+    while ( running ) {
+      try {
+        Lookup first = queue.take();
+        final List<Lookup> batch = new ArrayList<Lookup>();
+        batch.add( first );
+        long deadline = System.nanoTime() + windowNanos;
+        while ( batch.size() < maxBatchSize ) {
+          long remaining = deadline - System.nanoTime();
+          Lookup next = remaining <= 0 ? queue.poll() : queue.poll( remaining, TimeUnit.NANOSECONDS );
+          if ( next == null )
+            break;
+          batch.add( next );
+        }
+        try {
+          executor.execute( () -> dispatch( batch ) );
+        }
+        catch ( RejectedExecutionException e ) {
+          fail( batch, e );
+        }
+      }
+      catch ( InterruptedException e ) {
+        // stopped
+      }
+    }
+  }
+
+  private void dispatch( final List<Lookup> batch ) {
+    Set<String> keys = new LinkedHashSet<String>();
+    for ( Lookup lookup : batch ) {
+      keys.add( lookup.key );
+    }
+    batches.incrementAndGet();
+    lookups.addAndGet( batch.size() );
+    log.debug( "dispatch: lookups=" + batch.size() + ", keys=" + keys.size() );
+    try {
+      Map<String, byte[]> found;
+      if ( keys.size() == 1 ) {
+        String key = keys.iterator().next();
+        found = Collections.singletonMap( key, client.get( key ) );
+      }
+      else {
+        found = client.getBulk( keys );
+      }
+      for ( Lookup lookup : batch ) {
+        lookup.future.complete( found.get( lookup.key ) );
+      }
+    }
+    catch ( Exception e ) {
+      fail( batch, e );
+    }
+  }
+
+  private void fail( final List<Lookup> batch, final Exception cause ) {
+    KeyValueStoreClientException error = cause instanceof KeyValueStoreClientException
+        ? (KeyValueStoreClientException)cause : new KeyValueStoreClientException( cause );
+    for ( Lookup lookup : batch ) {
+      lookup.future.completeExceptionally( error );
+    }
+  }
+
+  /**
+   * @return number of bulk gets issued
+   */
+  public long getBatches() {
+    return batches.get();
+  }
+
+  /**
+   * @return number of lookups served by bulk gets
+   */
+  public long getLookups() {
+    return lookups.get();
+  }
+}
@@ -0,0 +1,19 @@
+package org.eclipse.jetty.nosql.kvs;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking variant of {@link IKeyValueStoreClient}.
+ * 
+ * Returned futures complete exceptionally with {@link KeyValueStoreClientException} on failure. Callers should not
+ * block on them from I/O threads of the client library.
+ */
+public interface IAsyncKeyValueStoreClient extends IKeyValueStoreClient {
+	public CompletableFuture<byte[]> getAsync(String key);
+
+	public CompletableFuture<Boolean> setAsync(String key, long version, byte[] raw, int exp);
+
+	public CompletableFuture<Boolean> addAsync(String key, long version, byte[] raw, int exp);
+
+	public CompletableFuture<Boolean> deleteAsync(String key);
+}
@@ -1,5 +1,8 @@
 package org.eclipse.jetty.nosql.kvs;
 
+import java.util.Collection;
+import java.util.Map;
+
 public interface IKeyValueStoreClient {
 	public boolean establish() throws KeyValueStoreClientException;
 
@@ -9,6 +12,14 @@ public interface IKeyValueStoreClient {
 
 	public byte[] get(String key) throws KeyValueStoreClientException;
 
+	/**
+	 * Get many keys in a single round trip.
+	 * @param keys
+	 * @return data of the keys found. missing keys are not contained.
+	 * @throws KeyValueStoreClientException
+	 */
+	public Map<String, byte[]> getBulk(Collection<String> keys) throws KeyValueStoreClientException;
+
 
 	public boolean delete(String key) throws KeyValueStoreClientException;
 	
@@ -37,11 +48,43 @@ public interface IKeyValueStoreClient {
 
 	  public boolean add(String key, long version, byte[] raw, int exp) throws KeyValueStoreClientException;
 
+	  /**
+	   * Store session data only if the stored version is still expectedVersion (compare-and-set).
+	   * The data will be stored with version expectedVersion + 1.
+	   * 
+	   * @param key
+	   * @param expectedVersion version known to the caller. 0 means the key must not exist yet.
+	   * @param raw
+	   * @param exp
+	   * @return false if the stored version has been changed by others
+	   * @throws KeyValueStoreClientException
+	   */
+	  public boolean cas(String key, long expectedVersion, byte[] raw, int exp) throws KeyValueStoreClientException;
+
 	  /**
 	   * Allow querying version without pulling back all the session data.
 	   * @param key
-	   * @return
+	   * @return version stored with the data, or 0 if the key does not exist
+	   * @throws KeyValueStoreClientException
+	   */
+	  public long version( String key ) throws KeyValueStoreClientException;
+
+	  /**
+	   * Extend the expiry of the data without rewriting it.
+	   * @param key
+	   * @param exp
+	   * @return false if the key does not exist
+	   * @throws KeyValueStoreClientException
+	   */
+	  public boolean touch( String key, int exp ) throws KeyValueStoreClientException;
+
+	  /**
+	   * Get the data and extend its expiry, in a single round trip where the store supports it.
+	   * @param key
+	   * @param exp
+	   * @return null if the key does not exist
+	   * @throws KeyValueStoreClientException
 	   */
-	  public long version( String key );
+	  public byte[] getAndTouch( String key, int exp ) throws KeyValueStoreClientException;
 
 }
@@ -15,7 +15,13 @@ package org.eclipse.jetty.nosql.kvs;
 //========================================================================
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
@@ -56,6 +62,10 @@ public abstract class KeyValueStoreSessionIdManager extends AbstractSessionIdMan
     protected IKeyValueStoreClient _client = null;
     protected String _serverString = "";
     protected int _timeoutInMs = 1000;
+    protected long _getBatchWindowMicros = 0;
+    protected int _getBatchMaxSize = 100;
+    protected int _getBatchThreads = 4;
+    protected GetBatcher _getBatcher = null;
 
     /* ------------------------------------------------------------ */
     public KeyValueStoreSessionIdManager(final Server server, final String serverString) throws IOException
@@ -87,6 +97,13 @@ public abstract class KeyValueStoreSessionIdManager extends AbstractSessionIdMan
         }
         log.info("use " + _client.getClass().getSimpleName() + " as client factory.");
         _client.establish();
+        if (0 < _getBatchWindowMicros)
+        {
+            _getBatcher = new GetBatcher(_client, _getBatchWindowMicros, _getBatchMaxSize, _getBatchThreads,
+                _timeoutInMs);
+            _getBatcher.start();
+            log.info("batch lookups within " + _getBatchWindowMicros + "us.");
+        }
         log.info("started.");
     }
 
@@ -95,6 +112,11 @@ public abstract class KeyValueStoreSessionIdManager extends AbstractSessionIdMan
     protected void doStop() throws Exception
     {
         log.info("stopping...");
+        if (_getBatcher != null)
+        {
+            _getBatcher.stop();
+            _getBatcher = null;
+        }
         if (_client != null)
         {
             _client.shutdown();
@@ -111,7 +133,7 @@ public abstract class KeyValueStoreSessionIdManager extends AbstractSessionIdMan
     @Override
     public boolean idInUse(final String idInCluster)
     {
-        return getKey(idInCluster) != null; // note "null" may also mean be caused by connection problem. Anyway: Treating this as "not in use"
+        return exists(idInCluster); // note "false" may also mean be caused by connection problem. Anyway: Treating this as "not in use"
         // do not check the validity of the session since
         // we do not save invalidated sessions anymore.
     }
@@ -194,7 +216,15 @@ public abstract class KeyValueStoreSessionIdManager extends AbstractSessionIdMan
         byte[] raw = null;
         try
         {
-            raw = _client.get(mangleKey(idInCluster));
+            GetBatcher batcher = _getBatcher;
+            if (batcher != null)
+            {
+                raw = batcher.get(mangleKey(idInCluster));
+            }
+            else
+            {
+                raw = _client.get(mangleKey(idInCluster));
+            }
         }
         catch (KeyValueStoreClientException error)
         {
@@ -203,22 +233,95 @@ public abstract class KeyValueStoreSessionIdManager extends AbstractSessionIdMan
         return raw;
     }
 
+    /**
+     * get many keys in a single round trip.
+     * 
+     * @return raw data of the keys found
+     */
+    protected Map<String, byte[]> getKeys(final Collection<String> idsInCluster)
+    {
+        log.debug("getBulk: ids=" + idsInCluster);
+        Map<String, byte[]> result = new HashMap<String, byte[]>();
+        List<String> keys = new ArrayList<String>(idsInCluster.size());
+        for (String idInCluster : idsInCluster)
+        {
+            keys.add(mangleKey(idInCluster));
+        }
+        try
+        {
+            Map<String, byte[]> found = _client.getBulk(keys);
+            for (String idInCluster : idsInCluster)
+            {
+                byte[] raw = found.get(mangleKey(idInCluster));
+                if (raw != null)
+                {
+                    result.put(idInCluster, raw);
+                }
+            }
+        }
+        catch (KeyValueStoreClientException error)
+        {
+            log.warn("unable to get keys: ids=" + idsInCluster, error);
+        }
+        return result;
+    }
+
+    protected boolean exists(final String idInCluster)
+    {
+        log.debug("exists: id=" + idInCluster);
+        boolean exists = false;
+        try
+        {
+            exists = _client.exists(mangleKey(idInCluster));
+        }
+        catch (KeyValueStoreClientException error)
+        {
+            log.warn("unable to check key exists: id=" + idInCluster, error);
+        }
+        return exists;
+    }
+
+    /**
+     * query the version of stored session without pulling back the session data.
+     * 
+     * @return version of the session, or 0 if it does not exist or the client cannot tell
+     */
+    protected long version(final String idInCluster)
+    {
+        log.debug("version: id=" + idInCluster);
+        long version = 0;
+        try
+        {
+            version = _client.version(mangleKey(idInCluster));
+        }
+        catch (KeyValueStoreClientException error)
+        {
+            log.warn("unable to get version: id=" + idInCluster, error);
+        }
+        return version;
+    }
+
     protected boolean setKey(final String idInCluster, final byte[] raw)
     {
         return setKey(idInCluster, raw, getDefaultExpiry());
     }
 
     protected boolean setKey(final String idInCluster, final byte[] raw, int expiry)
+    {
+        return setKey(idInCluster, 0, raw, expiry);
+    }
+
+    protected boolean setKey(final String idInCluster, final long version, final byte[] raw, int expiry)
     {
         if (expiry < 0)
         {
             expiry = 0; // 0 means forever
         }
-        log.debug("set: id=" + idInCluster + ", expiry=" + expiry);
+        log.debug("set: id=" + idInCluster + ", version=" + version + ", expiry=" + expiry);
         boolean result = false;
         try
         {
-            result = _client.set(mangleKey(idInCluster), 0 , raw, expiry);
+            result = _client.set(mangleKey(idInCluster), version, raw, expiry);
         }
         catch (KeyValueStoreClientException error)
         {
@@ -227,22 +330,46 @@ public abstract class KeyValueStoreSessionIdManager extends AbstractSessionIdMan
         return result;
     }
 
+    /**
+     * store the session without waiting for the result. clients which are not {@link IAsyncKeyValueStoreClient} store
+     * it synchronously.
+     */
+    protected CompletableFuture<Boolean> setKeyAsync(final String idInCluster, final long version, final byte[] raw,
+        int expiry)
+    {
+        if (expiry < 0)
+        {
+            expiry = 0; // 0 means forever
+        }
+        if (!(_client instanceof IAsyncKeyValueStoreClient))
+        {
+            return CompletableFuture.completedFuture(setKey(idInCluster, version, raw, expiry));
+        }
+        log.debug("setAsync: id=" + idInCluster + ", version=" + version + ", expiry=" + expiry);
+        return ((IAsyncKeyValueStoreClient) _client).setAsync(mangleKey(idInCluster), version, raw, expiry);
+    }
+
     protected boolean addKey(final String idInCluster, final byte[] raw)
     {
         return addKey(idInCluster, raw, getDefaultExpiry());
     }
 
     protected boolean addKey(final String idInCluster, final byte[] raw, int expiry)
+    {
+        return addKey(idInCluster, 0, raw, expiry);
+    }
+
+    protected boolean addKey(final String idInCluster, final long version, final byte[] raw, int expiry)
     {
         if (expiry < 0)
         {
             expiry = 0; // 0 means forever
         }
-        log.debug("add: id=" + idInCluster + ", expiry=" + expiry);
+        log.debug("add: id=" + idInCluster + ", version=" + version + ", expiry=" + expiry);
         boolean result = false;
         try
         {
-            result = _client.add(mangleKey(idInCluster), 0, raw, expiry);
+            result = _client.add(mangleKey(idInCluster), version, raw, expiry);
         }
         catch (KeyValueStoreClientException error)
         {
@@ -251,6 +378,69 @@ public abstract class KeyValueStoreSessionIdManager extends AbstractSessionIdMan
         return result;
     }
 
+    /**
+     * store the session only if its version on KVS is still expectedVersion.
+     * 
+     * @return false on conflict
+     */
+    protected boolean casKey(final String idInCluster, final long expectedVersion, final byte[] raw, int expiry)
+        throws KeyValueStoreClientException
+    {
+        if (expiry < 0)
+        {
+            expiry = 0; // 0 means forever
+        }
+        log.debug("cas: id=" + idInCluster + ", expectedVersion=" + expectedVersion + ", expiry=" + expiry);
+        return _client.cas(mangleKey(idInCluster), expectedVersion, raw, expiry);
+    }
+
+    /**
+     * extend the expiry of the session without storing it again.
+     * 
+     * @return false if the session does not exist on KVS, or it could not be touched
+     */
+    protected boolean touchKey(final String idInCluster, int expiry)
+    {
+        if (expiry < 0)
+        {
+            expiry = 0; // 0 means forever
+        }
+        log.debug("touch: id=" + idInCluster + ", expiry=" + expiry);
+        boolean result = false;
+        try
+        {
+            result = _client.touch(mangleKey(idInCluster), expiry);
+        }
+        catch (KeyValueStoreClientException error)
+        {
+            log.warn("unable to touch key: id=" + idInCluster, error);
+        }
+        return result;
+    }
+
+    /**
+     * get the key and extend its expiry in a single round trip. the get batcher is bypassed, since batched gets cannot
+     * carry an expiry.
+     */
+    protected byte[] getAndTouchKey(final String idInCluster, int expiry)
+    {
+        if (expiry < 0)
+        {
+            expiry = 0; // 0 means forever
+        }
+        log.debug("getAndTouch: id=" + idInCluster + ", expiry=" + expiry);
+        byte[] raw = null;
+        try
+        {
+            raw = _client.getAndTouch(mangleKey(idInCluster), expiry);
+        }
+        catch (KeyValueStoreClientException error)
+        {
+            log.warn("unable to get and touch key: id=" + idInCluster, error);
+        }
+        return raw;
+    }
+
     protected boolean deleteKey(final String idInCluster)
     {
         log.debug("delete: id=" + idInCluster);
@@ -316,6 +506,40 @@ public abstract class KeyValueStoreSessionIdManager extends AbstractSessionIdMan
         this._timeoutInMs = timeoutInMs;
     }
 
+    public long getGetBatchWindowMicros()
+    {
+        return _getBatchWindowMicros;
+    }
+
+    /**
+     * @param getBatchWindowMicros collect session lookups of concurrent requests within this period and issue them as
+     *            a single multi-get. 0 (default) disables batching.
+     */
+    public void setGetBatchWindowMicros(final long getBatchWindowMicros)
+    {
+        this._getBatchWindowMicros = getBatchWindowMicros;
+    }
+
+    public int getGetBatchMaxSize()
+    {
+        return _getBatchMaxSize;
+    }
+
+    public void setGetBatchMaxSize(final int getBatchMaxSize)
+    {
+        this._getBatchMaxSize = getBatchMaxSize;
+    }
+
+    public int getGetBatchThreads()
+    {
+        return _getBatchThreads;
+    }
+
+    public void setGetBatchThreads(final int getBatchThreads)
+    {
+        this._getBatchThreads = getBatchThreads;
+    }
+
     /**
      * @deprecated from 0.3.0. this is false by default and is not an option.
      */
@@ -14,14 +14,40 @@ package org.eclipse.jetty.nosql.kvs;
 //You may elect to redistribute this code under either of these licenses.
 //========================================================================
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionEvent;
+
 
 import org.eclipse.jetty.nosql.NoSqlSession;
 import org.eclipse.jetty.nosql.NoSqlSessionManager;
+import org.eclipse.jetty.nosql.kvs.jmx.JmxMonitorManager;
 import org.eclipse.jetty.nosql.kvs.session.AbstractSessionFactory;
 import org.eclipse.jetty.nosql.kvs.session.ISerializableSession;
+import org.eclipse.jetty.nosql.kvs.session.ISerializationTranscoder;
+import org.eclipse.jetty.nosql.kvs.session.LazyAttribute;
+import org.eclipse.jetty.nosql.kvs.session.SerializationStats;
 import org.eclipse.jetty.nosql.kvs.session.TranscoderException;
 import org.eclipse.jetty.nosql.kvs.session.serializable.SerializableSessionFactory;
 import org.eclipse.jetty.server.SessionIdManager;
@@ -32,9 +58,35 @@ import org.eclipse.jetty.util.log.Logger;
 public class KeyValueStoreSessionManager extends NoSqlSessionManager
 {
     private final static Logger log = Log.getLogger("org.eclipse.jetty.nosql.kvs.KeyValueStoreSessionManager");
+    /**
+     * reserved attribute of the manifest of a session saved in delta mode. maps attribute names to their versions.
+     */
+    protected static final String ATTRIBUTE_VERSIONS = "org.eclipse.jetty.nosql.kvs.attributeVersions";
+    private static final int MAX_ATTRIBUTE_KEY_NAME_LENGTH = 64;
+    /**
+     * number of the lower bits of versions which tell the node that has written them, see {@link #nextVersion(Object)}
+     */
+    public static final int VERSION_NODE_BITS = 16;
     protected String _cookieDomain = getSessionCookieConfig().getDomain();
     protected String _cookiePath = getSessionCookieConfig().getPath();
     protected AbstractSessionFactory sessionFactory = null;
+    protected int _sessionCacheSize = 0;
+    protected SessionCache<SmarterNoSqlSession> _sessionCache = null;
+    protected boolean _optimisticLocking = false;
+    protected int _optimisticLockingRetries = 3;
+    protected boolean _asyncSave = false;
+    protected final ConcurrentMap<String, CompletableFuture<Boolean>> _pendingSaves = new ConcurrentHashMap<String, CompletableFuture<Boolean>>();
+    protected long _writeBehindWindowMs = 0;
+    protected int _writeBehindThreads = 2;
+    protected WriteBehindQueue _writeBehindQueue = null;
+    protected boolean _deltaPersistence = false;
+    protected boolean _serializationStats = false;
+    protected long _maxAccessedLagMs = 0;
+    protected long _accessedGranularityMs = 0;
+    // when this node last extended the expiry of each session on KVS
+    protected final ConcurrentMap<String, Long> _extendedAt = new ConcurrentHashMap<String, Long>();
+    private final AtomicLong _extendedAtPruned = new AtomicLong();
+    private final long _versionNode = ThreadLocalRandom.current().nextInt(1, 1 << VERSION_NODE_BITS);
 
     /* ------------------------------------------------------------ */
     public KeyValueStoreSessionManager()
@@ -94,6 +146,27 @@ public class KeyValueStoreSessionManager extends NoSqlSessionManager
         catch (SecurityException error)
         {
         }
+        if (_serializationStats)
+        {
+            sessionFactory.setStats(new SerializationStats());
+            JmxMonitorManager.monitor(sessionFactory.getStats(), "SessionClustering", "serialization", getSessionCacheName());
+        }
+        if (0 < _sessionCacheSize)
+        {
+            _sessionCache = new SessionCache<SmarterNoSqlSession>(_sessionCacheSize);
+            JmxMonitorManager.monitor(_sessionCache, "SessionClustering", "sessioncache", getSessionCacheName());
+            log.info("use near cache of " + _sessionCacheSize + " sessions.");
+        }
+        if (0 < _writeBehindWindowMs)
+        {
+            final KeyValueStoreSessionIdManager idManager = (KeyValueStoreSessionIdManager) _sessionIdManager;
+            _writeBehindQueue = new WriteBehindQueue((idInCluster, version, raw) -> idManager.setKeyAsync(
+                mangleKey(idInCluster), version, raw, getKeyExpiry()), _writeBehindWindowMs,
+                _writeBehindThreads, idManager.getTimeoutInMs());
+            _writeBehindQueue.start();
+            JmxMonitorManager.monitor(_writeBehindQueue, "SessionClustering", "writebehind", getSessionCacheName());
+            log.info("write sessions behind every " + _writeBehindWindowMs + "ms.");
+        }
         log.info("started.");
     }
 
@@ -103,6 +176,24 @@ public class KeyValueStoreSessionManager extends NoSqlSessionManager
         // override doStop() and invalidatedSessions() to skip invoking NoSqlSessionManager#invalidatedSeessions()
         // we do not want to invalidate all sessions on servlets restart.
         log.info("stopping...");
+        if (_writeBehindQueue != null)
+        {
+            JmxMonitorManager.remove("SessionClustering", "writebehind", getSessionCacheName());
+            _writeBehindQueue.stop();
+            _writeBehindQueue = null;
+        }
+        awaitPendingSaves();
+        if (_sessionCache != null)
+        {
+            JmxMonitorManager.remove("SessionClustering", "sessioncache", getSessionCacheName());
+            _sessionCache.clear();
+            _sessionCache = null;
+        }
+        if (sessionFactory != null && sessionFactory.getStats() != null)
+        {
+            JmxMonitorManager.remove("SessionClustering", "serialization", getSessionCacheName());
+            sessionFactory.setStats(null);
+        }
         super.doStop();
         log.info("stopped.");
     }
@@ -141,10 +232,21 @@ public class KeyValueStoreSessionManager extends NoSqlSessionManager
             if (!session.isValid())
             {
                 log.debug("save: skip saving invalidated session: id=" + session.getId());
+                evictSession(session.getClusterId());
                 deleteKey(session.getId());
                 return null;
             }
 
+            if (touchKey(session, version))
+            {
+                log.debug("save: touched unchanged session: id=" + session.getId());
+                if (activateAfterSave)
+                {
+                    session.didActivate();
+                }
+                return version;
+            }
+
             ISerializableSession data;
             synchronized (session)
             {
@@ -152,16 +254,43 @@ public class KeyValueStoreSessionManager extends NoSqlSessionManager
             }
             data.setDomain(_cookieDomain);
             data.setPath(_cookiePath);
-            long longVersion = 1; // default version for new sessions
-            if (version != null)
+            long longVersion;
+            if (_optimisticLocking)
+            {
+                // compare-and-set counts the versions by itself
+                longVersion = (version == null ? 0L : (Long) version) + 1L;
+            }
+            else
             {
-                longVersion = (Long) version + 1L;
+                longVersion = nextVersion(version);
             }
             data.setVersion(longVersion);
+            boolean extended = true;
 
             try
             {
-                if (!setKey(session.getId(), data))
+                if (_optimisticLocking)
+                {
+                    longVersion = compareAndSetKey(session, longVersion - 1L, data);
+                }
+                else if (_writeBehindQueue != null)
+                {
+                    writeBehind(session.getId(), data);
+                }
+                else if (_asyncSave)
+                {
+                    saveAsync(session.getId(), data);
+                }
+                else if (_deltaPersistence)
+                {
+                    if (!setDeltaKey(session, data))
+                    {
+                        throw (new RuntimeException("unable to set key: data=" + data));
+                    }
+                    // unchanged attributes are left as they are
+                    extended = false;
+                }
+                else if (!setKey(session.getId(), data))
                 {
                     throw (new RuntimeException("unable to set key: data=" + data));
                 }
@@ -172,6 +301,14 @@ public class KeyValueStoreSessionManager extends NoSqlSessionManager
                     + data, error));
             }
             log.debug("save:db.sessions.update(" + session.getId() + "," + data + ")");
+            if (extended)
+            {
+                recordExtended(session.getId());
+            }
+            if (session instanceof SmarterNoSqlSession)
+            {
+                ((SmarterNoSqlSession) session).setStoredAccessed(data.getAccessed());
+            }
 
             if (activateAfterSave)
             {
@@ -187,257 +324,956 @@ public class KeyValueStoreSessionManager extends NoSqlSessionManager
         return null;
     }
 
-    /*------------------------------------------------------------ */
-    @Override
-    protected Object refresh(final NoSqlSession session, Object version)
+    /**
+     * Versions are unique to each write, rather than incremented, so that two nodes which have loaded the same version
+     * and save the session concurrently do not store the same version. Otherwise the node whose write has been lost
+     * would take its own copy for the stored one on revalidation. The higher bits count the writes, the lower
+     * {@link #VERSION_NODE_BITS} bits tell the node which has written the session, picked at random for each manager.
+     * 
+     * @return version of the next write of the session
+     */
+    protected long nextVersion(final Object version)
     {
-        log.debug("refresh " + session);
-        ISerializableSession data = null;
-        try
-        {
-            data = getKey(session.getClusterId());
-        }
-        catch (TranscoderException error)
-        {
-            throw (new IllegalStateException("unable to deserialize session: id=" + session.getClusterId(), error));
-        }
-        // check if our in memory version is the same as what is on KVS
-        if (version != null)
-        {
-            long saved = 0;
-            if (data != null)
-            {
-                saved = data.getVersion();
+        long count = version == null ? 0L : (Long) version >>> VERSION_NODE_BITS;
+        return ((count + 1L) << VERSION_NODE_BITS) | _versionNode;
+    }
 
-                if (saved == (Long) version)
-                {
-                    log.debug("refresh not needed");
-                    return version;
-                }
-                version = Long.valueOf(saved);
-            }
+    /**
+     * Keep a session which has not been changed alive by extending its expiry on KVS, rather than storing it again.
+     * The access time on KVS is left behind, so the session is stored anyway once it lags behind by maxAccessedLagMs.
+     * Sessions touched while being loaded by the request are not touched again. Only their attributes saved in delta
+     * mode are. Sessions whose expiry has been extended by this node within accessedGranularityMs are not touched at
+     * all.
+     * 
+     * @return false if the session has to be stored
+     */
+    protected boolean touchKey(final NoSqlSession session, final Object version)
+    {
+        boolean touchedOnLoad = session instanceof SmarterNoSqlSession
+            && ((SmarterNoSqlSession) session).takeTouchedOnLoad();
+        if (_maxAccessedLagMs <= 0 || version == null || !(session instanceof SmarterNoSqlSession) || session.isDirty()
+            || getMaxInactiveInterval() <= 0)
+        {
+            return false;
         }
-
-        // If it doesn't exist, invalidate
-        if (data == null)
+        SmarterNoSqlSession smarter = (SmarterNoSqlSession) session;
+        long maxLag = Math.min(_maxAccessedLagMs, TimeUnit.SECONDS.toMillis(getMaxInactiveInterval()) / 2);
+        if (maxLag <= session.getAccessed() - smarter.getStoredAccessed())
         {
-            log.debug("refresh:marking invalid, no object");
-            session.invalidate();
-            return null;
+            return false;
         }
-
-        // If it has been flagged invalid, invalidate
-        boolean valid = data.isValid();
-        if (!valid)
+        KeyValueStoreSessionIdManager idManager = (KeyValueStoreSessionIdManager) _sessionIdManager;
+        String idInCluster = session.getId();
+        if (isRecentlyExtended(idInCluster))
         {
-            log.debug("refresh:marking invalid, valid flag " + valid);
-            session.invalidate();
-            return null;
+            return true;
         }
-
-        // We need to update the attributes. We will model this as a passivate,
-        // followed by bindings and then activation.
-        session.willPassivate();
-        try
+        // attributes saved in delta mode expire on their own
+        for (Map.Entry<String, Long> entry: smarter.getAttributeVersions().entrySet())
         {
-            for (Enumeration<String> e = data.getAttributeNames(); e.hasMoreElements();)
-            {
-                String name = e.nextElement();
-                Object value = data.getAttribute(name);
-                // only bind value if it didn't exist in session
-                if (!session.getNames().contains(name))
-                {
-                    session.doPutOrRemove(name, value);
-                    session.bindValue(name, value);
-                }
-                else
-                {
-                    session.doPutOrRemove(name, value);
-                }
-            }
-
-            // cleanup, remove values from session, that don't exist in data anymore:
-            for (String name : session.getNames())
+            if (!idManager.touchKey(mangleKey(attributeKey(idInCluster, entry.getKey(), entry.getValue())),
+                getKeyExpiry()))
             {
-                if (!data.getAttributeMap().containsKey(name))
-                {
-                    session.doPutOrRemove(name, null);
-                    session.unbindValue(name, session.getAttribute(name));
-                }
+                return false;
             }
-
-            session.didActivate();
-            return version;
         }
-        catch (Exception e)
+        if (!touchedOnLoad && !idManager.touchKey(mangleKey(idInCluster), getKeyExpiry()))
         {
-            log.warn(e);
+            return false;
         }
-
-        return null;
+        recordExtended(idInCluster);
+        return true;
     }
 
-    @Override
-    protected void addSession(final AbstractSession session)
+    /**
+     * @return expiry of sessions on KVS in seconds. padded by accessedGranularityMs, since their expiry is extended
+     *         once in accessedGranularityMs at most.
+     */
+    protected int getKeyExpiry()
     {
-        // nop
+        int maxInactiveInterval = getMaxInactiveInterval();
+        if (maxInactiveInterval <= 0 || _accessedGranularityMs <= 0)
+        {
+            return maxInactiveInterval;
+        }
+        return maxInactiveInterval + (int) TimeUnit.MILLISECONDS.toSeconds(_accessedGranularityMs + 999);
     }
 
-    @Override
-    public AbstractSession getSession(final String idInCluster)
+    /**
+     * @return true if this node has extended the expiry of the session on KVS within accessedGranularityMs
+     */
+    protected boolean isRecentlyExtended(final String idInCluster)
     {
-        AbstractSession session;
-        return loadSession(idInCluster);
+        if (_accessedGranularityMs <= 0)
+        {
+            return false;
+        }
+        Long extendedAt = _extendedAt.get(idInCluster);
+        return extendedAt != null && System.currentTimeMillis() - extendedAt < _accessedGranularityMs;
     }
 
-    /*------------------------------------------------------------ */
-    @Override
-    protected NoSqlSession loadSession(final String clusterId)
+    /**
+     * Remember when the expiry of the session has been extended. Sessions extended longer than accessedGranularityMs
+     * ago are forgotten once in accessedGranularityMs, so that sessions which are never invalidated on this node do
+     * not pile up.
+     */
+    protected void recordExtended(final String idInCluster)
     {
-        log.debug("loadSession: loading: id=" + clusterId);
-        ISerializableSession data = getKey(clusterId);
-        log.debug("loadSession: loaded: id=" + clusterId + ", data=" + data);
-
-        if (data == null)
+        if (_accessedGranularityMs <= 0)
         {
-            return null;
+            return;
         }
-
-        boolean valid = data.isValid();
-        if (!valid)
+        final long now = System.currentTimeMillis();
+        _extendedAt.put(idInCluster, now);
+        long pruned = _extendedAtPruned.get();
+        if (_accessedGranularityMs <= now - pruned && _extendedAtPruned.compareAndSet(pruned, now))
         {
-            log.debug("loadSession: id=" + clusterId + ", data=" + data + " has been invalidated.");
-            return null;
+            _extendedAt.values().removeIf(extendedAt -> _accessedGranularityMs <= now - extendedAt);
         }
+    }
 
-        if (!clusterId.equals(data.getId()))
+    /**
+     * Start storing the session and return without waiting for KVS. The save is tracked until it completes, and reads
+     * of the session on this node wait for it so that the next request sees its own changes.
+     */
+    protected void saveAsync(final String idInCluster, final ISerializableSession data) throws TranscoderException
+    {
+        final CompletableFuture<Boolean> future = setKeyAsync(idInCluster, data);
+        _pendingSaves.put(idInCluster, future);
+        future.whenComplete((result, error) -> {
+            _pendingSaves.remove(idInCluster, future);
+            if (error != null)
+            {
+                log.warn("unable to set key: id=" + idInCluster, error);
+            }
+            else if (!result)
+            {
+                log.warn("unable to set key: data=" + data);
+            }
+        });
+    }
+
+    /**
+     * Save only the attributes which have been changed since the session was loaded. Each attribute is stored under
+     * its own key, named after the version of the session in which it was written. The session key holds the manifest,
+     * i.e. the session without attributes but the versions of them. Readers never see a mix of old and new attributes
+     * since the keys of a version are never overwritten.
+     */
+    protected boolean setDeltaKey(final NoSqlSession session, final ISerializableSession data) throws TranscoderException
+    {
+        final String idInCluster = session.getClusterId();
+        final long version = data.getVersion();
+        Map<String, Long> previous = Collections.emptyMap();
+        if (session instanceof SmarterNoSqlSession)
         {
-            log.warn("loadSession: invalid id (expected:" + clusterId + ", got:" + data.getId() + ")");
-            return null;
+            previous = ((SmarterNoSqlSession) session).getAttributeVersions();
         }
+        Set<String> changed = getChangedAttributeNames(session);
 
-        synchronized (_cookieDomain)
+        Map<String, Long> versions = new HashMap<String, Long>();
+        List<String> obsolete = new ArrayList<String>();
+        for (Map.Entry<String, Object> a : data.getAttributeMap().entrySet())
         {
-            if (_cookieDomain != null && !data.getDomain().equals("*") && !_cookieDomain.equals(data.getDomain()))
+            Long attributeVersion = previous.get(a.getKey());
+            if (attributeVersion != null && !changed.contains(a.getKey()))
             {
-                log.warn("loadSession: invalid cookie domain (expected:" + _cookieDomain + ", got:" + data.getDomain()
-                    + ")");
-                return null;
+                versions.put(a.getKey(), attributeVersion);
+                continue;
             }
-        }
-
-        synchronized (_cookiePath)
-        {
-            if (_cookiePath != null && !data.getPath().equals("*") && !_cookiePath.equals(data.getPath()))
+            String key = attributeKey(idInCluster, a.getKey(), version);
+            if (!setAttributeKey(key, a.getKey(), a.getValue()))
             {
-                log.warn("loadSession: invalid cookie path (expected:" + _cookiePath + ", got:" + data.getPath() + ")");
-                return null;
+                return false;
             }
-        }
-
-        try
-        {
-            long version = data.getVersion();
-            long created = data.getCreationTime();
-            long accessed = data.getAccessed();
-            SmarterNoSqlSession session = new SmarterNoSqlSession(this, created, accessed, clusterId, version);
-
-            // get the attributes for the context
-            Enumeration<String> attrs = data.getAttributeNames();
-
-            //			log.debug("attrs: " + Collections.list(attrs));
-            if (attrs != null)
+            versions.put(a.getKey(), version);
+            if (attributeVersion != null)
             {
-                while (attrs.hasMoreElements())
-                {
-                    String name = attrs.nextElement();
-                    Object value = data.getAttribute(name);
-
-                    session.initializeAttribute(name, value);
-                    session.bindValue(name, value);
-
-                }
+                obsolete.add(attributeKey(idInCluster, a.getKey(), attributeVersion));
             }
-            session.didActivate();
-
-            return session;
         }
-        catch (Exception e)
+        for (Map.Entry<String, Long> a : previous.entrySet())
         {
-            log.warn(e);
+            if (!versions.containsKey(a.getKey()))
+            {
+                obsolete.add(attributeKey(idInCluster, a.getKey(), a.getValue()));
+            }
         }
-        return null;
-    }
+        log.debug("setDelta: id=" + idInCluster + ", version=" + version + ", changed=" + changed);
 
-    /*------------------------------------------------------------ */
-    @Override
-    protected boolean remove(final NoSqlSession session)
-    {
-        if (session == null)
+        ISerializableSession manifest = getSessionFactory().create(data.getId(), data.getCreationTime(),
+            data.getAccessed());
+        manifest.setDomain(data.getDomain());
+        manifest.setPath(data.getPath());
+        manifest.setVersion(version);
+        manifest.setValid(data.isValid());
+        manifest.setAttribute(ATTRIBUTE_VERSIONS, new HashMap<String, Long>(versions));
+        if (!setKey(idInCluster, manifest))
         {
             return false;
         }
-        else
+        if (session instanceof SmarterNoSqlSession)
         {
-            return deleteKey(session.getId());
+            ((SmarterNoSqlSession) session).setAttributeVersions(versions);
+        }
+
+        KeyValueStoreSessionIdManager idManager = (KeyValueStoreSessionIdManager) _sessionIdManager;
+        for (String key : obsolete)
+        {
+            idManager.deleteKey(mangleKey(key));
         }
+        return true;
     }
 
-    @Override
-    protected boolean removeSession(final String idInCluster)
+    protected boolean setAttributeKey(final String key, final String name, final Object value)
+        throws TranscoderException
     {
-        return deleteKey(idInCluster);
+        AbstractSessionFactory factory = getSessionFactory();
+        byte[] raw = factory.packAttribute(name, value, factory.getTranscoder());
+        return raw != null
+            && ((KeyValueStoreSessionIdManager) _sessionIdManager).setKey(mangleKey(key), 0, raw, getKeyExpiry());
     }
 
-    protected String mangleKey(final String idInCluster)
+    /**
+     * set the attributes listed in the manifest.
+     * 
+     * @return names of attributes which are missing, e.g. since a newer version of the session has been saved meanwhile
+     */
+    protected Set<String> loadAttributes(final String idInCluster, final ISerializableSession manifest,
+        final Map<String, Long> versions) throws TranscoderException
     {
-        return idInCluster;
+        Map<String, String> names = new HashMap<String, String>();
+        for (Map.Entry<String, Long> a : versions.entrySet())
+        {
+            names.put(attributeKey(idInCluster, a.getKey(), a.getValue()), a.getKey());
+        }
+        Map<String, byte[]> found = ((KeyValueStoreSessionIdManager) _sessionIdManager).getKeys(names.keySet());
+        Set<String> missing = new HashSet<String>(versions.keySet());
+        AbstractSessionFactory factory = getSessionFactory();
+        ISerializationTranscoder tc = factory.getTranscoder();
+        for (Map.Entry<String, byte[]> a : found.entrySet())
+        {
+            String name = names.get(a.getKey());
+            if (factory.isLazyAttributes())
+            {
+                manifest.setAttribute(name, new LazyAttribute(factory, tc, name, a.getValue()));
+            }
+            else
+            {
+                manifest.setAttribute(name, factory.unpackAttribute(name, a.getValue(), tc));
+            }
+            missing.remove(name);
+        }
+        return missing;
     }
 
-    protected ISerializableSession getKey(final String idInCluster) throws TranscoderException
+    /**
+     * @return attribute versions of a manifest, or null if the session has not been saved in delta mode
+     */
+    @SuppressWarnings("unchecked")
+    protected static Map<String, Long> getAttributeVersions(final ISerializableSession data)
     {
-        byte[] raw = ((KeyValueStoreSessionIdManager) _sessionIdManager).getKey(mangleKey(idInCluster));
-        if (raw == null)
+        Map<String, Object> attributes = data.getAttributeMap();
+        if (attributes == null || attributes.size() != 1 || !attributes.containsKey(ATTRIBUTE_VERSIONS))
         {
             return null;
         }
-        else
+        Object versions = attributes.get(ATTRIBUTE_VERSIONS);
+        if (versions instanceof LazyAttribute)
         {
-            return getSessionFactory().unpack(raw);
+            versions = ((LazyAttribute) versions).getValue();
+            data.setAttribute(ATTRIBUTE_VERSIONS, versions);
         }
+        return versions instanceof Map ? (Map<String, Long>) versions : null;
     }
 
-    protected boolean setKey(final String idInCluster, final ISerializableSession data) throws TranscoderException
+    /**
+     * remove the attribute versions which {@link #getKey(String)} leaves in sessions loaded from manifests.
+     * 
+     * @return attribute versions, or an empty map if the session has not been saved in delta mode
+     */
+    @SuppressWarnings("unchecked")
+    protected static Map<String, Long> takeAttributeVersions(final ISerializableSession data)
     {
-        byte[] raw = getSessionFactory().pack(data);
-        if (raw == null)
+        Object versions = data.getAttribute(ATTRIBUTE_VERSIONS);
+        if (versions != null)
         {
-            return false;
+            data.removeAttribute(ATTRIBUTE_VERSIONS);
         }
-        else
+        if (versions instanceof LazyAttribute)
         {
-            return ((KeyValueStoreSessionIdManager) _sessionIdManager).setKey(mangleKey(idInCluster), raw,
-                getMaxInactiveInterval());
+            versions = ((LazyAttribute) versions).getValue();
         }
+        return versions instanceof Map ? (Map<String, Long>) versions : Collections.<String, Long> emptyMap();
     }
 
-    protected boolean addKey(final String idInCluster, final ISerializableSession data) throws TranscoderException
+    protected static String attributeKey(final String idInCluster, final String name, final long version)
     {
-        byte[] raw = getSessionFactory().pack(data);
-        if (raw == null)
+        String encoded;
+        try
         {
-            return false;
+            encoded = URLEncoder.encode(name, "UTF-8");
         }
-        else
+        catch (UnsupportedEncodingException error)
         {
-            return ((KeyValueStoreSessionIdManager) _sessionIdManager).addKey(mangleKey(idInCluster), raw,
-                getMaxInactiveInterval());
+            throw (new IllegalStateException(error));
         }
+        if (MAX_ATTRIBUTE_KEY_NAME_LENGTH < encoded.length())
+        {
+            // keep keys short enough for memcached
+            encoded = sha1(name);
+        }
+        return idInCluster + "#" + encoded + ":" + version;
     }
 
-    protected boolean deleteKey(final String idInCluster)
+    private static String sha1(final String s)
     {
-        return ((KeyValueStoreSessionIdManager) _sessionIdManager).deleteKey(mangleKey(idInCluster));
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest)
+            {
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException | UnsupportedEncodingException error)
+        {
+            throw (new IllegalStateException(error));
+        }
+    }
+
+    /**
+     * Queue the session to be written by the flusher threads. The session is serialized here, so that later changes
+     * by other requests will not interfere with the serialization.
+     */
+    protected void writeBehind(final String idInCluster, final ISerializableSession data) throws TranscoderException
+    {
+        byte[] raw = getSessionFactory().pack(data);
+        if (raw == null)
+        {
+            throw (new RuntimeException("unable to set key: data=" + data));
+        }
+        _writeBehindQueue.offer(idInCluster, data.getVersion(), raw);
+    }
+
+    /**
+     * @return version of the session on KVS, or 0 if unknown. saves not written yet are taken into account.
+     */
+    protected long getStoredVersion(final String idInCluster)
+    {
+        awaitPendingSave(idInCluster);
+        WriteBehindQueue queue = _writeBehindQueue;
+        long version = queue == null ? 0 : queue.getVersion(idInCluster);
+        if (version == 0)
+        {
+            version = ((KeyValueStoreSessionIdManager) _sessionIdManager).version(mangleKey(idInCluster));
+        }
+        return version;
+    }
+
+    /**
+     * wait for the save of the session started by {@link #saveAsync(String, ISerializableSession)}, if any.
+     */
+    protected void awaitPendingSave(final String idInCluster)
+    {
+        CompletableFuture<Boolean> future = _pendingSaves.get(idInCluster);
+        if (future != null)
+        {
+            await(future, "id=" + idInCluster);
+        }
+    }
+
+    protected void awaitPendingSaves()
+    {
+        if (!_pendingSaves.isEmpty())
+        {
+            log.info("waiting for " + _pendingSaves.size() + " pending saves.");
+            await(CompletableFuture.allOf(_pendingSaves.values().toArray(new CompletableFuture<?>[0])), "all");
+        }
+    }
+
+    private void await(final CompletableFuture<?> future, final String target)
+    {
+        try
+        {
+            future.get(((KeyValueStoreSessionIdManager) _sessionIdManager).getTimeoutInMs(), TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException error)
+        {
+            log.warn("timed out waiting for pending save: " + target);
+        }
+        catch (InterruptedException error)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception error)
+        {
+            // already logged by saveAsync()
+        }
+    }
+
+    /**
+     * Save the session by compare-and-set. On conflict, attributes which have not been changed on this node are merged
+     * from the latest session on KVS and the save is retried on top of it. After optimisticLockingRetries conflicts,
+     * the save fails and the session on KVS is left as it is.
+     * 
+     * @return version of the saved session
+     */
+    protected long compareAndSetKey(final NoSqlSession session, long expectedVersion, ISerializableSession data)
+        throws TranscoderException
+    {
+        Set<String> changed = getChangedAttributeNames(session);
+        for (int retries = 0;; retries++)
+        {
+            if (casKey(session.getClusterId(), expectedVersion, data))
+            {
+                return expectedVersion + 1L;
+            }
+
+            if (_optimisticLockingRetries <= retries)
+            {
+                // overwriting would drop the changes of the other nodes
+                throw (new IllegalStateException("unable to save session in " + retries + " retries: id="
+                    + session.getClusterId()));
+            }
+            ISerializableSession stored = getKey(session.getClusterId());
+            if (stored == null)
+            {
+                throw (new IllegalStateException("session has been removed concurrently: id=" + session.getClusterId()));
+            }
+            takeAttributeVersions(stored);
+
+            log.debug("save: conflict on version " + expectedVersion + ", merging version " + stored.getVersion()
+                + ": id=" + session.getClusterId() + ", changed=" + changed);
+            mergeAttributes(session, stored, changed);
+            expectedVersion = stored.getVersion();
+            synchronized (session)
+            {
+                data = getSessionFactory().create(session);
+            }
+            data.setDomain(_cookieDomain);
+            data.setPath(_cookiePath);
+            data.setVersion(expectedVersion + 1L);
+        }
+    }
+
+    /**
+     * @return names of attributes which have been added, changed or removed on this node since the last save
+     */
+    protected Set<String> getChangedAttributeNames(final NoSqlSession session)
+    {
+        Set<String> changed = new HashSet<String>(session.takeDirty());
+        if (session instanceof SmarterNoSqlSession)
+        {
+            changed.addAll(((SmarterNoSqlSession) session).getChangedAttributeNames());
+        }
+        else
+        {
+            changed.addAll(session.getNames());
+        }
+        return changed;
+    }
+
+    /**
+     * take attributes which have not been changed on this node from stored session.
+     */
+    protected void mergeAttributes(final NoSqlSession session, final ISerializableSession stored, final Set<String> changed)
+    {
+        synchronized (session)
+        {
+            Map<String, Object> attributes = session.getAttributeMap();
+            Map<String, Object> storedAttributes = stored.getAttributeMap();
+            for (Map.Entry<String, Object> a : storedAttributes.entrySet())
+            {
+                if (!changed.contains(a.getKey()))
+                {
+                    if (attributes.put(a.getKey(), a.getValue()) == null)
+                    {
+                        session.bindValue(a.getKey(), a.getValue());
+                    }
+                }
+            }
+            for (Iterator<Map.Entry<String, Object>> i = attributes.entrySet().iterator(); i.hasNext();)
+            {
+                Map.Entry<String, Object> a = i.next();
+                if (!changed.contains(a.getKey()) && !storedAttributes.containsKey(a.getKey()))
+                {
+                    i.remove();
+                    session.unbindValue(a.getKey(), a.getValue());
+                }
+            }
+        }
+    }
+
+    /*------------------------------------------------------------ */
+    @Override
+    protected Object refresh(final NoSqlSession session, Object version)
+    {
+        log.debug("refresh " + session);
+        // check the version on KVS first so that an unchanged session is not fetched at all
+        if (version != null)
+        {
+            long saved = getStoredVersion(session.getClusterId());
+            if (saved != 0 && saved == (Long) version)
+            {
+                log.debug("refresh not needed");
+                return version;
+            }
+        }
+        ISerializableSession data = null;
+        final Object expected = version;
+        try
+        {
+            // neither an unchanged nor an invalidated session is worth deserializing
+            data = getKey(session.getClusterId(), false,
+                metadata -> metadata.isValid() && (expected == null || metadata.getVersion() != (Long) expected));
+        }
+        catch (TranscoderException error)
+        {
+            throw (new IllegalStateException("unable to deserialize session: id=" + session.getClusterId(), error));
+        }
+        // check if our in memory version is the same as what is on KVS
+        if (version != null)
+        {
+            long saved = 0;
+            if (data != null)
+            {
+                saved = data.getVersion();
+
+                if (saved == (Long) version)
+                {
+                    log.debug("refresh not needed");
+                    return version;
+                }
+                version = Long.valueOf(saved);
+            }
+        }
+
+        // If it doesn't exist, invalidate
+        if (data == null)
+        {
+            log.debug("refresh:marking invalid, no object");
+            session.invalidate();
+            return null;
+        }
+
+        // If it has been flagged invalid, invalidate
+        boolean valid = data.isValid();
+        if (!valid)
+        {
+            log.debug("refresh:marking invalid, valid flag " + valid);
+            session.invalidate();
+            return null;
+        }
+
+        Map<String, Long> attributeVersions = takeAttributeVersions(data);
+        if (session instanceof SmarterNoSqlSession)
+        {
+            ((SmarterNoSqlSession) session).setAttributeVersions(attributeVersions);
+            ((SmarterNoSqlSession) session).setStoredAccessed(data.getAccessed());
+        }
+
+        // We need to update the attributes. We will model this as a passivate,
+        // followed by bindings and then activation.
+        session.willPassivate();
+        try
+        {
+            for (Enumeration<String> e = data.getAttributeNames(); e.hasMoreElements();)
+            {
+                String name = e.nextElement();
+                Object value = data.getAttribute(name);
+                // only bind value if it didn't exist in session
+                if (!session.getNames().contains(name))
+                {
+                    session.doPutOrRemove(name, value);
+                    session.bindValue(name, value);
+                }
+                else
+                {
+                    session.doPutOrRemove(name, value);
+                }
+            }
+
+            // cleanup, remove values from session, that don't exist in data anymore:
+            for (String name : session.getNames())
+            {
+                if (!data.getAttributeMap().containsKey(name))
+                {
+                    session.doPutOrRemove(name, null);
+                    session.unbindValue(name, session.getAttribute(name));
+                }
+            }
+
+            session.didActivate();
+            return version;
+        }
+        catch (Exception e)
+        {
+            log.warn(e);
+        }
+
+        return null;
+    }
+
+    @Override
+    protected void addSession(final AbstractSession session)
+    {
+        // nop
+    }
+
+    /**
+     * Look up the session from the near cache if enabled, otherwise load it from KVS.
+     * 
+     * A cached session is returned only if the version on KVS is still the same as the one in memory, which is checked
+     * without pulling back the session data. Clients which cannot tell versions (i.e. {@link IKeyValueStoreClient#version(String)}
+     * returns 0) will always cause a reload.
+     */
+    @Override
+    public AbstractSession getSession(final String idInCluster)
+    {
+        SessionCache<SmarterNoSqlSession> cache = _sessionCache;
+        if (cache == null)
+        {
+            return loadSession(idInCluster);
+        }
+
+        SmarterNoSqlSession session = cache.get(idInCluster);
+        if (session != null)
+        {
+            cache.recordRevalidation();
+            Object version = session.getVersion();
+            long saved = getStoredVersion(idInCluster);
+            if (session.isValid() && version != null && saved != 0 && saved == (Long) version)
+            {
+                log.debug("getSession: near cache hit: id=" + idInCluster + ", version=" + version);
+                cache.recordHit();
+                return session;
+            }
+            log.debug("getSession: near cache stale: id=" + idInCluster + ", version=" + version + ", saved=" + saved);
+            cache.recordStaleHit();
+            cache.remove(idInCluster);
+        }
+        else
+        {
+            cache.recordMiss();
+        }
+
+        session = loadSession(idInCluster);
+        if (session != null)
+        {
+            cache.put(idInCluster, session);
+        }
+        return session;
+    }
+
+    /*------------------------------------------------------------ */
+    @Override
+    protected SmarterNoSqlSession loadSession(final String clusterId)
+    {
+        log.debug("loadSession: loading: id=" + clusterId);
+        // extend the expiry along with reading the session, as it would be touched on save anyway
+        boolean touch = 0 < _maxAccessedLagMs && 0 < getMaxInactiveInterval() && !isRecentlyExtended(clusterId);
+        ISerializableSession data = getKey(clusterId, touch,
+            metadata -> metadata.isValid() && clusterId.equals(metadata.getId())
+                && isCookieDomain(metadata.getDomain()) && isCookiePath(metadata.getPath()));
+        log.debug("loadSession: loaded: id=" + clusterId + ", data=" + data);
+
+        if (data == null)
+        {
+            return null;
+        }
+
+        boolean valid = data.isValid();
+        if (!valid)
+        {
+            log.debug("loadSession: id=" + clusterId + ", data=" + data + " has been invalidated.");
+            return null;
+        }
+
+        if (!clusterId.equals(data.getId()))
+        {
+            log.warn("loadSession: invalid id (expected:" + clusterId + ", got:" + data.getId() + ")");
+            return null;
+        }
+
+        if (!isCookieDomain(data.getDomain()))
+        {
+            log.warn("loadSession: invalid cookie domain (expected:" + _cookieDomain + ", got:" + data.getDomain()
+                + ")");
+            return null;
+        }
+
+        if (!isCookiePath(data.getPath()))
+        {
+            log.warn("loadSession: invalid cookie path (expected:" + _cookiePath + ", got:" + data.getPath() + ")");
+            return null;
+        }
+
+        try
+        {
+            long version = data.getVersion();
+            long created = data.getCreationTime();
+            long accessed = data.getAccessed();
+            SmarterNoSqlSession session = new SmarterNoSqlSession(this, created, accessed, clusterId, version);
+            session.setAttributeVersions(takeAttributeVersions(data));
+            session.setTouchedOnLoad(touch);
+            if (touch && session.getAttributeVersions().isEmpty())
+            {
+                recordExtended(clusterId);
+            }
+
+            // get the attributes for the context
+            Enumeration<String> attrs = data.getAttributeNames();
+
+            //			log.debug("attrs: " + Collections.list(attrs));
+            if (attrs != null)
+            {
+                while (attrs.hasMoreElements())
+                {
+                    String name = attrs.nextElement();
+                    Object value = data.getAttribute(name);
+
+                    session.initializeAttribute(name, value);
+                    session.bindValue(name, value);
+
+                }
+            }
+            session.didActivate();
+
+            return session;
+        }
+        catch (Exception e)
+        {
+            log.warn(e);
+        }
+        return null;
+    }
+
+    private boolean isCookieDomain(final String domain)
+    {
+        synchronized (_cookieDomain)
+        {
+            return _cookieDomain == null || domain.equals("*") || _cookieDomain.equals(domain);
+        }
+    }
+
+    private boolean isCookiePath(final String path)
+    {
+        synchronized (_cookiePath)
+        {
+            return _cookiePath == null || path.equals("*") || _cookiePath.equals(path);
+        }
+    }
+
+    /*------------------------------------------------------------ */
+    @Override
+    protected boolean remove(final NoSqlSession session)
+    {
+        if (session == null)
+        {
+            return false;
+        }
+        else
+        {
+            evictSession(session.getClusterId());
+            return deleteKey(session.getId());
+        }
+    }
+
+    @Override
+    protected boolean removeSession(final String idInCluster)
+    {
+        evictSession(idInCluster);
+        return deleteKey(idInCluster);
+    }
+
+    protected void evictSession(final String idInCluster)
+    {
+        _extendedAt.remove(idInCluster);
+        SessionCache<SmarterNoSqlSession> cache = _sessionCache;
+        if (cache != null)
+        {
+            cache.remove(idInCluster);
+        }
+    }
+
+    protected String getSessionCacheName()
+    {
+        String contextPath = getContext() == null ? null : getContext().getContextPath();
+        return (contextPath == null || "".equals(contextPath)) ? "/" : contextPath;
+    }
+
+    protected String mangleKey(final String idInCluster)
+    {
+        return idInCluster;
+    }
+
+    protected ISerializableSession getKey(final String idInCluster) throws TranscoderException
+    {
+        return getKey(idInCluster, false);
+    }
+
+    /**
+     * @param touch extend the expiry of the session on KVS in the same round trip as reading it. sessions pending in
+     *            the write-behind queue are taken from there and not touched, since they are about to be stored.
+     */
+    protected ISerializableSession getKey(final String idInCluster, final boolean touch) throws TranscoderException
+    {
+        return getKey(idInCluster, touch, null);
+    }
+
+    /**
+     * @param decode tells from the metadata of the stored session whether to deserialize its attributes. sessions it
+     *            rejects are returned as their metadata alone, without attributes. ignored for sessions whose metadata
+     *            cannot be read on its own, see {@link AbstractSessionFactory#peekMetadata(byte[])}.
+     */
+    protected ISerializableSession getKey(final String idInCluster, final boolean touch,
+        final Predicate<ISerializableSession> decode) throws TranscoderException
+    {
+        awaitPendingSave(idInCluster);
+        WriteBehindQueue queue = _writeBehindQueue;
+        byte[] raw = queue == null ? null : queue.getRaw(idInCluster);
+        if (raw == null)
+        {
+            KeyValueStoreSessionIdManager idManager = (KeyValueStoreSessionIdManager) _sessionIdManager;
+            raw = touch ? idManager.getAndTouchKey(mangleKey(idInCluster), getKeyExpiry())
+                : idManager.getKey(mangleKey(idInCluster));
+        }
+        for (int retries = 0; raw != null; retries++)
+        {
+            ISerializableSession metadata = decode == null ? null : getSessionFactory().peekMetadata(raw);
+            if (metadata != null && !decode.test(metadata))
+            {
+                log.debug("getKey: not deserializing session: id=" + idInCluster + ", metadata=" + metadata);
+                return metadata;
+            }
+            ISerializableSession data = getSessionFactory().unpack(raw);
+            Map<String, Long> versions = getAttributeVersions(data);
+            if (versions == null)
+            {
+                return data;
+            }
+            Set<String> missing = loadAttributes(idInCluster, data, versions);
+            if (missing.isEmpty())
+            {
+                return data;
+            }
+            if (2 <= retries)
+            {
+                log.warn("getKey: dropping missing attributes of session: id=" + idInCluster + ", names=" + missing);
+                versions.keySet().removeAll(missing);
+                return data;
+            }
+            // a newer version has been saved meanwhile. retry with it.
+            raw = ((KeyValueStoreSessionIdManager) _sessionIdManager).getKey(mangleKey(idInCluster));
+        }
+        return null;
+    }
+
+    protected boolean setKey(final String idInCluster, final ISerializableSession data) throws TranscoderException
+    {
+        byte[] raw = getSessionFactory().pack(data);
+        if (raw == null)
+        {
+            return false;
+        }
+        else
+        {
+            return ((KeyValueStoreSessionIdManager) _sessionIdManager).setKey(mangleKey(idInCluster), data.getVersion(),
+                raw, getKeyExpiry());
+        }
+    }
+
+    protected CompletableFuture<Boolean> setKeyAsync(final String idInCluster, final ISerializableSession data)
+        throws TranscoderException
+    {
+        byte[] raw = getSessionFactory().pack(data);
+        if (raw == null)
+        {
+            return CompletableFuture.completedFuture(false);
+        }
+        else
+        {
+            return ((KeyValueStoreSessionIdManager) _sessionIdManager).setKeyAsync(mangleKey(idInCluster),
+                data.getVersion(), raw, getKeyExpiry());
+        }
+    }
+
+    protected boolean addKey(final String idInCluster, final ISerializableSession data) throws TranscoderException
+    {
+        byte[] raw = getSessionFactory().pack(data);
+        if (raw == null)
+        {
+            return false;
+        }
+        else
+        {
+            return ((KeyValueStoreSessionIdManager) _sessionIdManager).addKey(mangleKey(idInCluster), data.getVersion(),
+                raw, getKeyExpiry());
+        }
+    }
+
+    protected boolean casKey(final String idInCluster, final long expectedVersion, final ISerializableSession data)
+        throws TranscoderException
+    {
+        byte[] raw = getSessionFactory().pack(data);
+        try
+        {
+            return ((KeyValueStoreSessionIdManager) _sessionIdManager).casKey(mangleKey(idInCluster), expectedVersion, raw,
+                getKeyExpiry());
+        }
+        catch (KeyValueStoreClientException error)
+        {
+            throw (new RuntimeException("unable to cas key: id=" + idInCluster, error));
+        }
+    }
+
+    protected boolean deleteKey(final String idInCluster)
+    {
+        awaitPendingSave(idInCluster);
+        WriteBehindQueue queue = _writeBehindQueue;
+        if (queue != null)
+        {
+            queue.remove(idInCluster);
+        }
+        deleteAttributeKeys(idInCluster);
+        return ((KeyValueStoreSessionIdManager) _sessionIdManager).deleteKey(mangleKey(idInCluster));
+    }
+
+    /**
+     * delete the attributes of the session if it has been saved in delta mode. the session is looked up only while
+     * delta mode is enabled. attributes of sessions saved before it has been disabled are left to expire.
+     */
+    protected void deleteAttributeKeys(final String idInCluster)
+    {
+        if (!_deltaPersistence)
+        {
+            return;
+        }
+        KeyValueStoreSessionIdManager idManager = (KeyValueStoreSessionIdManager) _sessionIdManager;
+        byte[] raw = idManager.getKey(mangleKey(idInCluster));
+        if (raw == null)
+        {
+            return;
+        }
+        Map<String, Long> versions;
+        try
+        {
+            versions = getAttributeVersions(getSessionFactory().unpack(raw));
+        }
+        catch (TranscoderException error)
+        {
+            log.debug("deleteKey: unable to read manifest: id=" + idInCluster, error);
+            return;
+        }
+        if (versions != null)
+        {
+            for (Map.Entry<String, Long> a : versions.entrySet())
+            {
+                idManager.deleteKey(mangleKey(attributeKey(idInCluster, a.getKey(), a.getValue())));
+            }
+        }
     }
 
     /**
@@ -472,6 +1308,152 @@ public class KeyValueStoreSessionManager extends NoSqlSessionManager
         this.sessionFactory = sf;
     }
 
+    public int getSessionCacheSize()
+    {
+        return _sessionCacheSize;
+    }
+
+    /**
+     * @param sessionCacheSize max number of deserialized sessions kept on this node. 0 (default) disables the near cache.
+     */
+    public void setSessionCacheSize(final int sessionCacheSize)
+    {
+        this._sessionCacheSize = sessionCacheSize;
+    }
+
+    public boolean isOptimisticLocking()
+    {
+        return _optimisticLocking;
+    }
+
+    /**
+     * @param optimisticLocking save sessions by compare-and-set on their version instead of overwriting them, so that
+     *            concurrent requests on other nodes do not lose their changes.
+     */
+    public void setOptimisticLocking(final boolean optimisticLocking)
+    {
+        this._optimisticLocking = optimisticLocking;
+    }
+
+    public int getOptimisticLockingRetries()
+    {
+        return _optimisticLockingRetries;
+    }
+
+    /**
+     * @param optimisticLockingRetries number of merge-and-retry attempts before the save fails
+     */
+    public void setOptimisticLockingRetries(final int optimisticLockingRetries)
+    {
+        this._optimisticLockingRetries = optimisticLockingRetries;
+    }
+
+    public boolean isAsyncSave()
+    {
+        return _asyncSave;
+    }
+
+    /**
+     * @param asyncSave store sessions at the end of requests without waiting for KVS. ignored if optimisticLocking is
+     *            enabled.
+     */
+    public void setAsyncSave(final boolean asyncSave)
+    {
+        this._asyncSave = asyncSave;
+    }
+
+    public boolean isDeltaPersistence()
+    {
+        return _deltaPersistence;
+    }
+
+    /**
+     * @param deltaPersistence store each attribute under its own key, and write only the attributes changed by the
+     *            request on save. ignored with optimisticLocking, asyncSave and writeBehindWindowMs.
+     */
+    public void setDeltaPersistence(final boolean deltaPersistence)
+    {
+        this._deltaPersistence = deltaPersistence;
+    }
+
+    public long getWriteBehindWindowMs()
+    {
+        return _writeBehindWindowMs;
+    }
+
+    /**
+     * @param writeBehindWindowMs write sessions from background threads once in this period, coalescing saves of the
+     *            same session. 0 (default) disables write-behind. ignored if optimisticLocking is enabled.
+     */
+    public void setWriteBehindWindowMs(final long writeBehindWindowMs)
+    {
+        this._writeBehindWindowMs = writeBehindWindowMs;
+    }
+
+    public int getWriteBehindThreads()
+    {
+        return _writeBehindThreads;
+    }
+
+    public void setWriteBehindThreads(final int writeBehindThreads)
+    {
+        this._writeBehindThreads = writeBehindThreads;
+    }
+
+    public long getMaxAccessedLagMs()
+    {
+        return _maxAccessedLagMs;
+    }
+
+    /**
+     * @param maxAccessedLagMs keep sessions which have not been changed by a request alive by touching them on KVS,
+     *            as long as the access time stored with them lags behind by less than this. other nodes see the
+     *            access time stored with the session, so they may expire it up to this much earlier. 0 (default)
+     *            disables touching, and unchanged sessions are stored again as before.
+     */
+    public void setMaxAccessedLagMs(final long maxAccessedLagMs)
+    {
+        this._maxAccessedLagMs = maxAccessedLagMs;
+    }
+
+    public long getAccessedGranularityMs()
+    {
+        return _accessedGranularityMs;
+    }
+
+    /**
+     * @param accessedGranularityMs extend the expiry of sessions which have not been changed by a request once in this
+     *            many milliseconds at most, rather than on every request. sessions are stored on KVS for this much longer
+     *            than the max inactive interval to make up for it. ignored if touching is disabled. 0 (extend on every
+     *            request) by default.
+     */
+    public void setAccessedGranularityMs(final long accessedGranularityMs)
+    {
+        this._accessedGranularityMs = accessedGranularityMs;
+    }
+
+    public boolean isSerializationStats()
+    {
+        return _serializationStats;
+    }
+
+    /**
+     * @param serializationStats record the time spent serializing sessions, their size and the largest attributes,
+     *            and publish them through JMX. false by default.
+     */
+    public void setSerializationStats(final boolean serializationStats)
+    {
+        this._serializationStats = serializationStats;
+    }
+
+    /**
+     * @return statistics of the near cache, or null if it is disabled
+     */
+    public SessionCache<?> getSessionCache()
+    {
+        return _sessionCache;
+    }
+
     /**
      * @deprecated from 0.3.0. this is false by default and is not an option.
      */
@@ -500,6 +1482,8 @@ public class KeyValueStoreSessionManager extends NoSqlSessionManager
             log.warn("Couldn't get session data for old key {}", session.getClusterId());
             return;
         }
+        takeAttributeVersions(data);
+        evictSession(session.getClusterId());
         deleteKey(session.getClusterId());
         setKey(newClusterId, data);
     }
@@ -509,13 +1493,58 @@ public class KeyValueStoreSessionManager extends NoSqlSessionManager
      * session attributes have not changed.  This is a workaround for Jetty issue 413484:
      * https://bugs.eclipse.org/bugs/show_bug.cgi?id=413484
      */
-    private static class SmarterNoSqlSession extends NoSqlSession
+    protected static class SmarterNoSqlSession extends NoSqlSession
     {
         private HashMap<String, Integer> attributeHashes = new HashMap<String, Integer>();
+        private Map<String, Long> attributeVersions = Collections.emptyMap();
+        private final long maxAccessedLagMs;
+        private long storedAccessed;
+        private boolean touchedOnLoad;
 
         public SmarterNoSqlSession(NoSqlSessionManager manager, long created, long accessed, String clusterId, Object version)
         {
             super(manager, created, accessed, clusterId, version);
+            this.maxAccessedLagMs = manager instanceof KeyValueStoreSessionManager
+                ? ((KeyValueStoreSessionManager) manager).getMaxAccessedLagMs() : 0;
+            this.storedAccessed = accessed;
+        }
+
+        /**
+         * @return access time of the session as stored on KVS
+         */
+        public long getStoredAccessed()
+        {
+            return storedAccessed;
+        }
+
+        public void setStoredAccessed(long storedAccessed)
+        {
+            this.storedAccessed = storedAccessed;
+        }
+
+        /**
+         * @return true if the expiry of the session on KVS has been extended while loading it, and not been used since
+         */
+        public boolean takeTouchedOnLoad()
+        {
+            boolean touched = touchedOnLoad;
+            touchedOnLoad = false;
+            return touched;
+        }
+
+        public void setTouchedOnLoad(boolean touchedOnLoad)
+        {
+            this.touchedOnLoad = touchedOnLoad;
+        }
+
+        /**
+         * Overridden to allow for the access time loaded from KVS lagging behind, since the session may have been kept
+         * alive by touching it. KVS drops the session by itself once it has been idle for the max inactive interval.
+         */
+        @Override
+        protected boolean checkExpiry(long time)
+        {
+            return super.checkExpiry(time - maxAccessedLagMs);
         }
 
         /**
@@ -528,6 +1557,49 @@ public class KeyValueStoreSessionManager extends NoSqlSessionManager
             attributeHashes.put(name, safeHash(value));
         }
 
+        /**
+         * @return versions of the attributes as saved in delta mode
+         */
+        public Map<String, Long> getAttributeVersions()
+        {
+            return attributeVersions;
+        }
+
+        public void setAttributeVersions(Map<String, Long> attributeVersions)
+        {
+            this.attributeVersions = attributeVersions;
+        }
+
+        /**
+         * Overridden to deserialize a {@link LazyAttribute} on first use. The value is bound and activated at this
+         * point since it could not be while the session was loaded.
+         */
+        @Override
+        public Object doGet(String name)
+        {
+            synchronized (this)
+            {
+                Object value = super.doGet(name);
+                if (!(value instanceof LazyAttribute))
+                {
+                    return value;
+                }
+                value = materialize((LazyAttribute) value);
+                getAttributeMap().put(name, value);
+                if (attributeHashes.containsKey(name))
+                {
+                    // reading an attribute doesn't change it
+                    attributeHashes.put(name, safeHash(value));
+                }
+                bindValue(name, value);
+                if (value instanceof HttpSessionActivationListener)
+                {
+                    ((HttpSessionActivationListener) value).sessionDidActivate(new HttpSessionEvent(this));
+                }
+                return value;
+            }
+        }
+
         /**
          * Overridden to change the attribute (which sets the "dirty" state) only if the new attribute value
          * is not equal to the old attribute value.
@@ -535,8 +1607,64 @@ public class KeyValueStoreSessionManager extends NoSqlSessionManager
         @Override
         public Object doPutOrRemove(String name, Object value)
         {
-            Object oldValue = doGet(name);
-            return (valueEquals(oldValue, value)) ? value : super.doPutOrRemove(name, value);
+            Object oldValue = getAttributeMap().get(name);
+            if (valueEquals(oldValue, value))
+            {
+                return value;
+            }
+            oldValue = super.doPutOrRemove(name, value);
+            // listeners of the replaced value expect the value itself
+            return oldValue instanceof LazyAttribute ? materialize((LazyAttribute) oldValue) : oldValue;
+        }
+
+        /**
+         * Overridden to deserialize lazy attributes before they are unbound.
+         */
+        @Override
+        public void clearAttributes()
+        {
+            for (String name : getNames())
+            {
+                doGet(name);
+            }
+            super.clearAttributes();
+        }
+
+        private Object materialize(LazyAttribute lazy)
+        {
+            try
+            {
+                return lazy.getValue();
+            }
+            catch (TranscoderException error)
+            {
+                throw (new IllegalStateException("unable to deserialize attribute: id=" + getClusterId() + ", name="
+                    + lazy.getName(), error));
+            }
+        }
+
+        /**
+         * @return names of attributes which have been added, changed or removed since the session was loaded or saved
+         */
+        public Set<String> getChangedAttributeNames()
+        {
+            Set<String> changed = new HashSet<String>();
+            for (Map.Entry<String, Object> a: getAttributeMap().entrySet())
+            {
+                Integer oldHash = attributeHashes.get(a.getKey());
+                if (oldHash == null || oldHash.intValue() != safeHash(a.getValue()))
+                {
+                    changed.add(a.getKey());
+                }
+            }
+            for (String name: attributeHashes.keySet())
+            {
+                if (!getAttributeMap().containsKey(name))
+                {
+                    changed.add(name);
+                }
+            }
+            return changed;
         }
 
         /**
@@ -559,14 +1687,20 @@ public class KeyValueStoreSessionManager extends NoSqlSessionManager
             super.complete();
         }
 
+        /**
+         * Overridden to remember the attribute hashes and to reset the dirty state after saving. The manager needs the
+         * previous hashes during the save to tell which attributes have been changed.
+         */
         @Override
         protected void save(boolean activate)
         {
+            super.save(activate);
+            takeDirty();
+            attributeHashes.clear();
             for (Map.Entry<String, Object> a: getAttributeMap().entrySet())
             {
                 attributeHashes.put(a.getKey(), safeHash(a.getValue()));
             }
-            super.save(activate);
         }
 
         private boolean valueEquals(Object ov, Object nv)
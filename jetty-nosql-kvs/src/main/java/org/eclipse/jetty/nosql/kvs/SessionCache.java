@@ -0,0 +1,106 @@
+package org.eclipse.jetty.nosql.kvs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.nosql.kvs.jmx.SessionCacheMBean;
+
+/**
+ * Bounded LRU cache of sessions which have already been deserialized on this node.
+ *
+ * Cached entries are never trusted blindly. Callers must revalidate them against the version held by the store, see
+ * {@link KeyValueStoreSessionManager#getSession(String)}.
+ */
+public class SessionCache<V> implements SessionCacheMBean {
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong revalidations = new AtomicLong();
+  private final AtomicLong staleHits = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final int maxSize;
+  private final Map<String, V> entries;
+
+  public SessionCache( final int maxSize ) {
+    this.maxSize = maxSize;
+    this.entries = new LinkedHashMap<String, V>( 16, 0.75f, true ) {
+      private static final long serialVersionUID = 2862318574463839170L;
+
+      @Override
+      protected boolean removeEldestEntry( Map.Entry<String, V> eldest ) {
+        if ( size() > SessionCache.this.maxSize ) {
+          evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  public synchronized V get( String key ) {
+    return entries.get( key );
+  }
+
+  public synchronized void put( String key, V value ) {
+    entries.put( key, value );
+  }
+
+  public synchronized V remove( String key ) {
+    return entries.remove( key );
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  void recordHit() {
+    hits.incrementAndGet();
+  }
+
+  void recordMiss() {
+    misses.incrementAndGet();
+  }
+
+  void recordRevalidation() {
+    revalidations.incrementAndGet();
+  }
+
+  void recordStaleHit() {
+    staleHits.incrementAndGet();
+  }
+
+  @Override
+  public long getHits() {
+    return hits.get();
+  }
+
+  @Override
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public long getRevalidations() {
+    return revalidations.get();
+  }
+
+  @Override
+  public long getStaleHits() {
+    return staleHits.get();
+  }
+
+  @Override
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  @Override
+  public synchronized int getSize() {
+    return entries.size();
+  }
+
+  @Override
+  public int getMaxSize() {
+    return maxSize;
+  }
+}
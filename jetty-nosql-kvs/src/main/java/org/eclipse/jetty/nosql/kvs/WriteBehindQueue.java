@@ -0,0 +1,244 @@
+package org.eclipse.jetty.nosql.kvs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.nosql.kvs.jmx.WriteBehindQueueMBean;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Sessions waiting to be written to KVS (write-behind).
+ *
+ * Only the latest state of a session queued within the window is written. Sessions are partitioned by id among the
+ * flusher threads, each of which writes its share as one batch of asynchronous operations per window. A session stays
+ * in the queue until it has been written, so that readers on this node never see an older state from KVS. At most one
+ * write of each session is in flight. A session whose previous write has not completed yet, e.g. since the flusher
+ * timed out waiting for it, is written in a later window, so that writes of a session never overtake each other.
+ */
+public class WriteBehindQueue implements WriteBehindQueueMBean {
+  private final static Logger log = Log.getLogger( "org.eclipse.jetty.nosql.kvs.WriteBehindQueue" );
+
+  public interface Writer {
+    CompletableFuture<Boolean> write( String idInCluster, long version, byte[] raw );
+  }
+
+  private static class Entry {
+    private final long version;
+    private final byte[] raw;
+
+    Entry( long version, byte[] raw ) {
+      this.version = version;
+      this.raw = raw;
+    }
+  }
+
+  private final AtomicLong queued = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final ConcurrentMap<String, Entry> pending = new ConcurrentHashMap<String, Entry>();
+  // the write in flight of each session
+  private final ConcurrentMap<String, CompletableFuture<Void>> writing = new ConcurrentHashMap<String, CompletableFuture<Void>>();
+  private final Writer writer;
+  private final long windowMs;
+  private final int threads;
+  private final int timeoutMs;
+  private ScheduledExecutorService flusher = null;
+
+  public WriteBehindQueue( final Writer writer, final long windowMs, final int threads, final int timeoutMs ) {
+    this.writer = writer;
+    this.windowMs = windowMs;
+    this.threads = Math.max( 1, threads );
+    this.timeoutMs = timeoutMs;
+  }
+
+  public synchronized void start() {
+    final AtomicLong threadCount = new AtomicLong();
+    flusher = Executors.newScheduledThreadPool( threads, new ThreadFactory() {
+      @Override
+      public Thread newThread( Runnable r ) {
+        Thread t = new Thread( r, "WriteBehind Flusher Thread " + threadCount.incrementAndGet() );
+        t.setDaemon( true );
+        return t;
+      }
+    } );
+    for ( int i = 0; i < threads; i++ ) {
+      final int partition = i;
+      flusher.scheduleWithFixedDelay( () -> flush( partition ), windowMs, windowMs, TimeUnit.MILLISECONDS );
+    }
+  }
+
+  /**
+   * Stop the flusher threads and write everything left in the queue.
+   */
+  public synchronized void stop() {
+    if ( flusher != null ) {
+      flusher.shutdown();
+      try {
+        flusher.awaitTermination( timeoutMs, TimeUnit.MILLISECONDS );
+      }
+      catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+      }
+      flusher = null;
+    }
+    for ( CompletableFuture<Void> f : writing.values() ) {
+      await( f );
+    }
+    flush( -1 );
+    if ( !pending.isEmpty() ) {
+      log.warn( "unable to write " + pending.size() + " sessions on stop." );
+      pending.clear();
+    }
+  }
+
+  /**
+   * Queue the session, replacing the state queued earlier if it has not been written yet.
+   */
+  public void offer( final String idInCluster, final long version, final byte[] raw ) {
+    queued.incrementAndGet();
+    if ( pending.put( idInCluster, new Entry( version, raw ) ) != null ) {
+      coalesced.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return serialized session waiting to be written, or null
+   */
+  public byte[] getRaw( final String idInCluster ) {
+    Entry entry = pending.get( idInCluster );
+    return entry == null ? null : entry.raw;
+  }
+
+  /**
+   * @return version of the session waiting to be written, or 0
+   */
+  public long getVersion( final String idInCluster ) {
+    Entry entry = pending.get( idInCluster );
+    return entry == null ? 0 : entry.version;
+  }
+
+  /**
+   * Drop the session from the queue. Waits for the write in progress, if any, so that it will not bring back a
+   * session deleted afterwards. No other write of the session is started once it has been dropped.
+   */
+  public void remove( final String idInCluster ) {
+    pending.remove( idInCluster );
+    CompletableFuture<Void> f = writing.get( idInCluster );
+    if ( f != null ) {
+      await( f );
+    }
+  }
+
+  /**
+   * Write the sessions of the partition, or all sessions if partition is negative.
+   */
+  void flush( final int partition ) {
+    List<CompletableFuture<?>> batch = new ArrayList<CompletableFuture<?>>();
+    for ( String idInCluster : pending.keySet() ) {
+      if ( 0 <= partition && partitionOf( idInCluster ) != partition ) {
+        continue;
+      }
+      CompletableFuture<Void> done = new CompletableFuture<Void>();
+      if ( writing.putIfAbsent( idInCluster, done ) != null ) {
+        // the previous write is still in flight, retried in the next window
+        continue;
+      }
+      // read the entry once the write is registered, so that remove() either drops it first or waits for the write
+      Entry entry = pending.get( idInCluster );
+      if ( entry == null ) {
+        writing.remove( idInCluster, done );
+        done.complete( null );
+        continue;
+      }
+      batch.add( write( idInCluster, entry, done ) );
+    }
+    if ( !batch.isEmpty() ) {
+      log.debug( "flush: partition=" + partition + ", sessions=" + batch.size() );
+      await( CompletableFuture.allOf( batch.toArray( new CompletableFuture<?>[0] ) ) );
+    }
+  }
+
+  private CompletableFuture<Void> write( final String idInCluster, final Entry entry, final CompletableFuture<Void> done ) {
+    CompletableFuture<Boolean> f;
+    try {
+      f = writer.write( idInCluster, entry.version, entry.raw );
+    }
+    catch ( RuntimeException e ) {
+      f = new CompletableFuture<Boolean>();
+      f.completeExceptionally( e );
+    }
+    f.whenComplete( ( result, error ) -> {
+      if ( error == null && result ) {
+        written.incrementAndGet();
+        // keep it if a newer state has been queued meanwhile
+        pending.remove( idInCluster, entry );
+      }
+      else {
+        // retried in the next window
+        failed.incrementAndGet();
+        if ( error != null )
+          log.warn( "unable to write session: id=" + idInCluster, error );
+        else
+          log.warn( "unable to write session: id=" + idInCluster );
+      }
+      writing.remove( idInCluster, done );
+      done.complete( null );
+    } );
+    return done;
+  }
+
+  private int partitionOf( final String idInCluster ) {
+    return ( idInCluster.hashCode() & Integer.MAX_VALUE ) % threads;
+  }
+
+  private void await( final CompletableFuture<?> f ) {
+    try {
+      f.get( timeoutMs, TimeUnit.MILLISECONDS );
+    }
+    catch ( TimeoutException e ) {
+      log.warn( "timed out waiting for write-behind." );
+    }
+    catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+    }
+    catch ( Exception e ) {
+      // logged in write()
+    }
+  }
+
+  @Override
+  public long getQueued() {
+    return queued.get();
+  }
+
+  @Override
+  public long getCoalesced() {
+    return coalesced.get();
+  }
+
+  @Override
+  public long getWritten() {
+    return written.get();
+  }
+
+  @Override
+  public long getFailed() {
+    return failed.get();
+  }
+
+  @Override
+  public int getPending() {
+    return pending.size();
+  }
+}
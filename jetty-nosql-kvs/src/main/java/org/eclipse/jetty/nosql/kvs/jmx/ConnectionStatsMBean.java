@@ -0,0 +1,13 @@
+package org.eclipse.jetty.nosql.kvs.jmx;
+
+
+/**
+ * Connection level statistics of the library behind a client. Clients which implement this are monitored by
+ * {@link MonitoredClient} along with their operations.
+ */
+public interface ConnectionStatsMBean {
+  int getServers();
+  int getConnections();
+  long getReconnects();
+  long getQueuedOperations();
+}
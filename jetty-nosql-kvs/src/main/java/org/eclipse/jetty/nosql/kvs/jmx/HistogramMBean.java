@@ -0,0 +1,14 @@
+package org.eclipse.jetty.nosql.kvs.jmx;
+
+
+public interface HistogramMBean {
+  String getUnit();
+  long getWindowSeconds();
+  long getCount();
+  double getMean();
+  long getP50();
+  long getP95();
+  long getP99();
+  long getP999();
+  long getMax();
+}
@@ -2,8 +2,12 @@ package org.eclipse.jetty.nosql.kvs.jmx;
 
 import java.lang.management.ManagementFactory;
 
+import javax.management.DynamicMBean;
 import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
 import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
@@ -21,7 +25,7 @@ public class JmxMonitorManager {
   public static void monitor( Object mbean, String category, String type, String name ) {
     MBeanServer server = ManagementFactory.getPlatformMBeanServer();
     try {
-      server.registerMBean( mbean, new ObjectName( String.format( BEAN_NAME, category, type, name ) ) );
+      server.registerMBean( standardMBean( mbean ), objectName( category, type, name ) );
     }
     catch ( Exception e ) {
       // Throwing runtime exception will not help matters...
@@ -30,10 +34,42 @@ public class JmxMonitorManager {
     }
   }
   
+  /**
+   * the interfaces of our mbeans live in this package rather than next to their classes, which the introspection of
+   * standard mbeans does not accept. tell the interface explicitly.
+   */
+  @SuppressWarnings( { "unchecked", "rawtypes" } )
+  static Object standardMBean( Object mbean ) throws NotCompliantMBeanException {
+    if ( mbean instanceof DynamicMBean )
+      return mbean;
+    for ( Class<?> c = mbean.getClass(); c != null; c = c.getSuperclass() ) {
+      for ( Class<?> i : c.getInterfaces() ) {
+        if ( i.getSimpleName().equals( c.getSimpleName() + "MBean" ) && !i.getName().equals( c.getName() + "MBean" ) )
+          return new StandardMBean( mbean, (Class) i );
+      }
+    }
+    return mbean;
+  }
+
+  /**
+   * server strings contain colons, which are only allowed in quoted values of object names.
+   */
+  static ObjectName objectName( String category, String type, String name ) throws MalformedObjectNameException {
+    return new ObjectName( String.format( BEAN_NAME, category, quoteIfNeeded( type ), quoteIfNeeded( name ) ) );
+  }
+
+  private static String quoteIfNeeded( String value ) {
+    for ( char c : ",=:\"*?\n".toCharArray() ) {
+      if ( value.indexOf( c ) >= 0 )
+        return ObjectName.quote( value );
+    }
+    return value;
+  }
+
   public static void remove( String category, String type, String name ) {
     MBeanServer server = ManagementFactory.getPlatformMBeanServer();
     try {
-      server.unregisterMBean( new ObjectName( String.format( BEAN_NAME, category, type, name ) ) );
+      server.unregisterMBean( objectName( category, type, name ) );
     }
     catch ( Exception e ) {
       // Throwing runtime exception will not help matters...
@@ -1,8 +1,18 @@
 package org.eclipse.jetty.nosql.kvs.jmx;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.NotCompliantMBeanException;
+import javax.management.StandardMBean;
+
 import org.eclipse.jetty.nosql.kvs.AbstractKeyValueStoreClient;
+import org.eclipse.jetty.nosql.kvs.IAsyncKeyValueStoreClient;
 import org.eclipse.jetty.nosql.kvs.IKeyValueStoreClient;
 import org.eclipse.jetty.nosql.kvs.KeyValueStoreClientException;
 
@@ -12,20 +22,31 @@ import org.eclipse.jetty.nosql.kvs.KeyValueStoreClientException;
  * @author David Ranalli
  * Jan 28, 2016
  */
-public class MonitoredClient extends AbstractKeyValueStoreClient implements SessionStorageMBean, IKeyValueStoreClient {
+public class MonitoredClient extends AbstractKeyValueStoreClient implements SessionStorageMBean, IKeyValueStoreClient, IAsyncKeyValueStoreClient {
   private final AtomicLong updates = new AtomicLong();
   private final AtomicLong inserts = new AtomicLong();
   private final AtomicLong deletes = new AtomicLong();
+  private final AtomicLong touches = new AtomicLong();
   private final AtomicLong reads = new AtomicLong();
   private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong inFlight = new AtomicLong();
   private final AtomicLong updateTime = new AtomicLong();
   private final AtomicLong insertTime = new AtomicLong();
   private final AtomicLong deleteTime = new AtomicLong();
+  private final AtomicLong touchTime = new AtomicLong();
   private final AtomicLong readTime = new AtomicLong();
   private final AtomicLong errorTime = new AtomicLong();
   private final AtomicLong dataIn = new AtomicLong();
   private final AtomicLong dataOut = new AtomicLong();
-  private final IKeyValueStoreClient client;
+  private final SlidingHistogram readLatency = new SlidingHistogram( "us" );
+  private final SlidingHistogram insertLatency = new SlidingHistogram( "us" );
+  private final SlidingHistogram updateLatency = new SlidingHistogram( "us" );
+  private final SlidingHistogram deleteLatency = new SlidingHistogram( "us" );
+  private final SlidingHistogram touchLatency = new SlidingHistogram( "us" );
+  private final SlidingHistogram dataInSize = new SlidingHistogram( "bytes" );
+  private final SlidingHistogram dataOutSize = new SlidingHistogram( "bytes" );
+  private final AbstractKeyValueStoreClient client;
   
   public MonitoredClient( AbstractKeyValueStoreClient client ) {
     super( client.getServerString() );
@@ -35,10 +56,27 @@ public class MonitoredClient extends AbstractKeyValueStoreClient implements Sess
   @Override
   public boolean establish() throws KeyValueStoreClientException {
     client.establish();
-    JmxMonitorManager.monitor( new SessionStorage( this ), "SessionClustering", client.getClass().getSimpleName().toLowerCase(), getServerString() );
+    JmxMonitorManager.monitor( new SessionStorage( this ), "SessionClustering", getType(), getServerString() );
+    for ( Map.Entry<String, SlidingHistogram> histogram : getHistograms().entrySet() )
+      monitor( histogram.getValue(), HistogramMBean.class, histogram.getKey() );
+    if ( client instanceof ConnectionStatsMBean )
+      monitor( (ConnectionStatsMBean)client, ConnectionStatsMBean.class, "connections" );
 
     return true;
   }
+
+  private <T> void monitor( T mbean, Class<T> mbeanInterface, String name ) {
+    try {
+      JmxMonitorManager.monitor( new StandardMBean( mbean, mbeanInterface ), "SessionClustering", getType(), getServerString() + "/" + name );
+    }
+    catch ( NotCompliantMBeanException e ) {
+      throw new IllegalStateException( e );
+    }
+  }
+
+  private String getType() {
+    return client.getClass().getSimpleName().toLowerCase();
+  }
  
 //  public static void main( String[] args ) throws InterruptedException {
 //    JmxMonitorManager.monitor( new SessionStorage( new MonitoredClient( "dave") ), "SessionClustering", "mongo","dave" );
@@ -49,7 +87,13 @@ public class MonitoredClient extends AbstractKeyValueStoreClient implements Sess
   
   @Override
   public boolean shutdown() throws KeyValueStoreClientException {
-    JmxMonitorManager.remove( "SessionClustering", client.getClass().getSimpleName().toLowerCase(), getServerString() );
+    JmxMonitorManager.remove( "SessionClustering", getType(), getServerString() );
+    for ( String histogram : getHistograms().keySet() )
+      JmxMonitorManager.remove( "SessionClustering", getType(), getServerString() + "/" + histogram );
+    if ( client instanceof ConnectionStatsMBean )
+      JmxMonitorManager.remove( "SessionClustering", getType(), getServerString() + "/connections" );
+    shutdownAsyncExecutor();
+    client.shutdown();
     return true;
   }
 
@@ -58,62 +102,228 @@ public class MonitoredClient extends AbstractKeyValueStoreClient implements Sess
     return client.isAlive();
   }
 
+  @Override
+  public void setTimeoutInMs( int timeoutInMs ) {
+    super.setTimeoutInMs( timeoutInMs );
+    client.setTimeoutInMs( timeoutInMs );
+  }
+
+  /**
+   * @return the monitored client
+   */
+  public AbstractKeyValueStoreClient getClient() {
+    return client;
+  }
+
   @Override
   public byte[] get( String key ) throws KeyValueStoreClientException {
-    long start = System.currentTimeMillis();
+    long start = begin();
     try {
       byte[] bytes = client.get( key );
-      track( start, bytes, reads, readTime, dataIn );
+      track( start, bytes, reads, readTime, readLatency, dataIn, dataInSize );
 
       return bytes;
     }
-    catch( KeyValueStoreClientException e ) {
-      track( start, null, errors, errorTime, null );
+    catch( KeyValueStoreClientException | RuntimeException e ) {
+      trackError( start, e );
       throw e;
     }
+    finally {
+      end();
+    }
   }
   
 
-  private void track( long start, byte[] bytes, AtomicLong count, AtomicLong time, AtomicLong data ) {
-    long duration = System.currentTimeMillis() - start;
+  @Override
+  public Map<String, byte[]> getBulk( Collection<String> keys ) throws KeyValueStoreClientException {
+    long start = begin();
+    try {
+      Map<String, byte[]> found = client.getBulk( keys );
+      long duration = System.nanoTime() - start;
+      reads.addAndGet( keys.size() );
+      readTime.addAndGet( duration );
+      readLatency.record( TimeUnit.NANOSECONDS.toMicros( duration ) );
+      for ( byte[] bytes : found.values() ) {
+        if ( bytes != null ) {
+          dataIn.addAndGet( bytes.length );
+          dataInSize.record( bytes.length );
+        }
+      }
+      return found;
+    }
+    catch( KeyValueStoreClientException | RuntimeException e ) {
+      trackError( start, e );
+      throw e;
+    }
+    finally {
+      end();
+    }
+  }
+
+  /**
+   * Delegates to the asynchronous operations of the client if it has them, otherwise runs the blocking ones on the
+   * async executor.
+   */
+  @Override
+  public CompletableFuture<byte[]> getAsync( String key ) {
+    final long start = begin();
+    CompletableFuture<byte[]> f;
+    try {
+      f = client instanceof IAsyncKeyValueStoreClient
+          ? ((IAsyncKeyValueStoreClient)client).getAsync( key ) : callAsync( () -> client.get( key ) );
+    }
+    catch ( RuntimeException e ) {
+      trackError( start, e );
+      end();
+      throw e;
+    }
+    return f.whenComplete( ( bytes, error ) -> {
+      if ( error != null )
+        trackError( start, error );
+      else
+        track( start, bytes, reads, readTime, readLatency, dataIn, dataInSize );
+      end();
+    } );
+  }
+
+  @Override
+  public CompletableFuture<Boolean> setAsync( String key, long version, byte[] raw, int exp ) {
+    final long start = begin();
+    CompletableFuture<Boolean> f;
+    try {
+      f = client instanceof IAsyncKeyValueStoreClient
+          ? ((IAsyncKeyValueStoreClient)client).setAsync( key, version, raw, exp ) : callAsync( () -> client.set( key, version, raw, exp ) );
+    }
+    catch ( RuntimeException e ) {
+      trackError( start, e );
+      end();
+      throw e;
+    }
+    return f.whenComplete( ( ret, error ) -> {
+      if ( error != null )
+        trackError( start, error );
+      else
+        track( start, raw, updates, updateTime, updateLatency, dataOut, dataOutSize );
+      end();
+    } );
+  }
+
+  @Override
+  public CompletableFuture<Boolean> addAsync( String key, long version, byte[] raw, int exp ) {
+    final long start = begin();
+    CompletableFuture<Boolean> f;
+    try {
+      f = client instanceof IAsyncKeyValueStoreClient
+          ? ((IAsyncKeyValueStoreClient)client).addAsync( key, version, raw, exp ) : callAsync( () -> client.add( key, version, raw, exp ) );
+    }
+    catch ( RuntimeException e ) {
+      trackError( start, e );
+      end();
+      throw e;
+    }
+    return f.whenComplete( ( ret, error ) -> {
+      if ( error != null )
+        trackError( start, error );
+      else
+        track( start, raw, inserts, insertTime, insertLatency, dataOut, dataOutSize );
+      end();
+    } );
+  }
+
+  @Override
+  public CompletableFuture<Boolean> deleteAsync( String key ) {
+    final long start = begin();
+    CompletableFuture<Boolean> f;
+    try {
+      f = client instanceof IAsyncKeyValueStoreClient
+          ? ((IAsyncKeyValueStoreClient)client).deleteAsync( key ) : callAsync( () -> client.delete( key ) );
+    }
+    catch ( RuntimeException e ) {
+      trackError( start, e );
+      end();
+      throw e;
+    }
+    return f.whenComplete( ( ret, error ) -> {
+      if ( error != null )
+        trackError( start, error );
+      else
+        track( start, null, deletes, deleteTime, deleteLatency, null, null );
+      end();
+    } );
+  }
+
+  private long begin() {
+    inFlight.incrementAndGet();
+    return System.nanoTime();
+  }
+
+  /**
+   * Called once per {@link #begin()}, whether the operation succeeded or failed in any way.
+   */
+  private void end() {
+    inFlight.decrementAndGet();
+  }
+
+  private void trackError( long start, Throwable error ) {
+    track( start, null, errors, errorTime, null, null, null );
+    for ( Throwable cause = error; cause != null; cause = cause.getCause() ) {
+      if ( cause instanceof TimeoutException ) {
+        timeouts.incrementAndGet();
+        break;
+      }
+    }
+  }
+
+  private void track( long start, byte[] bytes, AtomicLong count, AtomicLong time, SlidingHistogram latency, AtomicLong data, SlidingHistogram sizes ) {
+    long duration = System.nanoTime() - start;
     count.incrementAndGet();
     time.addAndGet( duration );
-    if ( bytes != null )
+    if ( latency != null )
+      latency.record( TimeUnit.NANOSECONDS.toMicros( duration ) );
+    if ( bytes != null ) {
       data.addAndGet( bytes.length );
+      sizes.record( bytes.length );
+    }
   }
 
   @Override
   public boolean delete( String key ) throws KeyValueStoreClientException {
-    long start = System.currentTimeMillis();
+    long start = begin();
     
     boolean ret = false;
     try
     {
       ret = client.delete( key );
     }
-    catch ( KeyValueStoreClientException e ) {
-      track( start, null, errors, errorTime, null );
+    catch ( KeyValueStoreClientException | RuntimeException e ) {
+      trackError( start, e );
       throw e;
     }
+    finally {
+      end();
+    }
     
-    track( start, null, deletes, deleteTime, null );
+    track( start, null, deletes, deleteTime, deleteLatency, null, null );
     return ret;
   }
 
   @Override
   public boolean exists( String key ) throws KeyValueStoreClientException {
-    long start = System.currentTimeMillis();
+    long start = begin();
     boolean ret = false;
     try
     {
       ret = client.exists( key );
     }
-    catch ( Exception e ) {
-      track( start, null, errors, errorTime, null );
+    catch ( KeyValueStoreClientException | RuntimeException e ) {
+      trackError( start, e );
       throw e;
     }
+    finally {
+      end();
+    }
     
-    track( start, null, reads, readTime, null );
+    track( start, null, reads, readTime, readLatency, null, null );
     return ret;
   }
   
@@ -142,39 +352,59 @@ public class MonitoredClient extends AbstractKeyValueStoreClient implements Sess
     return deletes.get();
   }
   
+  @Override
+  public long getTouches() {
+    return touches.get();
+  }
+
   @Override
   public long getErrors() {
     return errors.get();
   }
 
+  @Override
+  public long getTimeouts() {
+    return timeouts.get();
+  }
+
+  @Override
+  public long getInFlight() {
+    return inFlight.get();
+  }
+
   @Override
   public long getReadTime() {
-    return readTime.get();
+    return TimeUnit.NANOSECONDS.toMillis( readTime.get() );
   }
 
   @Override
   public long getWriteTime() {
-    return updateTime.get() + insertTime.get() + deleteTime.get();
+    return TimeUnit.NANOSECONDS.toMillis( updateTime.get() + insertTime.get() + deleteTime.get() );
   }
 
   @Override
   public long getInsertTime() {
-    return insertTime.get();
+    return TimeUnit.NANOSECONDS.toMillis( insertTime.get() );
   }
 
   @Override
   public long getUpdateTime() {
-    return updateTime.get();
+    return TimeUnit.NANOSECONDS.toMillis( updateTime.get() );
   }
 
   @Override
   public long getDeleteTime() {
-    return deleteTime.get();
+    return TimeUnit.NANOSECONDS.toMillis( deleteTime.get() );
+  }
+
+  @Override
+  public long getTouchTime() {
+    return TimeUnit.NANOSECONDS.toMillis( touchTime.get() );
   }
 
   @Override
   public long getErrorTime() {
-    return errorTime.get();
+    return TimeUnit.NANOSECONDS.toMillis( errorTime.get() );
   }
 
   @Override
@@ -187,6 +417,21 @@ public class MonitoredClient extends AbstractKeyValueStoreClient implements Sess
     return dataOut.get() / 1024;
   }
 
+  /**
+   * Latency of the operations in microseconds and size of the transferred values in bytes, within the last minute.
+   */
+  public Map<String, SlidingHistogram> getHistograms() {
+    Map<String, SlidingHistogram> histograms = new LinkedHashMap<String, SlidingHistogram>();
+    histograms.put( "readLatency", readLatency );
+    histograms.put( "insertLatency", insertLatency );
+    histograms.put( "updateLatency", updateLatency );
+    histograms.put( "deleteLatency", deleteLatency );
+    histograms.put( "touchLatency", touchLatency );
+    histograms.put( "dataInSize", dataInSize );
+    histograms.put( "dataOutSize", dataOutSize );
+    return histograms;
+  }
+
   @Override
   public boolean set( String key, long version, byte[] raw ) throws KeyValueStoreClientException {
     return set( key, version, raw, 0 );
@@ -194,19 +439,23 @@ public class MonitoredClient extends AbstractKeyValueStoreClient implements Sess
 
   @Override
   public boolean set( String key, long version, byte[] raw, int exp ) throws KeyValueStoreClientException {
-    long start = System.currentTimeMillis();
+    long start = begin();
 
     boolean ret = false;
     try
     {
       ret = client.set( key, version, raw, exp );
     }
-    catch (KeyValueStoreClientException e)
+    catch ( KeyValueStoreClientException | RuntimeException e )
+    {
+      trackError( start, e );
+      throw e;
+    }
+    finally
     {
-        track( start, null, errors, errorTime, null );
-        throw e;
+      end();
     }
-    track( start, raw, updates, updateTime, dataOut );
+    track( start, raw, updates, updateTime, updateLatency, dataOut, dataOutSize );
     return ret;
   }
 
@@ -217,36 +466,107 @@ public class MonitoredClient extends AbstractKeyValueStoreClient implements Sess
 
   @Override
   public boolean add( String key, long version, byte[] raw, int exp ) throws KeyValueStoreClientException {
-    long start = System.currentTimeMillis();
+    long start = begin();
     boolean ret = false;
     try
     {
       ret = client.add( key, version, raw, exp );
     }
-    catch (Exception e)
+    catch ( KeyValueStoreClientException | RuntimeException e )
     {
-      track( start, null, errors, errorTime, null );
+      trackError( start, e );
       throw e;
     }
+    finally
+    {
+      end();
+    }
 
-    track( start, raw, inserts, insertTime, dataOut );
+    track( start, raw, inserts, insertTime, insertLatency, dataOut, dataOutSize );
     
     return ret;
   }
 
   @Override
-  public long version( String key ) {
-    long start = System.currentTimeMillis();
+  public boolean cas( String key, long expectedVersion, byte[] raw, int exp ) throws KeyValueStoreClientException {
+    long start = begin();
+    boolean ret = false;
+    try
+    {
+      ret = client.cas( key, expectedVersion, raw, exp );
+    }
+    catch ( KeyValueStoreClientException | RuntimeException e )
+    {
+      trackError( start, e );
+      throw e;
+    }
+    finally
+    {
+      end();
+    }
+    track( start, raw, updates, updateTime, updateLatency, dataOut, dataOutSize );
+    return ret;
+  }
+
+  @Override
+  public boolean touch( String key, int exp ) throws KeyValueStoreClientException {
+    long start = begin();
+    boolean ret = false;
+    try
+    {
+      ret = client.touch( key, exp );
+    }
+    catch ( KeyValueStoreClientException | RuntimeException e )
+    {
+      trackError( start, e );
+      throw e;
+    }
+    finally
+    {
+      end();
+    }
+    track( start, null, touches, touchTime, touchLatency, null, null );
+    return ret;
+  }
+
+  /**
+   * Recorded as a read, since it takes a single round trip. The touch is counted but not timed.
+   */
+  @Override
+  public byte[] getAndTouch( String key, int exp ) throws KeyValueStoreClientException {
+    long start = begin();
+    try {
+      byte[] bytes = client.getAndTouch( key, exp );
+      track( start, bytes, reads, readTime, readLatency, dataIn, dataInSize );
+      touches.incrementAndGet();
+
+      return bytes;
+    }
+    catch ( KeyValueStoreClientException | RuntimeException e ) {
+      trackError( start, e );
+      throw e;
+    }
+    finally {
+      end();
+    }
+  }
+
+  @Override
+  public long version( String key ) throws KeyValueStoreClientException {
+    long start = begin();
     try
     {
       long version = client.version( key );
-      track( start, null, reads, readTime, null );
+      track( start, null, reads, readTime, readLatency, null, null );
       return version;
     }
-    catch ( Exception e ) {
-      track( start, null, errors, errorTime, null );
+    catch ( KeyValueStoreClientException | RuntimeException e ) {
+      trackError( start, e );
       throw e;
     }
+    finally {
+      end();
+    }
     
   }
 }
@@ -0,0 +1,23 @@
+package org.eclipse.jetty.nosql.kvs.jmx;
+
+
+public interface SerializationStatsMBean {
+  long getPacks();
+  long getUnpacks();
+  long getCopies();
+  long getErrors();
+  long getPackedSizeKB();
+  long getUnpackedSizeKB();
+  long getPackLatencyP50();
+  long getPackLatencyP99();
+  long getPackLatencyMax();
+  long getUnpackLatencyP50();
+  long getUnpackLatencyP99();
+  long getUnpackLatencyMax();
+  long getCopyLatencyP99();
+  long getPackedSizeP50();
+  long getPackedSizeP99();
+  long getPackedSizeMax();
+  int getSampleRate();
+  String[] getLargestAttributes();
+}
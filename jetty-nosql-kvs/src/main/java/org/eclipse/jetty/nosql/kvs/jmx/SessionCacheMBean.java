@@ -0,0 +1,12 @@
+package org.eclipse.jetty.nosql.kvs.jmx;
+
+
+public interface SessionCacheMBean {
+  long getHits();
+  long getMisses();
+  long getRevalidations();
+  long getStaleHits();
+  long getEvictions();
+  int getSize();
+  int getMaxSize();
+}
@@ -33,12 +33,27 @@ public class SessionStorage implements SessionStorageMBean {
   public long getDeletes() {
     return client.getDeletes();
   }
+
+  @Override
+  public long getTouches() {
+    return client.getTouches();
+  }
   
   @Override
   public long getErrors() {
     return client.getErrors();
   }
 
+  @Override
+  public long getTimeouts() {
+    return client.getTimeouts();
+  }
+
+  @Override
+  public long getInFlight() {
+    return client.getInFlight();
+  }
+
   @Override
   public long getReadTime() {
     return client.getReadTime();
@@ -79,4 +94,9 @@ public class SessionStorage implements SessionStorageMBean {
     return client.getDeleteTime();
   }
 
+  @Override
+  public long getTouchTime() {
+    return client.getTouchTime();
+  }
+
 }
@@ -7,12 +7,16 @@ public interface SessionStorageMBean {
   long getInserts();
   long getUpdates();
   long getDeletes();
+  long getTouches();
   long getErrors();
+  long getTimeouts();
+  long getInFlight();
   long getReadTime();
   long getWriteTime();
   long getInsertTime();
   long getUpdateTime();
   long getDeleteTime();
+  long getTouchTime();
   long getErrorTime();
   long getDataInSizeKB();
   long getDataOutSizeKB();
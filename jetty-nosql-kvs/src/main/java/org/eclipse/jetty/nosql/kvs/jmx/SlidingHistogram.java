@@ -0,0 +1,186 @@
+package org.eclipse.jetty.nosql.kvs.jmx;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Log-linear histogram of the values recorded within a sliding window.
+ * 
+ * Every power of two is split into 16 linear buckets, so percentiles are reported within about 6% of the actual
+ * values from 0 up to {@link #MAX_VALUE}, with a fixed amount of memory and no locking on record. The window is made
+ * of a ring of intervals; the eldest interval is cleared and reused once its time has passed.
+ */
+public class SlidingHistogram implements HistogramMBean {
+  public static final long DEFAULT_WINDOW_MILLIS = 60 * 1000;
+  public static final int DEFAULT_INTERVALS = 6;
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  /** larger values are recorded as this one. 2^40 microseconds are about 12 days, 2^40 bytes are 1TB. */
+  public static final long MAX_VALUE = ( 1L << 40 ) - 1;
+  private static final int BUCKETS = bucketOf( MAX_VALUE ) + 1;
+
+  private static final class Interval {
+    private final AtomicLongArray counts = new AtomicLongArray( BUCKETS );
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    private volatile long epoch = -1;
+  }
+
+  private final String unit;
+  private final long intervalMillis;
+  private final Interval[] intervals;
+  private final LongSupplier clock;
+
+  public SlidingHistogram( String unit ) {
+    this( unit, DEFAULT_WINDOW_MILLIS, DEFAULT_INTERVALS );
+  }
+
+  /**
+   * @param unit unit of the recorded values, shown through JMX
+   * @param windowMillis values older than this are dropped
+   * @param intervals number of steps the window slides in
+   */
+  public SlidingHistogram( String unit, long windowMillis, int intervals ) {
+    this( unit, windowMillis, intervals, System::currentTimeMillis );
+  }
+
+  SlidingHistogram( String unit, long windowMillis, int intervals, LongSupplier clock ) {
+    if ( intervals <= 0 || windowMillis < intervals )
+      throw new IllegalArgumentException( "window must be split into at least one interval of 1ms" );
+    this.unit = unit;
+    this.intervalMillis = windowMillis / intervals;
+    this.intervals = new Interval[intervals];
+    for ( int i = 0; i < intervals; i++ )
+      this.intervals[i] = new Interval();
+    this.clock = clock;
+  }
+
+  public void record( long value ) {
+    value = Math.max( 0, Math.min( value, MAX_VALUE ) );
+    long epoch = clock.getAsLong() / intervalMillis;
+    Interval interval = intervals[(int) ( epoch % intervals.length )];
+    if ( interval.epoch != epoch )
+      rotate( interval, epoch );
+    interval.counts.incrementAndGet( bucketOf( value ) );
+    interval.count.incrementAndGet();
+    interval.sum.addAndGet( value );
+    interval.max.accumulateAndGet( value, Math::max );
+  }
+
+  /**
+   * values recorded concurrently with the reset may get lost, or counted in the new interval. either is fine for
+   * monitoring.
+   */
+  private synchronized void rotate( Interval interval, long epoch ) {
+    if ( interval.epoch >= epoch )
+      return;
+    for ( int i = 0; i < BUCKETS; i++ )
+      interval.counts.set( i, 0 );
+    interval.count.set( 0 );
+    interval.sum.set( 0 );
+    interval.max.set( 0 );
+    interval.epoch = epoch;
+  }
+
+  /**
+   * @return the merged buckets of the intervals within the window, followed by count, sum and max
+   */
+  private long[] snapshot() {
+    long[] merged = new long[BUCKETS + 3];
+    long oldest = clock.getAsLong() / intervalMillis - intervals.length + 1;
+    for ( Interval interval : intervals ) {
+      if ( interval.epoch < oldest )
+        continue;
+      for ( int i = 0; i < BUCKETS; i++ )
+        merged[i] += interval.counts.get( i );
+      merged[BUCKETS] += interval.count.get();
+      merged[BUCKETS + 1] += interval.sum.get();
+      merged[BUCKETS + 2] = Math.max( merged[BUCKETS + 2], interval.max.get() );
+    }
+    return merged;
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return upper bound of the bucket holding the percentile, 0 if nothing was recorded within the window
+   */
+  public long getPercentile( double percentile ) {
+    long[] merged = snapshot();
+    long count = 0;
+    for ( int i = 0; i < BUCKETS; i++ )
+      count += merged[i];
+    if ( count == 0 )
+      return 0;
+    long rank = Math.max( 1, (long) Math.ceil( percentile / 100 * count ) );
+    long seen = 0;
+    for ( int i = 0; i < BUCKETS; i++ ) {
+      seen += merged[i];
+      if ( seen >= rank )
+        return Math.min( highestValueOf( i ), merged[BUCKETS + 2] );
+    }
+    return merged[BUCKETS + 2];
+  }
+
+  static int bucketOf( long value ) {
+    if ( value < SUB_BUCKETS )
+      return (int) value;
+    int shift = 63 - Long.numberOfLeadingZeros( value ) - SUB_BUCKET_BITS;
+    return ( shift + 1 ) * SUB_BUCKETS + (int) ( ( value >>> shift ) - SUB_BUCKETS );
+  }
+
+  static long highestValueOf( int bucket ) {
+    if ( bucket < SUB_BUCKETS )
+      return bucket;
+    int shift = bucket / SUB_BUCKETS - 1;
+    long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+    return ( ( sub + 1 ) << shift ) - 1;
+  }
+
+  @Override
+  public String getUnit() {
+    return unit;
+  }
+
+  @Override
+  public long getWindowSeconds() {
+    return intervalMillis * intervals.length / 1000;
+  }
+
+  @Override
+  public long getCount() {
+    return snapshot()[BUCKETS];
+  }
+
+  @Override
+  public double getMean() {
+    long[] merged = snapshot();
+    return merged[BUCKETS] == 0 ? 0 : (double) merged[BUCKETS + 1] / merged[BUCKETS];
+  }
+
+  @Override
+  public long getP50() {
+    return getPercentile( 50 );
+  }
+
+  @Override
+  public long getP95() {
+    return getPercentile( 95 );
+  }
+
+  @Override
+  public long getP99() {
+    return getPercentile( 99 );
+  }
+
+  @Override
+  public long getP999() {
+    return getPercentile( 99.9 );
+  }
+
+  @Override
+  public long getMax() {
+    return snapshot()[BUCKETS + 2];
+  }
+}
@@ -0,0 +1,10 @@
+package org.eclipse.jetty.nosql.kvs.jmx;
+
+
+public interface WriteBehindQueueMBean {
+  long getQueued();
+  long getCoalesced();
+  long getWritten();
+  long getFailed();
+  int getPending();
+}
@@ -1,17 +1,32 @@
 package org.eclipse.jetty.nosql.kvs.session;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
 
+import org.eclipse.jetty.nosql.kvs.session.compression.CompressingTranscoder;
+import org.eclipse.jetty.nosql.kvs.session.compression.ICompressionCodec;
 import org.eclipse.jetty.server.session.AbstractSession;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
 
 public abstract class AbstractSessionFactory {
 	protected final static Logger log = Log.getLogger("org.eclipse.jetty.nosql.kvs.session.AbstractSessionFactory");
+	/**
+	 * reserved attribute of sessions whose attributes are packed one by one, see {@link #setLazyAttributes(boolean)}
+	 */
+	public static final String LAZY_ATTRIBUTES = "org.eclipse.jetty.nosql.kvs.session.lazyAttributes";
 	public abstract ISerializableSession create();
 	protected ISerializationTranscoder transcoder;
+	protected boolean lazyAttributes = false;
+	protected boolean binaryEnvelope = false;
+	protected ICompressionCodec compressionCodec = null;
+	protected int compressionThreshold = CompressingTranscoder.DEFAULT_THRESHOLD;
+	private volatile CompressingTranscoder compressingTranscoder = null;
+	protected volatile SerializationStats stats = null;
 
 	public AbstractSessionFactory(ISerializationTranscoder t) {
 		transcoder = t;
@@ -36,11 +51,24 @@ public abstract class AbstractSessionFactory {
 	}
 
 	public ISerializableSession create(AbstractSession session) {
+		SerializationStats st = stats;
+		if (st == null) {
+			return copy(session);
+		}
+		long start = System.nanoTime();
+		ISerializableSession s = copy(session);
+		st.recordCopy(System.nanoTime() - start);
+		return s;
+	}
+
+	private ISerializableSession copy(AbstractSession session) {
 		synchronized(session) {
 			ISerializableSession s = create(session.getId(), session.getCreationTime(), session.getAccessed());
 			if (session.isValid()) {
+				// read the values directly so that lazy attributes are written back as they are
+				Map<String, Object> attributes = session.getAttributeMap();
 				for (String key: session.getNames()) {
-					s.setAttribute(key, session.getAttribute(key));
+					s.setAttribute(key, attributes.get(key));
 				}
 			} else {
 				// we do not need to retrieve attributes of invalidated sessions since
@@ -51,18 +79,280 @@ public abstract class AbstractSessionFactory {
 		}
 	}
 
+	/**
+	 * @return the transcoder, wrapped in a {@link CompressingTranscoder} if a compression codec has been set
+	 */
 	public ISerializationTranscoder getTranscoder() {
-		return transcoder;
+		if (compressionCodec == null) {
+			return transcoder;
+		}
+		CompressingTranscoder tc = compressingTranscoder;
+		// the transcoder is replaced on setClassLoader()
+		if (tc == null || tc.getTranscoder() != transcoder) {
+			tc = new CompressingTranscoder(transcoder, compressionCodec, compressionThreshold);
+			compressingTranscoder = tc;
+		}
+		return tc;
+	}
+
+	public ICompressionCodec getCompressionCodec() {
+		return compressionCodec;
+	}
+
+	/**
+	 * @param compressionCodec to compress packed sessions, or null not to compress them
+	 */
+	public void setCompressionCodec(ICompressionCodec compressionCodec) {
+		this.compressionCodec = compressionCodec;
+		this.compressingTranscoder = null;
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * @param compressionThreshold minimum size in bytes of packed sessions to compress. sessions packed in an envelope
+	 *            compress their attributes once the attributes together take at least this, regardless of the size of
+	 *            each of them.
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+		this.compressingTranscoder = null;
+	}
+
+	public boolean isLazyAttributes() {
+		return lazyAttributes;
+	}
+
+	/**
+	 * @param lazyAttributes pack each attribute separately so that unpacked sessions hold {@link LazyAttribute}s which
+	 *            are deserialized on first use. sessions packed this way can be unpacked regardless of this setting.
+	 */
+	public void setLazyAttributes(boolean lazyAttributes) {
+		this.lazyAttributes = lazyAttributes;
+	}
+
+	public boolean isBinaryEnvelope() {
+		return binaryEnvelope;
+	}
+
+	/**
+	 * @param binaryEnvelope pack sessions in the envelope of {@link SessionEnvelopeCodec}, where only the attribute
+	 *            values go through the transcoder. sessions are unpacked regardless of this setting, so it may be turned
+	 *            on once every node of a cluster is able to read envelopes. false by default.
+	 */
+	public void setBinaryEnvelope(boolean binaryEnvelope) {
+		this.binaryEnvelope = binaryEnvelope;
+	}
+
+	public byte[] pack(ISerializableSession session) {
+		ISerializationTranscoder tc = getTranscoder();
+		SerializationStats st = stats;
+		if (st == null) {
+			return packSession(session, tc);
+		}
+		byte[] raw;
+		long start = System.nanoTime();
+		try {
+			raw = packSession(session, tc);
+		} catch (RuntimeException error) {
+			st.recordError();
+			throw error;
+		}
+		st.recordPack(System.nanoTime() - start, raw.length);
+		if (st.sample()) {
+			sampleAttributes(session, tc, st);
+		}
+		return raw;
 	}
 
-		public byte[] pack(ISerializableSession session) {
-		return pack(session, getTranscoder());
+	private byte[] packSession(ISerializableSession session, ISerializationTranscoder tc) throws TranscoderException {
+		if (binaryEnvelope) {
+			// the envelope compresses the attributes together rather than each of them
+			return SessionEnvelopeCodec.encode(this, session, transcoder);
+		}
+		return pack(lazyAttributes ? packAttributes(session, tc) : materializeAttributes(session), tc);
+	}
+
+	/**
+	 * record the serialized size of each attribute. lazy attributes are measured as they are, the others are
+	 * serialized once more on their own.
+	 */
+	private void sampleAttributes(ISerializableSession session, ISerializationTranscoder tc, SerializationStats st) {
+		Map<String, Object> attributes = session.getAttributeMap();
+		if (attributes == null) {
+			return;
+		}
+		for (Map.Entry<String, Object> a: attributes.entrySet()) {
+			try {
+				byte[] raw = packAttribute(a.getKey(), a.getValue(), tc);
+				st.recordAttribute(a.getKey(), raw.length);
+			} catch (RuntimeException error) {
+				log.debug("unable to measure attribute " + a.getKey(), error);
+			}
+		}
+	}
+
+	public SerializationStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * @param stats to record the cost of serialization into, or null not to record it
+	 */
+	public void setStats(SerializationStats stats) {
+		this.stats = stats;
 	}
 
 	public abstract byte[] pack(ISerializableSession session, ISerializationTranscoder tc) throws TranscoderException;
 
 	public ISerializableSession unpack(byte[] raw) {
-		return unpack(raw, getTranscoder());
+		ISerializationTranscoder tc = getTranscoder();
+		SerializationStats st = stats;
+		ISerializableSession session;
+		if (st == null) {
+			session = unpackSession(raw, tc);
+		} else {
+			long start = System.nanoTime();
+			try {
+				session = unpackSession(raw, tc);
+			} catch (RuntimeException error) {
+				st.recordError();
+				throw error;
+			}
+			st.recordUnpack(System.nanoTime() - start, raw == null ? 0 : raw.length);
+		}
+		if (session != null && session.getAttribute(LAZY_ATTRIBUTES) != null) {
+			session.removeAttribute(LAZY_ATTRIBUTES);
+			List<String> names = Collections.list(session.getAttributeNames());
+			for (String name: names) {
+				session.setAttribute(name, new LazyAttribute(this, tc, name, (byte[]) session.getAttribute(name)));
+			}
+		}
+		return session;
+	}
+
+	/**
+	 * read the id, timestamps, version, domain, path and valid flag of a packed session without deserializing its
+	 * attributes, e.g. to reject a session before paying for its attributes.
+	 *
+	 * @return a session without attributes, or null if the metadata cannot be read on its own, i.e. the session has not
+	 *         been packed in the envelope of {@link SessionEnvelopeCodec}. {@link #unpack(byte[])} has to be used then.
+	 */
+	public ISerializableSession peekMetadata(byte[] raw) {
+		if (!SessionEnvelopeCodec.isEnvelope(raw)) {
+			return null;
+		}
+		try {
+			return SessionEnvelopeCodec.decodeMetadata(this, raw);
+		} catch (TranscoderException error) {
+			log.debug("unable to peek metadata of session", error);
+			return null;
+		}
+	}
+
+	private ISerializableSession unpackSession(byte[] raw, ISerializationTranscoder tc) throws TranscoderException {
+		if (!SessionEnvelopeCodec.isEnvelope(raw)) {
+			return unpack(raw, tc);
+		}
+		try {
+			return SessionEnvelopeCodec.decode(this, raw, tc, lazyAttributes);
+		} catch (RuntimeException error) {
+			// the data may be a session of the transcoder which happens to start like an envelope
+			try {
+				return unpack(raw, tc);
+			} catch (RuntimeException ignore) {
+				throw error;
+			}
+		}
+	}
+
+	/**
+	 * serialize a single attribute. If an error occurs a {@link TranscoderException} is thrown
+	 */
+	public byte[] packAttribute(String name, Object value, ISerializationTranscoder tc) throws TranscoderException {
+		if (value instanceof LazyAttribute) {
+			return ((LazyAttribute) value).getRaw();
+		}
+		if (binaryEnvelope) {
+			return SessionEnvelopeCodec.packValue(encodeAttribute(value, tc));
+		}
+		// wrap the value in a session so that every transcoder can tell its class
+		ISerializableSession holder = create();
+		holder.setAttribute(name, value);
+		return pack(holder, tc);
+	}
+
+	/**
+	 * deserialize a single attribute written by {@link #packAttribute(String, Object, ISerializationTranscoder)}.
+	 * If an error occurs a {@link TranscoderException} is thrown
+	 */
+	public Object unpackAttribute(String name, byte[] raw, ISerializationTranscoder tc) throws TranscoderException {
+		if (!SessionEnvelopeCodec.isPackedValue(raw)) {
+			return unpack(raw, tc).getAttribute(name);
+		}
+		try {
+			return decodeAttribute(SessionEnvelopeCodec.unpackValue(raw), tc);
+		} catch (RuntimeException error) {
+			try {
+				return unpack(raw, tc).getAttribute(name);
+			} catch (RuntimeException ignore) {
+				throw error;
+			}
+		}
+	}
+
+	/**
+	 * serialize an attribute value of a session packed in an envelope. the value must be deserializable by
+	 * {@link #decodeAttribute(byte[], ISerializationTranscoder)} without knowing its class.
+	 */
+	protected byte[] encodeAttribute(Object value, ISerializationTranscoder tc) throws TranscoderException {
+		return tc.encode(value);
+	}
+
+	protected Object decodeAttribute(byte[] raw, ISerializationTranscoder tc) throws TranscoderException {
+		return tc.decode(raw, Object.class);
+	}
+
+	/**
+	 * @return a copy of the session whose attribute values are serialized one by one. values which are still lazy are
+	 *         copied without deserializing them.
+	 */
+	protected ISerializableSession packAttributes(ISerializableSession session, ISerializationTranscoder tc) throws TranscoderException {
+		ISerializableSession s = copyWithoutAttributes(session);
+		for (Map.Entry<String, Object> a: session.getAttributeMap().entrySet()) {
+			s.setAttribute(a.getKey(), packAttribute(a.getKey(), a.getValue(), tc));
+		}
+		s.setAttribute(LAZY_ATTRIBUTES, Boolean.TRUE);
+		return s;
+	}
+
+	/**
+	 * @return the session, or a copy of it if some of the attribute values are still lazy
+	 */
+	protected ISerializableSession materializeAttributes(ISerializableSession session) throws TranscoderException {
+		Map<String, Object> attributes = session.getAttributeMap();
+		if (attributes == null || !attributes.values().stream().anyMatch(v -> v instanceof LazyAttribute)) {
+			return session;
+		}
+		ISerializableSession s = copyWithoutAttributes(session);
+		for (Map.Entry<String, Object> a: attributes.entrySet()) {
+			Object value = a.getValue();
+			s.setAttribute(a.getKey(), value instanceof LazyAttribute ? ((LazyAttribute) value).getValue() : value);
+		}
+		return s;
+	}
+
+	private ISerializableSession copyWithoutAttributes(ISerializableSession session) {
+		ISerializableSession s = create(session.getId(), session.getCreationTime(), session.getAccessed());
+		s.setVersion(session.getVersion());
+		s.setDomain(session.getDomain());
+		s.setPath(session.getPath());
+		if (!session.isValid()) {
+			s.setValid(false);
+		}
+		return s;
 	}
 
 	public abstract ISerializableSession unpack(byte[] raw, ISerializationTranscoder tc) throws TranscoderException;
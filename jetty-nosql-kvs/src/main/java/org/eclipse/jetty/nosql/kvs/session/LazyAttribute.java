@@ -0,0 +1,58 @@
+package org.eclipse.jetty.nosql.kvs.session;
+
+import java.util.Arrays;
+
+/**
+ * Attribute value which is kept serialized until it is used for the first time.
+ * 
+ * Two instances are equal if they hold the same bytes, so that an attribute which has been loaded but never used is
+ * not taken for a changed one.
+ */
+public class LazyAttribute {
+	private final AbstractSessionFactory factory;
+	private final ISerializationTranscoder transcoder;
+	private final String name;
+	private final byte[] raw;
+
+	public LazyAttribute(AbstractSessionFactory factory, ISerializationTranscoder transcoder, String name, byte[] raw) {
+		this.factory = factory;
+		this.transcoder = transcoder;
+		this.name = name;
+		this.raw = raw;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return serialized value as written by {@link AbstractSessionFactory#packAttribute(String, Object, ISerializationTranscoder)}
+	 */
+	public byte[] getRaw() {
+		return raw;
+	}
+
+	/**
+	 * deserialize the value. If an error occurs a {@link TranscoderException} is thrown
+	 * 
+	 * @return deserialized value
+	 */
+	public Object getValue() throws TranscoderException {
+		return factory.unpackAttribute(name, raw, transcoder);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof LazyAttribute && Arrays.equals(raw, ((LazyAttribute) obj).raw);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(raw);
+	}
+
+	@Override
+	public String toString() {
+		return "{lazy:" + name + ", size:" + raw.length + "}";
+	}
+}
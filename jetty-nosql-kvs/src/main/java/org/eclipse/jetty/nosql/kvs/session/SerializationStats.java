@@ -0,0 +1,216 @@
+package org.eclipse.jetty.nosql.kvs.session;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.nosql.kvs.jmx.SerializationStatsMBean;
+import org.eclipse.jetty.nosql.kvs.jmx.SlidingHistogram;
+
+/**
+ * Cost of serialization in a session factory: time spent packing, unpacking and copying sessions, size of the packed
+ * sessions, and the largest attributes.
+ *
+ * Attribute sizes are sampled, since measuring them takes serializing each attribute on its own. Latencies are in
+ * microseconds, sizes in bytes, and histograms cover the last minute.
+ */
+public class SerializationStats implements SerializationStatsMBean {
+  public static final int DEFAULT_SAMPLE_RATE = 100;
+  public static final int DEFAULT_TOP_ATTRIBUTES = 10;
+  // names of attributes beyond this many are not tracked
+  private static final int MAX_ATTRIBUTE_NAMES = 1000;
+
+  private static final class AttributeSize {
+    private final AtomicLong max = new AtomicLong();
+    private volatile long last;
+  }
+
+  private final AtomicLong packs = new AtomicLong();
+  private final AtomicLong unpacks = new AtomicLong();
+  private final AtomicLong copies = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong packedSize = new AtomicLong();
+  private final AtomicLong unpackedSize = new AtomicLong();
+  private final SlidingHistogram packLatency = new SlidingHistogram( "us" );
+  private final SlidingHistogram unpackLatency = new SlidingHistogram( "us" );
+  private final SlidingHistogram copyLatency = new SlidingHistogram( "us" );
+  private final SlidingHistogram packedSizes = new SlidingHistogram( "bytes" );
+  private final ConcurrentMap<String, AttributeSize> attributes = new ConcurrentHashMap<String, AttributeSize>();
+  private final AtomicLong samples = new AtomicLong();
+  private final int sampleRate;
+  private final int topAttributes;
+
+  public SerializationStats() {
+    this( DEFAULT_SAMPLE_RATE, DEFAULT_TOP_ATTRIBUTES );
+  }
+
+  /**
+   * @param sampleRate measure the attributes of one in this many packed sessions. 1 measures all of them.
+   * @param topAttributes number of attributes reported by {@link #getLargestAttributes()}
+   */
+  public SerializationStats( int sampleRate, int topAttributes ) {
+    if ( sampleRate <= 0 || topAttributes <= 0 )
+      throw new IllegalArgumentException( "sample rate and number of attributes must be positive" );
+    this.sampleRate = sampleRate;
+    this.topAttributes = topAttributes;
+  }
+
+  public void recordPack( long nanos, int bytes ) {
+    packs.incrementAndGet();
+    packLatency.record( TimeUnit.NANOSECONDS.toMicros( nanos ) );
+    packedSize.addAndGet( bytes );
+    packedSizes.record( bytes );
+  }
+
+  public void recordUnpack( long nanos, int bytes ) {
+    unpacks.incrementAndGet();
+    unpackLatency.record( TimeUnit.NANOSECONDS.toMicros( nanos ) );
+    unpackedSize.addAndGet( bytes );
+  }
+
+  public void recordCopy( long nanos ) {
+    copies.incrementAndGet();
+    copyLatency.record( TimeUnit.NANOSECONDS.toMicros( nanos ) );
+  }
+
+  public void recordError() {
+    errors.incrementAndGet();
+  }
+
+  /**
+   * @return true if the attributes of the session being packed should be measured
+   */
+  public boolean sample() {
+    return samples.getAndIncrement() % sampleRate == 0;
+  }
+
+  public void recordAttribute( String name, int bytes ) {
+    AttributeSize size = attributes.get( name );
+    if ( size == null ) {
+      if ( attributes.size() >= MAX_ATTRIBUTE_NAMES )
+        return;
+      size = attributes.computeIfAbsent( name, n -> new AttributeSize() );
+    }
+    size.last = bytes;
+    size.max.accumulateAndGet( bytes, Math::max );
+  }
+
+  /**
+   * @return the largest attributes seen by their maximum size, largest first
+   */
+  public Map<String, Long> getAttributeSizes() {
+    List<Map.Entry<String, AttributeSize>> entries = new ArrayList<Map.Entry<String, AttributeSize>>( attributes.entrySet() );
+    entries.sort( ( a, b ) -> Long.compare( b.getValue().max.get(), a.getValue().max.get() ) );
+    Map<String, Long> sizes = new LinkedHashMap<String, Long>();
+    for ( Map.Entry<String, AttributeSize> entry : entries.subList( 0, Math.min( topAttributes, entries.size() ) ) )
+      sizes.put( entry.getKey(), entry.getValue().max.get() );
+    return sizes;
+  }
+
+  @Override
+  public String[] getLargestAttributes() {
+    List<String> largest = new ArrayList<String>();
+    for ( Map.Entry<String, Long> entry : getAttributeSizes().entrySet() )
+      largest.add( entry.getKey() + ": " + entry.getValue() + " bytes (last " + attributes.get( entry.getKey() ).last + ")" );
+    return largest.toArray( new String[largest.size()] );
+  }
+
+  public Map<String, SlidingHistogram> getHistograms() {
+    Map<String, SlidingHistogram> histograms = new LinkedHashMap<String, SlidingHistogram>();
+    histograms.put( "packLatency", packLatency );
+    histograms.put( "unpackLatency", unpackLatency );
+    histograms.put( "copyLatency", copyLatency );
+    histograms.put( "packedSize", packedSizes );
+    return histograms;
+  }
+
+  @Override
+  public long getPacks() {
+    return packs.get();
+  }
+
+  @Override
+  public long getUnpacks() {
+    return unpacks.get();
+  }
+
+  @Override
+  public long getCopies() {
+    return copies.get();
+  }
+
+  @Override
+  public long getErrors() {
+    return errors.get();
+  }
+
+  @Override
+  public long getPackedSizeKB() {
+    return packedSize.get() / 1024;
+  }
+
+  @Override
+  public long getUnpackedSizeKB() {
+    return unpackedSize.get() / 1024;
+  }
+
+  @Override
+  public long getPackLatencyP50() {
+    return packLatency.getP50();
+  }
+
+  @Override
+  public long getPackLatencyP99() {
+    return packLatency.getP99();
+  }
+
+  @Override
+  public long getPackLatencyMax() {
+    return packLatency.getMax();
+  }
+
+  @Override
+  public long getUnpackLatencyP50() {
+    return unpackLatency.getP50();
+  }
+
+  @Override
+  public long getUnpackLatencyP99() {
+    return unpackLatency.getP99();
+  }
+
+  @Override
+  public long getUnpackLatencyMax() {
+    return unpackLatency.getMax();
+  }
+
+  @Override
+  public long getCopyLatencyP99() {
+    return copyLatency.getP99();
+  }
+
+  @Override
+  public long getPackedSizeP50() {
+    return packedSizes.getP50();
+  }
+
+  @Override
+  public long getPackedSizeP99() {
+    return packedSizes.getP99();
+  }
+
+  @Override
+  public long getPackedSizeMax() {
+    return packedSizes.getMax();
+  }
+
+  @Override
+  public int getSampleRate() {
+    return sampleRate;
+  }
+}
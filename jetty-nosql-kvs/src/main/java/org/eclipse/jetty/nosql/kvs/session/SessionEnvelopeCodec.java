@@ -0,0 +1,333 @@
+package org.eclipse.jetty.nosql.kvs.session;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.eclipse.jetty.nosql.kvs.session.compression.CompressingTranscoder;
+import org.eclipse.jetty.nosql.kvs.session.compression.ICompressionCodec;
+
+/**
+ * Compact binary envelope of packed sessions. The metadata of the session is written by the codec itself, and only the
+ * attribute values go through the transcoder, one by one. If the factory has a compression codec, the attributes are
+ * compressed together once they take at least the compression threshold, so that many small attributes are compressed
+ * as well as a few large ones. The metadata is never compressed.
+ *
+ * <pre>
+ * magic       0xE4 'J' 'S'
+ * format      1 byte, {@link #FORMAT_VERSION}
+ * flags       1 byte, {@link #FLAG_INVALID} if the session has been invalidated, {@link #FLAG_COMPRESSED} if the
+ *             attributes are compressed
+ * version     varint
+ * created     zigzag varint
+ * accessed    zigzag varint, relative to created
+ * id, domain, path
+ * attributes  varint count, then the name and the value of each. values are a varint length followed by the bytes
+ *             written by {@link AbstractSessionFactory#packAttribute(String, Object, ISerializationTranscoder)}.
+ *             if compressed, 1 byte id of the codec followed by all of the above as compressed by it
+ * </pre>
+ *
+ * Strings are written as a varint code followed by their UTF-8 bytes. Codes below {@link #WELL_KNOWN_STRINGS}.length
+ * stand for the well known strings, i.e. null and "*" which is the domain and the path of most sessions. Other codes
+ * are the length of the bytes plus the number of well known strings.
+ *
+ * The magic never starts data written by the serializable and XStream transcoders, nor by Kryo since the first field of
+ * a Kryo session is a varint timestamp which takes more than 2 bytes. Data which happens to start with it anyway is read
+ * as it is after it failed to be read as an envelope.
+ */
+public final class SessionEnvelopeCodec {
+	private static final byte[] MAGIC = { (byte) 0xE4, 'J', 'S' };
+	public static final int FORMAT_VERSION = 1;
+	public static final int FLAG_INVALID = 0x01;
+	public static final int FLAG_COMPRESSED = 0x02;
+	/**
+	 * first byte of attribute values packed on their own, followed by the value as encoded by the transcoder
+	 */
+	private static final byte VALUE_MARKER = (byte) 0xE5;
+	private static final String[] WELL_KNOWN_STRINGS = { null, "*" };
+
+	private SessionEnvelopeCodec() {
+	}
+
+	/**
+	 * @return true if the data starts like an envelope
+	 */
+	public static boolean isEnvelope(byte[] raw) {
+		if (raw == null || raw.length < MAGIC.length + 2) {
+			return false;
+		}
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (raw[i] != MAGIC[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public static byte[] encode(AbstractSessionFactory factory, ISerializableSession session, ISerializationTranscoder tc)
+			throws TranscoderException {
+		Map<String, Object> attributes = session.getAttributeMap();
+		Output section = new Output(256);
+		if (attributes == null) {
+			section.writeVarLong(0);
+		} else {
+			section.writeVarLong(attributes.size());
+			for (Map.Entry<String, Object> a: attributes.entrySet()) {
+				byte[] value = factory.packAttribute(a.getKey(), a.getValue(), tc);
+				section.writeString(a.getKey());
+				section.writeVarLong(value.length);
+				section.write(value);
+			}
+		}
+		byte[] attributeBytes = section.toBytes();
+		int flags = session.isValid() ? 0 : FLAG_INVALID;
+		ICompressionCodec codec = factory.getCompressionCodec();
+		if (codec != null && factory.getCompressionThreshold() <= attributeBytes.length) {
+			byte[] compressed;
+			try {
+				compressed = codec.compress(attributeBytes);
+			} catch (RuntimeException error) {
+				throw new TranscoderException(error);
+			}
+			if (compressed.length + 1 < attributeBytes.length) {
+				flags |= FLAG_COMPRESSED;
+				attributeBytes = new byte[compressed.length + 1];
+				attributeBytes[0] = (byte) codec.getId();
+				System.arraycopy(compressed, 0, attributeBytes, 1, compressed.length);
+			}
+		}
+		Output out = new Output(64 + attributeBytes.length);
+		out.write(MAGIC);
+		out.write(FORMAT_VERSION);
+		out.write(flags);
+		out.writeVarLong(session.getVersion());
+		out.writeVarLong(zigzag(session.getCreationTime()));
+		out.writeVarLong(zigzag(session.getAccessed() - session.getCreationTime()));
+		out.writeString(session.getId());
+		out.writeString(session.getDomain());
+		out.writeString(session.getPath());
+		out.write(attributeBytes);
+		return out.toBytes();
+	}
+
+	/**
+	 * @param lazy keep the attribute values as {@link LazyAttribute}s rather than deserializing them
+	 */
+	public static ISerializableSession decode(AbstractSessionFactory factory, byte[] raw, ISerializationTranscoder tc,
+			boolean lazy) throws TranscoderException {
+		Input in = header(raw);
+		try {
+			ISerializableSession session = factory.create();
+			int flags = readMetadata(in, session);
+			if ((flags & FLAG_COMPRESSED) != 0) {
+				in = decompress(factory, in);
+			}
+			for (long count = in.readVarLong(); 0 < count; count--) {
+				String name = in.readString();
+				byte[] value = in.read(in.readLength());
+				session.setAttribute(name, lazy ? new LazyAttribute(factory, tc, name, value) : factory.unpackAttribute(name, value, tc));
+			}
+			if ((flags & FLAG_INVALID) != 0) {
+				// the time of invalidation is not kept
+				session.setValid(false);
+			}
+			return session;
+		} catch (IndexOutOfBoundsException | IllegalArgumentException error) {
+			throw new TranscoderException(error);
+		}
+	}
+
+	/**
+	 * @return input of the decompressed attributes
+	 */
+	private static Input decompress(AbstractSessionFactory factory, Input in) throws TranscoderException {
+		int id = in.read();
+		ICompressionCodec codec = factory.getCompressionCodec();
+		if (codec == null || codec.getId() != id) {
+			codec = CompressingTranscoder.getCodec(id);
+		}
+		if (codec == null) {
+			throw new TranscoderException("unknown codec: " + id);
+		}
+		return new Input(codec.decompress(in.buf, in.pos, in.buf.length - in.pos), 0);
+	}
+
+	/**
+	 * read everything but the attributes, whose bytes are not even looked at
+	 *
+	 * @return a session without attributes
+	 */
+	public static ISerializableSession decodeMetadata(AbstractSessionFactory factory, byte[] raw) throws TranscoderException {
+		Input in = header(raw);
+		try {
+			ISerializableSession session = factory.create();
+			if ((readMetadata(in, session) & FLAG_INVALID) != 0) {
+				session.setValid(false);
+			}
+			return session;
+		} catch (IndexOutOfBoundsException error) {
+			throw new TranscoderException(error);
+		}
+	}
+
+	/**
+	 * @return the flags
+	 */
+	private static int readMetadata(Input in, ISerializableSession session) {
+		int flags = in.read();
+		session.setVersion(in.readVarLong());
+		long created = unzigzag(in.readVarLong());
+		session.setCreationTime(created);
+		session.setAccessed(created + unzigzag(in.readVarLong()));
+		session.setId(in.readString());
+		session.setDomain(in.readString());
+		session.setPath(in.readString());
+		return flags;
+	}
+
+	private static Input header(byte[] raw) throws TranscoderException {
+		if (!isEnvelope(raw)) {
+			throw new TranscoderException("not an envelope");
+		}
+		Input in = new Input(raw, MAGIC.length);
+		int format = in.read();
+		if (format != FORMAT_VERSION) {
+			throw new TranscoderException("unknown format of envelope: " + format);
+		}
+		return in;
+	}
+
+	static byte[] packValue(byte[] encoded) {
+		byte[] raw = new byte[encoded.length + 1];
+		raw[0] = VALUE_MARKER;
+		System.arraycopy(encoded, 0, raw, 1, encoded.length);
+		return raw;
+	}
+
+	static boolean isPackedValue(byte[] raw) {
+		return raw != null && 1 < raw.length && raw[0] == VALUE_MARKER;
+	}
+
+	static byte[] unpackValue(byte[] raw) {
+		return Arrays.copyOfRange(raw, 1, raw.length);
+	}
+
+	private static long zigzag(long n) {
+		return (n << 1) ^ (n >> 63);
+	}
+
+	private static long unzigzag(long n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	private static class Output {
+		private byte[] buf;
+		private int count = 0;
+
+		Output(int size) {
+			buf = new byte[size];
+		}
+
+		private void ensure(int n) {
+			if (buf.length < count + n) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + n));
+			}
+		}
+
+		void write(int b) {
+			ensure(1);
+			buf[count++] = (byte) b;
+		}
+
+		void write(byte[] b) {
+			ensure(b.length);
+			System.arraycopy(b, 0, buf, count, b.length);
+			count += b.length;
+		}
+
+		void writeVarLong(long n) {
+			ensure(10);
+			while ((n & ~0x7FL) != 0) {
+				buf[count++] = (byte) ((n & 0x7F) | 0x80);
+				n >>>= 7;
+			}
+			buf[count++] = (byte) n;
+		}
+
+		void writeString(String s) {
+			for (int i = 0; i < WELL_KNOWN_STRINGS.length; i++) {
+				if (s == null ? WELL_KNOWN_STRINGS[i] == null : s.equals(WELL_KNOWN_STRINGS[i])) {
+					writeVarLong(i);
+					return;
+				}
+			}
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			writeVarLong(b.length + WELL_KNOWN_STRINGS.length);
+			write(b);
+		}
+
+		byte[] toBytes() {
+			return Arrays.copyOf(buf, count);
+		}
+	}
+
+	private static class Input {
+		private final byte[] buf;
+		private int pos;
+
+		Input(byte[] buf, int pos) {
+			this.buf = buf;
+			this.pos = pos;
+		}
+
+		int read() {
+			if (buf.length <= pos) {
+				throw new IndexOutOfBoundsException("truncated envelope");
+			}
+			return buf[pos++] & 0xFF;
+		}
+
+		byte[] read(int n) {
+			if (buf.length - pos < n) {
+				throw new IndexOutOfBoundsException("truncated envelope");
+			}
+			byte[] b = Arrays.copyOfRange(buf, pos, pos + n);
+			pos += n;
+			return b;
+		}
+
+		long readVarLong() {
+			long n = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = read();
+				n |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return n;
+				}
+			}
+			throw new IndexOutOfBoundsException("malformed varint in envelope");
+		}
+
+		int readLength() {
+			long n = readVarLong();
+			if (n < 0 || buf.length - pos < n) {
+				throw new IndexOutOfBoundsException("truncated envelope");
+			}
+			return (int) n;
+		}
+
+		String readString() {
+			long code = readVarLong();
+			if (code < WELL_KNOWN_STRINGS.length) {
+				return WELL_KNOWN_STRINGS[(int) code];
+			}
+			long n = code - WELL_KNOWN_STRINGS.length;
+			if (buf.length - pos < n) {
+				throw new IndexOutOfBoundsException("truncated envelope");
+			}
+			String s = new String(buf, pos, (int) n, StandardCharsets.UTF_8);
+			pos += (int) n;
+			return s;
+		}
+	}
+}
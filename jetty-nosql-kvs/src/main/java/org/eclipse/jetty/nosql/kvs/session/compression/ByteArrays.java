@@ -0,0 +1,35 @@
+package org.eclipse.jetty.nosql.kvs.session.compression;
+
+final class ByteArrays {
+	private ByteArrays() {
+	}
+
+	static void putInt(byte[] b, int off, int v) {
+		b[off] = (byte) (v >>> 24);
+		b[off + 1] = (byte) (v >>> 16);
+		b[off + 2] = (byte) (v >>> 8);
+		b[off + 3] = (byte) v;
+	}
+
+	static int getInt(byte[] b, int off) {
+		return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+	}
+
+	/**
+	 * @return little endian int used to find matches
+	 */
+	static int readInt(byte[] b, int off) {
+		return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24);
+	}
+
+	static int hash(int v, int bits) {
+		return (v * -1640531535) >>> (32 - bits);
+	}
+
+	static int checkLength(int length) {
+		if (length < 0) {
+			throw new IllegalArgumentException("invalid length: " + length);
+		}
+		return length;
+	}
+}
@@ -0,0 +1,115 @@
+package org.eclipse.jetty.nosql.kvs.session.compression;
+
+import java.util.Arrays;
+
+import org.eclipse.jetty.nosql.kvs.session.ISerializationTranscoder;
+import org.eclipse.jetty.nosql.kvs.session.TranscoderException;
+
+/**
+ * Compresses the output of another transcoder if it is larger than the threshold.
+ * 
+ * Encoded data starts with a header byte, 0xC0 followed by the id of the codec in the low 4 bits, or 0xC0 alone if the
+ * data has not been compressed. Data without a header, i.e. written before compression was enabled, is handed to the
+ * transcoder as it is. 0xC0 to 0xCF are never the first byte of data written by the serializable and XStream transcoders.
+ * If other data happens to start with one of them, it is read as it is after it failed to be read with the header.
+ */
+public class CompressingTranscoder implements ISerializationTranscoder {
+	public static final int DEFAULT_THRESHOLD = 1024;
+	private static final int HEADER = 0xC0;
+	private static final int HEADER_MASK = 0xF0;
+	private static final ICompressionCodec[] CODECS = { null, new DeflateCodec(), new LZ4Codec(), new SnappyCodec() };
+
+	private final ISerializationTranscoder transcoder;
+	private final ICompressionCodec codec;
+	private final int threshold;
+
+	public CompressingTranscoder(ISerializationTranscoder transcoder) {
+		this(transcoder, new LZ4Codec(), DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @param transcoder to serialize objects
+	 * @param codec to compress serialized data
+	 * @param threshold minimum size in bytes of serialized data to compress
+	 */
+	public CompressingTranscoder(ISerializationTranscoder transcoder, ICompressionCodec codec, int threshold) {
+		if (codec.getId() < 1 || 15 < codec.getId()) {
+			throw new IllegalArgumentException("codec id must be from 1 to 15: " + codec.getId());
+		}
+		this.transcoder = transcoder;
+		this.codec = codec;
+		this.threshold = threshold;
+	}
+
+	public ISerializationTranscoder getTranscoder() {
+		return transcoder;
+	}
+
+	public ICompressionCodec getCodec() {
+		return codec;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @return the built-in codec with the id, or null if there is none
+	 */
+	public static ICompressionCodec getCodec(int id) {
+		return 0 < id && id < CODECS.length ? CODECS[id] : null;
+	}
+
+	public byte[] encode(Object obj) throws TranscoderException {
+		byte[] raw = transcoder.encode(obj);
+		if (raw == null) {
+			return null;
+		}
+		if (raw.length >= threshold) {
+			byte[] compressed;
+			try {
+				compressed = codec.compress(raw);
+			} catch (RuntimeException error) {
+				throw new TranscoderException(error);
+			}
+			if (compressed.length < raw.length) {
+				return withHeader(HEADER | codec.getId(), compressed);
+			}
+		}
+		return withHeader(HEADER, raw);
+	}
+
+	public <T> T decode(byte[] raw, Class<T> klass) throws TranscoderException {
+		if (raw == null || raw.length == 0 || (raw[0] & HEADER_MASK) != HEADER) {
+			return transcoder.decode(raw, klass);
+		}
+		try {
+			return transcoder.decode(withoutHeader(raw), klass);
+		} catch (RuntimeException error) {
+			try {
+				return transcoder.decode(raw, klass);
+			} catch (RuntimeException ignore) {
+				throw error instanceof TranscoderException ? (TranscoderException) error : new TranscoderException(error);
+			}
+		}
+	}
+
+	private byte[] withoutHeader(byte[] raw) {
+		int id = raw[0] & 0x0f;
+		if (id == 0) {
+			return Arrays.copyOfRange(raw, 1, raw.length);
+		}
+		ICompressionCodec c = id == codec.getId() ? codec : getCodec(id);
+		if (c == null) {
+			throw new TranscoderException("unknown codec: " + id);
+		}
+		return c.decompress(raw, 1, raw.length - 1);
+	}
+
+	private static byte[] withHeader(int header, byte[] data) {
+		byte[] out = new byte[data.length + 1];
+		out[0] = (byte) header;
+		System.arraycopy(data, 0, out, 1, data.length);
+		return out;
+	}
+}
@@ -0,0 +1,29 @@
+package org.eclipse.jetty.nosql.kvs.session.compression;
+
+/**
+ * Compression algorithm used by {@link CompressingTranscoder}.
+ * 
+ * Compressed data must carry whatever the codec needs to restore the original length.
+ */
+public interface ICompressionCodec {
+	/**
+	 * @return id of the codec written into the header of compressed data, from 1 to 15
+	 */
+	public int getId();
+
+	/**
+	 * @param raw data
+	 * @return compressed data
+	 */
+	public byte[] compress(byte[] raw);
+
+	/**
+	 * If the data is corrupted a {@link IllegalArgumentException} is thrown
+	 * 
+	 * @param compressed data
+	 * @param offset of the compressed data
+	 * @param length of the compressed data
+	 * @return original data
+	 */
+	public byte[] decompress(byte[] compressed, int offset, int length);
+}
@@ -0,0 +1,138 @@
+package org.eclipse.jetty.nosql.kvs.session.compression;
+
+import java.util.Arrays;
+
+/**
+ * Pure Java implementation of the LZ4 block format, preceded by the original length in 4 bytes. Favours speed over
+ * ratio, which suits sessions written on every request.
+ */
+public class LZ4Codec implements ICompressionCodec {
+	public static final int ID = 2;
+	private static final int HASH_BITS = 12;
+	private static final int MIN_MATCH = 4;
+	private static final int MAX_OFFSET = 65535;
+	// the last match must start 12 bytes before the end, and the last 5 bytes are always literals
+	private static final int MF_LIMIT = 12;
+	private static final int LAST_LITERALS = 5;
+
+	public int getId() {
+		return ID;
+	}
+
+	public byte[] compress(byte[] raw) {
+		int len = raw.length;
+		byte[] out = new byte[4 + len + len / 255 + 16];
+		ByteArrays.putInt(out, 0, len);
+		int op = 4;
+		int anchor = 0;
+		if (len > MF_LIMIT) {
+			int[] table = new int[1 << HASH_BITS];
+			Arrays.fill(table, -1);
+			int limit = len - MF_LIMIT;
+			int i = 0;
+			while (i < limit) {
+				int seq = ByteArrays.readInt(raw, i);
+				int h = ByteArrays.hash(seq, HASH_BITS);
+				int ref = table[h];
+				table[h] = i;
+				if (ref < 0 || i - ref > MAX_OFFSET || ByteArrays.readInt(raw, ref) != seq) {
+					i++;
+					continue;
+				}
+				int matchLen = MIN_MATCH;
+				int matchLimit = len - LAST_LITERALS;
+				while (i + matchLen < matchLimit && raw[ref + matchLen] == raw[i + matchLen]) {
+					matchLen++;
+				}
+				int token = op;
+				op = writeSequence(raw, anchor, i - anchor, out, op);
+				out[op++] = (byte) (i - ref);
+				out[op++] = (byte) ((i - ref) >>> 8);
+				int extra = matchLen - MIN_MATCH;
+				if (extra >= 15) {
+					out[token] |= 0x0f;
+					op = writeExtraLength(out, op, extra - 15);
+				} else {
+					out[token] |= (byte) extra;
+				}
+				i += matchLen;
+				anchor = i;
+			}
+		}
+		op = writeSequence(raw, anchor, len - anchor, out, op);
+		return Arrays.copyOf(out, op);
+	}
+
+	/**
+	 * write the token, the literal length and the literals. the match length in the token is filled by the caller.
+	 */
+	private static int writeSequence(byte[] raw, int anchor, int literals, byte[] out, int op) {
+		int token = op++;
+		out[token] = (byte) (Math.min(literals, 15) << 4);
+		if (literals >= 15) {
+			op = writeExtraLength(out, op, literals - 15);
+		}
+		System.arraycopy(raw, anchor, out, op, literals);
+		return op + literals;
+	}
+
+	private static int writeExtraLength(byte[] out, int op, int length) {
+		while (length >= 255) {
+			out[op++] = (byte) 255;
+			length -= 255;
+		}
+		out[op++] = (byte) length;
+		return op;
+	}
+
+	public byte[] decompress(byte[] compressed, int offset, int length) {
+		byte[] raw = new byte[ByteArrays.checkLength(ByteArrays.getInt(compressed, offset))];
+		int sp = offset + 4;
+		int end = offset + length;
+		int dp = 0;
+		try {
+			while (sp < end) {
+				int token = compressed[sp++] & 0xff;
+				int literals = token >>> 4;
+				if (literals == 15) {
+					int b;
+					do {
+						b = compressed[sp++] & 0xff;
+						literals += b;
+					} while (b == 255);
+				}
+				System.arraycopy(compressed, sp, raw, dp, literals);
+				sp += literals;
+				dp += literals;
+				if (sp >= end) {
+					break;
+				}
+				int matchOffset = (compressed[sp] & 0xff) | ((compressed[sp + 1] & 0xff) << 8);
+				sp += 2;
+				int matchLen = token & 0x0f;
+				if (matchLen == 15) {
+					int b;
+					do {
+						b = compressed[sp++] & 0xff;
+						matchLen += b;
+					} while (b == 255);
+				}
+				matchLen += MIN_MATCH;
+				int ref = dp - matchOffset;
+				if (matchOffset == 0 || ref < 0) {
+					throw new IllegalArgumentException("invalid offset: " + matchOffset);
+				}
+				// copy byte by byte since the match may overlap the bytes being written
+				for (int k = 0; k < matchLen; k++) {
+					raw[dp++] = raw[ref + k];
+				}
+			}
+		} catch (IndexOutOfBoundsException error) {
+			throw new IllegalArgumentException("corrupted data", error);
+		}
+		if (dp != raw.length) {
+			throw new IllegalArgumentException("truncated data: expected=" + raw.length + ", got=" + dp);
+		}
+		return raw;
+	}
+}
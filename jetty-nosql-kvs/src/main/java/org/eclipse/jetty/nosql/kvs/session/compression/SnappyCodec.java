@@ -0,0 +1,173 @@
+package org.eclipse.jetty.nosql.kvs.session.compression;
+
+import java.util.Arrays;
+
+/**
+ * Pure Java implementation of the Snappy raw format, i.e. the original length as a varint followed by literals and
+ * copies. Compression is as fast as {@link LZ4Codec} and about as effective.
+ */
+public class SnappyCodec implements ICompressionCodec {
+	public static final int ID = 3;
+	private static final int HASH_BITS = 12;
+	private static final int MIN_MATCH = 4;
+	private static final int MAX_OFFSET = 65535;
+
+	public int getId() {
+		return ID;
+	}
+
+	public byte[] compress(byte[] raw) {
+		int len = raw.length;
+		byte[] out = new byte[5 + 32 + len + len / 6];
+		int op = writeVarint(out, 0, len);
+		int anchor = 0;
+		if (len >= MIN_MATCH) {
+			int[] table = new int[1 << HASH_BITS];
+			Arrays.fill(table, -1);
+			int limit = len - MIN_MATCH;
+			int i = 0;
+			while (i <= limit) {
+				int seq = ByteArrays.readInt(raw, i);
+				int h = ByteArrays.hash(seq, HASH_BITS);
+				int ref = table[h];
+				table[h] = i;
+				if (ref < 0 || i - ref > MAX_OFFSET || ByteArrays.readInt(raw, ref) != seq) {
+					i++;
+					continue;
+				}
+				int matchLen = MIN_MATCH;
+				while (i + matchLen < len && raw[ref + matchLen] == raw[i + matchLen]) {
+					matchLen++;
+				}
+				op = writeLiteral(raw, anchor, i - anchor, out, op);
+				op = writeCopy(out, op, i - ref, matchLen);
+				i += matchLen;
+				anchor = i;
+			}
+		}
+		op = writeLiteral(raw, anchor, len - anchor, out, op);
+		return Arrays.copyOf(out, op);
+	}
+
+	private static int writeVarint(byte[] out, int op, int v) {
+		while ((v & ~0x7f) != 0) {
+			out[op++] = (byte) ((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out[op++] = (byte) v;
+		return op;
+	}
+
+	private static int writeLiteral(byte[] raw, int anchor, int literals, byte[] out, int op) {
+		if (literals == 0) {
+			return op;
+		}
+		int n = literals - 1;
+		if (n < 60) {
+			out[op++] = (byte) (n << 2);
+		} else {
+			int bytes = n < (1 << 8) ? 1 : n < (1 << 16) ? 2 : n < (1 << 24) ? 3 : 4;
+			out[op++] = (byte) ((59 + bytes) << 2);
+			for (int k = 0; k < bytes; k++) {
+				out[op++] = (byte) (n >>> (k * 8));
+			}
+		}
+		System.arraycopy(raw, anchor, out, op, literals);
+		return op + literals;
+	}
+
+	private static int writeCopy(byte[] out, int op, int offset, int length) {
+		// a copy with 2 bytes offset holds up to 64 bytes. keep at least 4 bytes for the last one.
+		while (length >= 68) {
+			op = writeCopy2(out, op, offset, 64);
+			length -= 64;
+		}
+		if (length > 64) {
+			op = writeCopy2(out, op, offset, 60);
+			length -= 60;
+		}
+		if (length < 12 && offset < 2048) {
+			out[op++] = (byte) (1 | ((length - 4) << 2) | ((offset >>> 8) << 5));
+			out[op++] = (byte) offset;
+			return op;
+		}
+		return writeCopy2(out, op, offset, length);
+	}
+
+	private static int writeCopy2(byte[] out, int op, int offset, int length) {
+		out[op++] = (byte) (2 | ((length - 1) << 2));
+		out[op++] = (byte) offset;
+		out[op++] = (byte) (offset >>> 8);
+		return op;
+	}
+
+	public byte[] decompress(byte[] compressed, int offset, int length) {
+		int sp = offset;
+		int end = offset + length;
+		int dp = 0;
+		byte[] raw;
+		try {
+			int len = 0;
+			for (int shift = 0;; shift += 7) {
+				int b = compressed[sp++] & 0xff;
+				len |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					break;
+				}
+				if (shift >= 28) {
+					throw new IllegalArgumentException("invalid length");
+				}
+			}
+			raw = new byte[ByteArrays.checkLength(len)];
+			while (sp < end) {
+				int tag = compressed[sp++] & 0xff;
+				int copyLen;
+				int copyOffset;
+				switch (tag & 3) {
+				case 0:
+					int literals = tag >>> 2;
+					if (literals >= 60) {
+						int bytes = literals - 59;
+						literals = 0;
+						for (int k = 0; k < bytes; k++) {
+							literals |= (compressed[sp++] & 0xff) << (k * 8);
+						}
+					}
+					literals += 1;
+					System.arraycopy(compressed, sp, raw, dp, literals);
+					sp += literals;
+					dp += literals;
+					continue;
+				case 1:
+					copyLen = ((tag >>> 2) & 7) + 4;
+					copyOffset = ((tag >>> 5) << 8) | (compressed[sp++] & 0xff);
+					break;
+				case 2:
+					copyLen = (tag >>> 2) + 1;
+					copyOffset = (compressed[sp] & 0xff) | ((compressed[sp + 1] & 0xff) << 8);
+					sp += 2;
+					break;
+				default:
+					copyLen = (tag >>> 2) + 1;
+					copyOffset = ByteArrays.readInt(compressed, sp);
+					sp += 4;
+					break;
+				}
+				int ref = dp - copyOffset;
+				if (copyOffset <= 0 || ref < 0) {
+					throw new IllegalArgumentException("invalid offset: " + copyOffset);
+				}
+				// copy byte by byte since the copy may overlap the bytes being written
+				for (int k = 0; k < copyLen; k++) {
+					raw[dp++] = raw[ref + k];
+				}
+			}
+		} catch (IndexOutOfBoundsException error) {
+			throw new IllegalArgumentException("corrupted data", error);
+		}
+		if (dp != raw.length) {
+			throw new IllegalArgumentException("truncated data: expected=" + raw.length + ", got=" + dp);
+		}
+		return raw;
+	}
+}
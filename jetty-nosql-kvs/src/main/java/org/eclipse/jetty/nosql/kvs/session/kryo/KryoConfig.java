@@ -20,6 +20,8 @@ public class KryoConfig {
   Map<Class<?>, SerializerFactory> serializers = new HashMap<>();
   InstantiatorStrategy instantiatorStrategy;
   SerializerFactory defaultSerializerFactory;
+  int bufferSize = KryoTranscoder.DEFAULT_BUFFER_SIZE;
+  int maxRetainedBufferSize = KryoTranscoder.DEFAULT_MAX_RETAINED_BUFFER_SIZE;
   
   @SuppressWarnings("rawtypes")
   public void addDefaultSerializer(Class type, Serializer serializer) {
@@ -48,6 +50,20 @@ public class KryoConfig {
   public void setInstantiatorStrategy( InstantiatorStrategy strategy ) {
     this.instantiatorStrategy = strategy;
   }
+
+  /**
+   * Initial size of the output buffer kept by each thread.
+   */
+  public void setBufferSize( int bufferSize ) {
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Output buffers grown beyond this size by large sessions are released after use instead of being kept by the thread.
+   */
+  public void setMaxRetainedBufferSize( int maxRetainedBufferSize ) {
+    this.maxRetainedBufferSize = maxRetainedBufferSize;
+  }
   
   
 }
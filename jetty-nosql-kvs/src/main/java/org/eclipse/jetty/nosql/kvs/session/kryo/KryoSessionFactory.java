@@ -49,6 +49,19 @@ public class KryoSessionFactory extends AbstractSessionFactory {
     return session;
   }
 
+  /**
+   * kryo writes the class of array elements only, so values are wrapped in an array to be read back without it.
+   */
+  @Override
+  protected byte[] encodeAttribute(Object value, ISerializationTranscoder tc) throws TranscoderException {
+    return tc.encode(new Object[] { value });
+  }
+
+  @Override
+  protected Object decodeAttribute(byte[] raw, ISerializationTranscoder tc) throws TranscoderException {
+    return tc.decode(raw, Object[].class)[0];
+  }
+
   @Override
   public void setClassLoader(ClassLoader cl) {
     KryoTranscoder tc = new KryoTranscoder(cl);
@@ -1,7 +1,5 @@
 package org.eclipse.jetty.nosql.kvs.session.kryo;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.util.Map;
 import java.util.UUID;
 
@@ -15,6 +13,10 @@ import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 
 public class KryoTranscoder implements ISerializationTranscoder {
+  static final int DEFAULT_BUFFER_SIZE = 4096;
+  static final int DEFAULT_MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+  private static final byte[] EMPTY = new byte[0];
+
   KryoConfig config;
   
   private ThreadLocal<Kryo> kryos = new ThreadLocal<Kryo>() {
@@ -29,6 +31,23 @@ public class KryoTranscoder implements ISerializationTranscoder {
 
   };
 
+  /**
+   * Buffers are reused by each thread to avoid allocating them per call. Both grow as needed.
+   */
+  private ThreadLocal<Output> outputs = new ThreadLocal<Output>() {
+    @Override
+    protected Output initialValue() {
+      return new Output( getBufferSize(), -1 );
+    }
+  };
+
+  private ThreadLocal<Input> inputs = new ThreadLocal<Input>() {
+    @Override
+    protected Input initialValue() {
+      return new Input( EMPTY );
+    }
+  };
+
   public KryoTranscoder() {
     this(null, Thread.currentThread().getContextClassLoader());
   }
@@ -49,14 +68,16 @@ public class KryoTranscoder implements ISerializationTranscoder {
   @Override
   public byte[] encode(Object obj) throws TranscoderException {
     byte[] raw = null;
+    Output output = outputs.get();
     try {
-      ByteArrayOutputStream stream = new ByteArrayOutputStream();
-      Output output = new Output(stream);
+      output.clear();
       kryos.get().writeObject(output, obj);
-      output.close();
-      raw = stream.toByteArray();
+      raw = output.toBytes();
     } catch (Exception error) {
       throw(new TranscoderException(error));
+    } finally {
+      if ( getMaxRetainedBufferSize() < output.getBuffer().length )
+        outputs.remove();
     }
     return raw;
   }
@@ -64,16 +85,27 @@ public class KryoTranscoder implements ISerializationTranscoder {
   @Override
   public <T> T decode(byte[] raw, Class<T> klass) throws TranscoderException {
     T obj = null;
+    Input input = inputs.get();
     try {
-      ByteArrayInputStream stream = new ByteArrayInputStream(raw);
-      Input input = new Input(stream);
+      input.setBuffer(raw);
       obj = kryos.get().readObject(input, klass);
     } catch (Exception error) {
       throw(new TranscoderException(error));
+    } finally {
+      // do not keep the session data reachable from the thread
+      input.setBuffer(EMPTY);
     }
     return obj;
   }
   
+  private int getBufferSize() {
+    return config != null ? config.bufferSize : DEFAULT_BUFFER_SIZE;
+  }
+
+  private int getMaxRetainedBufferSize() {
+    return config != null ? config.maxRetainedBufferSize : DEFAULT_MAX_RETAINED_BUFFER_SIZE;
+  }
+
   private void applyConfig( Kryo kryo ) {
     
     if ( config != null && config.instantiatorStrategy != null )
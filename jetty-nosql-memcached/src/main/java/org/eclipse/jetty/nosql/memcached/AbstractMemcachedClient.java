@@ -1,16 +1,177 @@
 package org.eclipse.jetty.nosql.memcached;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
 import org.eclipse.jetty.nosql.kvs.AbstractKeyValueStoreClient;
+import org.eclipse.jetty.nosql.kvs.KeyValueStoreClientException;
+import org.eclipse.jetty.nosql.kvs.KeyValueStoreSessionManager;
+import org.eclipse.jetty.nosql.kvs.jmx.MonitoredClient;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
 
 public abstract class AbstractMemcachedClient extends AbstractKeyValueStoreClient {
+	private final static Logger log = Log.getLogger("org.eclipse.jetty.nosql.memcached.AbstractMemcachedClient");
+	/**
+	 * memcached has no per-item metadata we can query without fetching the value.
+	 * versions are stored in a tiny companion key next to the session so that
+	 * version() and exists() never transfer the session body. the CAS id of the
+	 * session can't serve as its version since it is known only by fetching the
+	 * session with gets.
+	 *
+	 * the version key is written once the write of the session has been
+	 * confirmed, and before it is acknowledged. concurrent writers may store
+	 * their sessions and their version keys in different orders, so the version
+	 * key is only moved forward with gets and cas, see
+	 * {@link #isNewerVersion(long, long, boolean)}. it is dropped if it could not
+	 * be moved forward, or if the session could not be written. it is still a key
+	 * of its own, which memcached may evict or expire apart from the session. a
+	 * missing version key reads as version 0, i.e. unknown, which makes the near
+	 * cache reload the session. a session evicted before its version key is
+	 * missing anyway.
+	 */
+	protected static final String VERSION_KEY_SUFFIX = ":version";
+	/**
+	 * memcached refuses items larger than 1MB by default. larger values are split
+	 * into chunks stored under their own keys, and the key of the value holds a
+	 * small header instead, listing the chunks and the checksum of the value.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 1000 * 1024;
+	protected static final String CHUNK_KEY_SUFFIX = ":chunk:";
+	/**
+	 * a copy of the header is kept next to the chunks, so that they can be touched
+	 * without fetching the value to find out whether it has been chunked.
+	 */
+	protected static final String CHUNKS_KEY_SUFFIX = ":chunks";
+	private static final byte[] CHUNK_MAGIC = { 0, 'j', 'n', 'm', 'c', 'h', 'n', 'k' };
+	private static final int CHUNK_HEADER_SIZE = CHUNK_MAGIC.length + 4 + 4 + 4 + 8;
+	protected int _chunkSize = DEFAULT_CHUNK_SIZE;
+	/**
+	 * keys are spread over the servers by their hash modulo the number of servers
+	 * by default. adding or removing a server moves nearly all keys. ketama places
+	 * the servers on a continuum instead, and moves only the keys of 1/N of it.
+	 */
+	public static final String DISTRIBUTION_MODULA = "modula";
+	public static final String DISTRIBUTION_KETAMA = "ketama";
+	public static final List<String> HASH_ALGORITHMS = Collections.unmodifiableList(Arrays.asList(
+		"native", "crc", "fnv1_32", "fnv1a_32", "fnv1_64", "fnv1a_64", "ketama"));
+	// assigned from the super constructor through setServerString(). no initializers here.
+	protected String _distribution;
+	protected String _hashAlgorithm;
+	protected int[] _weights;
+
 	public AbstractMemcachedClient(String serverString) {
 		super(serverString);
 	}
 
+	/**
+	 * besides the addresses of the servers, the server string may carry options
+	 * and weights of the servers, e.g. "distribution=ketama hash=ketama mc1:11211:2 mc2:11211".
+	 * <ul>
+	 * <li>distribution: modula (default) or ketama</li>
+	 * <li>hash: one of {@link #HASH_ALGORITHMS}. native by default, ketama (md5) with ketama distribution</li>
+	 * <li>host:port:weight: servers with larger weights get more keys. spymemcached honors weights with ketama distribution only</li>
+	 * </ul>
+	 * only the addresses remain in the server string.
+	 */
 	@Override
 	public void setServerString(String _serverString) {
-		String serverString = prepareServerString(_serverString);
-		super.setServerString(serverString);
+		String distribution = null;
+		String hashAlgorithm = null;
+		List<Integer> weights = new ArrayList<Integer>();
+		boolean weighted = false;
+		StringBuilder servers = new StringBuilder();
+		for (String s: prepareServerString(_serverString).split(" ")) {
+			int eq = s.indexOf('=');
+			if (0 <= eq) {
+				String name = s.substring(0, eq).toLowerCase();
+				String value = s.substring(eq + 1).toLowerCase();
+				if ("distribution".equals(name)) {
+					if (!DISTRIBUTION_MODULA.equals(value) && !DISTRIBUTION_KETAMA.equals(value)) {
+						throw new IllegalArgumentException("unknown distribution: " + value);
+					}
+					distribution = value;
+				} else if ("hash".equals(name)) {
+					if (!HASH_ALGORITHMS.contains(value)) {
+						throw new IllegalArgumentException("unknown hash algorithm: " + value);
+					}
+					hashAlgorithm = value;
+				} else {
+					throw new IllegalArgumentException("unknown option of server string: " + s);
+				}
+				continue;
+			}
+			String[] parts = s.split(":");
+			int weight = 1;
+			if (parts.length == 3) {
+				try {
+					weight = Integer.parseInt(parts[2]);
+				} catch (NumberFormatException error) {
+					throw new IllegalArgumentException("invalid weight: " + s);
+				}
+				if (weight <= 0) {
+					throw new IllegalArgumentException("invalid weight: " + s);
+				}
+				s = parts[0] + ":" + parts[1];
+				weighted = true;
+			}
+			weights.add(weight);
+			servers.append((0 < servers.length() ? " " : "") + s);
+		}
+		this._distribution = distribution;
+		this._hashAlgorithm = hashAlgorithm;
+		if (weighted) {
+			this._weights = new int[weights.size()];
+			for (int i = 0; i < _weights.length; i++) {
+				_weights[i] = weights.get(i);
+			}
+		} else {
+			this._weights = null;
+		}
+		super.setServerString(servers.toString());
+	}
+
+	public String getDistribution() {
+		return _distribution == null ? DISTRIBUTION_MODULA : _distribution;
+	}
+
+	public boolean isKetama() {
+		return DISTRIBUTION_KETAMA.equals(getDistribution());
+	}
+
+	/**
+	 * @return the hash algorithm given by the server string, or null for the default of the distribution
+	 */
+	public String getHashAlgorithm() {
+		return _hashAlgorithm;
+	}
+
+	/**
+	 * @return weights of the servers in the order of the server string, or null if none were given
+	 */
+	public int[] getWeights() {
+		return _weights == null ? null : _weights.clone();
+	}
+
+	/**
+	 * @return the memcached client behind the given client and its decorators, or null if there is none
+	 */
+	public static AbstractMemcachedClient unwrap(AbstractKeyValueStoreClient client) {
+		while (client instanceof MonitoredClient) {
+			client = ((MonitoredClient) client).getClient();
+		}
+		return client instanceof AbstractMemcachedClient ? (AbstractMemcachedClient) client : null;
 	}
 
 	public String prepareServerString(String _serverString) {
@@ -20,4 +181,307 @@ public abstract class AbstractMemcachedClient extends AbstractKeyValueStoreClien
 		}
 		return serverString.toString();
 	}
-}
\ No newline at end of file
+
+	public int getChunkSize() {
+		return _chunkSize;
+	}
+
+	/**
+	 * @param chunkSize maximum size in bytes of values stored as a single item. 0 disables chunking.
+	 */
+	public void setChunkSize(int chunkSize) {
+		this._chunkSize = chunkSize;
+	}
+
+	protected boolean isChunked(byte[] raw) {
+		return raw != null && 0 < _chunkSize && _chunkSize < raw.length;
+	}
+
+	/**
+	 * Write the chunks of the value. Chunk keys are unique to each write so that
+	 * readers never mix chunks of different values. Chunks of previous values are
+	 * left to expire.
+	 * 
+	 * @return header to store under the key of the value
+	 */
+	protected byte[] writeChunks(String key, byte[] raw, int exp) throws KeyValueStoreClientException {
+		ChunkHeader header = new ChunkHeader(raw, ThreadLocalRandom.current().nextLong(), _chunkSize);
+		List<String> keys = header.keys(key);
+		Map<String, byte[]> chunks = new LinkedHashMap<String, byte[]>();
+		for (int i = 0; i < keys.size(); i++) {
+			chunks.put(keys.get(i), Arrays.copyOfRange(raw, i * _chunkSize, Math.min(raw.length, (i + 1) * _chunkSize)));
+		}
+		chunks.put(chunksKey(key), header.toBytes());
+		if (!setChunks(chunks, exp)) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("unable to set chunks: key=" + key)));
+		}
+		return header.toBytes();
+	}
+
+	/**
+	 * @return the value itself, or the value reassembled from its chunks if it is
+	 *         a header. null if some of the chunks are missing or corrupted.
+	 */
+	protected byte[] readChunks(String key, byte[] raw) throws KeyValueStoreClientException {
+		ChunkHeader header = ChunkHeader.parse(raw);
+		if (header == null) {
+			return raw;
+		}
+		List<String> keys = header.keys(key);
+		return header.join(key, keys, getChunks(keys));
+	}
+
+	/**
+	 * reassemble all values which are headers, fetching the chunks of all of them at once.
+	 */
+	protected Map<String, byte[]> readChunks(Map<String, byte[]> values) throws KeyValueStoreClientException {
+		Map<String, ChunkHeader> headers = null;
+		List<String> keys = new ArrayList<String>();
+		for (Map.Entry<String, byte[]> entry: values.entrySet()) {
+			ChunkHeader header = ChunkHeader.parse(entry.getValue());
+			if (header != null) {
+				if (headers == null) {
+					headers = new HashMap<String, ChunkHeader>();
+				}
+				headers.put(entry.getKey(), header);
+				keys.addAll(header.keys(entry.getKey()));
+			}
+		}
+		if (headers == null) {
+			return values;
+		}
+		Map<String, byte[]> chunks = getChunks(keys);
+		Map<String, byte[]> result = new HashMap<String, byte[]>(values);
+		for (Map.Entry<String, ChunkHeader> entry: headers.entrySet()) {
+			String key = entry.getKey();
+			byte[] raw = entry.getValue().join(key, entry.getValue().keys(key), chunks);
+			if (raw == null) {
+				result.remove(key);
+			} else {
+				result.put(key, raw);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * delete the chunks of the value if it has been chunked. call this before deleting the value itself.
+	 */
+	protected void deleteChunks(String key) throws KeyValueStoreClientException {
+		if (_chunkSize <= 0) {
+			return;
+		}
+		ChunkHeader header = ChunkHeader.parse(getChunks(Collections.singletonList(key)).get(key));
+		if (header != null) {
+			List<String> keys = header.keys(key);
+			keys.add(chunksKey(key));
+			removeChunks(keys);
+		}
+	}
+
+	/**
+	 * extend the expiry of the chunks of the value if it has been chunked. call this before touching the value itself.
+	 */
+	protected void extendChunks(String key, int exp) throws KeyValueStoreClientException {
+		if (_chunkSize <= 0) {
+			return;
+		}
+		String chunksKey = chunksKey(key);
+		ChunkHeader header = ChunkHeader.parse(getChunks(Collections.singletonList(chunksKey)).get(chunksKey));
+		if (header == null) {
+			return;
+		}
+		List<String> keys = header.keys(key);
+		keys.add(chunksKey);
+		if (!touchChunks(keys, exp)) {
+			// the value has been overwritten by one which is not chunked. the copy of the header is stale.
+			removeChunks(Collections.singletonList(chunksKey));
+		}
+	}
+
+	/**
+	 * reassemble the value fetched by get-and-touch, extending the expiry of its chunks as well.
+	 */
+	protected byte[] readAndExtendChunks(String key, byte[] raw, int exp) throws KeyValueStoreClientException {
+		ChunkHeader header = ChunkHeader.parse(raw);
+		if (header == null) {
+			return raw;
+		}
+		List<String> keys = header.keys(key);
+		List<String> touched = new ArrayList<String>(keys);
+		touched.add(chunksKey(key));
+		touchChunks(touched, exp);
+		return header.join(key, keys, getChunks(keys));
+	}
+
+	protected static boolean isChunkHeader(byte[] raw) {
+		return ChunkHeader.parse(raw) != null;
+	}
+
+	/**
+	 * for in-process stores which emulate memcached. 0 means the item never expires.
+	 */
+	protected static long expiryTimeMillis(int exp) {
+		// the actual value sent may either be Unix time (number of seconds since
+		// January 1, 1970, as a 32-bit value), or a number of seconds starting 
+		// from current time. In the latter case, this number of seconds may not
+		// exceed 60*60*24*30 (number of seconds in 30 days); if the number sent
+		// by a client is larger than that, the server will consider it to be real
+		// Unix time value rather than an offset from current time.
+		// http://code.sixapart.com/svn/memcached/trunk/server/doc/protocol.txt
+		long timestamp;
+		if (exp == 0) {
+			timestamp = 0;
+		} else if (exp < 60*60*24*30) { // relative time
+			timestamp = System.currentTimeMillis()+TimeUnit.SECONDS.toMillis(exp);
+		} else { // absolute time
+			timestamp = TimeUnit.SECONDS.toMillis(exp);
+		}
+		return timestamp;
+	}
+
+	/**
+	 * store the chunks with a single round trip if the client can.
+	 */
+	protected abstract boolean setChunks(Map<String, byte[]> chunks, int exp) throws KeyValueStoreClientException;
+
+	/**
+	 * fetch the keys as they are stored, i.e. without reassembling chunked values.
+	 */
+	protected abstract Map<String, byte[]> getChunks(Collection<String> keys) throws KeyValueStoreClientException;
+
+	protected abstract void removeChunks(Collection<String> keys) throws KeyValueStoreClientException;
+
+	/**
+	 * @return false if any of the keys does not exist
+	 */
+	protected abstract boolean touchChunks(Collection<String> keys, int exp) throws KeyValueStoreClientException;
+
+	protected String versionKey(String key) {
+		return key + VERSION_KEY_SUFFIX;
+	}
+
+	protected String chunksKey(String key) {
+		return key + CHUNKS_KEY_SUFFIX;
+	}
+
+	protected byte[] encodeVersion(long version) {
+		return Long.toString(version).getBytes(StandardCharsets.US_ASCII);
+	}
+
+	protected long decodeVersion(byte[] raw) {
+		if (raw == null) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(new String(raw, StandardCharsets.US_ASCII));
+		} catch (NumberFormatException error) {
+			return 0;
+		}
+	}
+
+	/**
+	 * versions of sessions stored by compare-and-set are kept in the flags of the
+	 * item, so that they are read along with its CAS id. flags 0 mean that the
+	 * version is not kept there, e.g. for items stored by set.
+	 */
+	protected static int versionFlags(long version) {
+		return 0 < version && version <= 0xFFFFFFFFL ? (int) version : 0;
+	}
+
+	/**
+	 * versions written by set and add carry a counter of the writes in their
+	 * higher bits, see {@link KeyValueStoreSessionManager#VERSION_NODE_BITS}.
+	 * writers which have started from the same version write the same counter,
+	 * and either of them may have stored its session last, so the version key may
+	 * only move to a higher counter. writes by cas follow each other, and their
+	 * versions are compared as they are.
+	 *
+	 * @param stamped whether the version has been written by set or add
+	 * @return true if the version key may move from current to version
+	 */
+	protected static boolean isNewerVersion(long current, long version, boolean stamped) {
+		if (stamped) {
+			return current >>> KeyValueStoreSessionManager.VERSION_NODE_BITS < version >>> KeyValueStoreSessionManager.VERSION_NODE_BITS;
+		}
+		return current < version;
+	}
+
+	/**
+	 * @return version of the item read by gets. items without version in their
+	 *         flags fall back on the version key.
+	 */
+	protected long versionOf(String key, int flags) throws KeyValueStoreClientException {
+		return flags != 0 ? flags & 0xFFFFFFFFL : version(key);
+	}
+
+	private static class ChunkHeader {
+		private final int count;
+		private final int length;
+		private final int checksum;
+		private final long generation;
+
+		ChunkHeader(byte[] raw, long generation, int chunkSize) {
+			this((raw.length + chunkSize - 1) / chunkSize, raw.length, checksum(raw, raw.length), generation);
+		}
+
+		ChunkHeader(int count, int length, int checksum, long generation) {
+			this.count = count;
+			this.length = length;
+			this.checksum = checksum;
+			this.generation = generation;
+		}
+
+		static ChunkHeader parse(byte[] raw) {
+			if (raw == null || raw.length != CHUNK_HEADER_SIZE) {
+				return null;
+			}
+			ByteBuffer buf = ByteBuffer.wrap(raw);
+			for (byte b: CHUNK_MAGIC) {
+				if (buf.get() != b) {
+					return null;
+				}
+			}
+			return new ChunkHeader(buf.getInt(), buf.getInt(), buf.getInt(), buf.getLong());
+		}
+
+		byte[] toBytes() {
+			ByteBuffer buf = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+			buf.put(CHUNK_MAGIC).putInt(count).putInt(length).putInt(checksum).putLong(generation);
+			return buf.array();
+		}
+
+		List<String> keys(String key) {
+			List<String> keys = new ArrayList<String>(count);
+			for (int i = 0; i < count; i++) {
+				keys.add(key + CHUNK_KEY_SUFFIX + Long.toHexString(generation) + ":" + i);
+			}
+			return keys;
+		}
+
+		byte[] join(String key, List<String> keys, Map<String, byte[]> chunks) {
+			byte[] raw = new byte[length];
+			int n = 0;
+			for (String chunkKey: keys) {
+				byte[] chunk = chunks.get(chunkKey);
+				if (chunk == null || length < n + chunk.length) {
+					log.warn("missing chunk of " + key + ": " + chunkKey);
+					return null;
+				}
+				System.arraycopy(chunk, 0, raw, n, chunk.length);
+				n += chunk.length;
+			}
+			if (n != length || checksum(raw, n) != checksum) {
+				log.warn("checksum mismatch of chunked value: " + key);
+				return null;
+			}
+			return raw;
+		}
+
+		private static int checksum(byte[] raw, int length) {
+			CRC32 crc = new CRC32();
+			crc.update(raw, 0, length);
+			return (int) crc.getValue();
+		}
+	}
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 
 import org.eclipse.jetty.nosql.kvs.AbstractKeyValueStoreClient;
 import org.eclipse.jetty.nosql.kvs.KeyValueStoreSessionIdManager;
+import org.eclipse.jetty.nosql.memcached.replicated.ReplicatedMemcachedClient;
 import org.eclipse.jetty.nosql.memcached.spymemcached.SpyMemcachedClientFactory;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.util.log.Log;
@@ -12,6 +13,8 @@ import org.eclipse.jetty.util.log.Logger;
 public class MemcachedSessionIdManager extends KeyValueStoreSessionIdManager {
 	private final static Logger log = Log.getLogger("org.eclipse.jetty.nosql.memcached.MemcachedSessionIdManager");
 	private AbstractMemcachedClientFactory _clientFactory = null;
+	private int _chunkSize = AbstractMemcachedClient.DEFAULT_CHUNK_SIZE;
+	private int _replicas = 1;
 
 	public MemcachedSessionIdManager(Server server) throws IOException {
 		this(server, "127.0.0.1:11211");
@@ -47,11 +50,42 @@ public class MemcachedSessionIdManager extends KeyValueStoreSessionIdManager {
 				_clientFactory = new SpyMemcachedClientFactory(); // default client
 			}
 		}
-		AbstractKeyValueStoreClient client = _clientFactory.create(serverString);
+		AbstractKeyValueStoreClient client;
+		if (1 < _replicas) {
+			client = new ReplicatedMemcachedClient(serverString, _clientFactory, _replicas);
+		} else {
+			client = _clientFactory.create(serverString);
+		}
 		client.setTimeoutInMs(getTimeoutInMs());
+		AbstractMemcachedClient memcachedClient = AbstractMemcachedClient.unwrap(client);
+		if (memcachedClient != null) {
+			memcachedClient.setChunkSize(_chunkSize);
+		}
 		return client;
 	}
 
+	public int getChunkSize() {
+		return _chunkSize;
+	}
+
+	/**
+	 * @param chunkSize sessions larger than this are split into chunks of this size. 0 disables chunking.
+	 */
+	public void setChunkSize(int chunkSize) {
+		this._chunkSize = chunkSize;
+	}
+
+	public int getReplicas() {
+		return _replicas;
+	}
+
+	/**
+	 * @param replicas number of servers each session is stored on. 1 (default) stores each session on a single server.
+	 */
+	public void setReplicas(int replicas) {
+		this._replicas = replicas;
+	}
+
 	public AbstractMemcachedClientFactory getClientFactory() {
 		return _clientFactory;
 	}
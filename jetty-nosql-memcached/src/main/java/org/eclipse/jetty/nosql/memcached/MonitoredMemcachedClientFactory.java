@@ -0,0 +1,34 @@
+package org.eclipse.jetty.nosql.memcached;
+
+import org.eclipse.jetty.nosql.kvs.AbstractKeyValueStoreClient;
+import org.eclipse.jetty.nosql.kvs.jmx.MonitoredClient;
+import org.eclipse.jetty.nosql.memcached.spymemcached.SpyMemcachedClientFactory;
+
+/**
+ * Wraps the clients of another factory in {@link MonitoredClient}, so that their operations, and the connection
+ * statistics of clients which have them, are published through JMX.
+ */
+public class MonitoredMemcachedClientFactory extends AbstractMemcachedClientFactory {
+	private AbstractMemcachedClientFactory _clientFactory;
+
+	public MonitoredMemcachedClientFactory() {
+		this(new SpyMemcachedClientFactory());
+	}
+
+	public MonitoredMemcachedClientFactory(AbstractMemcachedClientFactory cf) {
+		this._clientFactory = cf;
+	}
+
+	@Override
+	public AbstractKeyValueStoreClient create(String serverString) {
+		return new MonitoredClient(_clientFactory.create(serverString));
+	}
+
+	public AbstractMemcachedClientFactory getClientFactory() {
+		return _clientFactory;
+	}
+
+	public void setClientFactory(AbstractMemcachedClientFactory cf) {
+		this._clientFactory = cf;
+	}
+}
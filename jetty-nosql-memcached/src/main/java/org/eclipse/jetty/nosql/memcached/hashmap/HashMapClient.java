@@ -1,56 +1,64 @@
 package org.eclipse.jetty.nosql.memcached.hashmap;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
+import org.eclipse.jetty.nosql.kvs.IAsyncKeyValueStoreClient;
 import org.eclipse.jetty.nosql.kvs.KeyValueStoreClientException;
 import org.eclipse.jetty.nosql.memcached.AbstractMemcachedClient;
 
 // intend to use this as test mock
-public class HashMapClient extends AbstractMemcachedClient {
-	static class Entry {
-		private byte[] data = null;
-		private long expiry = 0;
-		Entry(byte[] raw, long exp) {
-			data = raw;
-			expiry = exp;
-		}
-		byte[] getData() {
-			return data;
-		}
-		long getExpiry() {
-			return expiry;
-		}
-	}
-
+public class HashMapClient extends AbstractMemcachedClient implements IAsyncKeyValueStoreClient {
 	private static final int FOREVER = 0;
-	private static Map<String, Entry> data = new ConcurrentHashMap<String, Entry>();
+	private final boolean shared;
+	private volatile HashMapStore store;
 
 	public HashMapClient() {
 		this("127.0.0.1:11211");
 	}
 
+	/**
+	 * clients of the same server string share the same store, which is closed
+	 * once all of them have been shut down.
+	 */
 	public HashMapClient(String serverString) {
 		super(serverString);
+		this.shared = true;
+		this.store = HashMapStore.acquire(_serverString);
+	}
+
+	/**
+	 * the store is left to the caller, and stays open after shutdown.
+	 */
+	public HashMapClient(String serverString, HashMapStore store) {
+		super(serverString);
+		this.shared = false;
+		this.store = store;
 	}
 
 	@Override
-	public boolean establish() throws KeyValueStoreClientException {
-		if (isAlive()) {
-			shutdown();
+	public synchronized boolean establish() throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			store = HashMapStore.acquire(_serverString);
 		}
 		return true;
 	}
 
 	@Override
-	public boolean shutdown() throws KeyValueStoreClientException {
+	public synchronized boolean shutdown() throws KeyValueStoreClientException {
+		if (shared && store != null) {
+			store.release();
+			store = null;
+		}
 		return true;
 	}
 
 	@Override
 	public boolean isAlive() {
-		return data != null;
+		return store != null;
 	}
 
 	@Override
@@ -58,24 +66,30 @@ public class HashMapClient extends AbstractMemcachedClient {
 		if (!isAlive()) {
 			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
 		}
-		byte[] raw = null;
-		synchronized(data) {
-			Entry entry = data.get(key);
-			if ( entry != null) {
-				long exp = entry.getExpiry();
-				if (System.currentTimeMillis() < exp || exp == FOREVER) {
-					raw = entry.getData();
-				} else {
-					data.remove(key);
-				}
-			}
+		HashMapStore.Entry entry = store.get(key);
+		return readChunks(key, entry == null ? null : entry.getData());
+	}
+
+	@Override
+	public Map<String, byte[]> getBulk(Collection<String> keys) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		return readChunks(getChunks(keys));
+	}
+
+	@Override
+	protected Map<String, byte[]> getChunks(Collection<String> keys) throws KeyValueStoreClientException {
+		Map<String, byte[]> result = new HashMap<String, byte[]>();
+		for (Map.Entry<String, HashMapStore.Entry> entry: store.getBulk(keys).entrySet()) {
+			result.put(entry.getKey(), entry.getValue().getData());
 		}
-		return raw;
+		return result;
 	}
 
 	@Override
 	public boolean set(String key, long version, byte[] raw) throws KeyValueStoreClientException {
-		return this.set(key, 0, raw, FOREVER);
+		return this.set(key, version, raw, FOREVER);
 	}
 
 	@Override
@@ -83,10 +97,55 @@ public class HashMapClient extends AbstractMemcachedClient {
 		if (!isAlive()) {
 			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
 		}
-		data.put(key, new Entry(raw, expiryTimeMillis(exp)));
+		if (isChunked(raw)) {
+			raw = writeChunks(key, raw, exp);
+		}
+		store.set(key, raw, version, expiryTimeMillis(exp));
 		return true;
 	}
 
+	@Override
+	protected boolean setChunks(Map<String, byte[]> chunks, int exp) throws KeyValueStoreClientException {
+		for (Map.Entry<String, byte[]> chunk: chunks.entrySet()) {
+			store.set(chunk.getKey(), chunk.getValue(), 0, expiryTimeMillis(exp));
+		}
+		return true;
+	}
+
+	@Override
+	protected void removeChunks(Collection<String> keys) throws KeyValueStoreClientException {
+		for (String key: keys) {
+			store.delete(key);
+		}
+	}
+
+	@Override
+	protected boolean touchChunks(Collection<String> keys, int exp) throws KeyValueStoreClientException {
+		boolean result = true;
+		for (String key: keys) {
+			result &= store.touch(key, expiryTimeMillis(exp));
+		}
+		return result;
+	}
+
+	@Override
+	public boolean touch(String key, int exp) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		extendChunks(key, exp);
+		return store.touch(key, expiryTimeMillis(exp));
+	}
+
+	@Override
+	public byte[] getAndTouch(String key, int exp) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		HashMapStore.Entry entry = store.getAndTouch(key, expiryTimeMillis(exp));
+		return readAndExtendChunks(key, entry == null ? null : entry.getData(), exp);
+	}
+
 	@Override
 	public boolean add(String key, long version, byte[] raw) throws KeyValueStoreClientException {
 		return this.add(key, version, raw, FOREVER);
@@ -97,14 +156,26 @@ public class HashMapClient extends AbstractMemcachedClient {
 		if (!isAlive()) {
 			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
 		}
-		boolean notExists = false;
-		synchronized(data) {
-			notExists = !data.containsKey(key);
-			if (notExists) {
-				data.put(key, new Entry(raw, expiryTimeMillis(exp)));
+		if (isChunked(raw)) {
+			raw = writeChunks(key, raw, exp);
+		}
+		return store.add(key, raw, version, expiryTimeMillis(exp));
+	}
+
+	@Override
+	public boolean cas(String key, long expectedVersion, byte[] raw, int exp) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		if (isChunked(raw)) {
+			// fail fast before writing the chunks. chunks of a write which loses the race below are never referenced
+			// by a header and go away with their expiry.
+			if (version(key) != expectedVersion) {
+				return false;
 			}
+			raw = writeChunks(key, raw, exp);
 		}
-		return notExists;
+		return store.cas(key, expectedVersion, raw, expiryTimeMillis(exp));
 	}
 
 	@Override
@@ -112,36 +183,51 @@ public class HashMapClient extends AbstractMemcachedClient {
 		if (!isAlive()) {
 			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
 		}
-		data.remove(key);
+		deleteChunks(key);
+		store.delete(key);
 		return true;
 	}
 
-	private long expiryTimeMillis(int exp) {
-		// the actual value sent may either be Unix time (number of seconds since
-		// January 1, 1970, as a 32-bit value), or a number of seconds starting 
-		// from current time. In the latter case, this number of seconds may not
-		// exceed 60*60*24*30 (number of seconds in 30 days); if the number sent
-		// by a client is larger than that, the server will consider it to be real
-		// Unix time value rather than an offset from current time.
-		// http://code.sixapart.com/svn/memcached/trunk/server/doc/protocol.txt
-		long timestamp;
-		if (exp < 60*60*24*30) { // relative time
-			timestamp = System.currentTimeMillis()+TimeUnit.SECONDS.toMillis(exp);
-		} else { // absolute time
-			timestamp = TimeUnit.SECONDS.toMillis(exp);
-		}
-		return timestamp;
+	@Override
+	public CompletableFuture<byte[]> getAsync(String key) {
+		return callAsync(() -> get(key));
 	}
-  
+
+	@Override
+	public CompletableFuture<Boolean> setAsync(String key, long version, byte[] raw, int exp) {
+		return callAsync(() -> set(key, version, raw, exp));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> addAsync(String key, long version, byte[] raw, int exp) {
+		return callAsync(() -> add(key, version, raw, exp));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> deleteAsync(String key) {
+		return callAsync(() -> delete(key));
+	}
+
+	/**
+	 * nothing blocks here. complete the futures on the calling thread.
+	 */
+	@Override
+	protected Executor newAsyncExecutor() {
+		return Runnable::run;
+	}
+
     @Override
     public boolean exists( String key ) throws KeyValueStoreClientException {
-      synchronized(data) {
-          return data.containsKey(key);
-      }
+      return store.get(key) != null;
     }
   
     @Override
     public long version( String key ) {
-      return 0;
+      HashMapStore.Entry entry = store.get(key);
+      return entry == null ? 0 : entry.getVersion();
     }
+
+	public HashMapStore getStore() {
+		return store;
+	}
 }
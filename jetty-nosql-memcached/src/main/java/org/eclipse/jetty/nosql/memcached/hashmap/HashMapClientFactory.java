@@ -4,10 +4,26 @@ import org.eclipse.jetty.nosql.kvs.AbstractKeyValueStoreClient;
 import org.eclipse.jetty.nosql.memcached.AbstractMemcachedClientFactory;
 
 public class HashMapClientFactory extends AbstractMemcachedClientFactory {
+	private long _maxBytes = 0;
 
 	@Override
 	public AbstractKeyValueStoreClient create(String serverString) {
-		return new HashMapClient(serverString);
+		HashMapClient client = new HashMapClient(serverString);
+		if (_maxBytes > 0) {
+			client.getStore().setMaxBytes(_maxBytes);
+		}
+		return client;
+	}
+
+	public long getMaxBytes() {
+		return _maxBytes;
+	}
+
+	/**
+	 * @param maxBytes evict least recently used entries once the store of a server string grows beyond this size. 0 means unbounded.
+	 */
+	public void setMaxBytes(long maxBytes) {
+		this._maxBytes = maxBytes;
 	}
 
 }
@@ -0,0 +1,431 @@
+package org.eclipse.jetty.nosql.memcached.hashmap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * In-process key-value store backing {@link HashMapClient}.
+ *
+ * Keys are spread over a fixed number of stripes, each guarded by its own lock and kept in access order, so that
+ * operations on different keys do not contend and the least recently used entries of a stripe can be evicted once
+ * the store grows beyond {@link #getMaxBytes()}. Expired entries are removed lazily on access, and in the background
+ * by a timing wheel which is swept once per tick.
+ *
+ * Clients created with the same server string share the store returned by {@link #getInstance(String)}, just like
+ * clients connecting to the same memcached. The shared store is closed once the last of its clients has released it,
+ * see {@link #acquire(String)}.
+ */
+public class HashMapStore {
+	private static final Logger log = Log.getLogger("org.eclipse.jetty.nosql.memcached.hashmap.HashMapStore");
+	public static final int DEFAULT_STRIPES = 64;
+	public static final long DEFAULT_TICK_MILLIS = 1000;
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+	public static final long FOREVER = 0;
+	// rough per-entry overhead of the map node, the entry and the key object
+	private static final int ENTRY_OVERHEAD = 96;
+
+	private static final ConcurrentMap<String, HashMapStore> stores = new ConcurrentHashMap<String, HashMapStore>();
+
+	public static class Entry {
+		private final byte[] data;
+		private final long version;
+		private final long expiry;
+		private final long size;
+		Entry(String key, byte[] raw, long ver, long exp) {
+			data = raw;
+			version = ver;
+			expiry = exp;
+			size = ENTRY_OVERHEAD + 2L * key.length() + (raw == null ? 0 : raw.length);
+		}
+		public byte[] getData() {
+			return data;
+		}
+		public long getVersion() {
+			return version;
+		}
+		public long getExpiry() {
+			return expiry;
+		}
+		public boolean isExpired(long now) {
+			return expiry != FOREVER && expiry <= now;
+		}
+	}
+
+	private class Stripe {
+		private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		private long bytes = 0;
+
+		Entry get(String key, long now) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.isExpired(now)) {
+				remove(key);
+				expirations.incrementAndGet();
+				entry = null;
+			}
+			return entry;
+		}
+
+		void put(String key, Entry entry) {
+			Entry old = entries.put(key, entry);
+			if (old != null) {
+				bytes -= old.size;
+			}
+			bytes += entry.size;
+			evict(key);
+		}
+
+		Entry remove(String key) {
+			Entry old = entries.remove(key);
+			if (old != null) {
+				bytes -= old.size;
+			}
+			return old;
+		}
+
+		/**
+		 * the eldest entries of the stripe go first. the entry just written is kept even if it alone exceeds the limit.
+		 */
+		private void evict(String written) {
+			long limit = maxBytes;
+			if (limit <= 0) {
+				return;
+			}
+			long stripeLimit = Math.max(1, limit / stripes.length);
+			Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+			while (bytes > stripeLimit && it.hasNext()) {
+				Map.Entry<String, Entry> eldest = it.next();
+				if (eldest.getKey().equals(written)) {
+					continue;
+				}
+				bytes -= eldest.getValue().size;
+				it.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	private final Stripe[] stripes;
+	private final Set<String>[] wheel;
+	private final long tickMillis;
+	private volatile long maxBytes;
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+	private ScheduledExecutorService sweeper = null;
+	private long lastTick;
+	// assigned to shared stores only. references are guarded by the lock of the registry.
+	private String name = null;
+	private int references = 0;
+	private boolean closed = false;
+
+	public HashMapStore() {
+		this(DEFAULT_STRIPES, 0);
+	}
+
+	/**
+	 * @param stripes number of independently locked partitions of the store
+	 * @param maxBytes approximate upper bound of the memory used by entries. 0 means unbounded.
+	 */
+	public HashMapStore(int stripes, long maxBytes) {
+		this(stripes, maxBytes, DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+	}
+
+	@SuppressWarnings("unchecked")
+	HashMapStore(int stripes, long maxBytes, long tickMillis, int wheelSize) {
+		if (stripes <= 0 || tickMillis <= 0 || wheelSize <= 0) {
+			throw new IllegalArgumentException("stripes, tick and wheel size must be positive");
+		}
+		this.stripes = new HashMapStore.Stripe[stripes];
+		for (int i = 0; i < stripes; i++) {
+			this.stripes[i] = new Stripe();
+		}
+		this.wheel = new Set[wheelSize];
+		for (int i = 0; i < wheelSize; i++) {
+			this.wheel[i] = ConcurrentHashMap.newKeySet();
+		}
+		this.tickMillis = tickMillis;
+		this.maxBytes = maxBytes;
+		this.lastTick = System.currentTimeMillis() / tickMillis;
+	}
+
+	/**
+	 * @return the store shared by all clients of the given server string
+	 */
+	public static HashMapStore getInstance(String name) {
+		return stores.computeIfAbsent(name, n -> {
+			HashMapStore store = new HashMapStore();
+			store.name = n;
+			return store;
+		});
+	}
+
+	/**
+	 * @return the store shared by all clients of the given server string, which stays open until each call has been
+	 *         paired with {@link #release()}
+	 */
+	public static HashMapStore acquire(String name) {
+		synchronized (stores) {
+			HashMapStore store = getInstance(name);
+			store.references++;
+			return store;
+		}
+	}
+
+	/**
+	 * close the store once it has been released as many times as it has been acquired.
+	 */
+	public void release() {
+		synchronized (stores) {
+			if (0 < --references) {
+				return;
+			}
+			if (name != null) {
+				stores.remove(name, this);
+			}
+		}
+		close();
+	}
+
+	/**
+	 * stop the sweeper and drop all entries. a shared store is removed from the registry, so that clients created
+	 * afterwards with the same server string get a new store.
+	 */
+	public void close() {
+		if (name != null) {
+			stores.remove(name, this);
+		}
+		synchronized (this) {
+			closed = true;
+			if (sweeper != null) {
+				sweeper.shutdownNow();
+				sweeper = null;
+			}
+		}
+		clear();
+	}
+
+	public Entry get(String key) {
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			return stripe.get(key, System.currentTimeMillis());
+		}
+	}
+
+	public Map<String, Entry> getBulk(Collection<String> keys) {
+		Map<String, Entry> result = new HashMap<String, Entry>();
+		long now = System.currentTimeMillis();
+		for (String key: keys) {
+			Stripe stripe = stripe(key);
+			synchronized (stripe) {
+				Entry entry = stripe.get(key, now);
+				if (entry != null) {
+					result.put(key, entry);
+				}
+			}
+		}
+		return result;
+	}
+
+	public void set(String key, byte[] raw, long version, long expiry) {
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			stripe.put(key, new Entry(key, raw, version, expiry));
+		}
+		schedule(key, expiry);
+	}
+
+	/**
+	 * @return false if a live entry already exists for the key
+	 */
+	public boolean add(String key, byte[] raw, long version, long expiry) {
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			if (stripe.get(key, System.currentTimeMillis()) != null) {
+				return false;
+			}
+			stripe.put(key, new Entry(key, raw, version, expiry));
+		}
+		schedule(key, expiry);
+		return true;
+	}
+
+	/**
+	 * replace the entry if its version equals expectedVersion. expectedVersion 0 only succeeds if there is no entry.
+	 * the new entry gets expectedVersion + 1.
+	 */
+	public boolean cas(String key, long expectedVersion, byte[] raw, long expiry) {
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			Entry entry = stripe.get(key, System.currentTimeMillis());
+			long version = entry == null ? 0 : entry.getVersion();
+			if (version != expectedVersion || (entry != null && expectedVersion == 0)) {
+				return false;
+			}
+			stripe.put(key, new Entry(key, raw, expectedVersion + 1, expiry));
+		}
+		schedule(key, expiry);
+		return true;
+	}
+
+	/**
+	 * @return false if there is no live entry for the key
+	 */
+	public boolean touch(String key, long expiry) {
+		return getAndTouch(key, expiry) != null;
+	}
+
+	/**
+	 * @return the entry with the new expiry, or null if there is no live entry for the key
+	 */
+	public Entry getAndTouch(String key, long expiry) {
+		Stripe stripe = stripe(key);
+		Entry touched;
+		synchronized (stripe) {
+			Entry entry = stripe.get(key, System.currentTimeMillis());
+			if (entry == null) {
+				return null;
+			}
+			touched = new Entry(key, entry.getData(), entry.getVersion(), expiry);
+			stripe.put(key, touched);
+		}
+		schedule(key, expiry);
+		return touched;
+	}
+
+	public boolean delete(String key) {
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			return stripe.remove(key) != null;
+		}
+	}
+
+	public void clear() {
+		for (Stripe stripe: stripes) {
+			synchronized (stripe) {
+				stripe.entries.clear();
+				stripe.bytes = 0;
+			}
+		}
+		for (Set<String> slot: wheel) {
+			slot.clear();
+		}
+	}
+
+	public int getSize() {
+		int size = 0;
+		for (Stripe stripe: stripes) {
+			synchronized (stripe) {
+				size += stripe.entries.size();
+			}
+		}
+		return size;
+	}
+
+	public long getBytes() {
+		long bytes = 0;
+		for (Stripe stripe: stripes) {
+			synchronized (stripe) {
+				bytes += stripe.bytes;
+			}
+		}
+		return bytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @param maxBytes approximate upper bound of the memory used by entries. 0 means unbounded.
+	 */
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+	private Stripe stripe(String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return stripes[(h & 0x7fffffff) % stripes.length];
+	}
+
+	/**
+	 * put the key into the slot of the tick its entry expires in. entries expiring beyond the span of the wheel are
+	 * put back by the sweeper until their round comes.
+	 */
+	private void schedule(String key, long expiry) {
+		if (expiry == FOREVER) {
+			return;
+		}
+		startSweeper();
+		wheel[(int) ((expiry / tickMillis) % wheel.length)].add(key);
+	}
+
+	private synchronized void startSweeper() {
+		if (sweeper != null || closed) {
+			return;
+		}
+		sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "HashMapStore-sweeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		sweeper.scheduleWithFixedDelay(() -> {
+			try {
+				sweep(System.currentTimeMillis());
+			} catch (RuntimeException error) {
+				log.warn("unable to sweep expired entries", error);
+			}
+		}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	synchronized boolean isSweeping() {
+		return sweeper != null;
+	}
+
+	/**
+	 * visit the slots of all ticks which have completely passed since the last sweep.
+	 */
+	synchronized void sweep(long now) {
+		long currentTick = now / tickMillis;
+		long from = Math.max(lastTick, currentTick - wheel.length);
+		for (long tick = from; tick < currentTick; tick++) {
+			Set<String> slot = wheel[(int) (tick % wheel.length)];
+			List<String> keys = new ArrayList<String>(slot);
+			for (String key: keys) {
+				// remove before looking at the entry, so that a concurrent write which re-schedules the key is not lost
+				slot.remove(key);
+				Stripe stripe = stripe(key);
+				Entry entry;
+				synchronized (stripe) {
+					entry = stripe.get(key, now);
+				}
+				if (entry != null && entry.getExpiry() != FOREVER) {
+					wheel[(int) ((entry.getExpiry() / tickMillis) % wheel.length)].add(key);
+				}
+			}
+		}
+		lastTick = Math.max(lastTick, currentTick);
+	}
+}
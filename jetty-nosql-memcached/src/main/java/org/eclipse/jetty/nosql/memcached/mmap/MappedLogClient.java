@@ -0,0 +1,231 @@
+package org.eclipse.jetty.nosql.memcached.mmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import org.eclipse.jetty.nosql.kvs.IAsyncKeyValueStoreClient;
+import org.eclipse.jetty.nosql.kvs.KeyValueStoreClientException;
+import org.eclipse.jetty.nosql.memcached.AbstractMemcachedClient;
+
+/**
+ * Embedded client which keeps sessions in a {@link MappedLogStore}, so that they survive restarts of the JVM without
+ * memcached. the store is opened on establish().
+ */
+public class MappedLogClient extends AbstractMemcachedClient implements IAsyncKeyValueStoreClient {
+	private static final int FOREVER = 0;
+	private final File directory;
+	private volatile MappedLogStore store = null;
+
+	/**
+	 * clients of the same directory share the same store.
+	 */
+	public MappedLogClient(String serverString, File directory) {
+		super(serverString);
+		this.directory = directory;
+	}
+
+	public MappedLogClient(String serverString, MappedLogStore store) {
+		super(serverString);
+		this.directory = store.getDirectory();
+		this.store = store;
+	}
+
+	@Override
+	public boolean establish() throws KeyValueStoreClientException {
+		if (isAlive()) {
+			return true;
+		}
+		try {
+			store = MappedLogStore.getInstance(directory);
+		} catch (IOException error) {
+			throw(new KeyValueStoreClientException(error));
+		}
+		return true;
+	}
+
+	/**
+	 * the store stays open for other clients of the directory.
+	 */
+	@Override
+	public boolean shutdown() throws KeyValueStoreClientException {
+		store = null;
+		return true;
+	}
+
+	@Override
+	public boolean isAlive() {
+		return store != null;
+	}
+
+	@Override
+	public byte[] get(String key) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		MappedLogStore.Item item = store.get(key);
+		return readChunks(key, item == null ? null : item.getData());
+	}
+
+	@Override
+	public Map<String, byte[]> getBulk(Collection<String> keys) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		return readChunks(getChunks(keys));
+	}
+
+	@Override
+	protected Map<String, byte[]> getChunks(Collection<String> keys) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		Map<String, byte[]> result = new HashMap<String, byte[]>();
+		for (Map.Entry<String, MappedLogStore.Item> item: store.getBulk(keys).entrySet()) {
+			result.put(item.getKey(), item.getValue().getData());
+		}
+		return result;
+	}
+
+	@Override
+	public boolean set(String key, long version, byte[] raw) throws KeyValueStoreClientException {
+		return this.set(key, version, raw, FOREVER);
+	}
+
+	@Override
+	public boolean set(String key, long version, byte[] raw, int exp) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		if (isChunked(raw)) {
+			raw = writeChunks(key, raw, exp);
+		}
+		return store.set(key, raw, version, expiryTimeMillis(exp));
+	}
+
+	@Override
+	protected boolean setChunks(Map<String, byte[]> chunks, int exp) throws KeyValueStoreClientException {
+		for (Map.Entry<String, byte[]> chunk: chunks.entrySet()) {
+			if (!store.set(chunk.getKey(), chunk.getValue(), 0, expiryTimeMillis(exp))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	protected void removeChunks(Collection<String> keys) throws KeyValueStoreClientException {
+		for (String key: keys) {
+			store.delete(key);
+		}
+	}
+
+	@Override
+	protected boolean touchChunks(Collection<String> keys, int exp) throws KeyValueStoreClientException {
+		boolean result = true;
+		for (String key: keys) {
+			result &= store.touch(key, expiryTimeMillis(exp));
+		}
+		return result;
+	}
+
+	@Override
+	public boolean touch(String key, int exp) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		extendChunks(key, exp);
+		return store.touch(key, expiryTimeMillis(exp));
+	}
+
+	@Override
+	public boolean add(String key, long version, byte[] raw) throws KeyValueStoreClientException {
+		return this.add(key, version, raw, FOREVER);
+	}
+
+	@Override
+	public boolean add(String key, long version, byte[] raw, int exp) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		if (isChunked(raw)) {
+			raw = writeChunks(key, raw, exp);
+		}
+		return store.add(key, raw, version, expiryTimeMillis(exp));
+	}
+
+	@Override
+	public boolean cas(String key, long expectedVersion, byte[] raw, int exp) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		if (isChunked(raw)) {
+			// fail fast before writing the chunks. chunks of a write which loses the race below are never referenced
+			// by a header and go away with their expiry.
+			if (version(key) != expectedVersion) {
+				return false;
+			}
+			raw = writeChunks(key, raw, exp);
+		}
+		return store.cas(key, expectedVersion, raw, expiryTimeMillis(exp));
+	}
+
+	@Override
+	public boolean delete(String key) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		deleteChunks(key);
+		store.delete(key);
+		return true;
+	}
+
+	@Override
+	public CompletableFuture<byte[]> getAsync(String key) {
+		return callAsync(() -> get(key));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> setAsync(String key, long version, byte[] raw, int exp) {
+		return callAsync(() -> set(key, version, raw, exp));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> addAsync(String key, long version, byte[] raw, int exp) {
+		return callAsync(() -> add(key, version, raw, exp));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> deleteAsync(String key) {
+		return callAsync(() -> delete(key));
+	}
+
+	/**
+	 * nothing blocks here. complete the futures on the calling thread.
+	 */
+	@Override
+	protected Executor newAsyncExecutor() {
+		return Runnable::run;
+	}
+
+	@Override
+	public boolean exists(String key) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		return store.exists(key);
+	}
+
+	@Override
+	public long version(String key) {
+		return isAlive() ? store.version(key) : 0;
+	}
+
+	public MappedLogStore getStore() {
+		return store;
+	}
+}
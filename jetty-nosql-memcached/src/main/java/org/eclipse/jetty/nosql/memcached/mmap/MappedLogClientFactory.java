@@ -0,0 +1,31 @@
+package org.eclipse.jetty.nosql.memcached.mmap;
+
+import java.io.File;
+
+import org.eclipse.jetty.nosql.kvs.AbstractKeyValueStoreClient;
+import org.eclipse.jetty.nosql.memcached.AbstractMemcachedClientFactory;
+
+public class MappedLogClientFactory extends AbstractMemcachedClientFactory {
+	private File _directory = new File(System.getProperty("java.io.tmpdir"), "jetty-nosql-sessions");
+
+	@Override
+	public AbstractKeyValueStoreClient create(String serverString) {
+		return new MappedLogClient(serverString, _directory);
+	}
+
+	public File getDirectory() {
+		return _directory;
+	}
+
+	/**
+	 * @param directory where the log segments are kept. only one process may use it at a time.
+	 */
+	public void setDirectory(File directory) {
+		this._directory = directory;
+	}
+
+	public void setDirectory(String directory) {
+		this._directory = new File(directory);
+	}
+
+}
@@ -0,0 +1,631 @@
+package org.eclipse.jetty.nosql.memcached.mmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Key-value store in a directory of memory mapped, append-only log segments.
+ *
+ * Every write appends a record to the active segment and points the in-memory index at it. Deletes append a
+ * tombstone, so that they survive restarts as well. On open, the segments are replayed in order to rebuild the index.
+ * A record is only visible to the replay after its length has been written, which happens last, and it carries a
+ * checksum, so a write torn by a crash is ignored.
+ *
+ * Reads copy the value straight out of the mapped segment and take no lock. A background task drops expired entries
+ * from the index, flushes the active segment, and compacts segments which are mostly garbage by appending their live
+ * records to the active segment and deleting the file.
+ *
+ * A directory can only be opened by one process at a time. Clients of the same directory within a process share the
+ * store returned by {@link #getInstance(File)}.
+ */
+public class MappedLogStore {
+	private static final Logger log = Log.getLogger("org.eclipse.jetty.nosql.memcached.mmap.MappedLogStore");
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	public static final long DEFAULT_COMPACTION_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(60);
+	public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+	public static final long FOREVER = 0;
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+	// length, type, version, expiry, key length, value length, checksum
+	private static final int RECORD_OVERHEAD = 4 + 1 + 8 + 8 + 4 + 4 + 4;
+	private static final Pattern SEGMENT_NAME = Pattern.compile("([0-9a-f]{16})\\.log");
+
+	private static final ConcurrentMap<File, MappedLogStore> stores = new ConcurrentHashMap<File, MappedLogStore>();
+
+	public static class Item {
+		private final byte[] data;
+		private final long version;
+		private final long expiry;
+		Item(byte[] raw, long ver, long exp) {
+			data = raw;
+			version = ver;
+			expiry = exp;
+		}
+		public byte[] getData() {
+			return data;
+		}
+		public long getVersion() {
+			return version;
+		}
+		public long getExpiry() {
+			return expiry;
+		}
+	}
+
+	private static class Segment {
+		private final long id;
+		private final File file;
+		private final FileChannel channel;
+		private final MappedByteBuffer buffer;
+		private int position = 0;
+		// bytes of records the index still points at
+		private long live = 0;
+
+		Segment(long id, File file, int size) throws IOException {
+			this.id = id;
+			this.file = file;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				this.channel = raf.getChannel();
+				this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, raf.length()));
+			} catch (IOException error) {
+				raf.close();
+				throw error;
+			}
+		}
+
+		int capacity() {
+			return buffer.capacity();
+		}
+
+		/**
+		 * a view of the segment for a single reader or writer, so that nobody shares the position of the buffer.
+		 */
+		ByteBuffer view(int offset) {
+			ByteBuffer view = buffer.duplicate();
+			((Buffer) view).position(offset);
+			return view;
+		}
+
+		void close() {
+			try {
+				buffer.force();
+				channel.close();
+			} catch (IOException error) {
+				log.warn("unable to close " + file, error);
+			}
+		}
+	}
+
+	private static class Location {
+		private final Segment segment;
+		private final int offset;
+		private final int length;
+		private final int valueOffset;
+		private final int valueLength;
+		private final long version;
+		private final long expiry;
+		Location(Segment segment, int offset, int length, int valueOffset, int valueLength, long version, long expiry) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.valueOffset = valueOffset;
+			this.valueLength = valueLength;
+			this.version = version;
+			this.expiry = expiry;
+		}
+		boolean isExpired(long now) {
+			return expiry != FOREVER && expiry <= now;
+		}
+		byte[] read() {
+			byte[] raw = new byte[valueLength];
+			segment.view(valueOffset).get(raw);
+			return raw;
+		}
+	}
+
+	private final File directory;
+	private final int segmentSize;
+	private final ConcurrentMap<String, Location> index = new ConcurrentHashMap<String, Location>();
+	private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+	private final FileChannel lockChannel;
+	private final FileLock lock;
+	private Segment active;
+	private volatile double compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+	private ScheduledExecutorService maintenance = null;
+	private boolean closed = false;
+
+	/**
+	 * open the store and replay the segments found in the directory.
+	 *
+	 * @param directory created if it does not exist
+	 * @param segmentSize size of the log segments, and the upper bound of the size of a single value
+	 */
+	public MappedLogStore(File directory, int segmentSize) throws IOException {
+		if (segmentSize <= RECORD_OVERHEAD) {
+			throw new IllegalArgumentException("segment size too small: " + segmentSize);
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("unable to create " + directory);
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.lockChannel = new RandomAccessFile(new File(directory, "lock"), "rw").getChannel();
+		FileLock acquired = null;
+		try {
+			acquired = lockChannel.tryLock();
+		} catch (OverlappingFileLockException error) {
+			// held by another store of this process
+		} catch (IOException error) {
+			lockChannel.close();
+			throw error;
+		}
+		if (acquired == null) {
+			lockChannel.close();
+			throw new IOException(directory + " is used by another store");
+		}
+		this.lock = acquired;
+		try {
+			replay();
+		} catch (IOException error) {
+			close();
+			throw error;
+		}
+	}
+
+	/**
+	 * @return the store shared by all clients of the directory, opened with the default segment size if necessary
+	 */
+	public static MappedLogStore getInstance(File directory) throws IOException {
+		File key = directory.getCanonicalFile();
+		MappedLogStore store = stores.get(key);
+		if (store == null) {
+			synchronized (stores) {
+				store = stores.get(key);
+				if (store == null) {
+					store = new MappedLogStore(key, DEFAULT_SEGMENT_SIZE);
+					store.startMaintenance(DEFAULT_COMPACTION_INTERVAL_MILLIS);
+					stores.put(key, store);
+				}
+			}
+		}
+		return store;
+	}
+
+	private void replay() throws IOException {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file: files) {
+				Matcher m = SEGMENT_NAME.matcher(file.getName());
+				if (m.matches()) {
+					long id = Long.parseLong(m.group(1), 16);
+					segments.put(id, new Segment(id, file, segmentSize));
+				}
+			}
+		}
+		long now = System.currentTimeMillis();
+		for (Segment segment: segments.values()) {
+			ByteBuffer view = segment.view(0);
+			int offset = 0;
+			Location location;
+			while ((location = readRecord(segment, view, offset)) != null) {
+				String key = readKey(segment, offset);
+				if (location.valueOffset < 0 || location.isExpired(now)) {
+					unlink(index.remove(key));
+				} else {
+					segment.live += location.length;
+					unlink(index.put(key, location));
+				}
+				offset += location.length;
+			}
+			segment.position = offset;
+		}
+		if (segments.isEmpty()) {
+			roll();
+		} else {
+			active = segments.lastEntry().getValue();
+			// clear the remains of a torn write, so that no stale record shows up behind the records appended next
+			if (active.position + 4 <= active.capacity() && active.buffer.getInt(active.position) != 0) {
+				for (int i = active.position; i < active.capacity(); i++) {
+					active.buffer.put(i, (byte) 0);
+				}
+			}
+		}
+		log.info("opened " + directory + ": " + segments.size() + " segments, " + index.size() + " entries");
+	}
+
+	/**
+	 * @return the location of the record at the offset, or null at the end of the data or at a torn record. the
+	 *         value offset of a tombstone is -1.
+	 */
+	private static Location readRecord(Segment segment, ByteBuffer view, int offset) {
+		if (segment.capacity() - offset < RECORD_OVERHEAD) {
+			return null;
+		}
+		int length = view.getInt(offset);
+		if (length < RECORD_OVERHEAD || segment.capacity() - offset < length) {
+			return null;
+		}
+		CRC32 crc = new CRC32();
+		ByteBuffer body = segment.view(offset + 4);
+		((Buffer) body).limit(offset + length - 4);
+		crc.update(body);
+		if ((int) crc.getValue() != view.getInt(offset + length - 4)) {
+			return null;
+		}
+		byte type = view.get(offset + 4);
+		long version = view.getLong(offset + 5);
+		long expiry = view.getLong(offset + 13);
+		int keyLength = view.getInt(offset + 21);
+		int valueLength = view.getInt(offset + 25 + keyLength);
+		int valueOffset = type == PUT ? offset + 29 + keyLength : -1;
+		return new Location(segment, offset, length, valueOffset, valueLength, version, expiry);
+	}
+
+	private static String readKey(Segment segment, int offset) {
+		ByteBuffer view = segment.view(offset + 21);
+		byte[] key = new byte[view.getInt()];
+		view.get(key);
+		return new String(key, StandardCharsets.UTF_8);
+	}
+
+	private void unlink(Location location) {
+		if (location != null) {
+			location.segment.live -= location.length;
+		}
+	}
+
+	private void roll() throws IOException {
+		long id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+		Segment segment = new Segment(id, new File(directory, String.format("%016x.log", id)), segmentSize);
+		segments.put(id, segment);
+		if (active != null) {
+			active.buffer.force();
+		}
+		active = segment;
+	}
+
+	/**
+	 * append a record to the active segment. the length goes in last, which makes the record visible to a replay.
+	 */
+	private Location append(byte type, byte[] key, long version, long expiry, byte[] raw) throws IOException {
+		int valueLength = raw == null ? 0 : raw.length;
+		int length = RECORD_OVERHEAD + key.length + valueLength;
+		if (segmentSize < length) {
+			return null;
+		}
+		if (active.capacity() - active.position < length) {
+			roll();
+		}
+		int offset = active.position;
+		ByteBuffer view = active.view(offset + 4);
+		view.put(type).putLong(version).putLong(expiry).putInt(key.length).put(key).putInt(valueLength);
+		if (raw != null) {
+			view.put(raw);
+		}
+		CRC32 crc = new CRC32();
+		ByteBuffer body = active.view(offset + 4);
+		((Buffer) body).limit(offset + length - 4);
+		crc.update(body);
+		view.putInt((int) crc.getValue());
+		active.buffer.putInt(offset, length);
+		active.position += length;
+		if (type == PUT) {
+			active.live += length;
+		}
+		return new Location(active, offset, length, type == PUT ? offset + 29 + key.length : -1, valueLength, version, expiry);
+	}
+
+	private boolean put(String key, byte[] raw, long version, long expiry) {
+		try {
+			Location location = append(PUT, key.getBytes(StandardCharsets.UTF_8), version, expiry, raw);
+			if (location == null) {
+				log.warn("value too large for a segment of " + segmentSize + " bytes: key=" + key + ", length=" + raw.length);
+				return false;
+			}
+			unlink(index.put(key, location));
+			return true;
+		} catch (IOException error) {
+			log.warn("unable to append to " + directory + ": key=" + key, error);
+			return false;
+		}
+	}
+
+	private Location lookup(String key, long now) {
+		Location location = index.get(key);
+		return location == null || location.isExpired(now) ? null : location;
+	}
+
+	public Item get(String key) {
+		Location location = lookup(key, System.currentTimeMillis());
+		return location == null ? null : new Item(location.read(), location.version, location.expiry);
+	}
+
+	public Map<String, Item> getBulk(Collection<String> keys) {
+		Map<String, Item> result = new HashMap<String, Item>();
+		long now = System.currentTimeMillis();
+		for (String key: keys) {
+			Location location = lookup(key, now);
+			if (location != null) {
+				result.put(key, new Item(location.read(), location.version, location.expiry));
+			}
+		}
+		return result;
+	}
+
+	public long version(String key) {
+		Location location = lookup(key, System.currentTimeMillis());
+		return location == null ? 0 : location.version;
+	}
+
+	public boolean exists(String key) {
+		return lookup(key, System.currentTimeMillis()) != null;
+	}
+
+	/**
+	 * @return false if the value is larger than a segment, or it could not be written
+	 */
+	public synchronized boolean set(String key, byte[] raw, long version, long expiry) {
+		checkOpen();
+		return put(key, raw, version, expiry);
+	}
+
+	/**
+	 * @return false if a live value already exists for the key
+	 */
+	public synchronized boolean add(String key, byte[] raw, long version, long expiry) {
+		checkOpen();
+		if (lookup(key, System.currentTimeMillis()) != null) {
+			return false;
+		}
+		return put(key, raw, version, expiry);
+	}
+
+	/**
+	 * replace the value if its version equals expectedVersion. expectedVersion 0 only succeeds if there is no value.
+	 * the new value gets expectedVersion + 1.
+	 */
+	public synchronized boolean cas(String key, long expectedVersion, byte[] raw, long expiry) {
+		checkOpen();
+		Location location = lookup(key, System.currentTimeMillis());
+		long version = location == null ? 0 : location.version;
+		if (version != expectedVersion || (location != null && expectedVersion == 0)) {
+			return false;
+		}
+		return put(key, raw, expectedVersion + 1, expiry);
+	}
+
+	/**
+	 * records are checksummed and never changed in place. the value is appended again with the new expiry.
+	 * 
+	 * @return false if there is no live value for the key, or it could not be written
+	 */
+	public synchronized boolean touch(String key, long expiry) {
+		checkOpen();
+		Location location = lookup(key, System.currentTimeMillis());
+		if (location == null) {
+			return false;
+		}
+		return put(key, location.read(), location.version, expiry);
+	}
+
+	public synchronized boolean delete(String key) {
+		checkOpen();
+		Location location = index.remove(key);
+		if (location == null) {
+			return false;
+		}
+		unlink(location);
+		try {
+			append(DELETE, key.getBytes(StandardCharsets.UTF_8), 0, FOREVER, null);
+		} catch (IOException error) {
+			log.warn("unable to append to " + directory + ": key=" + key, error);
+		}
+		return true;
+	}
+
+	/**
+	 * drop expired entries from the index. their records are garbage from now on, even after a restart.
+	 */
+	public synchronized void sweep() {
+		long now = System.currentTimeMillis();
+		for (Iterator<Map.Entry<String, Location>> it = index.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Location> entry = it.next();
+			if (entry.getValue().isExpired(now) && index.remove(entry.getKey(), entry.getValue())) {
+				unlink(entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * rewrite the live records of all inactive segments whose ratio of live bytes is below the threshold, oldest
+	 * first, and delete them.
+	 *
+	 * @return number of segments deleted
+	 */
+	public synchronized int compact() {
+		checkOpen();
+		List<Segment> candidates = new ArrayList<Segment>();
+		for (Segment segment: segments.values()) {
+			if (segment != active && segment.live < compactionThreshold * segment.position) {
+				candidates.add(segment);
+			}
+		}
+		int compacted = 0;
+		for (Segment segment: candidates) {
+			try {
+				compact(segment);
+				compacted++;
+			} catch (IOException error) {
+				log.warn("unable to compact " + segment.file, error);
+				break;
+			}
+		}
+		return compacted;
+	}
+
+	private void compact(Segment segment) throws IOException {
+		// tombstones only need to survive while an older segment may hold a value they delete
+		boolean oldest = segments.firstKey() == segment.id;
+		long now = System.currentTimeMillis();
+		ByteBuffer view = segment.view(0);
+		int offset = 0;
+		Location location;
+		while (offset < segment.position && (location = readRecord(segment, view, offset)) != null) {
+			String key = readKey(segment, offset);
+			Location current = index.get(key);
+			if (0 <= location.valueOffset) {
+				if (current != null && current.segment == segment && current.offset == offset) {
+					if (current.isExpired(now)) {
+						index.remove(key);
+						if (!oldest) {
+							append(DELETE, key.getBytes(StandardCharsets.UTF_8), 0, FOREVER, null);
+						}
+					} else {
+						Location moved = append(PUT, key.getBytes(StandardCharsets.UTF_8), current.version, current.expiry, current.read());
+						index.put(key, moved);
+					}
+				}
+			} else if (current == null && !oldest) {
+				append(DELETE, key.getBytes(StandardCharsets.UTF_8), 0, FOREVER, null);
+			}
+			offset += location.length;
+		}
+		// make sure the moved records are on disk before the originals go away
+		active.buffer.force();
+		segments.remove(segment.id);
+		segment.close();
+		if (!segment.file.delete()) {
+			log.warn("unable to delete " + segment.file);
+		}
+	}
+
+	/**
+	 * flush the active segment to disk.
+	 */
+	public synchronized void force() {
+		if (!closed) {
+			active.buffer.force();
+		}
+	}
+
+	/**
+	 * sweep, compact and flush periodically in the background.
+	 */
+	public synchronized void startMaintenance(long intervalMillis) {
+		if (maintenance != null) {
+			return;
+		}
+		maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "MappedLogStore-maintenance");
+			thread.setDaemon(true);
+			return thread;
+		});
+		maintenance.scheduleWithFixedDelay(() -> {
+			try {
+				sweep();
+				compact();
+				force();
+			} catch (RuntimeException error) {
+				log.warn("unable to maintain " + directory, error);
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (maintenance != null) {
+			maintenance.shutdown();
+		}
+		for (Segment segment: segments.values()) {
+			segment.close();
+		}
+		try {
+			lock.release();
+			lockChannel.close();
+		} catch (IOException error) {
+			log.warn("unable to release the lock of " + directory, error);
+		}
+		stores.remove(directory, this);
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException(directory + " is closed");
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public int getSize() {
+		return index.size();
+	}
+
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * @return bytes of records still referenced by the index
+	 */
+	public synchronized long getLiveBytes() {
+		long live = 0;
+		for (Segment segment: segments.values()) {
+			live += segment.live;
+		}
+		return live;
+	}
+
+	/**
+	 * @return bytes of all records written to the segments
+	 */
+	public synchronized long getBytes() {
+		long bytes = 0;
+		for (Segment segment: segments.values()) {
+			bytes += segment.position;
+		}
+		return bytes;
+	}
+
+	public double getCompactionThreshold() {
+		return compactionThreshold;
+	}
+
+	/**
+	 * @param compactionThreshold compact inactive segments whose ratio of live bytes falls below this
+	 */
+	public void setCompactionThreshold(double compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+	}
+}
@@ -0,0 +1,216 @@
+package org.eclipse.jetty.nosql.memcached.offheap;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import org.eclipse.jetty.nosql.kvs.IAsyncKeyValueStoreClient;
+import org.eclipse.jetty.nosql.kvs.KeyValueStoreClientException;
+import org.eclipse.jetty.nosql.memcached.AbstractMemcachedClient;
+
+/**
+ * Embedded client which keeps sessions in {@link OffHeapStore}, outside of the java heap.
+ * meant for single host deployments, where memcached would only add a network hop.
+ */
+public class OffHeapClient extends AbstractMemcachedClient implements IAsyncKeyValueStoreClient {
+	private static final int FOREVER = 0;
+	private final OffHeapStore store;
+
+	public OffHeapClient() {
+		this("127.0.0.1:11211");
+	}
+
+	/**
+	 * clients of the same server string share the same store.
+	 */
+	public OffHeapClient(String serverString) {
+		super(serverString);
+		this.store = OffHeapStore.getInstance(_serverString);
+	}
+
+	public OffHeapClient(String serverString, OffHeapStore store) {
+		super(serverString);
+		this.store = store;
+	}
+
+	@Override
+	public boolean establish() throws KeyValueStoreClientException {
+		if (isAlive()) {
+			shutdown();
+		}
+		return true;
+	}
+
+	@Override
+	public boolean shutdown() throws KeyValueStoreClientException {
+		return true;
+	}
+
+	@Override
+	public boolean isAlive() {
+		return store != null;
+	}
+
+	@Override
+	public byte[] get(String key) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		OffHeapStore.Item item = store.get(key);
+		return readChunks(key, item == null ? null : item.getData());
+	}
+
+	@Override
+	public Map<String, byte[]> getBulk(Collection<String> keys) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		return readChunks(getChunks(keys));
+	}
+
+	@Override
+	protected Map<String, byte[]> getChunks(Collection<String> keys) throws KeyValueStoreClientException {
+		Map<String, byte[]> result = new HashMap<String, byte[]>();
+		for (Map.Entry<String, OffHeapStore.Item> item: store.getBulk(keys).entrySet()) {
+			result.put(item.getKey(), item.getValue().getData());
+		}
+		return result;
+	}
+
+	@Override
+	public boolean set(String key, long version, byte[] raw) throws KeyValueStoreClientException {
+		return this.set(key, version, raw, FOREVER);
+	}
+
+	@Override
+	public boolean set(String key, long version, byte[] raw, int exp) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		if (isChunked(raw)) {
+			raw = writeChunks(key, raw, exp);
+		}
+		return store.set(key, raw, version, expiryTimeMillis(exp));
+	}
+
+	@Override
+	protected boolean setChunks(Map<String, byte[]> chunks, int exp) throws KeyValueStoreClientException {
+		for (Map.Entry<String, byte[]> chunk: chunks.entrySet()) {
+			if (!store.set(chunk.getKey(), chunk.getValue(), 0, expiryTimeMillis(exp))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	protected void removeChunks(Collection<String> keys) throws KeyValueStoreClientException {
+		for (String key: keys) {
+			store.delete(key);
+		}
+	}
+
+	@Override
+	protected boolean touchChunks(Collection<String> keys, int exp) throws KeyValueStoreClientException {
+		boolean result = true;
+		for (String key: keys) {
+			result &= store.touch(key, expiryTimeMillis(exp));
+		}
+		return result;
+	}
+
+	@Override
+	public boolean touch(String key, int exp) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		extendChunks(key, exp);
+		return store.touch(key, expiryTimeMillis(exp));
+	}
+
+	@Override
+	public boolean add(String key, long version, byte[] raw) throws KeyValueStoreClientException {
+		return this.add(key, version, raw, FOREVER);
+	}
+
+	@Override
+	public boolean add(String key, long version, byte[] raw, int exp) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		if (isChunked(raw)) {
+			raw = writeChunks(key, raw, exp);
+		}
+		return store.add(key, raw, version, expiryTimeMillis(exp));
+	}
+
+	@Override
+	public boolean cas(String key, long expectedVersion, byte[] raw, int exp) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		if (isChunked(raw)) {
+			// fail fast before writing the chunks. chunks of a write which loses the race below are never referenced
+			// by a header and go away with their expiry.
+			if (version(key) != expectedVersion) {
+				return false;
+			}
+			raw = writeChunks(key, raw, exp);
+		}
+		return store.cas(key, expectedVersion, raw, expiryTimeMillis(exp));
+	}
+
+	@Override
+	public boolean delete(String key) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		deleteChunks(key);
+		store.delete(key);
+		return true;
+	}
+
+	@Override
+	public CompletableFuture<byte[]> getAsync(String key) {
+		return callAsync(() -> get(key));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> setAsync(String key, long version, byte[] raw, int exp) {
+		return callAsync(() -> set(key, version, raw, exp));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> addAsync(String key, long version, byte[] raw, int exp) {
+		return callAsync(() -> add(key, version, raw, exp));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> deleteAsync(String key) {
+		return callAsync(() -> delete(key));
+	}
+
+	/**
+	 * nothing blocks here. complete the futures on the calling thread.
+	 */
+	@Override
+	protected Executor newAsyncExecutor() {
+		return Runnable::run;
+	}
+
+	@Override
+	public boolean exists(String key) throws KeyValueStoreClientException {
+		return store.exists(key);
+	}
+
+	@Override
+	public long version(String key) {
+		return store.version(key);
+	}
+
+	public OffHeapStore getStore() {
+		return store;
+	}
+}
@@ -0,0 +1,27 @@
+package org.eclipse.jetty.nosql.memcached.offheap;
+
+import org.eclipse.jetty.nosql.kvs.AbstractKeyValueStoreClient;
+import org.eclipse.jetty.nosql.memcached.AbstractMemcachedClientFactory;
+
+public class OffHeapClientFactory extends AbstractMemcachedClientFactory {
+	private long _maxBytes = OffHeapStore.DEFAULT_MAX_BYTES;
+
+	@Override
+	public AbstractKeyValueStoreClient create(String serverString) {
+		OffHeapClient client = new OffHeapClient(serverString);
+		client.getStore().setMaxBytes(_maxBytes);
+		return client;
+	}
+
+	public long getMaxBytes() {
+		return _maxBytes;
+	}
+
+	/**
+	 * @param maxBytes direct memory the store of a server string may allocate for sessions.
+	 */
+	public void setMaxBytes(long maxBytes) {
+		this._maxBytes = maxBytes;
+	}
+
+}
@@ -0,0 +1,711 @@
+package org.eclipse.jetty.nosql.memcached.offheap;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * In-process key-value store keeping values outside of the java heap.
+ *
+ * Values are copied into pages of direct memory, which are cut into chunks of a fixed size per slab class like the
+ * slab allocator of memcached. Only an open addressing index of key to (slab class, chunk, length, expiry, version)
+ * lives on the heap, so the heap stays small and the cost of garbage collection does not grow with the number of
+ * sessions.
+ *
+ * Keys are spread over segments, each guarded by its own lock and owning its own index and slab classes. Pages are
+ * allocated from a budget shared by all segments. Once it is used up, the chunk of a value is taken from another
+ * value of the same slab class with the clock algorithm, or a whole page is taken from the slab class holding the
+ * most pages in the segment. A segment without any page takes one from the segment holding the most pages, which is
+ * handed over through a queue of spare pages so that no segment is locked while holding the lock of another.
+ *
+ * Clients created with the same server string share the store returned by {@link #getInstance(String)}, just like
+ * clients connecting to the same memcached.
+ */
+public class OffHeapStore {
+	private static final Logger log = Log.getLogger("org.eclipse.jetty.nosql.memcached.offheap.OffHeapStore");
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+	public static final int DEFAULT_SEGMENTS = 16;
+	public static final int DEFAULT_PAGE_SIZE = 1024 * 1024;
+	public static final long FOREVER = 0;
+	private static final int MIN_CHUNK_SIZE = 64;
+	private static final double GROWTH_FACTOR = 1.25;
+	private static final int INITIAL_INDEX_CAPACITY = 64;
+
+	private static final ConcurrentMap<String, OffHeapStore> stores = new ConcurrentHashMap<String, OffHeapStore>();
+
+	public static class Item {
+		private final byte[] data;
+		private final long version;
+		private final long expiry;
+		Item(byte[] raw, long ver, long exp) {
+			data = raw;
+			version = ver;
+			expiry = exp;
+		}
+		public byte[] getData() {
+			return data;
+		}
+		public long getVersion() {
+			return version;
+		}
+		public long getExpiry() {
+			return expiry;
+		}
+	}
+
+	/**
+	 * chunks of a single size. a chunk is addressed by its number, page number times chunks per page plus the
+	 * position in the page. pages taken by another slab class leave a hole which is filled first on growth.
+	 */
+	private final class SlabClass {
+		private final int chunkSize;
+		private final int chunksPerPage;
+		private ByteBuffer[] pages = new ByteBuffer[0];
+		private String[] owners = new String[0];
+		private final BitSet referenced = new BitSet();
+		private int[] free = new int[0];
+		private int freeCount = 0;
+		private int livePages = 0;
+		private int hand = 0;
+
+		SlabClass(int chunkSize) {
+			this.chunkSize = chunkSize;
+			this.chunksPerPage = pageSize / chunkSize;
+		}
+
+		void addPage(ByteBuffer page) {
+			int p = 0;
+			while (p < pages.length && pages[p] != null) {
+				p++;
+			}
+			if (p == pages.length) {
+				pages = Arrays.copyOf(pages, Math.max(1, pages.length * 2));
+				owners = Arrays.copyOf(owners, pages.length * chunksPerPage);
+			}
+			pages[p] = page;
+			livePages++;
+			if (free.length < owners.length) {
+				free = Arrays.copyOf(free, owners.length);
+			}
+			// push in reverse, so that chunks are handed out from the start of the page
+			for (int i = chunksPerPage - 1; 0 <= i; i--) {
+				free[freeCount++] = p * chunksPerPage + i;
+			}
+		}
+
+		/**
+		 * @return the page, after dropping all values stored in it
+		 */
+		ByteBuffer removePage(Segment segment, int p) {
+			int from = p * chunksPerPage;
+			int to = from + chunksPerPage;
+			for (int chunk = from; chunk < to; chunk++) {
+				if (owners[chunk] != null) {
+					segment.remove(owners[chunk]);
+					evictions.incrementAndGet();
+				}
+			}
+			int n = 0;
+			for (int i = 0; i < freeCount; i++) {
+				if (free[i] < from || to <= free[i]) {
+					free[n++] = free[i];
+				}
+			}
+			freeCount = n;
+			ByteBuffer page = pages[p];
+			pages[p] = null;
+			livePages--;
+			return page;
+		}
+
+		int pop() {
+			return freeCount == 0 ? -1 : free[--freeCount];
+		}
+
+		void release(int chunk) {
+			owners[chunk] = null;
+			referenced.clear(chunk);
+			free[freeCount++] = chunk;
+		}
+
+		/**
+		 * the clock algorithm. values read since the hand passed them last get a second chance, expired values are
+		 * taken first.
+		 */
+		int evict(Segment segment, long now) {
+			int chunks = pages.length * chunksPerPage;
+			for (int i = 0; i < 2 * chunks + 1; i++) {
+				int chunk = hand;
+				hand = (hand + 1) % chunks;
+				if (pages[chunk / chunksPerPage] == null || owners[chunk] == null) {
+					continue;
+				}
+				String owner = owners[chunk];
+				int slot = segment.find(owner);
+				boolean expired = segment.isExpired(slot, now);
+				if (!expired && referenced.get(chunk)) {
+					referenced.clear(chunk);
+					continue;
+				}
+				segment.remove(owner);
+				(expired ? expirations : evictions).incrementAndGet();
+				// remove() put the chunk onto the free list
+				return pop();
+			}
+			return -1;
+		}
+
+		void write(int chunk, byte[] raw) {
+			ByteBuffer page = pages[chunk / chunksPerPage];
+			((Buffer) page).position((chunk % chunksPerPage) * chunkSize);
+			page.put(raw);
+		}
+
+		byte[] read(int chunk, int length) {
+			ByteBuffer page = pages[chunk / chunksPerPage];
+			((Buffer) page).position((chunk % chunksPerPage) * chunkSize);
+			byte[] raw = new byte[length];
+			page.get(raw);
+			return raw;
+		}
+	}
+
+	private final class Segment {
+		private String[] keys;
+		private byte[] classes;
+		private int[] chunks;
+		private int[] lengths;
+		private long[] expiries;
+		private long[] versions;
+		private int size = 0;
+		private long bytes = 0;
+		private final SlabClass[] slabs;
+		// set by the last put if it failed since the segment holds no page at all
+		private boolean starved = false;
+
+		Segment() {
+			allocateIndex(INITIAL_INDEX_CAPACITY);
+			slabs = new SlabClass[chunkSizes.length];
+			for (int i = 0; i < chunkSizes.length; i++) {
+				slabs[i] = new SlabClass(chunkSizes[i]);
+			}
+		}
+
+		private void allocateIndex(int capacity) {
+			keys = new String[capacity];
+			classes = new byte[capacity];
+			chunks = new int[capacity];
+			lengths = new int[capacity];
+			expiries = new long[capacity];
+			versions = new long[capacity];
+		}
+
+		private int home(String key) {
+			int h = key.hashCode() * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & (keys.length - 1);
+		}
+
+		int find(String key) {
+			int mask = keys.length - 1;
+			for (int i = home(key); keys[i] != null; i = (i + 1) & mask) {
+				if (keys[i].equals(key)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		boolean isExpired(int slot, long now) {
+			return expiries[slot] != FOREVER && expiries[slot] <= now;
+		}
+
+		/**
+		 * @return the slot of a live value, dropping it if it has expired
+		 */
+		int lookup(String key, long now) {
+			int slot = find(key);
+			if (0 <= slot && isExpired(slot, now)) {
+				remove(key);
+				expirations.incrementAndGet();
+				slot = -1;
+			}
+			return slot;
+		}
+
+		Item get(String key, long now) {
+			int slot = lookup(key, now);
+			if (slot < 0) {
+				return null;
+			}
+			SlabClass slab = slabs[classes[slot]];
+			slab.referenced.set(chunks[slot]);
+			return new Item(slab.read(chunks[slot], lengths[slot]), versions[slot], expiries[slot]);
+		}
+
+		boolean put(String key, byte[] raw, long version, long expiry, long now) {
+			remove(key);
+			int cls = slabClassOf(raw.length);
+			if (cls < 0) {
+				log.warn("value too large for a page of " + pageSize + " bytes: key=" + key + ", length=" + raw.length);
+				return false;
+			}
+			SlabClass slab = slabs[cls];
+			int chunk = allocate(slab, now);
+			if (chunk < 0) {
+				starved = pages() == 0;
+				if (!starved) {
+					log.warn("out of memory: key=" + key + ", length=" + raw.length);
+				}
+				return false;
+			}
+			slab.write(chunk, raw);
+			slab.owners[chunk] = key;
+			if (keys.length * 3 < (size + 1) * 4) {
+				resize(keys.length * 2);
+			}
+			int mask = keys.length - 1;
+			int i = home(key);
+			while (keys[i] != null) {
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+			classes[i] = (byte) cls;
+			chunks[i] = chunk;
+			lengths[i] = raw.length;
+			expiries[i] = expiry;
+			versions[i] = version;
+			size++;
+			bytes += raw.length;
+			return true;
+		}
+
+		private int allocate(SlabClass slab, long now) {
+			int chunk = slab.pop();
+			if (0 <= chunk) {
+				return chunk;
+			}
+			ByteBuffer spare = sparePages.poll();
+			if (spare != null) {
+				slab.addPage(spare);
+				return slab.pop();
+			}
+			if (allocated.addAndGet(pageSize) <= maxBytes) {
+				slab.addPage(ByteBuffer.allocateDirect(pageSize));
+				return slab.pop();
+			}
+			allocated.addAndGet(-pageSize);
+			if (0 < slab.livePages) {
+				return slab.evict(this, now);
+			}
+			ByteBuffer page = takePage(slab);
+			if (page == null) {
+				return -1;
+			}
+			slab.addPage(page);
+			return slab.pop();
+		}
+
+		/**
+		 * @return a page of the slab class holding the most pages but the given one, after dropping all values stored in
+		 *         it. null if there is none.
+		 */
+		ByteBuffer takePage(SlabClass except) {
+			SlabClass victim = null;
+			for (SlabClass other: slabs) {
+				if (other != except && 0 < other.livePages && (victim == null || victim.livePages < other.livePages)) {
+					victim = other;
+				}
+			}
+			if (victim == null) {
+				return null;
+			}
+			int p = (victim.hand / victim.chunksPerPage);
+			while (victim.pages[p] == null) {
+				p = (p + 1) % victim.pages.length;
+			}
+			return victim.removePage(this, p);
+		}
+
+		int pages() {
+			int pages = 0;
+			for (SlabClass slab: slabs) {
+				pages += slab.livePages;
+			}
+			return pages;
+		}
+
+		boolean remove(String key) {
+			int i = find(key);
+			if (i < 0) {
+				return false;
+			}
+			slabs[classes[i]].release(chunks[i]);
+			bytes -= lengths[i];
+			size--;
+			keys[i] = null;
+			// shift back the following entries of the cluster, so that lookups never stop at the hole
+			int mask = keys.length - 1;
+			for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+				int k = home(keys[j]);
+				if ((j > i && (k <= i || k > j)) || (j < i && (k <= i && k > j))) {
+					move(j, i);
+					i = j;
+				}
+			}
+			return true;
+		}
+
+		private void move(int from, int to) {
+			keys[to] = keys[from];
+			classes[to] = classes[from];
+			chunks[to] = chunks[from];
+			lengths[to] = lengths[from];
+			expiries[to] = expiries[from];
+			versions[to] = versions[from];
+			keys[from] = null;
+		}
+
+		private void resize(int capacity) {
+			String[] oldKeys = keys;
+			byte[] oldClasses = classes;
+			int[] oldChunks = chunks;
+			int[] oldLengths = lengths;
+			long[] oldExpiries = expiries;
+			long[] oldVersions = versions;
+			allocateIndex(capacity);
+			int mask = capacity - 1;
+			for (int j = 0; j < oldKeys.length; j++) {
+				if (oldKeys[j] == null) {
+					continue;
+				}
+				int i = home(oldKeys[j]);
+				while (keys[i] != null) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = oldKeys[j];
+				classes[i] = oldClasses[j];
+				chunks[i] = oldChunks[j];
+				lengths[i] = oldLengths[j];
+				expiries[i] = oldExpiries[j];
+				versions[i] = oldVersions[j];
+			}
+		}
+
+		void clear() {
+			for (SlabClass slab: slabs) {
+				allocated.addAndGet(-(long) slab.livePages * pageSize);
+			}
+			allocateIndex(INITIAL_INDEX_CAPACITY);
+			for (int i = 0; i < slabs.length; i++) {
+				slabs[i] = new SlabClass(chunkSizes[i]);
+			}
+			size = 0;
+			bytes = 0;
+		}
+	}
+
+	private final int pageSize;
+	private final int[] chunkSizes;
+	private final Segment[] segments;
+	private volatile long maxBytes;
+	private final AtomicLong allocated = new AtomicLong();
+	// pages taken from a segment for another one which holds none
+	private final ConcurrentLinkedQueue<ByteBuffer> sparePages = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+
+	public OffHeapStore() {
+		this(DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * @param maxBytes upper bound of the direct memory allocated for values
+	 */
+	public OffHeapStore(long maxBytes) {
+		this(maxBytes, DEFAULT_SEGMENTS, DEFAULT_PAGE_SIZE);
+	}
+
+	/**
+	 * @param maxBytes upper bound of the direct memory allocated for values
+	 * @param segments number of independently locked partitions of the store
+	 * @param pageSize size of the pages of direct memory, and the largest value which can be stored
+	 */
+	public OffHeapStore(long maxBytes, int segments, int pageSize) {
+		if (segments <= 0 || pageSize < MIN_CHUNK_SIZE) {
+			throw new IllegalArgumentException("segments must be positive and pages must hold at least " + MIN_CHUNK_SIZE + " bytes");
+		}
+		this.pageSize = pageSize;
+		this.maxBytes = maxBytes;
+		List<Integer> sizes = new ArrayList<Integer>();
+		for (int size = MIN_CHUNK_SIZE; size < pageSize / 2; size = (int) Math.ceil(size * GROWTH_FACTOR / 8) * 8) {
+			sizes.add(size);
+		}
+		sizes.add(pageSize);
+		if (Byte.MAX_VALUE < sizes.size()) {
+			throw new IllegalArgumentException("too many slab classes for pages of " + pageSize + " bytes");
+		}
+		this.chunkSizes = new int[sizes.size()];
+		for (int i = 0; i < chunkSizes.length; i++) {
+			chunkSizes[i] = sizes.get(i);
+		}
+		this.segments = new Segment[segments];
+		for (int i = 0; i < segments; i++) {
+			this.segments[i] = new Segment();
+		}
+	}
+
+	/**
+	 * @return the store shared by all clients of the given server string
+	 */
+	public static OffHeapStore getInstance(String name) {
+		return stores.computeIfAbsent(name, n -> new OffHeapStore());
+	}
+
+	public Item get(String key) {
+		Segment segment = segment(key);
+		synchronized (segment) {
+			return segment.get(key, System.currentTimeMillis());
+		}
+	}
+
+	public Map<String, Item> getBulk(Collection<String> keys) {
+		Map<String, Item> result = new HashMap<String, Item>();
+		long now = System.currentTimeMillis();
+		for (String key: keys) {
+			Segment segment = segment(key);
+			synchronized (segment) {
+				Item item = segment.get(key, now);
+				if (item != null) {
+					result.put(key, item);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the version of the value, or 0 if there is none. the value itself is not copied.
+	 */
+	public long version(String key) {
+		Segment segment = segment(key);
+		synchronized (segment) {
+			int slot = segment.lookup(key, System.currentTimeMillis());
+			return slot < 0 ? 0 : segment.versions[slot];
+		}
+	}
+
+	public boolean exists(String key) {
+		Segment segment = segment(key);
+		synchronized (segment) {
+			return 0 <= segment.lookup(key, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * @return false if the value is larger than a page, or there is no memory left for it
+	 */
+	public boolean set(String key, byte[] raw, long version, long expiry) {
+		return write(key, (segment, now) -> segment.put(key, raw, version, expiry, now));
+	}
+
+	/**
+	 * @return false if a live value already exists for the key
+	 */
+	public boolean add(String key, byte[] raw, long version, long expiry) {
+		return write(key, (segment, now) -> {
+			if (0 <= segment.lookup(key, now)) {
+				return false;
+			}
+			return segment.put(key, raw, version, expiry, now);
+		});
+	}
+
+	/**
+	 * replace the value if its version equals expectedVersion. expectedVersion 0 only succeeds if there is no value.
+	 * the new value gets expectedVersion + 1.
+	 */
+	public boolean cas(String key, long expectedVersion, byte[] raw, long expiry) {
+		return write(key, (segment, now) -> {
+			int slot = segment.lookup(key, now);
+			long version = slot < 0 ? 0 : segment.versions[slot];
+			if (version != expectedVersion || (0 <= slot && expectedVersion == 0)) {
+				return false;
+			}
+			return segment.put(key, raw, expectedVersion + 1, expiry, now);
+		});
+	}
+
+	private interface Write {
+		boolean apply(Segment segment, long now);
+	}
+
+	/**
+	 * apply the write to the segment of the key. if it failed since the segment holds no page at all, take a page from
+	 * another segment and apply it once more. a segment holding no page holds no value either, so the failed write
+	 * has changed nothing.
+	 */
+	private boolean write(String key, Write write) {
+		Segment segment = segment(key);
+		synchronized (segment) {
+			segment.starved = false;
+			boolean result = write.apply(segment, System.currentTimeMillis());
+			if (result || !segment.starved) {
+				return result;
+			}
+		}
+		stealPage(segment);
+		synchronized (segment) {
+			segment.starved = false;
+			boolean result = write.apply(segment, System.currentTimeMillis());
+			if (segment.starved) {
+				log.warn("out of memory: key=" + key);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * move a page of the segment holding the most pages to the spare pages. segments are locked one at a time.
+	 */
+	private void stealPage(Segment starved) {
+		Segment victim = null;
+		int most = 0;
+		for (Segment segment: segments) {
+			if (segment == starved) {
+				continue;
+			}
+			synchronized (segment) {
+				int pages = segment.pages();
+				if (most < pages) {
+					most = pages;
+					victim = segment;
+				}
+			}
+		}
+		if (victim == null) {
+			return;
+		}
+		synchronized (victim) {
+			ByteBuffer page = victim.takePage(null);
+			if (page != null) {
+				sparePages.add(page);
+			}
+		}
+	}
+
+	/**
+	 * @return false if there is no live value for the key. the value itself is not copied.
+	 */
+	public boolean touch(String key, long expiry) {
+		Segment segment = segment(key);
+		synchronized (segment) {
+			int slot = segment.lookup(key, System.currentTimeMillis());
+			if (slot < 0) {
+				return false;
+			}
+			segment.expiries[slot] = expiry;
+			return true;
+		}
+	}
+
+	public boolean delete(String key) {
+		Segment segment = segment(key);
+		synchronized (segment) {
+			return segment.remove(key);
+		}
+	}
+
+	/**
+	 * drop all values and release the pages to the garbage collector.
+	 */
+	public void clear() {
+		for (Segment segment: segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+		while (sparePages.poll() != null) {
+			allocated.addAndGet(-pageSize);
+		}
+	}
+
+	public int getSize() {
+		int size = 0;
+		for (Segment segment: segments) {
+			synchronized (segment) {
+				size += segment.size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return total length of the stored values
+	 */
+	public long getBytes() {
+		long bytes = 0;
+		for (Segment segment: segments) {
+			synchronized (segment) {
+				bytes += segment.bytes;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return direct memory allocated for pages
+	 */
+	public long getAllocatedBytes() {
+		return allocated.get();
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @param maxBytes upper bound of the direct memory allocated for values. pages already allocated are kept.
+	 */
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+	private int slabClassOf(int length) {
+		int i = Arrays.binarySearch(chunkSizes, length);
+		if (i < 0) {
+			i = -i - 1;
+		}
+		return i < chunkSizes.length ? i : -1;
+	}
+
+	private Segment segment(String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return segments[(h & 0x7fffffff) % segments.length];
+	}
+}
@@ -0,0 +1,708 @@
+package org.eclipse.jetty.nosql.memcached.replicated;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.jetty.nosql.kvs.AbstractKeyValueStoreClient;
+import org.eclipse.jetty.nosql.kvs.IAsyncKeyValueStoreClient;
+import org.eclipse.jetty.nosql.kvs.KeyValueStoreClientException;
+import org.eclipse.jetty.nosql.memcached.AbstractMemcachedClient;
+import org.eclipse.jetty.nosql.memcached.AbstractMemcachedClientFactory;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Stores every key on several distinct servers, so that losing a server does not lose the sessions stored on it.
+ *
+ * The servers are placed on a ketama continuum. The replicas of a key are the first distinct servers found walking the
+ * continuum clockwise from the hash of the key; the first of them is the primary. Each server is accessed through a
+ * client of its own, created by the given factory with the address of the server alone.
+ * <ul>
+ * <li>set and delete are sent to all replicas at once, and succeed as soon as any of the replicas took them. each
+ * replica has to answer within the replica timeout, which is shorter than the timeout of the whole operation.</li>
+ * <li>add and cas are decided by the primary, or the first replica which answers if the primary fails, and the
+ * result is copied to the other replicas.</li>
+ * <li>reads go to the primary, and fall back to the next replica on a miss or a failure.</li>
+ * </ul>
+ * Replicas which failed or timed out on a write which others took hold a stale value. They are recorded per key, and
+ * the key is deleted from them in the background, and again before the key is read, so that they miss rather than
+ * serve the stale value. Replicas which can't be repaired are not read. Failures are known only to the client which
+ * has seen them, so the record grows by a key per write while a replica is down.
+ * Values larger than the chunk size are split by the client of each server, so that each replica holds the chunks of
+ * its value next to its header.
+ */
+public class ReplicatedMemcachedClient extends AbstractMemcachedClient implements IAsyncKeyValueStoreClient {
+	private final static Logger log = Log.getLogger("org.eclipse.jetty.nosql.memcached.replicated.ReplicatedMemcachedClient");
+	public static final int DEFAULT_REPLICAS = 2;
+	private static final int FOREVER = 0;
+	// same as libketama: 40 hashes per server and weight, 4 points per hash
+	private static final int POINTS_PER_HASH = 4;
+	private static final int HASHES_PER_WEIGHT = 40;
+
+	private final List<String> _addresses;
+	private final List<AbstractKeyValueStoreClient> _nodes;
+	private final TreeMap<Long, Integer> _continuum = new TreeMap<Long, Integer>();
+	private final int _replicas;
+	// 0 means half of the timeout of the whole operation
+	private int _replicaTimeoutInMs = 0;
+	private ScheduledThreadPoolExecutor _timer = null;
+	// replicas which missed a write taken by others, per key
+	private final ConcurrentMap<String, Set<Integer>> _stale = new ConcurrentHashMap<String, Set<Integer>>();
+
+	public ReplicatedMemcachedClient(String serverString, AbstractMemcachedClientFactory factory) {
+		this(serverString, factory, DEFAULT_REPLICAS);
+	}
+
+	/**
+	 * @param serverString servers and their weights. distribution and hash options are ignored, keys are always placed by ketama.
+	 * @param factory creates the client of each server
+	 * @param replicas number of servers each key is stored on. limited by the number of servers.
+	 */
+	public ReplicatedMemcachedClient(String serverString, AbstractMemcachedClientFactory factory, int replicas) {
+		super(serverString);
+		if (replicas <= 0) {
+			throw new IllegalArgumentException("replicas must be positive: " + replicas);
+		}
+		List<String> addresses = new ArrayList<String>();
+		for (String address: _serverString.split(" ")) {
+			if (!address.isEmpty()) {
+				addresses.add(address);
+			}
+		}
+		if (addresses.isEmpty()) {
+			throw new IllegalArgumentException("no servers: " + serverString);
+		}
+		this._addresses = Collections.unmodifiableList(addresses);
+		this._replicas = Math.min(replicas, addresses.size());
+		List<AbstractKeyValueStoreClient> nodes = new ArrayList<AbstractKeyValueStoreClient>(addresses.size());
+		for (int i = 0; i < addresses.size(); i++) {
+			AbstractKeyValueStoreClient node = factory.create(addresses.get(i));
+			if (unwrap(node) != null) {
+				unwrap(node).setChunkSize(_chunkSize);
+			}
+			nodes.add(node);
+			int weight = _weights == null ? 1 : _weights[i];
+			for (int j = 0; j < HASHES_PER_WEIGHT * weight; j++) {
+				byte[] digest = md5(addresses.get(i) + "-" + j);
+				for (int k = 0; k < POINTS_PER_HASH; k++) {
+					_continuum.put(point(digest, k), i);
+				}
+			}
+		}
+		this._nodes = Collections.unmodifiableList(nodes);
+	}
+
+	@Override
+	public boolean establish() throws KeyValueStoreClientException {
+		KeyValueStoreClientException error = null;
+		boolean established = false;
+		for (int i = 0; i < _nodes.size(); i++) {
+			try {
+				established |= _nodes.get(i).establish();
+			} catch (KeyValueStoreClientException e) {
+				log.warn("unable to establish connection to " + _addresses.get(i), e);
+				error = e;
+			}
+		}
+		if (!established && error != null) {
+			throw error;
+		}
+		return established;
+	}
+
+	@Override
+	public boolean shutdown() throws KeyValueStoreClientException {
+		boolean result = true;
+		for (int i = 0; i < _nodes.size(); i++) {
+			try {
+				result &= _nodes.get(i).shutdown();
+			} catch (KeyValueStoreClientException error) {
+				log.warn("unable to shutdown connection to " + _addresses.get(i), error);
+				result = false;
+			}
+		}
+		shutdownAsyncExecutor();
+		synchronized (this) {
+			if (_timer != null) {
+				_timer.shutdownNow();
+				_timer = null;
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public boolean isAlive() {
+		for (AbstractKeyValueStoreClient node: _nodes) {
+			if (node.isAlive()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void setTimeoutInMs(int timeoutInMs) {
+		super.setTimeoutInMs(timeoutInMs);
+		for (AbstractKeyValueStoreClient node: _nodes) {
+			node.setTimeoutInMs(timeoutInMs);
+		}
+	}
+
+	@Override
+	public void setChunkSize(int chunkSize) {
+		super.setChunkSize(chunkSize);
+		for (AbstractKeyValueStoreClient node: _nodes) {
+			if (unwrap(node) != null) {
+				unwrap(node).setChunkSize(chunkSize);
+			}
+		}
+	}
+
+	public int getReplicaTimeoutInMs() {
+		return 0 < _replicaTimeoutInMs ? _replicaTimeoutInMs : Math.max(1, _timeoutInMs / 2);
+	}
+
+	/**
+	 * @param replicaTimeoutInMs time each replica has to answer a write. a replica which does not is taken as failed.
+	 *            0 (default) means half of the timeout.
+	 */
+	public void setReplicaTimeoutInMs(int replicaTimeoutInMs) {
+		this._replicaTimeoutInMs = replicaTimeoutInMs;
+	}
+
+	@Override
+	public byte[] get(String key) throws KeyValueStoreClientException {
+		KeyValueStoreClientException error = null;
+		boolean answered = false;
+		for (int node: readableReplicasOf(key)) {
+			try {
+				byte[] raw = _nodes.get(node).get(key);
+				if (raw != null) {
+					return raw;
+				}
+				answered = true;
+			} catch (KeyValueStoreClientException e) {
+				log.warn("unable to get " + key + " from " + _addresses.get(node) + ", trying next replica", e);
+				error = e;
+			}
+		}
+		if (!answered && error != null) {
+			throw error;
+		}
+		return null;
+	}
+
+	/**
+	 * fetch the keys from their primaries with a multi-get per server, then the keys still missing from their next
+	 * replicas, and so on.
+	 */
+	@Override
+	public Map<String, byte[]> getBulk(Collection<String> keys) throws KeyValueStoreClientException {
+		Map<String, byte[]> result = new HashMap<String, byte[]>();
+		Map<String, List<Integer>> pending = new LinkedHashMap<String, List<Integer>>();
+		for (String key: keys) {
+			pending.put(key, readableReplicasOf(key));
+		}
+		KeyValueStoreClientException error = null;
+		boolean answered = false;
+		for (int r = 0; r < _replicas && !pending.isEmpty(); r++) {
+			Map<Integer, List<String>> byNode = new LinkedHashMap<Integer, List<String>>();
+			for (Map.Entry<String, List<Integer>> entry: pending.entrySet()) {
+				if (r < entry.getValue().size()) {
+					byNode.computeIfAbsent(entry.getValue().get(r), n -> new ArrayList<String>()).add(entry.getKey());
+				}
+			}
+			for (Map.Entry<Integer, List<String>> entry: byNode.entrySet()) {
+				try {
+					result.putAll(_nodes.get(entry.getKey()).getBulk(entry.getValue()));
+					answered = true;
+				} catch (KeyValueStoreClientException e) {
+					log.warn("unable to get " + entry.getValue().size() + " keys from " + _addresses.get(entry.getKey()) + ", trying next replica", e);
+					error = e;
+				}
+			}
+			pending.keySet().removeAll(result.keySet());
+		}
+		if (!answered && error != null) {
+			throw error;
+		}
+		return result;
+	}
+
+	@Override
+	public boolean set(String key, long version, byte[] raw) throws KeyValueStoreClientException {
+		return this.set(key, version, raw, FOREVER);
+	}
+
+	@Override
+	public boolean set(String key, long version, byte[] raw, int exp) throws KeyValueStoreClientException {
+		return await(setAll(key, version, raw, exp, replicasOf(key)), "set", key);
+	}
+
+	/**
+	 * values are chunked by the clients of the servers. the chunks are only reached through the helpers of the super class.
+	 */
+	@Override
+	protected boolean setChunks(Map<String, byte[]> chunks, int exp) throws KeyValueStoreClientException {
+		for (Map.Entry<String, byte[]> chunk: chunks.entrySet()) {
+			if (!set(chunk.getKey(), 0, chunk.getValue(), exp)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	protected Map<String, byte[]> getChunks(Collection<String> keys) throws KeyValueStoreClientException {
+		return getBulk(keys);
+	}
+
+	@Override
+	protected void removeChunks(Collection<String> keys) throws KeyValueStoreClientException {
+		for (String key: keys) {
+			delete(key);
+		}
+	}
+
+	@Override
+	protected boolean touchChunks(Collection<String> keys, int exp) throws KeyValueStoreClientException {
+		boolean result = true;
+		for (String key: keys) {
+			result &= touch(key, exp);
+		}
+		return result;
+	}
+
+	/**
+	 * touch all replicas. chunks are touched by the replicas themselves.
+	 */
+	@Override
+	public boolean touch(String key, int exp) throws KeyValueStoreClientException {
+		List<Integer> replicas = replicasOf(key);
+		List<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>(replicas.size());
+		for (int node: replicas) {
+			AbstractKeyValueStoreClient client = _nodes.get(node);
+			futures.add(callAsync(() -> client.touch(key, exp)));
+		}
+		return await(any(futures, replicas, "touch", key, false), "touch", key);
+	}
+
+	/**
+	 * get and touch the key on the first replica which has it. the replicas after it are touched in the background,
+	 * so that they do not expire before it. the ones before it have missed the key or failed anyway.
+	 */
+	@Override
+	public byte[] getAndTouch(String key, int exp) throws KeyValueStoreClientException {
+		List<Integer> replicas = readableReplicasOf(key);
+		KeyValueStoreClientException error = null;
+		boolean answered = false;
+		for (int i = 0; i < replicas.size(); i++) {
+			int node = replicas.get(i);
+			try {
+				byte[] raw = _nodes.get(node).getAndTouch(key, exp);
+				if (raw != null) {
+					for (int other: replicas.subList(i + 1, replicas.size())) {
+						AbstractKeyValueStoreClient client = _nodes.get(other);
+						callAsync(() -> client.touch(key, exp)).whenComplete((touched, e) -> {
+							if (e != null) {
+								log.warn("unable to touch " + key + " on " + _addresses.get(other), e);
+							}
+						});
+					}
+					return raw;
+				}
+				answered = true;
+			} catch (KeyValueStoreClientException e) {
+				log.warn("unable to get and touch " + key + " on " + _addresses.get(node) + ", trying next replica", e);
+				error = e;
+			}
+		}
+		if (!answered && error != null) {
+			throw error;
+		}
+		return null;
+	}
+
+	@Override
+	public boolean add(String key, long version, byte[] raw) throws KeyValueStoreClientException {
+		return this.add(key, version, raw, FOREVER);
+	}
+
+	@Override
+	public boolean add(String key, long version, byte[] raw, int exp) throws KeyValueStoreClientException {
+		return decide(key, version, raw, exp, node -> _nodes.get(node).add(key, version, raw, exp));
+	}
+
+	@Override
+	public boolean cas(String key, long expectedVersion, byte[] raw, int exp) throws KeyValueStoreClientException {
+		return decide(key, expectedVersion + 1, raw, exp, node -> _nodes.get(node).cas(key, expectedVersion, raw, exp));
+	}
+
+	@Override
+	public boolean delete(String key) throws KeyValueStoreClientException {
+		return await(deleteAll(key, replicasOf(key)), "delete", key);
+	}
+
+	@Override
+	public boolean exists(String key) throws KeyValueStoreClientException {
+		KeyValueStoreClientException error = null;
+		boolean answered = false;
+		for (int node: readableReplicasOf(key)) {
+			try {
+				if (_nodes.get(node).exists(key)) {
+					return true;
+				}
+				answered = true;
+			} catch (KeyValueStoreClientException e) {
+				log.warn("unable to look up " + key + " on " + _addresses.get(node) + ", trying next replica", e);
+				error = e;
+			}
+		}
+		if (!answered && error != null) {
+			throw error;
+		}
+		return false;
+	}
+
+	@Override
+	public long version(String key) throws KeyValueStoreClientException {
+		KeyValueStoreClientException error = null;
+		boolean answered = false;
+		for (int node: readableReplicasOf(key)) {
+			try {
+				long version = _nodes.get(node).version(key);
+				if (version != 0) {
+					return version;
+				}
+				answered = true;
+			} catch (KeyValueStoreClientException e) {
+				log.warn("unable to get version of " + key + " from " + _addresses.get(node) + ", trying next replica", e);
+				error = e;
+			}
+		}
+		if (!answered && error != null) {
+			throw error;
+		}
+		return 0;
+	}
+
+	@Override
+	public CompletableFuture<byte[]> getAsync(String key) {
+		return callAsync(() -> get(key));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> setAsync(String key, long version, byte[] raw, int exp) {
+		return setAll(key, version, raw, exp, replicasOf(key));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> addAsync(String key, long version, byte[] raw, int exp) {
+		return callAsync(() -> add(key, version, raw, exp));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> deleteAsync(String key) {
+		return callAsync(() -> delete(key));
+	}
+
+	public int getReplicas() {
+		return _replicas;
+	}
+
+	/**
+	 * @return addresses of the servers holding the key, primary first
+	 */
+	public List<String> getReplicaAddresses(String key) {
+		List<String> addresses = new ArrayList<String>(_replicas);
+		for (int node: replicasOf(key)) {
+			addresses.add(_addresses.get(node));
+		}
+		return addresses;
+	}
+
+	/**
+	 * @return the client of the server of the given address, or null if there is no such server
+	 */
+	public AbstractKeyValueStoreClient getNode(String address) {
+		int i = _addresses.indexOf(address);
+		return i < 0 ? null : _nodes.get(i);
+	}
+
+	/**
+	 * indices of the first distinct servers walking the continuum clockwise from the hash of the key
+	 */
+	List<Integer> replicasOf(String key) {
+		List<Integer> replicas = new ArrayList<Integer>(_replicas);
+		SortedMap<Long, Integer> tail = _continuum.tailMap(point(md5(key), 0));
+		for (Integer node: tail.values()) {
+			if (replicas.size() == _replicas) {
+				return replicas;
+			}
+			if (!replicas.contains(node)) {
+				replicas.add(node);
+			}
+		}
+		for (Integer node: _continuum.values()) {
+			if (replicas.size() == _replicas) {
+				break;
+			}
+			if (!replicas.contains(node)) {
+				replicas.add(node);
+			}
+		}
+		return replicas;
+	}
+
+	private interface Decision {
+		boolean apply(int node) throws KeyValueStoreClientException;
+	}
+
+	/**
+	 * let the first replica which answers decide, and copy an accepted value to the others.
+	 */
+	private boolean decide(String key, long version, byte[] raw, int exp, Decision decision) throws KeyValueStoreClientException {
+		List<Integer> replicas = replicasOf(key);
+		KeyValueStoreClientException error = null;
+		for (int i = 0; i < replicas.size(); i++) {
+			int node = replicas.get(i);
+			boolean accepted;
+			try {
+				accepted = decision.apply(node);
+			} catch (KeyValueStoreClientException e) {
+				log.warn("unable to write " + key + " to " + _addresses.get(node) + ", trying next replica", e);
+				error = e;
+				continue;
+			}
+			if (accepted) {
+				// the replicas before have failed, and missed the write
+				for (int failed: replicas.subList(0, i)) {
+					markStale(key, failed);
+				}
+			}
+			if (accepted && i + 1 < replicas.size()) {
+				try {
+					await(setAll(key, version, raw, exp, replicas.subList(i + 1, replicas.size())), "copy", key);
+				} catch (KeyValueStoreClientException e) {
+					log.warn("unable to copy " + key + " to replicas", e);
+				}
+			}
+			return accepted;
+		}
+		throw error;
+	}
+
+	private CompletableFuture<Boolean> setAll(String key, long version, byte[] raw, int exp, List<Integer> replicas) {
+		List<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>(replicas.size());
+		for (int node: replicas) {
+			AbstractKeyValueStoreClient client = _nodes.get(node);
+			if (client instanceof IAsyncKeyValueStoreClient) {
+				futures.add(((IAsyncKeyValueStoreClient) client).setAsync(key, version, raw, exp));
+			} else {
+				futures.add(callAsync(() -> client.set(key, version, raw, exp)));
+			}
+		}
+		return any(futures, replicas, "set", key, true);
+	}
+
+	private CompletableFuture<Boolean> deleteAll(String key, List<Integer> replicas) {
+		List<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>(replicas.size());
+		for (int node: replicas) {
+			AbstractKeyValueStoreClient client = _nodes.get(node);
+			if (client instanceof IAsyncKeyValueStoreClient) {
+				futures.add(((IAsyncKeyValueStoreClient) client).deleteAsync(key));
+			} else {
+				futures.add(callAsync(() -> client.delete(key)));
+			}
+		}
+		return any(futures, replicas, "delete", key, true);
+	}
+
+	/**
+	 * complete with true as soon as any replica has accepted the write, otherwise with false once all replicas have
+	 * answered. fails only if all of them failed. replicas which do not answer within the replica timeout are taken as
+	 * failed.
+	 *
+	 * @param write whether replicas which failed while others accepted the write hold a stale value
+	 */
+	private CompletableFuture<Boolean> any(List<CompletableFuture<Boolean>> futures, List<Integer> replicas, String op, String key, boolean write) {
+		final CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+		final List<Integer> failed = new ArrayList<Integer>();
+		final int[] remaining = { futures.size() };
+		final boolean[] answered = { false };
+		final Throwable[] error = { null };
+		for (int i = 0; i < futures.size(); i++) {
+			final int node = replicas.get(i);
+			withTimeout(futures.get(i), op, key, node).whenComplete((accepted, t) -> {
+				boolean stale = false;
+				synchronized (result) {
+					if (t != null) {
+						Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+						log.warn("unable to " + op + " " + key + " on " + _addresses.get(node), cause);
+						error[0] = cause;
+						failed.add(node);
+					} else if (accepted) {
+						result.complete(true);
+					} else {
+						answered[0] = true;
+					}
+					if (write && result.getNow(false)) {
+						stale = !failed.isEmpty();
+					}
+					if (--remaining[0] == 0 && !result.isDone()) {
+						if (!answered[0] && error[0] != null) {
+							result.completeExceptionally(error[0] instanceof KeyValueStoreClientException ? error[0] : new KeyValueStoreClientException(error[0]));
+						} else {
+							result.complete(false);
+						}
+					}
+				}
+				if (write && t == null && accepted) {
+					// the replica holds the latest value again
+					unmarkStale(key, node);
+				}
+				if (stale) {
+					List<Integer> nodes;
+					synchronized (result) {
+						nodes = new ArrayList<Integer>(failed);
+						failed.clear();
+					}
+					for (int n: nodes) {
+						markStale(key, n);
+					}
+				}
+			});
+		}
+		return result;
+	}
+
+	/**
+	 * fail the future of the replica if it does not complete within the replica timeout.
+	 */
+	private <T> CompletableFuture<T> withTimeout(final CompletableFuture<T> future, String op, String key, int node) {
+		if (future.isDone()) {
+			return future;
+		}
+		final ScheduledFuture<?> timeout = timer().schedule(() -> {
+			future.completeExceptionally(new KeyValueStoreClientException(new TimeoutException("timed out to " + op + " "
+				+ key + " on " + _addresses.get(node))));
+		}, getReplicaTimeoutInMs(), TimeUnit.MILLISECONDS);
+		future.whenComplete((v, t) -> timeout.cancel(false));
+		return future;
+	}
+
+	private synchronized ScheduledThreadPoolExecutor timer() {
+		if (_timer == null) {
+			_timer = new ScheduledThreadPoolExecutor(1, r -> {
+				Thread thread = new Thread(r, "ReplicatedMemcachedClient-timeout");
+				thread.setDaemon(true);
+				return thread;
+			});
+			_timer.setRemoveOnCancelPolicy(true);
+		}
+		return _timer;
+	}
+
+	/**
+	 * record that the replica has missed a write of the key which others took, and delete the key from it in the
+	 * background.
+	 */
+	private void markStale(String key, int node) {
+		_stale.computeIfAbsent(key, k -> ConcurrentHashMap.<Integer> newKeySet()).add(node);
+		callAsync(() -> repair(key, node)).whenComplete((repaired, e) -> {
+			if (e != null) {
+				log.debug("unable to repair " + key + " on " + _addresses.get(node) + " yet", e);
+			}
+		});
+	}
+
+	/**
+	 * delete the key from a replica which has missed a write of it.
+	 */
+	private boolean repair(String key, int node) throws KeyValueStoreClientException {
+		_nodes.get(node).delete(key);
+		unmarkStale(key, node);
+		return true;
+	}
+
+	private void unmarkStale(String key, int node) {
+		_stale.computeIfPresent(key, (k, nodes) -> {
+			nodes.remove(node);
+			return nodes.isEmpty() ? null : nodes;
+		});
+	}
+
+	/**
+	 * @return replicas of the key which may be read. replicas which have missed a write of the key are repaired first,
+	 *         and left out if that fails.
+	 */
+	private List<Integer> readableReplicasOf(String key) {
+		List<Integer> replicas = replicasOf(key);
+		Set<Integer> stale = _stale.get(key);
+		if (stale == null) {
+			return replicas;
+		}
+		List<Integer> readable = new ArrayList<Integer>(replicas);
+		for (Integer node: new ArrayList<Integer>(stale)) {
+			try {
+				repair(key, node);
+			} catch (KeyValueStoreClientException e) {
+				log.warn("unable to repair " + key + " on " + _addresses.get(node) + ", not reading it", e);
+				readable.remove(node);
+			}
+		}
+		return readable;
+	}
+
+	private boolean await(CompletableFuture<Boolean> future, String op, String key) throws KeyValueStoreClientException {
+		try {
+			return future.get(_timeoutInMs, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException error) {
+			if (error.getCause() instanceof KeyValueStoreClientException) {
+				throw (KeyValueStoreClientException) error.getCause();
+			}
+			throw(new KeyValueStoreClientException(error.getCause()));
+		} catch (TimeoutException error) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("timed out to " + op + " " + key, error)));
+		} catch (InterruptedException error) {
+			Thread.currentThread().interrupt();
+			throw(new KeyValueStoreClientException(error));
+		}
+	}
+
+	private static byte[] md5(String s) {
+		try {
+			return MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException error) {
+			throw new IllegalStateException(error);
+		}
+	}
+
+	private static long point(byte[] digest, int k) {
+		return ((long) (digest[3 + k * 4] & 0xff) << 24)
+			| ((long) (digest[2 + k * 4] & 0xff) << 16)
+			| ((long) (digest[1 + k * 4] & 0xff) << 8)
+			| (digest[k * 4] & 0xff);
+	}
+}
@@ -0,0 +1,44 @@
+package org.eclipse.jetty.nosql.memcached.replicated;
+
+import org.eclipse.jetty.nosql.kvs.AbstractKeyValueStoreClient;
+import org.eclipse.jetty.nosql.memcached.AbstractMemcachedClientFactory;
+import org.eclipse.jetty.nosql.memcached.spymemcached.SpyMemcachedClientFactory;
+
+public class ReplicatedMemcachedClientFactory extends AbstractMemcachedClientFactory {
+	private AbstractMemcachedClientFactory _clientFactory;
+	private int _replicas;
+
+	public ReplicatedMemcachedClientFactory() {
+		this(new SpyMemcachedClientFactory(), ReplicatedMemcachedClient.DEFAULT_REPLICAS);
+	}
+
+	/**
+	 * @param cf creates the client of each server
+	 * @param replicas number of servers each session is stored on
+	 */
+	public ReplicatedMemcachedClientFactory(AbstractMemcachedClientFactory cf, int replicas) {
+		this._clientFactory = cf;
+		this._replicas = replicas;
+	}
+
+	@Override
+	public AbstractKeyValueStoreClient create(String serverString) {
+		return new ReplicatedMemcachedClient(serverString, _clientFactory, _replicas);
+	}
+
+	public AbstractMemcachedClientFactory getClientFactory() {
+		return _clientFactory;
+	}
+
+	public void setClientFactory(AbstractMemcachedClientFactory cf) {
+		this._clientFactory = cf;
+	}
+
+	public int getReplicas() {
+		return _replicas;
+	}
+
+	public void setReplicas(int replicas) {
+		this._replicas = replicas;
+	}
+}
@@ -16,4 +16,9 @@ public class BinarySpyMemcachedClient extends SpyMemcachedClient {
 		ConnectionFactoryBuilder factoryBuilder = super.getConnectionFactoryBuilder();
 		return factoryBuilder.setProtocol(ConnectionFactoryBuilder.Protocol.BINARY);
 	}
+
+	@Override
+	protected boolean isBinary() {
+		return true;
+	}
 }
\ No newline at end of file
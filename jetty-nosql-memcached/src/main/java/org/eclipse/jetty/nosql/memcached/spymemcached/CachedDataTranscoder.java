@@ -0,0 +1,27 @@
+package org.eclipse.jetty.nosql.memcached.spymemcached;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.compat.SpyObject;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * pass items as they are, flags included. used by compare-and-set which keeps
+ * the version of the session in the flags.
+ */
+public class CachedDataTranscoder extends SpyObject implements Transcoder<CachedData> {
+	public boolean asyncDecode(CachedData d) {
+		return false;
+	}
+
+	public CachedData encode(CachedData d) {
+		return d;
+	}
+
+	public CachedData decode(CachedData d) {
+		return d;
+	}
+
+	public int getMaxSize() {
+		return CachedData.MAX_SIZE;
+	}
+}
@@ -1,22 +1,59 @@
 package org.eclipse.jetty.nosql.memcached.spymemcached;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.eclipse.jetty.nosql.kvs.IAsyncKeyValueStoreClient;
 import org.eclipse.jetty.nosql.kvs.KeyValueStoreClientException;
+import org.eclipse.jetty.nosql.kvs.jmx.ConnectionStatsMBean;
 import org.eclipse.jetty.nosql.memcached.AbstractMemcachedClient;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
 
 import net.spy.memcached.AddrUtil;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
 import net.spy.memcached.ConnectionFactory;
 import net.spy.memcached.ConnectionFactoryBuilder;
+import net.spy.memcached.ConnectionObserver;
+import net.spy.memcached.DefaultConnectionFactory;
+import net.spy.memcached.DefaultHashAlgorithm;
+import net.spy.memcached.HashAlgorithm;
 import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.internal.GetCompletionListener;
+import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.internal.OperationCompletionListener;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.Operation;
 import net.spy.memcached.transcoders.Transcoder;
 
-public class SpyMemcachedClient extends AbstractMemcachedClient {
+public class SpyMemcachedClient extends AbstractMemcachedClient implements IAsyncKeyValueStoreClient, ConnectionStatsMBean {
+	private final static Logger log = Log.getLogger("org.eclipse.jetty.nosql.memcached.spymemcached.SpyMemcachedClient");
 	private static final int FOREVER = 0;
 	private MemcachedClient _client = null;
 	private Transcoder<byte[]> _transcoder = null;
+	private final Transcoder<CachedData> _casTranscoder = new CachedDataTranscoder();
+	// operations waiting to be written, for the connection statistics
+	private final List<BlockingQueue<Operation>> _queues = new CopyOnWriteArrayList<BlockingQueue<Operation>>();
+	private final AtomicLong _reconnects = new AtomicLong();
 
 	public SpyMemcachedClient() {
 		this("127.0.0.1:11211");
@@ -32,6 +69,7 @@ public class SpyMemcachedClient extends AbstractMemcachedClient {
 		if (_client != null) {
 			shutdown();
 		}
+		_queues.clear();
 		try {
 			ConnectionFactory cf = getConnectionFactory();
 			if (cf == null) {
@@ -46,16 +84,68 @@ public class SpyMemcachedClient extends AbstractMemcachedClient {
 	}
 
 	protected ConnectionFactoryBuilder getConnectionFactoryBuilder() {
-		return new ConnectionFactoryBuilder();
+		ConnectionFactoryBuilder factoryBuilder = new ConnectionFactoryBuilder();
+		if (isKetama()) {
+			factoryBuilder.setLocatorType(ConnectionFactoryBuilder.Locator.CONSISTENT);
+		}
+		HashAlgorithm hashAlgorithm = getSpyHashAlgorithm();
+		if (hashAlgorithm != null) {
+			factoryBuilder.setHashAlg(hashAlgorithm);
+		}
+		// same queues as the defaults of spymemcached, but kept track of
+		factoryBuilder.setOpQueueFactory(() -> track(new ArrayBlockingQueue<Operation>(DefaultConnectionFactory.DEFAULT_OP_QUEUE_LEN)));
+		factoryBuilder.setWriteOpQueueFactory(() -> track(new LinkedBlockingQueue<Operation>()));
+		factoryBuilder.setInitialObservers(Collections.<ConnectionObserver>singleton(new ConnectionObserver() {
+			@Override
+			public void connectionEstablished(SocketAddress sa, int reconnectCount) {
+				// nop
+			}
+			@Override
+			public void connectionLost(SocketAddress sa) {
+				_reconnects.incrementAndGet();
+			}
+		}));
+		return factoryBuilder;
 	}
 
 	protected ConnectionFactory getConnectionFactory() {
 		ConnectionFactoryBuilder factoryBuilder = getConnectionFactoryBuilder();
-		return factoryBuilder.build();
+		ConnectionFactory cf = factoryBuilder.build();
+		int[] weights = getWeights();
+		if (weights != null) {
+			if (isKetama()) {
+				List<InetSocketAddress> addresses = AddrUtil.getAddresses(_serverString);
+				Map<InetSocketAddress, Integer> weightMap = new HashMap<InetSocketAddress, Integer>();
+				for (int i = 0; i < addresses.size(); i++) {
+					weightMap.put(addresses.get(i), weights[i]);
+				}
+				cf = new WeightedKetamaConnectionFactory(cf, weightMap);
+			} else {
+				log.warn("weights of servers are ignored without ketama distribution: " + _serverString);
+			}
+		}
+		return cf;
+	}
+
+	private BlockingQueue<Operation> track(BlockingQueue<Operation> queue) {
+		_queues.add(queue);
+		return queue;
+	}
+
+	/**
+	 * @return the hash algorithm of the server string, KETAMA_HASH for ketama distribution, or null for the default
+	 */
+	protected HashAlgorithm getSpyHashAlgorithm() {
+		String name = getHashAlgorithm();
+		if (name == null) {
+			return isKetama() ? DefaultHashAlgorithm.KETAMA_HASH : null;
+		}
+		return DefaultHashAlgorithm.valueOf(name.toUpperCase() + "_HASH");
 	}
 
 	@Override
   public boolean shutdown() throws KeyValueStoreClientException {
+		shutdownAsyncExecutor();
 		if (_client != null) {
 			_client.shutdown();
 			_client = null;
@@ -80,9 +170,29 @@ public class SpyMemcachedClient extends AbstractMemcachedClient {
 		} catch (Exception error) {
 			throw(new KeyValueStoreClientException(error));
 		}
-		return raw;
+		return readChunks(key, raw);
 	}
 	
+	@Override
+	public Map<String, byte[]> getBulk(Collection<String> keys) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		return readChunks(getChunks(keys));
+	}
+
+	@Override
+	protected Map<String, byte[]> getChunks(Collection<String> keys) throws KeyValueStoreClientException {
+		Map<String, byte[]> result = null;
+		try {
+			Future<Map<String, byte[]>> f = _client.asyncGetBulk(keys, _transcoder);
+			result = f.get(_timeoutInMs, TimeUnit.MILLISECONDS);
+		} catch (Exception error) {
+			throw(new KeyValueStoreClientException(error));
+		}
+		return result;
+	}
+
 	@Override
 	public boolean set(String key, long version, byte[] raw) throws KeyValueStoreClientException {
 		return this.set(key, version, raw, FOREVER);
@@ -93,10 +203,14 @@ public class SpyMemcachedClient extends AbstractMemcachedClient {
 		if (!isAlive()) {
 			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
 		}
+		if (isChunked(raw)) {
+			raw = writeChunks(key, raw, exp);
+		}
 		boolean result;
 		try {
 			Future<Boolean> f = _client.set(key, exp, raw, _transcoder);
 			result = f.get(_timeoutInMs, TimeUnit.MILLISECONDS);
+			updateVersion(key, version, exp, result, true).get(_timeoutInMs, TimeUnit.MILLISECONDS);
 		} catch (Exception error) {
 			throw(new KeyValueStoreClientException(error));
 		}
@@ -113,10 +227,57 @@ public class SpyMemcachedClient extends AbstractMemcachedClient {
 		if (!isAlive()) {
 			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
 		}
+		if (isChunked(raw)) {
+			raw = writeChunks(key, raw, exp);
+		}
 		boolean result;
 		try {
 			Future<Boolean> f = _client.add(key, exp, raw, _transcoder);
 			result = f.get(_timeoutInMs, TimeUnit.MILLISECONDS);
+			if (result) {
+				updateVersion(key, version, exp, result, true).get(_timeoutInMs, TimeUnit.MILLISECONDS);
+			}
+		} catch (Exception error) {
+			throw(new KeyValueStoreClientException(error));
+		}
+		return result;
+	}
+
+	/**
+	 * The session is swapped by its own CAS id, so that the check and the write
+	 * are a single operation of memcached. The version travels in the flags of
+	 * the item, see {@link #versionFlags(long)}. The version key is updated
+	 * afterwards for {@link #version(String)}.
+	 */
+	@Override
+	public boolean cas(String key, long expectedVersion, byte[] raw, int exp) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		long version = expectedVersion + 1;
+		boolean result;
+		try {
+			if (expectedVersion == 0) {
+				if (isChunked(raw)) {
+					raw = writeChunks(key, raw, exp);
+				}
+				Future<Boolean> f = _client.add(key, exp, new CachedData(versionFlags(version), raw, CachedData.MAX_SIZE), _casTranscoder);
+				result = f.get(_timeoutInMs, TimeUnit.MILLISECONDS);
+			} else {
+				Future<CASValue<CachedData>> gf = _client.asyncGets(key, _casTranscoder);
+				CASValue<CachedData> current = gf.get(_timeoutInMs, TimeUnit.MILLISECONDS);
+				if (current == null || versionOf(key, current.getValue().getFlags()) != expectedVersion) {
+					return false;
+				}
+				if (isChunked(raw)) {
+					raw = writeChunks(key, raw, exp);
+				}
+				Future<CASResponse> cf = _client.asyncCAS(key, current.getCas(), exp, new CachedData(versionFlags(version), raw, CachedData.MAX_SIZE), _casTranscoder);
+				result = cf.get(_timeoutInMs, TimeUnit.MILLISECONDS) == CASResponse.OK;
+			}
+			if (result) {
+				updateVersion(key, version, exp, result, false).get(_timeoutInMs, TimeUnit.MILLISECONDS);
+			}
 		} catch (Exception error) {
 			throw(new KeyValueStoreClientException(error));
 		}
@@ -128,27 +289,293 @@ public class SpyMemcachedClient extends AbstractMemcachedClient {
 		if (!isAlive()) {
 			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
 		}
+		deleteChunks(key);
 		boolean result;
 		try {
 			Future<Boolean> f = _client.delete(key);
+			Future<Boolean> vf = _client.delete(versionKey(key));
+			result = f.get(_timeoutInMs, TimeUnit.MILLISECONDS);
+			vf.get(_timeoutInMs, TimeUnit.MILLISECONDS);
+		} catch (Exception error) {
+			throw(new KeyValueStoreClientException(error));
+		}
+		return result;
+	}
+
+	/**
+	 * all chunks are sent before waiting for any reply.
+	 */
+	@Override
+	protected boolean setChunks(Map<String, byte[]> chunks, int exp) throws KeyValueStoreClientException {
+		boolean result = true;
+		try {
+			List<Future<Boolean>> fs = new ArrayList<Future<Boolean>>(chunks.size());
+			for (Map.Entry<String, byte[]> chunk: chunks.entrySet()) {
+				fs.add(_client.set(chunk.getKey(), exp, chunk.getValue(), _transcoder));
+			}
+			for (Future<Boolean> f: fs) {
+				result &= f.get(_timeoutInMs, TimeUnit.MILLISECONDS);
+			}
+		} catch (Exception error) {
+			throw(new KeyValueStoreClientException(error));
+		}
+		return result;
+	}
+
+	@Override
+	protected void removeChunks(Collection<String> keys) throws KeyValueStoreClientException {
+		try {
+			List<Future<Boolean>> fs = new ArrayList<Future<Boolean>>(keys.size());
+			for (String key: keys) {
+				fs.add(_client.delete(key));
+			}
+			for (Future<Boolean> f: fs) {
+				f.get(_timeoutInMs, TimeUnit.MILLISECONDS);
+			}
+		} catch (Exception error) {
+			throw(new KeyValueStoreClientException(error));
+		}
+	}
+
+	@Override
+	protected boolean touchChunks(Collection<String> keys, int exp) throws KeyValueStoreClientException {
+		boolean result = true;
+		try {
+			List<Future<Boolean>> fs = new ArrayList<Future<Boolean>>(keys.size());
+			for (String key: keys) {
+				fs.add(_client.touch(key, exp));
+			}
+			for (Future<Boolean> f: fs) {
+				result &= f.get(_timeoutInMs, TimeUnit.MILLISECONDS);
+			}
+		} catch (Exception error) {
+			throw(new KeyValueStoreClientException(error));
+		}
+		return result;
+	}
+
+	@Override
+	public boolean touch(String key, int exp) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		extendChunks(key, exp);
+		boolean result;
+		try {
+			Future<Boolean> f = _client.touch(key, exp);
+			Future<Boolean> vf = _client.touch(versionKey(key), exp);
 			result = f.get(_timeoutInMs, TimeUnit.MILLISECONDS);
+			vf.get(_timeoutInMs, TimeUnit.MILLISECONDS);
 		} catch (Exception error) {
 			throw(new KeyValueStoreClientException(error));
 		}
 		return result;
 	}
 
-	/** 
-	 * Inefficient right now. determine if this is possible in memcache
+	/**
+	 * get-and-touch is a command of the binary protocol only. the text protocol sends get and touch without waiting
+	 * for the reply of either, which takes a single round trip as well.
+	 */
+	@Override
+	public byte[] getAndTouch(String key, int exp) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		byte[] raw = null;
+		try {
+			Future<Boolean> vf = _client.touch(versionKey(key), exp);
+			if (isBinary()) {
+				Future<CASValue<byte[]>> f = _client.asyncGetAndTouch(key, exp, _transcoder);
+				CASValue<byte[]> value = f.get(_timeoutInMs, TimeUnit.MILLISECONDS);
+				raw = value == null ? null : value.getValue();
+			} else {
+				Future<byte[]> f = _client.asyncGet(key, _transcoder);
+				Future<Boolean> tf = _client.touch(key, exp);
+				raw = f.get(_timeoutInMs, TimeUnit.MILLISECONDS);
+				tf.get(_timeoutInMs, TimeUnit.MILLISECONDS);
+			}
+			vf.get(_timeoutInMs, TimeUnit.MILLISECONDS);
+		} catch (Exception error) {
+			throw(new KeyValueStoreClientException(error));
+		}
+		return readAndExtendChunks(key, raw, exp);
+	}
+
+	protected boolean isBinary() {
+		return false;
+	}
+
+	@Override
+	public CompletableFuture<byte[]> getAsync(String key) {
+		if (!isAlive()) {
+			return failed(new IllegalStateException("client not established"));
+		}
+		return toCompletableFuture(_client.asyncGet(key, _transcoder)).thenCompose(raw -> {
+			if (!isChunkHeader(raw)) {
+				return CompletableFuture.completedFuture(raw);
+			}
+			return callAsync(() -> readChunks(key, raw));
+		});
+	}
+
+	@Override
+	public CompletableFuture<Boolean> setAsync(String key, long version, byte[] raw, int exp) {
+		if (!isAlive()) {
+			return failed(new IllegalStateException("client not established"));
+		}
+		if (isChunked(raw)) {
+			return callAsync(() -> set(key, version, raw, exp));
+		}
+		return toCompletableFuture(_client.set(key, exp, raw, _transcoder))
+			.thenCompose(result -> updateVersion(key, version, exp, result, true).thenApply(updated -> result));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> addAsync(final String key, final long version, byte[] raw, final int exp) {
+		if (!isAlive()) {
+			return failed(new IllegalStateException("client not established"));
+		}
+		if (isChunked(raw)) {
+			return callAsync(() -> add(key, version, raw, exp));
+		}
+		return toCompletableFuture(_client.add(key, exp, raw, _transcoder)).thenCompose(result -> {
+			if (!result) {
+				return CompletableFuture.completedFuture(false);
+			}
+			return updateVersion(key, version, exp, result, true).thenApply(updated -> result);
+		});
+	}
+
+	@Override
+	public CompletableFuture<Boolean> deleteAsync(String key) {
+		if (!isAlive()) {
+			return failed(new IllegalStateException("client not established"));
+		}
+		if (0 < getChunkSize()) {
+			// the header has to be read to find the chunks
+			return callAsync(() -> delete(key));
+		}
+		CompletableFuture<Boolean> f = toCompletableFuture(_client.delete(key));
+		CompletableFuture<Boolean> vf = toCompletableFuture(_client.delete(versionKey(key)));
+		return f.thenCombine(vf, (result, versionResult) -> result);
+	}
+
+	/**
+	 * Check the version key first. Fall back to the session itself only for
+	 * sessions stored without version (e.g. by older releases).
 	 */
-  @Override
-  public boolean exists( String key ) throws KeyValueStoreClientException {
-    return get( key ) != null;
-  }
-
-  @Override
-  public long version( String key ) {
-    // TODO Auto-generated method stub
-    return 0;
-  }
+	@Override
+	public boolean exists(String key) throws KeyValueStoreClientException {
+		return 0 < version(key) || get(key) != null;
+	}
+
+	@Override
+	public long version(String key) throws KeyValueStoreClientException {
+		return decodeVersion(get(versionKey(key)));
+	}
+
+	/**
+	 * move the version key forward once the write of the session has been
+	 * confirmed. version 0 means "unknown", and so does a session which could not
+	 * be written or a version key which could not be moved forward, e.g. since a
+	 * concurrent writer has moved it. drop the version key in that case so that it
+	 * will never be stale.
+	 *
+	 * @param stored whether the session has been written
+	 * @param stamped see {@link #isNewerVersion(long, long, boolean)}
+	 * @return true if the version key holds the version
+	 */
+	private CompletableFuture<Boolean> updateVersion(String key, long version, int exp, boolean stored, boolean stamped) {
+		final String versionKey = versionKey(key);
+		CompletableFuture<Boolean> updated;
+		if (0 < version && stored) {
+			updated = toCompletableFuture(_client.asyncGets(versionKey, _transcoder)).thenCompose(current -> {
+				if (current == null) {
+					return toCompletableFuture(_client.add(versionKey, exp, encodeVersion(version), _transcoder));
+				}
+				if (!isNewerVersion(decodeVersion(current.getValue()), version, stamped)) {
+					return CompletableFuture.completedFuture(false);
+				}
+				return toCompletableFuture(_client.asyncCAS(versionKey, current.getCas(), exp, encodeVersion(version), _transcoder))
+					.thenApply(response -> response == CASResponse.OK);
+			});
+		} else {
+			updated = CompletableFuture.completedFuture(false);
+		}
+		return updated.thenCompose(known -> known ? CompletableFuture.completedFuture(true)
+			: toCompletableFuture(_client.delete(versionKey)).thenApply(deleted -> false));
+	}
+
+	private static <T> CompletableFuture<T> toCompletableFuture(GetFuture<T> f) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		f.addListener(new GetCompletionListener() {
+			@Override
+			public void onComplete(GetFuture<?> done) {
+				complete(future, done);
+			}
+		});
+		return future;
+	}
+
+	private static <T> CompletableFuture<T> toCompletableFuture(OperationFuture<T> f) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		f.addListener(new OperationCompletionListener() {
+			@Override
+			public void onComplete(OperationFuture<?> done) {
+				complete(future, done);
+			}
+		});
+		return future;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> void complete(CompletableFuture<T> future, Future<?> done) {
+		try {
+			future.complete((T) done.get());
+		} catch (ExecutionException error) {
+			future.completeExceptionally(new KeyValueStoreClientException(error.getCause()));
+		} catch (Exception error) {
+			future.completeExceptionally(new KeyValueStoreClientException(error));
+		}
+	}
+
+	private static <T> CompletableFuture<T> failed(Throwable cause) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		future.completeExceptionally(new KeyValueStoreClientException(cause));
+		return future;
+	}
+
+	@Override
+	public int getServers() {
+		MemcachedClient client = _client;
+		return client == null ? 0 : client.getNodeLocator().getAll().size();
+	}
+
+	@Override
+	public int getConnections() {
+		MemcachedClient client = _client;
+		int connections = 0;
+		if (client != null) {
+			for (MemcachedNode node: client.getNodeLocator().getAll()) {
+				if (node.isActive()) {
+					connections++;
+				}
+			}
+		}
+		return connections;
+	}
+
+	@Override
+	public long getReconnects() {
+		return _reconnects.get();
+	}
+
+	@Override
+	public long getQueuedOperations() {
+		long queued = 0;
+		for (BlockingQueue<Operation> queue: _queues) {
+			queued += queue.size();
+		}
+		return queued;
+	}
 }
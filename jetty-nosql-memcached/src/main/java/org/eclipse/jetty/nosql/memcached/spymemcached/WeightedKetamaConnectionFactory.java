@@ -0,0 +1,170 @@
+package org.eclipse.jetty.nosql.memcached.spymemcached;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+
+import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.ConnectionObserver;
+import net.spy.memcached.FailureMode;
+import net.spy.memcached.HashAlgorithm;
+import net.spy.memcached.KetamaNodeKeyFormatter;
+import net.spy.memcached.KetamaNodeLocator;
+import net.spy.memcached.MemcachedConnection;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+import net.spy.memcached.OperationFactory;
+import net.spy.memcached.auth.AuthDescriptor;
+import net.spy.memcached.metrics.MetricCollector;
+import net.spy.memcached.metrics.MetricType;
+import net.spy.memcached.ops.Operation;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * ConnectionFactoryBuilder has no way to pass the weights of the servers to
+ * the ketama locator. everything but the locator is left to the factory built
+ * by the builder.
+ */
+class WeightedKetamaConnectionFactory implements ConnectionFactory {
+	private final ConnectionFactory _cf;
+	private final Map<InetSocketAddress, Integer> _weights;
+
+	WeightedKetamaConnectionFactory(ConnectionFactory cf, Map<InetSocketAddress, Integer> weights) {
+		this._cf = cf;
+		this._weights = weights;
+	}
+
+	@Override
+	public NodeLocator createLocator(List<MemcachedNode> nodes) {
+		return new KetamaNodeLocator(nodes, _cf.getHashAlg(), KetamaNodeKeyFormatter.Format.SPYMEMCACHED, _weights);
+	}
+
+	/**
+	 * the connection asks its factory for the locator, so it has to be created here rather than by the delegate.
+	 */
+	@Override
+	public MemcachedConnection createConnection(List<InetSocketAddress> addrs) throws IOException {
+		return new MemcachedConnection(getReadBufSize(), this, addrs, getInitialObservers(), getFailureMode(), getOperationFactory());
+	}
+
+	@Override
+	public MemcachedNode createMemcachedNode(SocketAddress sa, SocketChannel c, int bufSize) {
+		return _cf.createMemcachedNode(sa, c, bufSize);
+	}
+
+	@Override
+	public BlockingQueue<Operation> createOperationQueue() {
+		return _cf.createOperationQueue();
+	}
+
+	@Override
+	public BlockingQueue<Operation> createReadOperationQueue() {
+		return _cf.createReadOperationQueue();
+	}
+
+	@Override
+	public BlockingQueue<Operation> createWriteOperationQueue() {
+		return _cf.createWriteOperationQueue();
+	}
+
+	@Override
+	public long getOpQueueMaxBlockTime() {
+		return _cf.getOpQueueMaxBlockTime();
+	}
+
+	@Override
+	public ExecutorService getListenerExecutorService() {
+		return _cf.getListenerExecutorService();
+	}
+
+	@Override
+	public boolean isDefaultExecutorService() {
+		return _cf.isDefaultExecutorService();
+	}
+
+	@Override
+	public OperationFactory getOperationFactory() {
+		return _cf.getOperationFactory();
+	}
+
+	@Override
+	public long getOperationTimeout() {
+		return _cf.getOperationTimeout();
+	}
+
+	@Override
+	public boolean isDaemon() {
+		return _cf.isDaemon();
+	}
+
+	@Override
+	public boolean useNagleAlgorithm() {
+		return _cf.useNagleAlgorithm();
+	}
+
+	@Override
+	public Collection<ConnectionObserver> getInitialObservers() {
+		return _cf.getInitialObservers();
+	}
+
+	@Override
+	public FailureMode getFailureMode() {
+		return _cf.getFailureMode();
+	}
+
+	@Override
+	public Transcoder<Object> getDefaultTranscoder() {
+		return _cf.getDefaultTranscoder();
+	}
+
+	@Override
+	public boolean shouldOptimize() {
+		return _cf.shouldOptimize();
+	}
+
+	@Override
+	public int getReadBufSize() {
+		return _cf.getReadBufSize();
+	}
+
+	@Override
+	public HashAlgorithm getHashAlg() {
+		return _cf.getHashAlg();
+	}
+
+	@Override
+	public long getMaxReconnectDelay() {
+		return _cf.getMaxReconnectDelay();
+	}
+
+	@Override
+	public AuthDescriptor getAuthDescriptor() {
+		return _cf.getAuthDescriptor();
+	}
+
+	@Override
+	public int getTimeoutExceptionThreshold() {
+		return _cf.getTimeoutExceptionThreshold();
+	}
+
+	@Override
+	public MetricType enableMetrics() {
+		return _cf.enableMetrics();
+	}
+
+	@Override
+	public MetricCollector getMetricCollector() {
+		return _cf.getMetricCollector();
+	}
+
+	@Override
+	public long getAuthWaitTime() {
+		return _cf.getAuthWaitTime();
+	}
+}
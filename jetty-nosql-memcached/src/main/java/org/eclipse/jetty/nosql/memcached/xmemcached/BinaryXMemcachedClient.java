@@ -25,4 +25,9 @@ public class BinaryXMemcachedClient extends XMemcachedClient {
 		builder.setCommandFactory(new BinaryCommandFactory());
 		return builder;
 	}
+
+	@Override
+	protected boolean isBinary() {
+		return true;
+	}
 }
@@ -0,0 +1,18 @@
+package org.eclipse.jetty.nosql.memcached.xmemcached;
+
+import net.rubyeye.xmemcached.transcoders.CachedData;
+import net.rubyeye.xmemcached.transcoders.PrimitiveTypeTranscoder;
+
+/**
+ * pass items as they are, flags included. used by compare-and-set which keeps
+ * the version of the session in the flags.
+ */
+public class CachedDataTranscoder extends PrimitiveTypeTranscoder<CachedData> {
+	public CachedData encode(CachedData d) {
+		return d;
+	}
+
+	public CachedData decode(CachedData d) {
+		return d;
+	}
+}
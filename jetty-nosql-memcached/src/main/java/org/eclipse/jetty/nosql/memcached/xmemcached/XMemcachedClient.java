@@ -1,20 +1,42 @@
 package org.eclipse.jetty.nosql.memcached.xmemcached;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.eclipse.jetty.nosql.kvs.IAsyncKeyValueStoreClient;
 import org.eclipse.jetty.nosql.kvs.KeyValueStoreClientException;
+import org.eclipse.jetty.nosql.kvs.jmx.ConnectionStatsMBean;
 import org.eclipse.jetty.nosql.memcached.AbstractMemcachedClient;
 
+import com.google.code.yanf4j.core.Session;
+import com.google.code.yanf4j.core.impl.AbstractSession;
+
+import net.rubyeye.xmemcached.GetsResponse;
+import net.rubyeye.xmemcached.HashAlgorithm;
 import net.rubyeye.xmemcached.MemcachedClient;
+import net.rubyeye.xmemcached.MemcachedClientStateListener;
 import net.rubyeye.xmemcached.XMemcachedClientBuilder;
+import net.rubyeye.xmemcached.impl.ArrayMemcachedSessionLocator;
+import net.rubyeye.xmemcached.impl.KetamaMemcachedSessionLocator;
+import net.rubyeye.xmemcached.transcoders.CachedData;
 import net.rubyeye.xmemcached.transcoders.Transcoder;
 import net.rubyeye.xmemcached.utils.AddrUtil;
 
-public class XMemcachedClient extends AbstractMemcachedClient {
+/**
+ * xmemcached has no future based API for operations with reply. Asynchronous
+ * operations are run on the executor of {@link org.eclipse.jetty.nosql.kvs.AbstractKeyValueStoreClient}.
+ */
+public class XMemcachedClient extends AbstractMemcachedClient implements IAsyncKeyValueStoreClient, ConnectionStatsMBean {
 	private static final int FOREVER = 0;
 	private XMemcachedClientBuilder _builder = null;
 	private MemcachedClient _client = null;
 	private Transcoder<byte[]> _transcoder = null;
+	private final Transcoder<CachedData> _casTranscoder = new CachedDataTranscoder();
+	private final AtomicLong _reconnects = new AtomicLong();
 
 	public XMemcachedClient() {
 		this("127.0.0.1:11211");
@@ -45,13 +67,58 @@ public class XMemcachedClient extends AbstractMemcachedClient {
 	}
 
 	protected XMemcachedClientBuilder getClientBuilder(String serverString) {
-		XMemcachedClientBuilder builder =  new XMemcachedClientBuilder(AddrUtil.getAddresses(serverString));
+		int[] weights = getWeights();
+		XMemcachedClientBuilder builder = weights == null
+			? new XMemcachedClientBuilder(AddrUtil.getAddresses(serverString))
+			: new XMemcachedClientBuilder(AddrUtil.getAddresses(serverString), weights);
 		builder.setTranscoder(_transcoder);
+		HashAlgorithm hashAlgorithm = getXMemcachedHashAlgorithm();
+		if (isKetama()) {
+			builder.setSessionLocator(new KetamaMemcachedSessionLocator(hashAlgorithm == null ? HashAlgorithm.KETAMA_HASH : hashAlgorithm));
+		} else if (hashAlgorithm != null) {
+			builder.setSessionLocator(new ArrayMemcachedSessionLocator(hashAlgorithm));
+		}
+		builder.addStateListener(new MemcachedClientStateListener() {
+			@Override
+			public void onStarted(MemcachedClient client) {
+				// nop
+			}
+			@Override
+			public void onShutDown(MemcachedClient client) {
+				// nop
+			}
+			@Override
+			public void onConnected(MemcachedClient client, InetSocketAddress address) {
+				// nop
+			}
+			@Override
+			public void onDisconnected(MemcachedClient client, InetSocketAddress address) {
+				if (!client.isShutdown()) {
+					_reconnects.incrementAndGet();
+				}
+			}
+			@Override
+			public void onException(MemcachedClient client, Throwable error) {
+				// nop
+			}
+		});
 		return builder;
 	}
 
+	/**
+	 * @return the hash algorithm of the server string, or null for the default of the distribution
+	 */
+	protected HashAlgorithm getXMemcachedHashAlgorithm() {
+		String name = getHashAlgorithm();
+		if (name == null) {
+			return null;
+		}
+		return "crc".equals(name) ? HashAlgorithm.CRC32_HASH : HashAlgorithm.valueOf(name.toUpperCase() + "_HASH");
+	}
+
 	@Override
 	public boolean shutdown() throws KeyValueStoreClientException {
+		shutdownAsyncExecutor();
 		if (_client != null) {
 			try {
 				_client.shutdown();
@@ -80,7 +147,26 @@ public class XMemcachedClient extends AbstractMemcachedClient {
 		} catch (Exception error) {
 			throw(new KeyValueStoreClientException(error));
 		}
-		return raw;
+		return readChunks(key, raw);
+	}
+
+	@Override
+	public Map<String, byte[]> getBulk(Collection<String> keys) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		return readChunks(getChunks(keys));
+	}
+
+	@Override
+	protected Map<String, byte[]> getChunks(Collection<String> keys) throws KeyValueStoreClientException {
+		Map<String, byte[]> result = null;
+		try {
+			result = _client.get(keys);
+		} catch (Exception error) {
+			throw(new KeyValueStoreClientException(error));
+		}
+		return result;
 	}
 
 	@Override
@@ -93,9 +179,13 @@ public class XMemcachedClient extends AbstractMemcachedClient {
 		if (!isAlive()) {
 			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
 		}
+		if (isChunked(raw)) {
+			raw = writeChunks(key, raw, exp);
+		}
 		boolean result = false;
 		try {
 			result = _client.set(key, exp, raw);
+			setVersion(key, version, exp, result, true);
 		} catch (Exception error) {
 			throw(new KeyValueStoreClientException(error));
 		}
@@ -112,9 +202,53 @@ public class XMemcachedClient extends AbstractMemcachedClient {
 		if (!isAlive()) {
 			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
 		}
+		if (isChunked(raw)) {
+			raw = writeChunks(key, raw, exp);
+		}
 		boolean result = false;
 		try {
 			result = _client.add(key, exp, raw);
+			if (result) {
+				setVersion(key, version, exp, result, true);
+			}
+		} catch (Exception error) {
+			throw(new KeyValueStoreClientException(error));
+		}
+		return result;
+	}
+
+	/**
+	 * The session is swapped by its own CAS id, so that the check and the write
+	 * are a single operation of memcached. The version travels in the flags of
+	 * the item, see {@link #versionFlags(long)}. The version key is updated
+	 * afterwards for {@link #version(String)}.
+	 */
+	@Override
+	public boolean cas(String key, long expectedVersion, byte[] raw, int exp) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		long version = expectedVersion + 1;
+		boolean result = false;
+		try {
+			if (expectedVersion == 0) {
+				if (isChunked(raw)) {
+					raw = writeChunks(key, raw, exp);
+				}
+				result = _client.add(key, exp, new CachedData(versionFlags(version), raw), _casTranscoder, _timeoutInMs);
+			} else {
+				GetsResponse<CachedData> current = _client.gets(key, _timeoutInMs, _casTranscoder);
+				if (current == null || versionOf(key, current.getValue().getFlag()) != expectedVersion) {
+					return false;
+				}
+				if (isChunked(raw)) {
+					raw = writeChunks(key, raw, exp);
+				}
+				result = _client.cas(key, exp, new CachedData(versionFlags(version), raw), _casTranscoder, _timeoutInMs, current.getCas());
+			}
+			if (result) {
+				setVersion(key, version, exp, result, false);
+			}
 		} catch (Exception error) {
 			throw(new KeyValueStoreClientException(error));
 		}
@@ -126,9 +260,72 @@ public class XMemcachedClient extends AbstractMemcachedClient {
 		if (!isAlive()) {
 			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
 		}
+		deleteChunks(key);
 		boolean result = false;
 		try {
 			result = _client.delete(key);
+			_client.delete(versionKey(key));
+		} catch (Exception error) {
+			throw(new KeyValueStoreClientException(error));
+		}
+		return result;
+	}
+
+	/**
+	 * xmemcached has no multi-set. chunks are written one by one on the calling
+	 * thread, which may be a thread of the async executor already (e.g. setAsync).
+	 * handing them over to the executor and waiting for them there would starve it.
+	 */
+	@Override
+	protected boolean setChunks(Map<String, byte[]> chunks, int exp) throws KeyValueStoreClientException {
+		boolean result = true;
+		try {
+			for (Map.Entry<String, byte[]> chunk: chunks.entrySet()) {
+				result &= _client.set(chunk.getKey(), exp, chunk.getValue());
+			}
+		} catch (Exception error) {
+			throw(new KeyValueStoreClientException(error));
+		}
+		return result;
+	}
+
+	@Override
+	protected void removeChunks(Collection<String> keys) throws KeyValueStoreClientException {
+		try {
+			for (String key: keys) {
+				_client.deleteWithNoReply(key);
+			}
+		} catch (Exception error) {
+			throw(new KeyValueStoreClientException(error));
+		}
+	}
+
+	/**
+	 * touched one by one on the calling thread as well as {@link #setChunks(Map, int)}.
+	 */
+	@Override
+	protected boolean touchChunks(Collection<String> keys, int exp) throws KeyValueStoreClientException {
+		boolean result = true;
+		try {
+			for (String key: keys) {
+				result &= _client.touch(key, exp);
+			}
+		} catch (Exception error) {
+			throw(new KeyValueStoreClientException(error));
+		}
+		return result;
+	}
+
+	@Override
+	public boolean touch(String key, int exp) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		extendChunks(key, exp);
+		boolean result = false;
+		try {
+			result = _client.touch(key, exp);
+			_client.touch(versionKey(key), exp);
 		} catch (Exception error) {
 			throw(new KeyValueStoreClientException(error));
 		}
@@ -136,16 +333,133 @@ public class XMemcachedClient extends AbstractMemcachedClient {
 	}
 
 	/**
-	 * Currently in-efficient... see if there is an exists for memcache
+	 * get-and-touch is a command of the binary protocol only. the text protocol falls back on get and touch. the
+	 * version key is touched afterwards on the calling thread, for the same reason as {@link #setChunks(Map, int)}.
 	 */
-  @Override
-  public boolean exists( String key ) throws KeyValueStoreClientException {
-    return get( key ) != null;
-  }
-
-  @Override
-  public long version( String key ) {
-    // TODO Auto-generated method stub
-    return 0;
-  }
-}
\ No newline at end of file
+	@Override
+	public byte[] getAndTouch(String key, int exp) throws KeyValueStoreClientException {
+		if (!isAlive()) {
+			throw(new KeyValueStoreClientException(new IllegalStateException("client not established")));
+		}
+		byte[] raw = null;
+		try {
+			if (isBinary()) {
+				raw = _client.getAndTouch(key, exp);
+			} else {
+				raw = _client.get(key);
+				if (raw != null) {
+					_client.touch(key, exp);
+				}
+			}
+			_client.touch(versionKey(key), exp);
+		} catch (Exception error) {
+			throw(new KeyValueStoreClientException(error));
+		}
+		return readAndExtendChunks(key, raw, exp);
+	}
+
+	protected boolean isBinary() {
+		return false;
+	}
+
+	@Override
+	public CompletableFuture<byte[]> getAsync(String key) {
+		return callAsync(() -> get(key));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> setAsync(String key, long version, byte[] raw, int exp) {
+		return callAsync(() -> set(key, version, raw, exp));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> addAsync(String key, long version, byte[] raw, int exp) {
+		return callAsync(() -> add(key, version, raw, exp));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> deleteAsync(String key) {
+		return callAsync(() -> delete(key));
+	}
+
+	/**
+	 * Check the version key first. Fall back to the session itself only for
+	 * sessions stored without version (e.g. by older releases).
+	 */
+	@Override
+	public boolean exists(String key) throws KeyValueStoreClientException {
+		return 0 < version(key) || get(key) != null;
+	}
+
+	@Override
+	public long version(String key) throws KeyValueStoreClientException {
+		return decodeVersion(get(versionKey(key)));
+	}
+
+	/**
+	 * move the version key forward once the write of the session has been
+	 * confirmed, and before it is acknowledged. version 0 means "unknown", and so
+	 * does a session which could not be written or a version key which could not
+	 * be moved forward, e.g. since a concurrent writer has moved it. drop the
+	 * version key in that case so that it will never be stale.
+	 *
+	 * @param stored whether the session has been written
+	 * @param stamped see {@link #isNewerVersion(long, long, boolean)}
+	 */
+	private void setVersion(String key, long version, int exp, boolean stored, boolean stamped) throws Exception {
+		String versionKey = versionKey(key);
+		if (0 < version && stored) {
+			GetsResponse<byte[]> current = _client.gets(versionKey, _timeoutInMs, _transcoder);
+			if (current == null) {
+				if (_client.add(versionKey, exp, encodeVersion(version), _transcoder, _timeoutInMs)) {
+					return;
+				}
+			} else if (isNewerVersion(decodeVersion(current.getValue()), version, stamped)
+					&& _client.cas(versionKey, exp, encodeVersion(version), _transcoder, _timeoutInMs, current.getCas())) {
+				return;
+			}
+		}
+		_client.delete(versionKey);
+	}
+
+	@Override
+	public int getServers() {
+		return AddrUtil.getAddresses(_serverString).size();
+	}
+
+	@Override
+	public int getConnections() {
+		MemcachedClient client = _client;
+		int connections = 0;
+		if (client != null) {
+			for (Session session: client.getConnector().getSessionSet()) {
+				if (!session.isClosed()) {
+					connections++;
+				}
+			}
+		}
+		return connections;
+	}
+
+	@Override
+	public long getReconnects() {
+		return _reconnects.get();
+	}
+
+	/**
+	 * commands waiting to be written to the connections
+	 */
+	@Override
+	public long getQueuedOperations() {
+		MemcachedClient client = _client;
+		long queued = 0;
+		if (client != null) {
+			for (Session session: client.getConnector().getSessionSet()) {
+				if (session instanceof AbstractSession) {
+					queued += ((AbstractSession) session).getWriteQueue().size();
+				}
+			}
+		}
+		return queued;
+	}
+}
@@ -1,10 +1,15 @@
 package org.eclipse.jetty.nosql.mongo;
 
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import javax.naming.InitialContext;
 
 import org.eclipse.jetty.nosql.kvs.AbstractKeyValueStoreClient;
+import org.eclipse.jetty.nosql.kvs.IAsyncKeyValueStoreClient;
 import org.eclipse.jetty.nosql.kvs.IKeyValueStoreClient;
 import org.eclipse.jetty.nosql.kvs.KeyValueStoreClientException;
 import org.eclipse.jetty.util.log.Log;
@@ -13,17 +18,22 @@ import org.eclipse.jetty.util.log.Logger;
 import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.MongoException;
 import com.mongodb.WriteConcern;
 import com.mongodb.WriteResult;
 
 /**
  * Provides the Implementation of Session Storage to a MongoDB.
  * 
+ * The driver only offers blocking operations, so asynchronous operations are run on the executor of
+ * {@link AbstractKeyValueStoreClient}.
+ * 
  * @author David Ranalli
  * Jan 28, 2016
  */
-public class MongoClient extends AbstractKeyValueStoreClient implements IKeyValueStoreClient {
+public class MongoClient extends AbstractKeyValueStoreClient implements IKeyValueStoreClient, IAsyncKeyValueStoreClient {
   private final static Logger log = Log.getLogger( MongoClient.class.getName() );
   /* Jetty session id - key for session */
   private static final String KEY_ID = "id";
@@ -75,6 +85,7 @@ public class MongoClient extends AbstractKeyValueStoreClient implements IKeyValu
  
   @Override
   public boolean shutdown() throws KeyValueStoreClientException {
+    shutdownAsyncExecutor();
     return true;
   }
 
@@ -94,6 +105,32 @@ public class MongoClient extends AbstractKeyValueStoreClient implements IKeyValu
     }
   }
   
+  /**
+   * Single query for all keys with $in.
+   */
+  @Override
+  public Map<String, byte[]> getBulk( Collection<String> keys ) throws KeyValueStoreClientException {
+    Map<String, byte[]> result = new HashMap<String, byte[]>();
+    DBCursor cursor = null;
+    try {
+      BasicDBObject query = new BasicDBObject( KEY_ID, new BasicDBObject( "$in", keys.toArray() ) );
+      BasicDBObject fields = new BasicDBObject( KEY_ID, 1 );
+      fields.put( KEY_SESSION, 1 );
+      cursor = collection.find( query, fields );
+      for ( DBObject found : cursor ) {
+        result.put( (String)found.get( KEY_ID ), (byte[])found.get( KEY_SESSION ) );
+      }
+    }
+    catch( RuntimeException e ) {
+      throw new KeyValueStoreClientException( e.getMessage() );
+    }
+    finally {
+      if ( cursor != null )
+        cursor.close();
+    }
+    return result;
+  }
+
   @Override
   public boolean delete( String key ) throws KeyValueStoreClientException {
     WriteResult result = null;
@@ -196,15 +233,125 @@ public class MongoClient extends AbstractKeyValueStoreClient implements IKeyValu
 
         log.debug("MongoClient: add:db.sessions.insert( {}, {} )", key, insert);
     }
+    catch (MongoException.DuplicateKey e)
+    {
+      log.debug("MongoClient: add:session {} already exists", key);
+      return false;
+    }
     catch (Exception e)
     {
       log.warn(e);
       throw new KeyValueStoreClientException( e.getMessage() );
     }
 
+    // getN() is always 0 for inserts. WriteConcern.SAFE raises errors instead.
+    return result != null;
+  }
+
+  /**
+   * Conditional update on the version field. A new session is inserted instead, which fails on the unique index
+   * if somebody else has inserted it first.
+   */
+  @Override
+  public boolean cas( String key, long expectedVersion, byte[] raw, int exp ) throws KeyValueStoreClientException {
+    if ( expectedVersion == 0 )
+      return add( key, 1, raw, exp );
+
+    WriteResult result = null;
+    try
+    {
+        log.debug("MongoClient: cas session {} version {}", key, expectedVersion );
+
+        BasicDBObject dbKey = new BasicDBObject( KEY_ID, key );
+        dbKey.put( KEY_VERSION, expectedVersion );
+
+        BasicDBObject update = new BasicDBObject();
+        update.put( KEY_ID, key );
+        update.put( KEY_SESSION, raw );
+        update.put( KEY_VERSION, expectedVersion + 1 );
+        if ( exp > 0 ) {
+          Calendar c = Calendar.getInstance();
+          c.add( Calendar.SECOND, exp );
+          update.put( KEY_EXPIRY, c.getTime() );
+        }
+
+        result = collection.update( dbKey, update, false, false, WriteConcern.SAFE );
+    }
+    catch (Exception e)
+    {
+        log.warn(e);
+        throw new KeyValueStoreClientException( e.getMessage() );
+    }
+    return result != null && result.getN() > 0;
+  }
+
+  /**
+   * Update the expiry field only. The session itself is left as it is.
+   */
+  @Override
+  public boolean touch( String key, int exp ) throws KeyValueStoreClientException {
+    WriteResult result = null;
+    try
+    {
+        log.debug("MongoClient: touch session {}", key );
+
+        result = collection.update( new BasicDBObject( KEY_ID, key ), expiryUpdate( exp ), false, false, WriteConcern.SAFE );
+    }
+    catch (Exception e)
+    {
+        log.warn(e);
+        throw new KeyValueStoreClientException( e.getMessage() );
+    }
     return result != null && result.getN() > 0;
   }
 
+  /**
+   * Single findAndModify which returns the session as it was before updating its expiry.
+   */
+  @Override
+  public byte[] getAndTouch( String key, int exp ) throws KeyValueStoreClientException {
+    try {
+      log.debug("MongoClient: get and touch session {}", key );
+
+      BasicDBObject fields = new BasicDBObject( KEY_SESSION, 1 );
+      DBObject found = collection.findAndModify( new BasicDBObject( KEY_ID, key ), fields, null, false, expiryUpdate( exp ), false, false );
+      return found != null ? (byte[])found.get( KEY_SESSION ) : null;
+    }
+    catch( RuntimeException e ) {
+      throw new KeyValueStoreClientException( e.getMessage() );
+    }
+  }
+
+  private DBObject expiryUpdate( int exp ) {
+    if ( exp > 0 ) {
+      Calendar c = Calendar.getInstance();
+      c.add( Calendar.SECOND, exp );
+      return new BasicDBObject( "$set", new BasicDBObject( KEY_EXPIRY, c.getTime() ) );
+    } else {
+      return new BasicDBObject( "$unset", new BasicDBObject( KEY_EXPIRY, 1 ) );
+    }
+  }
+
+  @Override
+  public CompletableFuture<byte[]> getAsync( String key ) {
+    return callAsync( () -> get( key ) );
+  }
+
+  @Override
+  public CompletableFuture<Boolean> setAsync( String key, long version, byte[] raw, int exp ) {
+    return callAsync( () -> set( key, version, raw, exp ) );
+  }
+
+  @Override
+  public CompletableFuture<Boolean> addAsync( String key, long version, byte[] raw, int exp ) {
+    return callAsync( () -> add( key, version, raw, exp ) );
+  }
+
+  @Override
+  public CompletableFuture<Boolean> deleteAsync( String key ) {
+    return callAsync( () -> delete( key ) );
+  }
+
   /**
    * {@inheritDoc}
    */
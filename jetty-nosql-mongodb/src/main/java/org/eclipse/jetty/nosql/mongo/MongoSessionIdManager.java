@@ -3,11 +3,11 @@ package org.eclipse.jetty.nosql.mongo;
 
 import java.io.IOException;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 import javax.servlet.http.HttpServletRequest;
 
 import org.eclipse.jetty.nosql.kvs.AbstractKeyValueStoreClient;
-import org.eclipse.jetty.nosql.kvs.KeyValueStoreClientException;
 import org.eclipse.jetty.nosql.kvs.KeyValueStoreSessionIdManager;
 import org.eclipse.jetty.nosql.kvs.jmx.MonitoredClient;
 import org.eclipse.jetty.server.Server;
@@ -78,45 +78,28 @@ public class MongoSessionIdManager extends KeyValueStoreSessionIdManager {
     return UUID.randomUUID().toString().toLowerCase();
   }
 
+  /**
+   * Added here to give access to SessionManager
+   */
   @Override
-  public boolean idInUse( final String idInCluster ) {
-    return exists( idInCluster ); // note "null" may also mean be caused by connection problem. Anyway: Treating this as "not in use"
-    // do not check the validity of the session since
-    // we do not save invalidated sessions anymore.
+  protected long version( final String idInCluster ) {
+    return super.version( idInCluster );
   }
 
-  protected boolean exists(final String idInCluster)
-  {
-      log.debug("get: id=" + idInCluster);
-      boolean exists = false;
-      try
-      {
-          exists = _client.exists(mangleKey(idInCluster));
-      }
-      catch (KeyValueStoreClientException error)
-      {
-          log.warn("unable to check key exists: id=" + idInCluster, error);
-      }
-      return exists;
-  }
-  
-  protected long version( final String idInCluster ) {
-    log.debug("version: id=" + idInCluster);
-    return _client.version(mangleKey(idInCluster));
+  /**
+   * Added here to give access to SessionManager
+   */
+  @Override
+  protected boolean setKey( final String idInCluster, final long version, final byte[] raw, int expiry ) {
+    return super.setKey( idInCluster, version, raw, expiry );
   }
 
-  protected boolean setKey( String mangleKey, long version, byte[] raw, int maxInactiveInterval ) {
-    log.debug("setKey: id=" + mangleKey );
-    boolean exists = false;
-    try
-    {
-        exists = _client.set( mangleKey, version, raw, maxInactiveInterval );
-    }
-    catch (KeyValueStoreClientException error)
-    {
-        log.warn("unable save session: id=" + mangleKey, error);
-    }
-    return exists;
+  /**
+   * Added here to give access to SessionManager
+   */
+  @Override
+  protected CompletableFuture<Boolean> setKeyAsync( final String idInCluster, final long version, final byte[] raw, int expiry ) {
+    return super.setKeyAsync( idInCluster, version, raw, expiry );
   }
 
   /**
@@ -3,7 +3,7 @@ package org.eclipse.jetty.nosql.mongo;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -125,20 +125,6 @@ public class MongoSessionManager extends KeyValueStoreSessionManager {
       return localSessions.remove( idInCluster ) != null;
 	}
 	
-	@Override
-	protected Object refresh( NoSqlSession session, Object version ) {
-      log.debug("refresh " + session);
-      Long saved = getSessionIdManager().version( session.getClusterId() );
-      
-      // check if our in memory version is the same as what is on KVS
-      if ( version != null && Objects.equals( saved, version ) ) {
-        log.debug("refresh not needed");
-        return version;
-      }
-
-	  return super.refresh( session, version );
-	}
-	
     @Override
     protected boolean setKey(final String idInCluster, final ISerializableSession data) throws TranscoderException
     {
@@ -149,8 +135,8 @@ public class MongoSessionManager extends KeyValueStoreSessionManager {
           hash = getBareSessionHash( data.getAttributeMap() );
           
           if( hash.equals( localSession.hash ) )
-            return getSessionIdManager().setKey(getSessionIdManager().mangleKey(idInCluster), data.getVersion(), null,
-                getMaxInactiveInterval());
+            return getSessionIdManager().setKey(mangleKey(idInCluster), data.getVersion(), null,
+                getKeyExpiry());
         }
         byte[] raw = getSessionFactory().pack(data);
         if (raw == null)
@@ -159,14 +145,37 @@ public class MongoSessionManager extends KeyValueStoreSessionManager {
         }
         else
         {
-            boolean result =  getSessionIdManager().setKey(getSessionIdManager().mangleKey(idInCluster), data.getVersion(), raw,
-                getMaxInactiveInterval());
+            boolean result =  getSessionIdManager().setKey(mangleKey(idInCluster), data.getVersion(), raw,
+                getKeyExpiry());
             if ( localSession != null )
               localSession.hash = hash;
             return result;
         }
     }
     
+    @Override
+    protected CompletableFuture<Boolean> setKeyAsync(final String idInCluster, final ISerializableSession data) throws TranscoderException
+    {
+        final SessionHolder localSession = localSessions.get( idInCluster );
+        final String hash = localSession == null ? null : getBareSessionHash( data.getAttributeMap() );
+
+        if ( localSession != null && hash.equals( localSession.hash ) )
+          return getSessionIdManager().setKeyAsync(mangleKey(idInCluster), data.getVersion(), null,
+              getKeyExpiry());
+
+        byte[] raw = getSessionFactory().pack(data);
+        if (raw == null)
+        {
+            return CompletableFuture.completedFuture( false );
+        }
+        return getSessionIdManager().setKeyAsync(mangleKey(idInCluster), data.getVersion(), raw,
+            getKeyExpiry()).thenApply( result -> {
+              if ( localSession != null )
+                localSession.hash = hash;
+              return result;
+            } );
+    }
+
     @Override
     public MongoSessionIdManager getSessionIdManager() {
       return (MongoSessionIdManager)super.getSessionIdManager();
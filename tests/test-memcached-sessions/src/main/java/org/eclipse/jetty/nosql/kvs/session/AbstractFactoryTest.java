@@ -1,5 +1,9 @@
 package org.eclipse.jetty.nosql.kvs.session;
 
+import java.util.Arrays;
+
+import org.eclipse.jetty.nosql.kvs.session.compression.LZ4Codec;
+
 import junit.framework.TestCase;
 
 public abstract class AbstractFactoryTest extends TestCase {
@@ -30,4 +34,129 @@ public abstract class AbstractFactoryTest extends TestCase {
 		assertEquals(session1.getCreationTime(), session2.getCreationTime());
 		assertEquals(session1.getAttributeMap(), session2.getAttributeMap());
 	}
+
+	public void testLazyAttributes() throws Exception {
+		ISerializableSession session1, session2, session3;
+
+		session1 = factory.create("session1");
+		session1.setAttribute("foo", "foo value");
+		session1.setAttribute("bar", 22222);
+
+		factory.setLazyAttributes(true);
+		session2 = factory.unpack(factory.pack(session1));
+		assertEquals(session1.getId(), session2.getId());
+		assertEquals(session1.getAttributeMap().keySet(), session2.getAttributeMap().keySet());
+		assertTrue(session2.getAttribute("foo") instanceof LazyAttribute);
+		assertEquals("foo value", ((LazyAttribute) session2.getAttribute("foo")).getValue());
+		assertEquals(22222, ((LazyAttribute) session2.getAttribute("bar")).getValue());
+
+		// untouched attributes are written back as they are, and can be read without lazy attributes
+		factory.setLazyAttributes(false);
+		session3 = factory.unpack(factory.pack(session2));
+		assertEquals(session1.getAttributeMap(), session3.getAttributeMap());
+	}
+
+	public void testBinaryEnvelope() throws Exception {
+		ISerializableSession session1, session2, session3;
+
+		session1 = factory.create("session1", 1400000000000L, 1400000001000L);
+		session1.setVersion(3);
+		session1.setPath("/context");
+		session1.setAttribute("foo", "foo value");
+		session1.setAttribute("bar", 22222);
+
+		factory.setBinaryEnvelope(false);
+		byte[] legacy = factory.pack(session1);
+		factory.setBinaryEnvelope(true);
+		byte[] raw = factory.pack(session1);
+		assertTrue(SessionEnvelopeCodec.isEnvelope(raw));
+		assertTrue(raw.length < legacy.length);
+
+		session2 = factory.unpack(raw);
+		assertEquals(session1.getId(), session2.getId());
+		assertEquals(session1.getCreationTime(), session2.getCreationTime());
+		assertEquals(session1.getAccessed(), session2.getAccessed());
+		assertEquals(session1.getVersion(), session2.getVersion());
+		assertEquals(session1.getDomain(), session2.getDomain());
+		assertEquals(session1.getPath(), session2.getPath());
+		assertTrue(session2.isValid());
+		assertEquals(session1.getAttributeMap(), session2.getAttributeMap());
+
+		// sessions packed before the envelope are still readable
+		assertEquals(session1.getAttributeMap(), factory.unpack(legacy).getAttributeMap());
+
+		// as well as lazy attributes packed before the envelope
+		factory.setBinaryEnvelope(false);
+		factory.setLazyAttributes(true);
+		session3 = factory.unpack(factory.pack(session1));
+		factory.setBinaryEnvelope(true);
+		session3 = factory.unpack(factory.pack(session3));
+		assertTrue(session3.getAttribute("foo") instanceof LazyAttribute);
+		assertEquals("foo value", ((LazyAttribute) session3.getAttribute("foo")).getValue());
+		assertEquals(22222, ((LazyAttribute) session3.getAttribute("bar")).getValue());
+
+		session1.setValid(false);
+		assertFalse(factory.unpack(factory.pack(session1)).isValid());
+	}
+
+	public void testPeekMetadata() throws Exception {
+		ISerializableSession session1, metadata;
+
+		session1 = factory.create("session1", 1400000000000L, 1400000001000L);
+		session1.setVersion(5);
+		session1.setDomain("example.com");
+		session1.setAttribute("foo", "foo value");
+
+		factory.setBinaryEnvelope(true);
+		metadata = factory.peekMetadata(factory.pack(session1));
+		assertNotNull(metadata);
+		assertEquals(session1.getId(), metadata.getId());
+		assertEquals(session1.getCreationTime(), metadata.getCreationTime());
+		assertEquals(session1.getAccessed(), metadata.getAccessed());
+		assertEquals(session1.getVersion(), metadata.getVersion());
+		assertEquals(session1.getDomain(), metadata.getDomain());
+		assertEquals(session1.getPath(), metadata.getPath());
+		assertTrue(metadata.isValid());
+		assertTrue(metadata.getAttributeMap().isEmpty());
+
+		session1.setValid(false);
+		assertFalse(factory.peekMetadata(factory.pack(session1)).isValid());
+
+		// sessions packed before the envelope have to be unpacked
+		factory.setBinaryEnvelope(false);
+		assertNull(factory.peekMetadata(factory.pack(session1)));
+	}
+
+	public void testEnvelopeCompression() throws Exception {
+		ISerializableSession session1, session2;
+
+		// many attributes, each far below the threshold
+		session1 = factory.create("session1", 1400000000000L, 1400000001000L);
+		for (int i = 0; i < 100; i++) {
+			session1.setAttribute("attribute" + i, "value of attribute " + i);
+		}
+		factory.setBinaryEnvelope(true);
+		byte[] plain = factory.pack(session1);
+		factory.setCompressionCodec(new LZ4Codec());
+		factory.setCompressionThreshold(1024);
+		byte[] compressed = factory.pack(session1);
+		assertTrue(SessionEnvelopeCodec.isEnvelope(compressed));
+		assertTrue(compressed.length < plain.length);
+
+		session2 = factory.unpack(compressed);
+		assertEquals(session1.getId(), session2.getId());
+		assertEquals(session1.getAttributeMap(), session2.getAttributeMap());
+		assertEquals(session1.getId(), factory.peekMetadata(compressed).getId());
+		factory.setLazyAttributes(true);
+		session2 = factory.unpack(compressed);
+		assertEquals("value of attribute 7", ((LazyAttribute) session2.getAttribute("attribute7")).getValue());
+		factory.setLazyAttributes(false);
+
+		// sessions whose attributes take less than the threshold are not compressed
+		factory.setCompressionThreshold(plain.length);
+		assertTrue(Arrays.equals(plain, factory.pack(session1)));
+		// and compressed sessions are readable without the codec
+		factory.setCompressionCodec(null);
+		assertEquals(session1.getAttributeMap(), factory.unpack(compressed).getAttributeMap());
+	}
 }
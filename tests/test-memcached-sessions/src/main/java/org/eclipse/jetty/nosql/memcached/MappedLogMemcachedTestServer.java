@@ -0,0 +1,68 @@
+package org.eclipse.jetty.nosql.memcached;
+
+// ========================================================================
+// Copyright (c) 1996-2009 Mort Bay Consulting Pty. Ltd.
+// Copyright (c) 2012 Geisha Tokyo Entertainment, Inc.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at 
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses. 
+// ========================================================================
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.eclipse.jetty.nosql.memcached.mmap.MappedLogClientFactory;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class MappedLogMemcachedTestServer extends MemcachedTestServer
+{
+    // shared by all servers of the test, like a memcached would be
+    private static String _directory;
+
+    public MappedLogMemcachedTestServer(int port)
+    {
+        super(port);
+    }
+
+    public MappedLogMemcachedTestServer(int port, int maxInactivePeriod, int scavengePeriod)
+    {
+        super(port, maxInactivePeriod, scavengePeriod);
+    }
+
+    public MappedLogMemcachedTestServer(int port, int maxInactivePeriod, int scavengePeriod, boolean saveAllAttributes)
+    {
+        super(port, maxInactivePeriod, scavengePeriod, saveAllAttributes);
+    }
+
+    @Override
+    public AbstractMemcachedClientFactory getMemcachedClientFactory()
+    {
+        MappedLogClientFactory clientFactory = new MappedLogClientFactory();
+        clientFactory.setDirectory(getDirectory());
+        return clientFactory;
+    }
+
+    private static synchronized String getDirectory()
+    {
+        if (_directory == null)
+        {
+            try
+            {
+                _directory = Files.createTempDirectory("jetty-nosql-sessions").toString();
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+        return _directory;
+    }
+}
@@ -23,6 +23,7 @@ import org.eclipse.jetty.nosql.memcached.AbstractMemcachedClientFactory;
 import org.eclipse.jetty.nosql.memcached.MemcachedSessionIdManager;
 import org.eclipse.jetty.nosql.memcached.MemcachedSessionManager;
 import org.eclipse.jetty.nosql.memcached.hashmap.HashMapClientFactory;
+import org.eclipse.jetty.nosql.memcached.offheap.OffHeapClientFactory;
 import org.eclipse.jetty.nosql.memcached.spymemcached.BinarySpyMemcachedClientFactory;
 import org.eclipse.jetty.nosql.memcached.spymemcached.HerokuSpyMemcachedClientFactory;
 import org.eclipse.jetty.nosql.memcached.spymemcached.SpyMemcachedClientFactory;
@@ -164,7 +165,9 @@ public class MemcachedTestServer extends AbstractTestServer
         String useBinary = System.getProperty("org.eclipse.jetty.nosql.memcached.useBinary", "false").trim().toLowerCase(); // backward compatibility
         String cfName = System.getProperty("org.eclipse.jetty.nosql.memcached.clientFactory", "default").trim().toLowerCase();
         AbstractMemcachedClientFactory clientFactory;
-        if (cfName.contains("spy")) {
+        if (cfName.contains("offheap")) {
+            clientFactory = new OffHeapClientFactory();
+        } else if (cfName.contains("spy")) {
             if (cfName.contains("binary")) {
                 if (cfName.contains("heroku")) {
                     clientFactory = new HerokuSpyMemcachedClientFactory();
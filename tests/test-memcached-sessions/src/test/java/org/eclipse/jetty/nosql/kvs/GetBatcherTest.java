@@ -0,0 +1,70 @@
+package org.eclipse.jetty.nosql.kvs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.jetty.nosql.memcached.hashmap.HashMapClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GetBatcherTest {
+	private HashMapClient client;
+	private GetBatcher batcher;
+
+	@Before
+	public void setUp() throws Exception {
+		client = new HashMapClient();
+		client.establish();
+		batcher = new GetBatcher(client, 10000, 100, 2, 1000);
+		batcher.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		batcher.stop();
+		client.shutdown();
+	}
+
+	@Test
+	public void testConcurrentLookups() throws Exception {
+		final int lookups = 20;
+		for (int i = 0; i < lookups; i++) {
+			client.set("GetBatcherTest::" + i, 1, new byte[] {(byte) i}, 60);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(lookups);
+		try {
+			List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+			for (int i = 0; i < lookups; i++) {
+				final String key = "GetBatcherTest::" + i;
+				results.add(executor.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws Exception {
+						return batcher.get(key);
+					}
+				}));
+			}
+			for (int i = 0; i < lookups; i++) {
+				assertArrayEquals(new byte[] {(byte) i}, results.get(i).get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(lookups, batcher.getLookups());
+		assertTrue(batcher.getBatches() < lookups);
+	}
+
+	@Test
+	public void testMissingKey() throws Exception {
+		assertNull(batcher.get("GetBatcherTest::missing"));
+	}
+}
@@ -0,0 +1,33 @@
+package org.eclipse.jetty.nosql.kvs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class SessionCacheTest {
+	@Test
+	public void testEvictsLeastRecentlyUsed() throws Exception {
+		SessionCache<String> cache = new SessionCache<String>(2);
+		cache.put("foo", "foo value");
+		cache.put("bar", "bar value");
+		assertEquals("foo value", cache.get("foo"));
+		cache.put("baz", "baz value");
+
+		assertEquals(2, cache.getSize());
+		assertEquals(1, cache.getEvictions());
+		assertNull(cache.get("bar"));
+		assertEquals("foo value", cache.get("foo"));
+		assertEquals("baz value", cache.get("baz"));
+	}
+
+	@Test
+	public void testRemove() throws Exception {
+		SessionCache<String> cache = new SessionCache<String>(2);
+		cache.put("foo", "foo value");
+		assertEquals("foo value", cache.remove("foo"));
+		assertNull(cache.get("foo"));
+		assertEquals(0, cache.getSize());
+		assertEquals(0, cache.getEvictions());
+	}
+}
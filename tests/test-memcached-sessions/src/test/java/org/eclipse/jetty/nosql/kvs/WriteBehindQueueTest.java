@@ -0,0 +1,111 @@
+package org.eclipse.jetty.nosql.kvs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+public class WriteBehindQueueTest {
+	private final List<Long> writes = new ArrayList<Long>();
+	private boolean available = true;
+
+	private WriteBehindQueue newQueue() {
+		return new WriteBehindQueue(new WriteBehindQueue.Writer() {
+			@Override
+			public CompletableFuture<Boolean> write(String idInCluster, long version, byte[] raw) {
+				if (available) {
+					writes.add(version);
+				}
+				return CompletableFuture.completedFuture(available);
+			}
+		}, 60000, 2, 1000);
+	}
+
+	@Test
+	public void testCoalesce() throws Exception {
+		WriteBehindQueue queue = newQueue();
+		queue.offer("foo", 1, new byte[] {1});
+		queue.offer("foo", 2, new byte[] {2});
+		queue.offer("foo", 3, new byte[] {3});
+		assertEquals(3, queue.getVersion("foo"));
+		assertArrayEquals(new byte[] {3}, queue.getRaw("foo"));
+
+		queue.flush(-1);
+		assertEquals(1, writes.size());
+		assertEquals(Long.valueOf(3), writes.get(0));
+		assertEquals(2, queue.getCoalesced());
+		assertEquals(1, queue.getWritten());
+		assertEquals(0, queue.getPending());
+		assertNull(queue.getRaw("foo"));
+	}
+
+	@Test
+	public void testRetryFailedWrite() throws Exception {
+		WriteBehindQueue queue = newQueue();
+		available = false;
+		queue.offer("foo", 1, new byte[] {1});
+		queue.flush(-1);
+		assertEquals(1, queue.getFailed());
+		assertEquals(1, queue.getPending());
+
+		available = true;
+		queue.flush(-1);
+		assertEquals(1, writes.size());
+		assertEquals(0, queue.getPending());
+	}
+
+	@Test
+	public void testRemove() throws Exception {
+		WriteBehindQueue queue = newQueue();
+		queue.offer("foo", 1, new byte[] {1});
+		queue.remove("foo");
+		queue.flush(-1);
+		assertEquals(0, writes.size());
+		assertEquals(0, queue.getVersion("foo"));
+	}
+
+	@Test
+	public void testWritesOfSessionDoNotOverlap() throws Exception {
+		final List<CompletableFuture<Boolean>> inFlight = new ArrayList<CompletableFuture<Boolean>>();
+		WriteBehindQueue queue = new WriteBehindQueue(new WriteBehindQueue.Writer() {
+			@Override
+			public CompletableFuture<Boolean> write(String idInCluster, long version, byte[] raw) {
+				writes.add(version);
+				CompletableFuture<Boolean> f = new CompletableFuture<Boolean>();
+				inFlight.add(f);
+				return f;
+			}
+		}, 60000, 1, 100);
+		queue.offer("foo", 1, new byte[] {1});
+		// times out waiting for the write
+		queue.flush(-1);
+		assertEquals(1, writes.size());
+
+		// the newer state waits for the write in flight
+		queue.offer("foo", 2, new byte[] {2});
+		queue.flush(-1);
+		assertEquals(1, writes.size());
+		inFlight.get(0).complete(true);
+		assertEquals(2, queue.getVersion("foo"));
+		queue.flush(-1);
+		assertEquals(2, writes.size());
+		assertEquals(Long.valueOf(2), writes.get(1));
+
+		// removing the session waits for the write in flight, and nothing is written afterwards
+		queue.offer("foo", 3, new byte[] {3});
+		CompletableFuture<Void> removed = CompletableFuture.runAsync(() -> queue.remove("foo"));
+		Thread.sleep(20);
+		assertFalse(removed.isDone());
+		inFlight.get(1).complete(true);
+		removed.get();
+		queue.flush(-1);
+		assertEquals(2, writes.size());
+		assertEquals(0, queue.getPending());
+	}
+}
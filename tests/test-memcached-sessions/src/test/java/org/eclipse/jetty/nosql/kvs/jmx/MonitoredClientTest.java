@@ -0,0 +1,138 @@
+package org.eclipse.jetty.nosql.kvs.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.MBeanServer;
+
+import org.eclipse.jetty.nosql.kvs.KeyValueStoreClientException;
+import org.eclipse.jetty.nosql.memcached.hashmap.HashMapClient;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MonitoredClientTest {
+	@Test
+	public void testHistograms() throws Exception {
+		MonitoredClient client = new MonitoredClient(new HashMapClient("monitored:11211"));
+		client.establish();
+		try {
+			String key = "MonitoredClientTest::testHistograms";
+			client.set(key, 1, new byte[100], 60);
+			client.add(key + "::added", 1, new byte[10], 60);
+			client.get(key);
+			client.getBulk(Arrays.asList(key, key + "::added"));
+			client.delete(key);
+
+			assertEquals(2, client.getHistograms().get("readLatency").getCount());
+			assertEquals(1, client.getHistograms().get("insertLatency").getCount());
+			assertEquals(1, client.getHistograms().get("updateLatency").getCount());
+			assertEquals(1, client.getHistograms().get("deleteLatency").getCount());
+			assertEquals(2, client.getHistograms().get("dataOutSize").getCount());
+			assertEquals(100, client.getHistograms().get("dataOutSize").getMax());
+			assertEquals(3, client.getHistograms().get("dataInSize").getCount());
+
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			assertTrue(server.isRegistered(JmxMonitorManager.objectName("SessionClustering", "hashmapclient", "monitored:11211")));
+			assertEquals(2L, server.getAttribute(JmxMonitorManager.objectName("SessionClustering", "hashmapclient", "monitored:11211/readLatency"), "Count"));
+		} finally {
+			client.shutdown();
+		}
+		assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(JmxMonitorManager.objectName("SessionClustering", "hashmapclient", "monitored:11211/readLatency")));
+	}
+
+	@Test
+	public void testTimeoutsAndConnectionStats() throws Exception {
+		final AtomicBoolean timeout = new AtomicBoolean();
+		class StatsClient extends HashMapClient implements ConnectionStatsMBean {
+			StatsClient() {
+				super("monitored-stats:11211");
+			}
+			@Override
+			public byte[] get(String key) throws KeyValueStoreClientException {
+				if (timeout.get()) {
+					throw(new KeyValueStoreClientException(new TimeoutException()));
+				}
+				return super.get(key);
+			}
+			public int getServers() {
+				return 1;
+			}
+			public int getConnections() {
+				return 1;
+			}
+			public long getReconnects() {
+				return 2;
+			}
+			public long getQueuedOperations() {
+				return 3;
+			}
+		}
+		MonitoredClient client = new MonitoredClient(new StatsClient());
+		client.establish();
+		try {
+			client.get("MonitoredClientTest::testTimeoutsAndConnectionStats");
+			timeout.set(true);
+			try {
+				client.get("MonitoredClientTest::testTimeoutsAndConnectionStats");
+				fail();
+			} catch (KeyValueStoreClientException expected) {
+				// expected
+			}
+			assertEquals(1, client.getErrors());
+			assertEquals(1, client.getTimeouts());
+			assertEquals(0, client.getInFlight());
+
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			assertEquals(3L, server.getAttribute(JmxMonitorManager.objectName("SessionClustering", "statsclient", "monitored-stats:11211/connections"), "QueuedOperations"));
+		} finally {
+			client.shutdown();
+		}
+	}
+
+	@Test
+	public void testRuntimeExceptionsAreErrors() throws Exception {
+		MonitoredClient client = new MonitoredClient(new HashMapClient("monitored-runtime:11211") {
+			@Override
+			public byte[] get(String key) throws KeyValueStoreClientException {
+				throw new IllegalStateException("broken");
+			}
+			@Override
+			public boolean set(String key, long version, byte[] raw, int exp) throws KeyValueStoreClientException {
+				throw new IllegalStateException("broken");
+			}
+		});
+		client.establish();
+		try {
+			String key = "MonitoredClientTest::testRuntimeExceptionsAreErrors";
+			try {
+				client.get(key);
+				fail();
+			} catch (IllegalStateException expected) {
+				// expected
+			}
+			try {
+				client.set(key, 1, new byte[1], 60);
+				fail();
+			} catch (IllegalStateException expected) {
+				// expected
+			}
+			try {
+				client.setAsync(key, 1, new byte[1], 60).join();
+				fail();
+			} catch (CompletionException expected) {
+				// expected
+			}
+			assertEquals(3, client.getErrors());
+			assertEquals(0, client.getReads());
+			assertEquals(0, client.getInFlight());
+		} finally {
+			client.shutdown();
+		}
+	}
+}
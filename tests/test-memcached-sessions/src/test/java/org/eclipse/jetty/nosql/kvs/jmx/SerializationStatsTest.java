@@ -0,0 +1,102 @@
+package org.eclipse.jetty.nosql.kvs.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.eclipse.jetty.nosql.kvs.session.AbstractSessionFactory;
+import org.eclipse.jetty.nosql.kvs.session.ISerializableSession;
+import org.eclipse.jetty.nosql.kvs.session.SerializationStats;
+import org.eclipse.jetty.nosql.kvs.session.serializable.SerializableSessionFactory;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SerializationStatsTest {
+	private static ISerializableSession session(AbstractSessionFactory factory) {
+		ISerializableSession session = factory.create("SerializationStatsTest");
+		session.setAttribute("small", 1);
+		session.setAttribute("large", new byte[4096]);
+		session.setAttribute("medium", new String(new char[1024]).replace('\0', 'x'));
+		return session;
+	}
+
+	private static void assertLargest(SerializationStats stats) {
+		assertEquals(Arrays.asList("large", "medium", "small"), new ArrayList<String>(stats.getAttributeSizes().keySet()));
+		assertTrue(4096 < stats.getAttributeSizes().get("large"));
+	}
+
+	@Test
+	public void testCounts() throws Exception {
+		AbstractSessionFactory factory = new SerializableSessionFactory();
+		SerializationStats stats = new SerializationStats(1, 10);
+		factory.setStats(stats);
+
+		byte[] raw = factory.pack(session(factory));
+		factory.unpack(raw);
+		factory.unpack(raw);
+		assertEquals(1, stats.getPacks());
+		assertEquals(2, stats.getUnpacks());
+		assertEquals(0, stats.getErrors());
+		assertEquals(raw.length, stats.getPackedSizeMax());
+		assertEquals(2, stats.getHistograms().get("unpackLatency").getCount());
+		assertLargest(stats);
+		assertEquals(3, stats.getLargestAttributes().length);
+
+		factory.setStats(null);
+		factory.pack(session(factory));
+		assertEquals(1, stats.getPacks());
+	}
+
+	@Test
+	public void testLazyAttributes() throws Exception {
+		AbstractSessionFactory factory = new SerializableSessionFactory();
+		factory.setLazyAttributes(true);
+		SerializationStats stats = new SerializationStats(1, 2);
+		factory.setStats(stats);
+
+		factory.pack(session(factory));
+		assertEquals(1, stats.getPacks());
+		// only the largest are reported
+		assertEquals(Arrays.asList("large", "medium"), new ArrayList<String>(stats.getAttributeSizes().keySet()));
+	}
+
+	@Test
+	public void testSampling() throws Exception {
+		AbstractSessionFactory factory = new SerializableSessionFactory();
+		SerializationStats stats = new SerializationStats(3, 10);
+		factory.setStats(stats);
+
+		factory.pack(session(factory));
+		ISerializableSession other = factory.create("SerializationStatsTest::other");
+		other.setAttribute("unsampled", 1);
+		factory.pack(other);
+		factory.pack(other);
+		assertEquals(3, stats.getPacks());
+		assertNull(stats.getAttributeSizes().get("unsampled"));
+		factory.pack(other);
+		assertTrue(stats.getAttributeSizes().containsKey("unsampled"));
+	}
+
+	@Test
+	public void testMonitor() throws Exception {
+		SerializationStats stats = new SerializationStats();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = JmxMonitorManager.objectName("SessionClustering", "serialization", "SerializationStatsTest");
+		JmxMonitorManager.monitor(stats, "SessionClustering", "serialization", "SerializationStatsTest");
+		try {
+			assertTrue(server.isRegistered(name));
+			assertEquals(0L, server.getAttribute(name, "Packs"));
+			assertArrayEquals(new String[0], (String[]) server.getAttribute(name, "LargestAttributes"));
+		} finally {
+			JmxMonitorManager.remove("SessionClustering", "serialization", "SerializationStatsTest");
+		}
+		assertFalse(server.isRegistered(name));
+	}
+}
@@ -0,0 +1,66 @@
+package org.eclipse.jetty.nosql.kvs.jmx;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SlidingHistogramTest {
+	@Test
+	public void testBuckets() throws Exception {
+		for (long value = 0; value < 100000; value++) {
+			int bucket = SlidingHistogram.bucketOf(value);
+			long highest = SlidingHistogram.highestValueOf(bucket);
+			assertTrue(value + " <= " + highest, value <= highest);
+			assertTrue(value + " ~ " + highest, highest - value <= value / 16);
+			if (0 < bucket) {
+				assertTrue(SlidingHistogram.highestValueOf(bucket - 1) < value);
+			}
+		}
+		assertEquals(SlidingHistogram.MAX_VALUE, SlidingHistogram.highestValueOf(SlidingHistogram.bucketOf(SlidingHistogram.MAX_VALUE)));
+	}
+
+	@Test
+	public void testPercentiles() throws Exception {
+		SlidingHistogram histogram = new SlidingHistogram("us");
+		assertEquals(0, histogram.getP99());
+		for (long value = 1; value <= 10000; value++) {
+			histogram.record(value);
+		}
+		assertEquals(10000, histogram.getCount());
+		assertEquals(5000.5, histogram.getMean(), 0.001);
+		assertEquals(10000, histogram.getMax());
+		assertNear(5000, histogram.getP50());
+		assertNear(9500, histogram.getP95());
+		assertNear(9900, histogram.getP99());
+		assertNear(9990, histogram.getP999());
+		// never beyond the largest value seen
+		assertEquals(10000, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void testWindowSlides() throws Exception {
+		AtomicLong now = new AtomicLong(1000000);
+		SlidingHistogram histogram = new SlidingHistogram("us", 60000, 6, now::get);
+		histogram.record(1000);
+		now.addAndGet(30000);
+		histogram.record(10);
+		assertEquals(2, histogram.getCount());
+		assertEquals(1000, histogram.getMax());
+		// the interval of the first value leaves the window
+		now.addAndGet(35000);
+		assertEquals(1, histogram.getCount());
+		assertEquals(10, histogram.getMax());
+		assertEquals(10, histogram.getP999());
+		now.addAndGet(60000);
+		assertEquals(0, histogram.getCount());
+		histogram.record(20);
+		assertEquals(1, histogram.getCount());
+		assertEquals(20, histogram.getP50());
+	}
+
+	private static void assertNear(long expected, long actual) {
+		assertTrue(expected + " ~ " + actual, expected <= actual && actual <= expected + expected / 16);
+	}
+}
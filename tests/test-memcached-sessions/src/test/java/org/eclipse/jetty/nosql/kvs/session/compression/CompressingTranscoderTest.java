@@ -0,0 +1,78 @@
+package org.eclipse.jetty.nosql.kvs.session.compression;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.eclipse.jetty.nosql.kvs.session.AbstractTranscoderTest;
+import org.eclipse.jetty.nosql.kvs.session.ISerializationTranscoder;
+import org.eclipse.jetty.nosql.kvs.session.serializable.SerializableTranscoder;
+
+public class CompressingTranscoderTest extends AbstractTranscoderTest {
+	@Override
+	public ISerializationTranscoder createTranscoder() {
+		return new CompressingTranscoder(new SerializableTranscoder(), new LZ4Codec(), 0);
+	}
+
+	public void testThreshold() throws Exception {
+		ISerializationTranscoder plain = new SerializableTranscoder();
+		ISerializationTranscoder tc = new CompressingTranscoder(plain, new LZ4Codec(), 1024);
+		String small = "foo";
+		assertEquals(plain.encode(small).length + 1, tc.encode(small).length);
+		String large = repeat("foo bar baz ", 1000);
+		assertTrue(tc.encode(large).length < plain.encode(large).length / 4);
+		assertEquals(large, tc.decode(tc.encode(large), String.class));
+	}
+
+	public void testReadsUncompressedData() throws Exception {
+		ISerializationTranscoder plain = new SerializableTranscoder();
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("foo", repeat("foo value ", 500));
+		assertEquals(map, transcoder.decode(plain.encode(map), Map.class));
+	}
+
+	public void testReadsDataOfOtherCodecs() throws Exception {
+		String large = repeat("foo bar baz ", 1000);
+		byte[] raw = new CompressingTranscoder(new SerializableTranscoder(), new DeflateCodec(), 0).encode(large);
+		assertEquals(large, transcoder.decode(raw, String.class));
+	}
+
+	public void testCodecs() throws Exception {
+		ICompressionCodec[] codecs = { new LZ4Codec(), new SnappyCodec(), new DeflateCodec() };
+		Random random = new Random(31415926);
+		byte[] noise = new byte[100000];
+		random.nextBytes(noise);
+		byte[] text = repeat("<attribute name=\"foo\">bar</attribute>", 3000).getBytes("UTF-8");
+		byte[] runs = new byte[70000];
+		Arrays.fill(runs, 1000, 60000, (byte) 7);
+		byte[][] inputs = { new byte[0], new byte[] { 1 }, "abcdabcdabcdabcd".getBytes("UTF-8"), noise, text, runs };
+		for (ICompressionCodec codec : codecs) {
+			for (byte[] input : inputs) {
+				byte[] compressed = codec.compress(input);
+				byte[] padded = new byte[compressed.length + 3];
+				System.arraycopy(compressed, 0, padded, 3, compressed.length);
+				assertTrue(codec.getClass().getSimpleName(),
+						Arrays.equals(input, codec.decompress(padded, 3, compressed.length)));
+			}
+			assertTrue(codec.getClass().getSimpleName(), codec.compress(text).length < text.length / 10);
+		}
+	}
+
+	public void testCorruptedData() throws Exception {
+		byte[] compressed = new LZ4Codec().compress(repeat("foo bar baz ", 100).getBytes("UTF-8"));
+		try {
+			new LZ4Codec().decompress(compressed, 0, compressed.length / 2);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	private static String repeat(String s, int n) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+}
@@ -1,12 +1,34 @@
 package org.eclipse.jetty.nosql.kvs.session.kryo;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
 import org.eclipse.jetty.nosql.kvs.session.AbstractTranscoderTest;
 import org.eclipse.jetty.nosql.kvs.session.kryo.KryoTranscoder;
 import org.eclipse.jetty.nosql.kvs.session.ISerializationTranscoder;
+import org.junit.Test;
 
 public class KryoTranscoderTest extends AbstractTranscoderTest {
 	@Override
 	public ISerializationTranscoder createTranscoder() {
 		return new KryoTranscoder();
 	}
+
+	@Test
+	public void testReusedBuffers() throws Exception {
+		KryoConfig config = new KryoConfig();
+		config.setBufferSize(16);
+		config.setMaxRetainedBufferSize(1024);
+		KryoTranscoder transcoder = new KryoTranscoder(config);
+
+		byte[] large = new byte[4096];
+		for (int i = 0; i < large.length; i++) {
+			large[i] = (byte) i;
+		}
+		byte[] rawLarge = transcoder.encode(large);
+		byte[] rawSmall = transcoder.encode("foo");
+		assertArrayEquals(large, transcoder.decode(rawLarge, byte[].class));
+		assertEquals("foo", transcoder.decode(rawSmall, String.class));
+		assertArrayEquals(large, transcoder.decode(rawLarge, byte[].class));
+	}
 }
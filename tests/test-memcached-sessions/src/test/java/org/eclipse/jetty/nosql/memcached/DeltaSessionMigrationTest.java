@@ -0,0 +1,12 @@
+package org.eclipse.jetty.nosql.memcached;
+
+import org.eclipse.jetty.server.session.AbstractTestServer;
+
+public class DeltaSessionMigrationTest extends AbstractMemcachedSessionMigrationTest
+{
+    @Override
+    public AbstractTestServer createServer(int port)
+    {
+        return new DeltaMemcachedTestServer(port);
+    }
+}
@@ -0,0 +1,12 @@
+package org.eclipse.jetty.nosql.memcached;
+
+import org.eclipse.jetty.server.session.AbstractTestServer;
+
+public class DeltaSessionSavingValueTest extends AbstractMemcachedSessionSavingValueTest
+{
+    @Override
+    public AbstractTestServer createServer(int port, int max, int scavenge)
+    {
+        return new DeltaMemcachedTestServer(port,max,scavenge,true);
+    }
+}
@@ -1,9 +1,17 @@
 package org.eclipse.jetty.nosql.memcached;
 
+import java.util.Arrays;
+import java.util.Map;
+
 import org.eclipse.jetty.nosql.kvs.KeyValueStoreClientException;
 import org.eclipse.jetty.nosql.memcached.hashmap.HashMapClient;
 import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Created by IntelliJ IDEA.
@@ -13,7 +21,7 @@ import static org.junit.Assert.assertEquals;
  * To change this template use File | Settings | File Templates.
  */
 public class HashMapClientTest {
-	AbstractMemcachedClient client = new HashMapClient();
+	HashMapClient client = new HashMapClient();
 
 	public void setUp() {
 		try {
@@ -46,4 +54,154 @@ public class HashMapClientTest {
 		assertEquals("foo bar:12345", client.prepareServerString("  foo , bar:12345 , "));
 		assertEquals("foo bar:12345 baz:678", client.prepareServerString("  foo,  bar:12345,       baz:678"));
 	}
+
+	@Test
+	public void testServerStringOptions() throws Exception {
+		HashMapClient plain = new HashMapClient("foo:11211, bar:11211");
+		assertEquals("foo:11211 bar:11211", plain.getServerString());
+		assertEquals(AbstractMemcachedClient.DISTRIBUTION_MODULA, plain.getDistribution());
+		assertNull(plain.getHashAlgorithm());
+		assertNull(plain.getWeights());
+
+		HashMapClient ketama = new HashMapClient("distribution=ketama hash=fnv1a_32 foo:11211:3, bar:11211");
+		assertEquals("foo:11211 bar:11211", ketama.getServerString());
+		assertTrue(ketama.isKetama());
+		assertEquals("fnv1a_32", ketama.getHashAlgorithm());
+		assertArrayEquals(new int[] {3, 1}, ketama.getWeights());
+
+		for (String invalid: Arrays.asList("distribution=random foo:11211", "hash=sha1 foo:11211", "foo:11211:0", "foo:11211:x", "weight=1 foo:11211")) {
+			try {
+				new HashMapClient(invalid);
+				fail(invalid);
+			} catch (IllegalArgumentException expected) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testVersionAndExists() throws Exception {
+		String key = "HashMapClientTest::testVersionAndExists";
+		client.delete(key);
+		assertFalse(client.exists(key));
+		assertEquals(0, client.version(key));
+
+		client.set(key, 3, new byte[] {1, 2, 3}, 60);
+		assertTrue(client.exists(key));
+		assertEquals(3, client.version(key));
+
+		client.delete(key);
+		assertFalse(client.exists(key));
+		assertEquals(0, client.version(key));
+	}
+
+	@Test
+	public void testCas() throws Exception {
+		String key = "HashMapClientTest::testCas";
+		client.delete(key);
+		assertFalse(client.cas(key, 1, new byte[] {1}, 60));
+		assertTrue(client.cas(key, 0, new byte[] {1}, 60));
+		assertFalse(client.cas(key, 0, new byte[] {2}, 60));
+		assertEquals(1, client.version(key));
+
+		assertTrue(client.cas(key, 1, new byte[] {3}, 60));
+		assertFalse(client.cas(key, 1, new byte[] {4}, 60));
+		assertEquals(2, client.version(key));
+		assertArrayEquals(new byte[] {3}, client.get(key));
+		client.delete(key);
+	}
+
+	@Test
+	public void testAsync() throws Exception {
+		String key = "HashMapClientTest::testAsync";
+		client.delete(key);
+		assertTrue(client.addAsync(key, 1, new byte[] {1}, 60).get());
+		assertFalse(client.addAsync(key, 2, new byte[] {2}, 60).get());
+		assertTrue(client.setAsync(key, 3, new byte[] {3}, 60).get());
+		assertArrayEquals(new byte[] {3}, client.getAsync(key).get());
+		assertEquals(3, client.version(key));
+		assertTrue(client.deleteAsync(key).get());
+		assertNull(client.getAsync(key).get());
+	}
+
+	@Test
+	public void testTouch() throws Exception {
+		HashMapClient chunking = new HashMapClient();
+		chunking.setChunkSize(100);
+		String key = "HashMapClientTest::testTouch";
+		String small = "HashMapClientTest::testTouch::small";
+		chunking.delete(small);
+		assertFalse(chunking.touch(small, 60));
+		byte[] raw = new byte[1050];
+		assertTrue(chunking.set(key, 1, raw, 1));
+		assertTrue(chunking.set(small, 2, new byte[] {1}, 1));
+		assertTrue(chunking.touch(key, 60));
+		assertTrue(chunking.touch(small, 60));
+		Thread.sleep(1100);
+		// the chunks have been kept alive along with the header
+		assertArrayEquals(raw, chunking.get(key));
+		assertArrayEquals(new byte[] {1}, chunking.get(small));
+		assertEquals(2, chunking.version(small));
+
+		// the value is no longer chunked, but the copy of the previous header is still around
+		assertTrue(chunking.set(key, 2, new byte[] {2}, 60));
+		assertTrue(chunking.touch(key, 60));
+		assertArrayEquals(new byte[] {2}, chunking.get(key));
+		chunking.delete(key);
+		chunking.delete(small);
+	}
+
+	@Test
+	public void testGetAndTouch() throws Exception {
+		HashMapClient chunking = new HashMapClient();
+		chunking.setChunkSize(100);
+		String key = "HashMapClientTest::testGetAndTouch";
+		String small = "HashMapClientTest::testGetAndTouch::small";
+		chunking.delete(small);
+		assertNull(chunking.getAndTouch(small, 60));
+		byte[] raw = new byte[1050];
+		for (int i = 0; i < raw.length; i++) {
+			raw[i] = (byte) i;
+		}
+		assertTrue(chunking.set(key, 1, raw, 1));
+		assertTrue(chunking.set(small, 2, new byte[] {1}, 1));
+		assertArrayEquals(raw, chunking.getAndTouch(key, 60));
+		assertArrayEquals(new byte[] {1}, chunking.getAndTouch(small, 60));
+		Thread.sleep(1100);
+		// the chunks have been kept alive along with the header
+		assertArrayEquals(raw, chunking.get(key));
+		assertArrayEquals(new byte[] {1}, chunking.get(small));
+		assertEquals(2, chunking.version(small));
+		chunking.delete(key);
+		chunking.delete(small);
+	}
+
+	@Test
+	public void testChunking() throws Exception {
+		HashMapClient chunking = new HashMapClient();
+		chunking.setChunkSize(100);
+		String key = "HashMapClientTest::testChunking";
+		String small = "HashMapClientTest::testChunking::small";
+		byte[] raw = new byte[1050];
+		for (int i = 0; i < raw.length; i++) {
+			raw[i] = (byte) i;
+		}
+		assertTrue(chunking.set(key, 1, raw, 60));
+		assertTrue(chunking.set(small, 1, new byte[] {1}, 60));
+		assertArrayEquals(raw, chunking.get(key));
+		assertEquals(1, chunking.version(key));
+		// chunked values are reassembled regardless of the chunk size of the reader
+		assertArrayEquals(raw, client.get(key));
+
+		Map<String, byte[]> found = chunking.getBulk(Arrays.asList(key, small));
+		assertArrayEquals(raw, found.get(key));
+		assertArrayEquals(new byte[] {1}, found.get(small));
+
+		assertTrue(chunking.cas(key, 1, Arrays.copyOf(raw, 500), 60));
+		assertArrayEquals(Arrays.copyOf(raw, 500), chunking.getAsync(key).get());
+
+		assertTrue(chunking.delete(key));
+		assertNull(chunking.get(key));
+		chunking.delete(small);
+	}
 }
@@ -0,0 +1,12 @@
+package org.eclipse.jetty.nosql.memcached;
+
+import org.eclipse.jetty.server.session.AbstractTestServer;
+
+public class LazyLastAccessTimeTest extends AbstractMemcachedLastAccessTimeTest
+{
+    @Override
+    public AbstractTestServer createServer(int port, int max, int scavenge)
+    {
+        return new LazyMemcachedTestServer(port,max,scavenge);
+    }
+}
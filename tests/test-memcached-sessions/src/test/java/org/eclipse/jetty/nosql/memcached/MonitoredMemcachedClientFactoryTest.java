@@ -0,0 +1,44 @@
+package org.eclipse.jetty.nosql.memcached;
+
+import org.eclipse.jetty.nosql.kvs.AbstractKeyValueStoreClient;
+import org.eclipse.jetty.nosql.kvs.jmx.MonitoredClient;
+import org.eclipse.jetty.nosql.memcached.hashmap.HashMapClient;
+import org.eclipse.jetty.nosql.memcached.hashmap.HashMapClientFactory;
+import org.eclipse.jetty.nosql.memcached.replicated.ReplicatedMemcachedClient;
+import org.eclipse.jetty.server.Server;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MonitoredMemcachedClientFactoryTest {
+	@Test
+	public void testSettingsReachMonitoredClient() throws Exception {
+		MemcachedSessionIdManager idManager = new MemcachedSessionIdManager(new Server(), "monitored-factory:11211", new MonitoredMemcachedClientFactory(new HashMapClientFactory()));
+		idManager.setChunkSize(1234);
+		idManager.setTimeoutInMs(567);
+		AbstractKeyValueStoreClient client = idManager.newClient("monitored-factory:11211");
+		assertTrue(client instanceof MonitoredClient);
+		AbstractMemcachedClient memcachedClient = AbstractMemcachedClient.unwrap(client);
+		assertTrue(memcachedClient instanceof HashMapClient);
+		assertSame(((MonitoredClient) client).getClient(), memcachedClient);
+		assertEquals(1234, memcachedClient.getChunkSize());
+		assertEquals(567, memcachedClient.getTimeoutInMs());
+	}
+
+	@Test
+	public void testReplicasAreMonitored() throws Exception {
+		ReplicatedMemcachedClient client = new ReplicatedMemcachedClient("monitored-replica1:11211 monitored-replica2:11211", new MonitoredMemcachedClientFactory(new HashMapClientFactory()), 2);
+		client.setChunkSize(100);
+		AbstractKeyValueStoreClient node = client.getNode("monitored-replica1:11211");
+		assertTrue(node instanceof MonitoredClient);
+		client.establish();
+		try {
+			client.set("MonitoredMemcachedClientFactoryTest::testReplicasAreMonitored", 1, new byte[1000], 60);
+			assertEquals(1, ((MonitoredClient) node).getUpdates());
+			assertEquals(100, AbstractMemcachedClient.unwrap(node).getChunkSize());
+		} finally {
+			client.shutdown();
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package org.eclipse.jetty.nosql.memcached;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.nosql.memcached.hashmap.HashMapClientFactory;
+import org.eclipse.jetty.server.SessionManager;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class NearCacheSessionTest
+{
+    // both nodes have read the session before either of them stores it
+    private static final CyclicBarrier LOADED = new CyclicBarrier(2);
+
+    public static class TestServlet extends HttpServlet
+    {
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            String action = request.getParameter("action");
+            HttpSession session = request.getSession("init".equals(action));
+            if ("init".equals(action))
+            {
+                session.setAttribute("value", "init");
+            }
+            else if ("set".equals(action))
+            {
+                session.getAttribute("value");
+                try
+                {
+                    LOADED.await(10, TimeUnit.SECONDS);
+                }
+                catch (Exception e)
+                {
+                    throw new ServletException(e);
+                }
+                session.setAttribute("value", request.getParameter("value"));
+            }
+            response.getWriter().print(session.getAttribute("value"));
+        }
+    }
+
+    private static MemcachedTestServer newServer(String config)
+    {
+        return new MemcachedTestServer(0, 30, 10, config)
+        {
+            @Override
+            public AbstractMemcachedClientFactory getMemcachedClientFactory()
+            {
+                return new HashMapClientFactory();
+            }
+
+            @Override
+            public SessionManager newSessionManager()
+            {
+                MemcachedSessionManager manager = (MemcachedSessionManager) super.newSessionManager();
+                manager.setSavePeriod(0);
+                manager.setSessionCacheSize(16);
+                return manager;
+            }
+        };
+    }
+
+    private static String get(HttpClient client, String url, String sessionCookie) throws Exception
+    {
+        ContentResponse response = client.newRequest(url).header("Cookie", sessionCookie).send();
+        assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+        return response.getContentAsString();
+    }
+
+    private static CompletableFuture<String> getAsync(HttpClient client, String url, String sessionCookie)
+    {
+        return CompletableFuture.supplyAsync(() ->
+        {
+            try
+            {
+                return get(client, url, sessionCookie);
+            }
+            catch (Exception e)
+            {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    @Test
+    public void testConcurrentSaveInvalidatesNearCache() throws Exception
+    {
+        MemcachedTestServer server1 = newServer("near-cache:11211");
+        server1.addContext("/near").addServlet(TestServlet.class, "/test");
+        server1.start();
+        MemcachedTestServer server2 = newServer("near-cache:11211");
+        server2.addContext("/near").addServlet(TestServlet.class, "/test");
+        server2.start();
+        HttpClient client = new HttpClient();
+        client.start();
+        try
+        {
+            String url1 = "http://localhost:" + server1.getPort() + "/near/test";
+            String url2 = "http://localhost:" + server2.getPort() + "/near/test";
+            ContentResponse response = client.GET(url1 + "?action=init");
+            assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+            String sessionCookie = response.getHeaders().get("Set-Cookie");
+            assertNotNull(sessionCookie);
+            sessionCookie = sessionCookie.replaceFirst("(\\W)(P|p)ath=", "$1\\$Path=");
+            assertEquals("init", get(client, url2, sessionCookie));
+
+            // both nodes save the session on top of the same version, one of the writes is lost
+            CompletableFuture<String> set1 = getAsync(client, url1 + "?action=set&value=node1", sessionCookie);
+            CompletableFuture<String> set2 = getAsync(client, url2 + "?action=set&value=node2", sessionCookie);
+            assertEquals("node1", set1.get(30, TimeUnit.SECONDS));
+            assertEquals("node2", set2.get(30, TimeUnit.SECONDS));
+
+            // the node whose write has been lost must not serve its own copy from the near cache
+            String stored = get(client, url1, sessionCookie);
+            assertEquals(stored, get(client, url2, sessionCookie));
+            assertEquals(stored, get(client, url1, sessionCookie));
+        }
+        finally
+        {
+            client.stop();
+            server2.stop();
+            server1.stop();
+        }
+    }
+}
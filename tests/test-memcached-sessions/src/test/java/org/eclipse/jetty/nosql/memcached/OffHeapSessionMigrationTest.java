@@ -0,0 +1,12 @@
+package org.eclipse.jetty.nosql.memcached;
+
+import org.eclipse.jetty.server.session.AbstractTestServer;
+
+public class OffHeapSessionMigrationTest extends AbstractMemcachedSessionMigrationTest
+{
+    @Override
+    public AbstractTestServer createServer(int port)
+    {
+        return new OffHeapMemcachedTestServer(port);
+    }
+}
@@ -0,0 +1,156 @@
+package org.eclipse.jetty.nosql.memcached;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.nosql.memcached.hashmap.HashMapClientFactory;
+import org.eclipse.jetty.nosql.memcached.hashmap.HashMapStore;
+import org.eclipse.jetty.server.SessionManager;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TouchSessionTest
+{
+    public static class TestServlet extends HttpServlet
+    {
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            String action = request.getParameter("action");
+            HttpSession session = request.getSession("init".equals(action));
+            if ("init".equals(action))
+            {
+                session.setAttribute("value", 1);
+            }
+            else if ("increment".equals(action))
+            {
+                session.setAttribute("value", (Integer) session.getAttribute("value") + 1);
+            }
+            response.getWriter().print(session.getId() + "," + session.getAttribute("value"));
+        }
+    }
+
+    private static TouchMemcachedTestServer newServer(String config, final long accessedGranularityMs)
+    {
+        return new TouchMemcachedTestServer(0, 30, 10, config)
+        {
+            @Override
+            public AbstractMemcachedClientFactory getMemcachedClientFactory()
+            {
+                return new HashMapClientFactory();
+            }
+
+            @Override
+            public SessionManager newSessionManager()
+            {
+                MemcachedSessionManager manager = (MemcachedSessionManager) super.newSessionManager();
+                manager.setAccessedGranularityMs(accessedGranularityMs);
+                return manager;
+            }
+        };
+    }
+
+    private static ContentResponse get(HttpClient client, String url, String sessionCookie) throws Exception
+    {
+        ContentResponse response = client.newRequest(url).header("Cookie", sessionCookie).send();
+        assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+        return response;
+    }
+
+    @Test
+    public void testUnchangedSessionIsTouched() throws Exception
+    {
+        TouchMemcachedTestServer server = newServer("touch-session:11211", 0);
+        server.addContext("/touch").addServlet(TestServlet.class, "/test");
+        server.start();
+        HttpClient client = new HttpClient();
+        client.start();
+        try
+        {
+            String url = "http://localhost:" + server.getPort() + "/touch/test";
+            ContentResponse response = client.GET(url + "?action=init");
+            assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+            String sessionCookie = response.getHeaders().get("Set-Cookie");
+            assertNotNull(sessionCookie);
+            sessionCookie = sessionCookie.replaceFirst("(\\W)(P|p)ath=", "$1\\$Path=");
+            String id = response.getContentAsString().split(",")[0];
+            String key = "MemcachedTestServer::" + id + "::MemcachedTestServer";
+            HashMapStore store = HashMapStore.getInstance("touch-session:11211");
+            HashMapStore.Entry saved = store.get(key);
+            assertNotNull(saved);
+
+            // reading the session only extends its expiry
+            Thread.sleep(50);
+            assertEquals(id + ",1", get(client, url, sessionCookie).getContentAsString());
+            HashMapStore.Entry touched = store.get(key);
+            assertSame(saved.getData(), touched.getData());
+            assertEquals(saved.getVersion(), touched.getVersion());
+            assertTrue(saved.getExpiry() < touched.getExpiry());
+
+            // changes are stored as usual
+            assertEquals(id + ",2", get(client, url + "?action=increment", sessionCookie).getContentAsString());
+            HashMapStore.Entry changed = store.get(key);
+            assertNotSame(saved.getData(), changed.getData());
+            assertNotEquals(saved.getVersion(), changed.getVersion());
+            assertEquals(id + ",2", get(client, url, sessionCookie).getContentAsString());
+        }
+        finally
+        {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testAccessedGranularity() throws Exception
+    {
+        TouchMemcachedTestServer server = newServer("touch-granularity:11211", TimeUnit.MINUTES.toMillis(1));
+        server.addContext("/touch").addServlet(TestServlet.class, "/test");
+        server.start();
+        HttpClient client = new HttpClient();
+        client.start();
+        try
+        {
+            String url = "http://localhost:" + server.getPort() + "/touch/test";
+            ContentResponse response = client.GET(url + "?action=init");
+            assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+            String sessionCookie = response.getHeaders().get("Set-Cookie");
+            assertNotNull(sessionCookie);
+            sessionCookie = sessionCookie.replaceFirst("(\\W)(P|p)ath=", "$1\\$Path=");
+            String id = response.getContentAsString().split(",")[0];
+            String key = "MemcachedTestServer::" + id + "::MemcachedTestServer";
+            HashMapStore store = HashMapStore.getInstance("touch-granularity:11211");
+            HashMapStore.Entry saved = store.get(key);
+            assertNotNull(saved);
+            // stored for the max inactive interval and the granularity
+            assertTrue(TimeUnit.SECONDS.toMillis(30 + 50) < saved.getExpiry() - System.currentTimeMillis());
+
+            // the expiry has just been extended by the save
+            assertEquals(id + ",1", get(client, url, sessionCookie).getContentAsString());
+            assertEquals(id + ",1", get(client, url, sessionCookie).getContentAsString());
+            assertSame(saved, store.get(key));
+
+            // changes are stored as usual
+            assertEquals(id + ",2", get(client, url + "?action=increment", sessionCookie).getContentAsString());
+            assertNotEquals(saved.getVersion(), store.get(key).getVersion());
+        }
+        finally
+        {
+            client.stop();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.eclipse.jetty.nosql.memcached.hashmap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HashMapStoreTest {
+	@Test
+	public void testEvictsLeastRecentlyUsed() throws Exception {
+		// single stripe, room for two entries of 100 bytes
+		HashMapStore store = new HashMapStore(1, 2 * (100 + 96 + 2));
+		store.set("a", new byte[100], 1, HashMapStore.FOREVER);
+		store.set("b", new byte[100], 1, HashMapStore.FOREVER);
+		assertNotNull(store.get("a"));
+		store.set("c", new byte[100], 1, HashMapStore.FOREVER);
+
+		assertEquals(2, store.getSize());
+		assertEquals(1, store.getEvictions());
+		assertNull(store.get("b"));
+		assertNotNull(store.get("a"));
+		assertNotNull(store.get("c"));
+		assertEquals(2 * (100 + 96 + 2), store.getBytes());
+	}
+
+	@Test
+	public void testKeepsOversizedEntry() throws Exception {
+		HashMapStore store = new HashMapStore(1, 100);
+		store.set("a", new byte[10], 1, HashMapStore.FOREVER);
+		store.set("b", new byte[1000], 1, HashMapStore.FOREVER);
+		assertNull(store.get("a"));
+		assertArrayEquals(new byte[1000], store.get("b").getData());
+	}
+
+	@Test
+	public void testAddAndCas() throws Exception {
+		HashMapStore store = new HashMapStore();
+		assertTrue(store.add("a", new byte[] {1}, 1, HashMapStore.FOREVER));
+		assertFalse(store.add("a", new byte[] {2}, 1, HashMapStore.FOREVER));
+		assertFalse(store.cas("a", 0, new byte[] {3}, HashMapStore.FOREVER));
+		assertTrue(store.cas("a", 1, new byte[] {4}, HashMapStore.FOREVER));
+		assertEquals(2, store.get("a").getVersion());
+		assertArrayEquals(new byte[] {4}, store.get("a").getData());
+		// an expired entry does not block add
+		store.set("b", new byte[] {1}, 1, System.currentTimeMillis() - 1);
+		assertTrue(store.add("b", new byte[] {2}, 1, HashMapStore.FOREVER));
+	}
+
+	@Test
+	public void testSweepRemovesExpiredEntries() throws Exception {
+		HashMapStore store = new HashMapStore(4, 0, 10, 8);
+		long now = System.currentTimeMillis();
+		store.set("short", new byte[] {1}, 1, now + 15);
+		// beyond the span of the wheel, so it survives a few rounds
+		store.set("long", new byte[] {2}, 1, now + 500);
+		store.set("forever", new byte[] {3}, 1, HashMapStore.FOREVER);
+
+		store.sweep(now + 40);
+		assertEquals(2, store.getSize());
+		assertEquals(1, store.getExpirations());
+		store.sweep(now + 200);
+		assertEquals(2, store.getSize());
+		store.sweep(now + 600);
+		assertEquals(1, store.getSize());
+		assertNotNull(store.get("forever"));
+	}
+
+	@Test
+	public void testStoresPerServerString() throws Exception {
+		String key = "HashMapStoreTest::testStoresPerServerString";
+		HashMapClient foo = new HashMapClient("foo:11211");
+		HashMapClient otherFoo = new HashMapClient("foo:11211");
+		HashMapClient bar = new HashMapClient("bar:11211");
+		HashMapClient isolated = new HashMapClient("foo:11211", new HashMapStore());
+		foo.set(key, 1, new byte[] {1}, 60);
+		assertArrayEquals(new byte[] {1}, otherFoo.get(key));
+		assertNull(bar.get(key));
+		assertNull(isolated.get(key));
+		foo.delete(key);
+	}
+
+	@Test
+	public void testClosedWithLastClient() throws Exception {
+		HashMapClient first = new HashMapClient("closing:11211");
+		HashMapClient second = new HashMapClient("closing:11211");
+		HashMapStore store = first.getStore();
+		first.set("key", 1, new byte[] {1}, 60);
+		assertTrue(store.isSweeping());
+
+		first.shutdown();
+		assertFalse(first.isAlive());
+		assertSame(store, HashMapStore.getInstance("closing:11211"));
+		assertArrayEquals(new byte[] {1}, second.get("key"));
+
+		second.shutdown();
+		assertFalse(store.isSweeping());
+		assertEquals(0, store.getSize());
+		assertNotSame(store, HashMapStore.getInstance("closing:11211"));
+
+		// established again on a new store
+		first.establish();
+		assertNotSame(store, first.getStore());
+		assertNull(first.get("key"));
+		first.shutdown();
+	}
+}
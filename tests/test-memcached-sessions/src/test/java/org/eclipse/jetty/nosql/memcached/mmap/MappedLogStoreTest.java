@@ -0,0 +1,164 @@
+package org.eclipse.jetty.nosql.memcached.mmap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedLogStoreTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static byte[] bytes(int length, int seed) {
+		byte[] raw = new byte[length];
+		for (int i = 0; i < length; i++) {
+			raw[i] = (byte) (i * 31 + seed);
+		}
+		return raw;
+	}
+
+	@Test
+	public void testSurvivesReopen() throws Exception {
+		File dir = folder.newFolder();
+		MappedLogStore store = new MappedLogStore(dir, 4096);
+		for (int i = 0; i < 100; i++) {
+			assertTrue(store.set("key" + i, bytes(100, i), i, MappedLogStore.FOREVER));
+		}
+		assertTrue(store.delete("key1"));
+		assertTrue(store.cas("key2", 2, bytes(10, 2), MappedLogStore.FOREVER));
+		store.set("expired", bytes(10, 0), 1, System.currentTimeMillis() + 100);
+		assertTrue(1 < store.getSegmentCount());
+		store.close();
+
+		Thread.sleep(200);
+		store = new MappedLogStore(dir, 4096);
+		try {
+			assertEquals(99, store.getSize());
+			assertNull(store.get("key1"));
+			assertNull(store.get("expired"));
+			assertArrayEquals(bytes(100, 0), store.get("key0").getData());
+			assertArrayEquals(bytes(10, 2), store.get("key2").getData());
+			assertEquals(3, store.version("key2"));
+			assertArrayEquals(bytes(100, 99), store.get("key99").getData());
+			assertEquals(99, store.version("key99"));
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testIgnoresTornRecord() throws Exception {
+		File dir = folder.newFolder();
+		MappedLogStore store = new MappedLogStore(dir, 4096);
+		store.set("a", bytes(100, 1), 1, MappedLogStore.FOREVER);
+		store.set("b", bytes(100, 2), 1, MappedLogStore.FOREVER);
+		long bytes = store.getBytes();
+		store.close();
+
+		// break the checksum of the last record
+		RandomAccessFile file = new RandomAccessFile(new File(dir, String.format("%016x.log", 1)), "rw");
+		try {
+			file.seek(bytes - 1);
+			int last = file.read();
+			file.seek(bytes - 1);
+			file.write(last ^ 0xff);
+		} finally {
+			file.close();
+		}
+		store = new MappedLogStore(dir, 4096);
+		try {
+			assertArrayEquals(bytes(100, 1), store.get("a").getData());
+			assertNull(store.get("b"));
+			assertTrue(store.set("c", bytes(100, 3), 1, MappedLogStore.FOREVER));
+		} finally {
+			store.close();
+		}
+		store = new MappedLogStore(dir, 4096);
+		try {
+			assertEquals(2, store.getSize());
+			assertArrayEquals(bytes(100, 3), store.get("c").getData());
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testCompaction() throws Exception {
+		File dir = folder.newFolder();
+		MappedLogStore store = new MappedLogStore(dir, 4096);
+		store.set("kept", bytes(100, 0), 1, MappedLogStore.FOREVER);
+		store.set("deleted", bytes(100, 0), 1, MappedLogStore.FOREVER);
+		for (int i = 0; i < 200; i++) {
+			store.set("overwritten", bytes(100, i), i, MappedLogStore.FOREVER);
+		}
+		store.delete("deleted");
+		int segments = store.getSegmentCount();
+		assertTrue(2 < segments);
+		assertTrue(0 < store.compact());
+		assertTrue(store.getSegmentCount() < segments);
+		assertEquals(2, store.getSize());
+		assertArrayEquals(bytes(100, 0), store.get("kept").getData());
+		assertArrayEquals(bytes(100, 199), store.get("overwritten").getData());
+		assertTrue(store.getBytes() < 4 * 4096);
+		store.close();
+
+		store = new MappedLogStore(dir, 4096);
+		try {
+			assertEquals(2, store.getSize());
+			assertNull(store.get("deleted"));
+			assertArrayEquals(bytes(100, 0), store.get("kept").getData());
+			assertEquals(199, store.version("overwritten"));
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testSweepAndAdd() throws Exception {
+		MappedLogStore store = new MappedLogStore(folder.newFolder(), 4096);
+		try {
+			assertTrue(store.add("a", bytes(10, 1), 1, MappedLogStore.FOREVER));
+			assertFalse(store.add("a", bytes(10, 2), 1, MappedLogStore.FOREVER));
+			store.set("b", bytes(10, 1), 1, System.currentTimeMillis() - 1);
+			assertFalse(store.exists("b"));
+			assertEquals(2, store.getSize());
+			store.sweep();
+			assertEquals(1, store.getSize());
+			assertTrue(store.add("b", bytes(10, 2), 1, MappedLogStore.FOREVER));
+			assertFalse(store.set("c", new byte[4096], 1, MappedLogStore.FOREVER));
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testClient() throws Exception {
+		File dir = folder.newFolder();
+		MappedLogClient client = new MappedLogClient("127.0.0.1:11211", dir);
+		client.establish();
+		client.setChunkSize(1000);
+		try {
+			byte[] raw = bytes(5000, 1);
+			assertTrue(client.set("a", 1, raw, 60));
+			assertArrayEquals(raw, client.get("a"));
+			assertTrue(client.cas("a", 1, bytes(10, 2), 60));
+			assertEquals(2, client.version("a"));
+			// another client of the same directory shares the store
+			MappedLogClient other = new MappedLogClient("127.0.0.1:11211", dir);
+			other.establish();
+			assertArrayEquals(bytes(10, 2), other.get("a"));
+			assertTrue(other.delete("a"));
+			assertNull(client.get("a"));
+		} finally {
+			MappedLogStore.getInstance(dir).close();
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package org.eclipse.jetty.nosql.memcached.offheap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class OffHeapStoreTest {
+	private static byte[] bytes(int length, int seed) {
+		byte[] raw = new byte[length];
+		for (int i = 0; i < length; i++) {
+			raw[i] = (byte) (i * 31 + seed);
+		}
+		return raw;
+	}
+
+	@Test
+	public void testSetGetDelete() throws Exception {
+		OffHeapStore store = new OffHeapStore(1024 * 1024, 2, 4096);
+		for (int i = 0; i < 500; i++) {
+			assertTrue(store.set("key" + i, bytes(i % 300, i), i, OffHeapStore.FOREVER));
+		}
+		assertEquals(500, store.getSize());
+		for (int i = 0; i < 500; i++) {
+			assertArrayEquals(bytes(i % 300, i), store.get("key" + i).getData());
+			assertEquals(i, store.version("key" + i));
+		}
+		for (int i = 0; i < 500; i += 2) {
+			assertTrue(store.delete("key" + i));
+		}
+		assertFalse(store.delete("key0"));
+		assertEquals(250, store.getSize());
+		for (int i = 0; i < 500; i++) {
+			assertEquals(i % 2 == 1, store.exists("key" + i));
+		}
+		Map<String, OffHeapStore.Item> found = store.getBulk(Arrays.asList("key1", "key2", "key3"));
+		assertEquals(2, found.size());
+		assertArrayEquals(bytes(3, 3), found.get("key3").getData());
+
+		// overwrite with a value of another slab class
+		assertTrue(store.set("key1", bytes(2000, 7), 9, OffHeapStore.FOREVER));
+		assertArrayEquals(bytes(2000, 7), store.get("key1").getData());
+		store.clear();
+		assertEquals(0, store.getSize());
+		assertEquals(0, store.getAllocatedBytes());
+	}
+
+	@Test
+	public void testAddAndCas() throws Exception {
+		OffHeapStore store = new OffHeapStore(1024 * 1024, 1, 4096);
+		assertTrue(store.add("a", new byte[] {1}, 1, OffHeapStore.FOREVER));
+		assertFalse(store.add("a", new byte[] {2}, 1, OffHeapStore.FOREVER));
+		assertFalse(store.cas("a", 0, new byte[] {3}, OffHeapStore.FOREVER));
+		assertTrue(store.cas("a", 1, new byte[] {4}, OffHeapStore.FOREVER));
+		assertEquals(2, store.version("a"));
+		assertArrayEquals(new byte[] {4}, store.get("a").getData());
+		store.set("b", new byte[] {1}, 1, System.currentTimeMillis() - 1);
+		assertFalse(store.exists("b"));
+		assertTrue(store.add("b", new byte[] {2}, 1, OffHeapStore.FOREVER));
+	}
+
+	@Test
+	public void testRejectsValueLargerThanPage() throws Exception {
+		OffHeapStore store = new OffHeapStore(1024 * 1024, 1, 4096);
+		assertFalse(store.set("a", new byte[4097], 1, OffHeapStore.FOREVER));
+		assertNull(store.get("a"));
+		assertTrue(store.set("a", new byte[4096], 1, OffHeapStore.FOREVER));
+	}
+
+	@Test
+	public void testEvictsWithinSlabClass() throws Exception {
+		// two pages of 16 chunks of 64 bytes
+		OffHeapStore store = new OffHeapStore(2048, 1, 1024);
+		for (int i = 0; i < 32; i++) {
+			assertTrue(store.set("key" + i, bytes(60, i), 1, OffHeapStore.FOREVER));
+		}
+		assertEquals(2048, store.getAllocatedBytes());
+		assertEquals(0, store.getEvictions());
+		// recently read values survive the next round of the clock
+		store.get("key0");
+		assertTrue(store.set("key32", bytes(60, 32), 1, OffHeapStore.FOREVER));
+		assertEquals(1, store.getEvictions());
+		assertEquals(32, store.getSize());
+		assertArrayEquals(bytes(60, 0), store.get("key0").getData());
+		assertNull(store.get("key1"));
+		assertArrayEquals(bytes(60, 32), store.get("key32").getData());
+		assertEquals(2048, store.getAllocatedBytes());
+	}
+
+	@Test
+	public void testMovesPagesBetweenSlabClasses() throws Exception {
+		OffHeapStore store = new OffHeapStore(2048, 1, 1024);
+		for (int i = 0; i < 32; i++) {
+			assertTrue(store.set("small" + i, bytes(60, i), 1, OffHeapStore.FOREVER));
+		}
+		// no page left for large values, so a page of small ones is given up
+		assertTrue(store.set("large", bytes(1000, 1), 1, OffHeapStore.FOREVER));
+		assertArrayEquals(bytes(1000, 1), store.get("large").getData());
+		assertEquals(17, store.getSize());
+		assertEquals(16, store.getEvictions());
+		assertEquals(2048, store.getAllocatedBytes());
+	}
+
+	@Test
+	public void testMovesPagesBetweenSegments() throws Exception {
+		// more segments than pages, so that most segments hold no page
+		OffHeapStore store = new OffHeapStore(2 * 4096, 4, 4096);
+		for (int i = 0; i < 2000; i++) {
+			assertTrue(store.set("key" + i, bytes(1000, i), 1, OffHeapStore.FOREVER));
+			assertArrayEquals(bytes(1000, i), store.get("key" + i).getData());
+		}
+		assertTrue(0 < store.getSize());
+		assertEquals(2 * 4096, store.getAllocatedBytes());
+		store.clear();
+		assertEquals(0, store.getAllocatedBytes());
+	}
+
+	@Test
+	public void testClientChunksLargeValues() throws Exception {
+		OffHeapClient client = new OffHeapClient("offheap:11211", new OffHeapStore(1024 * 1024, 4, 4096));
+		client.setChunkSize(4000);
+		byte[] raw = bytes(10000, 5);
+		assertTrue(client.set("a", 1, raw, 60));
+		assertArrayEquals(raw, client.get("a"));
+		assertEquals(1, client.version("a"));
+		assertTrue(client.cas("a", 1, bytes(100, 6), 60));
+		assertArrayEquals(bytes(100, 6), client.get("a"));
+		assertTrue(client.delete("a"));
+		assertNull(client.get("a"));
+	}
+}
@@ -0,0 +1,232 @@
+package org.eclipse.jetty.nosql.memcached.replicated;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.eclipse.jetty.nosql.kvs.AbstractKeyValueStoreClient;
+import org.eclipse.jetty.nosql.kvs.KeyValueStoreClientException;
+import org.eclipse.jetty.nosql.memcached.hashmap.HashMapClient;
+import org.eclipse.jetty.nosql.memcached.hashmap.HashMapClientFactory;
+import org.eclipse.jetty.nosql.memcached.hashmap.HashMapStore;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReplicatedMemcachedClientTest {
+	private final Set<String> down = new HashSet<String>();
+	private final Set<String> hung = new HashSet<String>();
+
+	/**
+	 * clients of the servers in down fail like clients of unreachable memcached, writes to the servers in hung never
+	 * complete.
+	 */
+	private class FlakyClientFactory extends HashMapClientFactory {
+		@Override
+		public AbstractKeyValueStoreClient create(final String serverString) {
+			return new HashMapClient(serverString) {
+				private void check() throws KeyValueStoreClientException {
+					if (down.contains(serverString)) {
+						throw(new KeyValueStoreClientException(new IllegalStateException("down: " + serverString)));
+					}
+				}
+				@Override
+				public byte[] get(String key) throws KeyValueStoreClientException {
+					check();
+					return super.get(key);
+				}
+				@Override
+				public Map<String, byte[]> getBulk(Collection<String> keys) throws KeyValueStoreClientException {
+					check();
+					return super.getBulk(keys);
+				}
+				@Override
+				public byte[] getAndTouch(String key, int exp) throws KeyValueStoreClientException {
+					check();
+					return super.getAndTouch(key, exp);
+				}
+				@Override
+				public boolean set(String key, long version, byte[] raw, int exp) throws KeyValueStoreClientException {
+					check();
+					return super.set(key, version, raw, exp);
+				}
+				@Override
+				public boolean cas(String key, long expectedVersion, byte[] raw, int exp) throws KeyValueStoreClientException {
+					check();
+					return super.cas(key, expectedVersion, raw, exp);
+				}
+				@Override
+				public CompletableFuture<Boolean> setAsync(String key, long version, byte[] raw, int exp) {
+					return hung.contains(serverString) ? new CompletableFuture<Boolean>() : super.setAsync(key, version, raw, exp);
+				}
+				@Override
+				public CompletableFuture<Boolean> deleteAsync(String key) {
+					return hung.contains(serverString) ? new CompletableFuture<Boolean>() : super.deleteAsync(key);
+				}
+			};
+		}
+	}
+
+	private static String servers(String name) {
+		return name + "1:11211 " + name + "2:11211 " + name + "3:11211";
+	}
+
+	private static int holders(String name, String key) {
+		int n = 0;
+		for (int i = 1; i <= 3; i++) {
+			if (HashMapStore.getInstance(name + i + ":11211").get(key) != null) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	@Test
+	public void testReplicasAreDistinct() throws Exception {
+		ReplicatedMemcachedClient client = new ReplicatedMemcachedClient(servers("distinct"), new HashMapClientFactory(), 2);
+		assertEquals(2, client.getReplicas());
+		for (int i = 0; i < 100; i++) {
+			String key = "ReplicatedMemcachedClientTest::testReplicasAreDistinct::" + i;
+			List<String> replicas = client.getReplicaAddresses(key);
+			assertEquals(2, replicas.size());
+			assertNotEquals(replicas.get(0), replicas.get(1));
+			assertTrue(client.set(key, 1, new byte[] {(byte) i}, 60));
+			assertEquals(2, holders("distinct", key));
+			assertTrue(client.delete(key));
+			assertEquals(0, holders("distinct", key));
+		}
+		// replicas are limited by the number of servers
+		assertEquals(3, new ReplicatedMemcachedClient(servers("distinct"), new HashMapClientFactory(), 5).getReplicas());
+		try {
+			new ReplicatedMemcachedClient(servers("distinct"), new HashMapClientFactory(), 0);
+			fail();
+		} catch (IllegalArgumentException expected) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testReadFallsBackOnMiss() throws Exception {
+		ReplicatedMemcachedClient client = new ReplicatedMemcachedClient(servers("miss"), new HashMapClientFactory(), 2);
+		String key = "ReplicatedMemcachedClientTest::testReadFallsBackOnMiss";
+		String other = "ReplicatedMemcachedClientTest::testReadFallsBackOnMiss::other";
+		assertTrue(client.set(key, 3, new byte[] {1, 2, 3}, 60));
+		assertTrue(client.set(other, 1, new byte[] {4}, 60));
+		// a restarted primary comes back empty
+		HashMapStore.getInstance(client.getReplicaAddresses(key).get(0)).clear();
+		assertArrayEquals(new byte[] {1, 2, 3}, client.get(key));
+		assertEquals(3, client.version(key));
+		assertTrue(client.exists(key));
+		Map<String, byte[]> found = client.getBulk(Arrays.asList(key, other));
+		assertArrayEquals(new byte[] {1, 2, 3}, found.get(key));
+		assertArrayEquals(new byte[] {4}, found.get(other));
+
+		assertTrue(client.delete(key));
+		assertNull(client.get(key));
+		assertFalse(client.exists(key));
+		client.delete(other);
+	}
+
+	@Test
+	public void testFailover() throws Exception {
+		ReplicatedMemcachedClient client = new ReplicatedMemcachedClient(servers("flaky"), new FlakyClientFactory(), 2);
+		String key = "ReplicatedMemcachedClientTest::testFailover";
+		client.delete(key);
+		assertTrue(client.cas(key, 0, new byte[] {1}, 60));
+		assertEquals(2, holders("flaky", key));
+		List<String> replicas = client.getReplicaAddresses(key);
+
+		down.add(replicas.get(0));
+		assertArrayEquals(new byte[] {1}, client.get(key));
+		assertArrayEquals(new byte[] {1}, client.getBulk(Arrays.asList(key)).get(key));
+		// the replica decides while the primary is down
+		assertFalse(client.cas(key, 0, new byte[] {2}, 60));
+		assertTrue(client.cas(key, 1, new byte[] {2}, 60));
+		assertArrayEquals(new byte[] {2}, client.get(key));
+		// writes succeed as long as any replica takes them
+		assertTrue(client.set(key, 3, new byte[] {3}, 60));
+		assertArrayEquals(new byte[] {3}, client.getAsync(key).get());
+
+		down.add(replicas.get(1));
+		try {
+			client.get(key);
+			fail();
+		} catch (KeyValueStoreClientException expected) {
+			// expected
+		}
+		down.clear();
+		client.delete(key);
+	}
+
+	@Test
+	public void testHangingReplica() throws Exception {
+		ReplicatedMemcachedClient client = new ReplicatedMemcachedClient(servers("hung"), new FlakyClientFactory(), 2);
+		client.setTimeoutInMs(2000);
+		client.setReplicaTimeoutInMs(200);
+		String key = "ReplicatedMemcachedClientTest::testHangingReplica";
+		assertTrue(client.set(key, 1, new byte[] {1}, 60));
+		String primary = client.getReplicaAddresses(key).get(0);
+
+		// the write completes once the other replica took it, without waiting for the primary
+		hung.add(primary);
+		long start = System.currentTimeMillis();
+		assertTrue(client.set(key, 2, new byte[] {2}, 60));
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		hung.clear();
+
+		// the primary which missed the write is not read, and has been repaired once it timed out
+		Thread.sleep(300);
+		assertArrayEquals(new byte[] {2}, client.get(key));
+		assertNull(HashMapStore.getInstance(primary).get(key));
+		assertTrue(client.delete(key));
+		client.shutdown();
+	}
+
+	@Test
+	public void testGetAndTouch() throws Exception {
+		ReplicatedMemcachedClient client = new ReplicatedMemcachedClient(servers("gat"), new FlakyClientFactory(), 2);
+		String key = "ReplicatedMemcachedClientTest::testGetAndTouch";
+		assertTrue(client.set(key, 1, new byte[] {1}, 1));
+		List<String> replicas = client.getReplicaAddresses(key);
+		assertArrayEquals(new byte[] {1}, client.getAndTouch(key, 60));
+		Thread.sleep(1100);
+		// the other replica has been touched as well
+		down.add(replicas.get(0));
+		assertArrayEquals(new byte[] {1}, client.get(key));
+		assertArrayEquals(new byte[] {1}, client.getAndTouch(key, 60));
+		down.clear();
+		assertNull(client.getAndTouch(key + "::missing", 60));
+		client.delete(key);
+	}
+
+	@Test
+	public void testChunksAreReplicated() throws Exception {
+		ReplicatedMemcachedClient client = new ReplicatedMemcachedClient(servers("chunks"), new HashMapClientFactory(), 2);
+		client.setChunkSize(100);
+		String key = "ReplicatedMemcachedClientTest::testChunksAreReplicated";
+		byte[] raw = new byte[1050];
+		for (int i = 0; i < raw.length; i++) {
+			raw[i] = (byte) i;
+		}
+		assertTrue(client.set(key, 1, raw, 60));
+		assertArrayEquals(raw, client.get(key));
+		// losing any single server loses neither the header nor any of the chunks
+		for (int i = 1; i <= 3; i++) {
+			HashMapStore.getInstance("chunks" + i + ":11211").clear();
+			assertArrayEquals(raw, client.get(key));
+			assertTrue(client.set(key, 1, raw, 60));
+		}
+		assertTrue(client.delete(key));
+		assertNull(client.get(key));
+		assertEquals(0, holders("chunks", key));
+	}
+}
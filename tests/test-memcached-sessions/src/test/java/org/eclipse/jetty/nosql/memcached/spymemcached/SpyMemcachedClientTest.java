@@ -0,0 +1,314 @@
+package org.eclipse.jetty.nosql.memcached.spymemcached;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.DefaultHashAlgorithm;
+import net.spy.memcached.KetamaNodeLocator;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+
+import org.eclipse.jetty.nosql.kvs.KeyValueStoreClientException;
+import org.eclipse.jetty.nosql.kvs.KeyValueStoreSessionManager;
+import org.junit.Test;
+
+public class SpyMemcachedClientTest {
+	private static final int KEYS = 10000;
+
+	/**
+	 * memcached speaking just enough of the text protocol for the client. each
+	 * connection is served by a thread of its own, and commands may be held by
+	 * {@link #before(int, String, String, byte[])} to interleave connections.
+	 */
+	private static class FakeMemcached implements Closeable {
+		private final ServerSocket server;
+		private final Map<String, Object[]> items = new HashMap<String, Object[]>();
+		private final AtomicInteger connections = new AtomicInteger();
+		private long cas = 0;
+
+		FakeMemcached() throws IOException {
+			server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			Thread acceptor = new Thread(() -> {
+				try {
+					while (true) {
+						Socket socket = server.accept();
+						int connection = connections.incrementAndGet();
+						Thread thread = new Thread(() -> serve(connection, socket));
+						thread.setDaemon(true);
+						thread.start();
+					}
+				} catch (IOException closed) {
+					// closed
+				}
+			});
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		String getAddress() {
+			return "127.0.0.1:" + server.getLocalPort();
+		}
+
+		protected void before(int connection, String command, String key, byte[] data) throws InterruptedException {
+		}
+
+		protected void after(int connection, String command, String key, byte[] data) {
+		}
+
+		private void serve(int connection, Socket socket) {
+			try {
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				OutputStream out = socket.getOutputStream();
+				for (String line = readLine(in); line != null; line = readLine(in)) {
+					String[] args = line.split(" ");
+					String command = args[0];
+					byte[] data = null;
+					if (command.equals("set") || command.equals("add") || command.equals("cas")) {
+						data = new byte[Integer.parseInt(args[4])];
+						in.readFully(data);
+						readLine(in);
+					}
+					before(connection, command, args[1], data);
+					out.write(apply(args, data).getBytes(StandardCharsets.ISO_8859_1));
+					out.flush();
+					after(connection, command, args[1], data);
+				}
+			} catch (Exception closed) {
+				// closed
+			}
+		}
+
+		private synchronized String apply(String[] args, byte[] data) {
+			String command = args[0];
+			if (command.equals("get") || command.equals("gets")) {
+				StringBuilder reply = new StringBuilder();
+				for (int i = 1; i < args.length; i++) {
+					Object[] item = items.get(args[i]);
+					if (item != null) {
+						byte[] value = (byte[]) item[1];
+						reply.append("VALUE ").append(args[i]).append(' ').append(item[0]).append(' ').append(value.length);
+						if (command.equals("gets")) {
+							reply.append(' ').append(item[2]);
+						}
+						reply.append("\r\n").append(new String(value, StandardCharsets.ISO_8859_1)).append("\r\n");
+					}
+				}
+				return reply.append("END\r\n").toString();
+			}
+			if (command.equals("delete")) {
+				return items.remove(args[1]) != null ? "DELETED\r\n" : "NOT_FOUND\r\n";
+			}
+			if (command.equals("touch")) {
+				return items.containsKey(args[1]) ? "TOUCHED\r\n" : "NOT_FOUND\r\n";
+			}
+			Object[] current = items.get(args[1]);
+			if (command.equals("add") && current != null) {
+				return "NOT_STORED\r\n";
+			}
+			if (command.equals("cas")) {
+				if (current == null) {
+					return "NOT_FOUND\r\n";
+				}
+				if (!current[2].equals(Long.parseLong(args[5]))) {
+					return "EXISTS\r\n";
+				}
+			}
+			items.put(args[1], new Object[] { Integer.parseInt(args[2]), data, ++cas });
+			return "STORED\r\n";
+		}
+
+		private static String readLine(InputStream in) throws IOException {
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			for (int b = in.read(); b != '\n'; b = in.read()) {
+				if (b < 0) {
+					return null;
+				}
+				if (b != '\r') {
+					line.write(b);
+				}
+			}
+			return new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+		}
+
+		@Override
+		public void close() throws IOException {
+			server.close();
+		}
+	}
+
+	private static Map<String, String> locate(String serverString) throws IOException {
+		ConnectionFactory cf = new SpyMemcachedClient(serverString).getConnectionFactory();
+		List<MemcachedNode> nodes = new ArrayList<MemcachedNode>();
+		for (String address: serverString.replaceAll("\\S+=\\S+", "").trim().split("\\s+")) {
+			String[] parts = address.split(":");
+			// never connected
+			nodes.add(cf.createMemcachedNode(new InetSocketAddress(parts[0], Integer.parseInt(parts[1])), SocketChannel.open(), 16384));
+		}
+		NodeLocator locator = cf.createLocator(nodes);
+		Map<String, String> located = new HashMap<String, String>();
+		for (int i = 0; i < KEYS; i++) {
+			String key = "session" + i;
+			located.put(key, locator.getPrimary(key).getSocketAddress().toString());
+		}
+		for (MemcachedNode node: nodes) {
+			node.getChannel().close();
+		}
+		return located;
+	}
+
+	private static int moved(Map<String, String> before, Map<String, String> after) {
+		int moved = 0;
+		for (Map.Entry<String, String> entry: before.entrySet()) {
+			if (!entry.getValue().equals(after.get(entry.getKey()))) {
+				moved++;
+			}
+		}
+		return moved;
+	}
+
+	@Test
+	public void testKetamaMovesFewKeys() throws Exception {
+		Map<String, String> three = locate("distribution=ketama 10.0.0.1:11211 10.0.0.2:11211 10.0.0.3:11211");
+		Map<String, String> four = locate("distribution=ketama 10.0.0.1:11211 10.0.0.2:11211 10.0.0.3:11211 10.0.0.4:11211");
+		// ideally 1/4 of the keys move to the new server
+		assertTrue(moved(three, four) < KEYS * 0.35);
+
+		Map<String, String> modulaThree = locate("10.0.0.1:11211 10.0.0.2:11211 10.0.0.3:11211");
+		Map<String, String> modulaFour = locate("10.0.0.1:11211 10.0.0.2:11211 10.0.0.3:11211 10.0.0.4:11211");
+		assertTrue(KEYS * 0.5 < moved(modulaThree, modulaFour));
+	}
+
+	@Test
+	public void testWeights() throws Exception {
+		Map<String, String> located = locate("distribution=ketama 10.0.0.1:11211:3 10.0.0.2:11211:1");
+		int heavy = 0;
+		for (String address: located.values()) {
+			if (address.contains("10.0.0.1")) {
+				heavy++;
+			}
+		}
+		// ideally 3/4 of the keys go to the heavier server
+		assertTrue(KEYS * 0.65 < heavy && heavy < KEYS * 0.85);
+	}
+
+	@Test
+	public void testHashAlgorithm() throws Exception {
+		assertEquals(DefaultHashAlgorithm.NATIVE_HASH, new SpyMemcachedClient("foo:11211").getConnectionFactory().getHashAlg());
+		assertEquals(DefaultHashAlgorithm.KETAMA_HASH, new SpyMemcachedClient("distribution=ketama foo:11211").getConnectionFactory().getHashAlg());
+		assertEquals(DefaultHashAlgorithm.FNV1A_64_HASH, new SpyMemcachedClient("hash=fnv1a_64 foo:11211").getConnectionFactory().getHashAlg());
+		List<MemcachedNode> nodes = new ArrayList<MemcachedNode>();
+		assertTrue(new SpyMemcachedClient("distribution=ketama foo:11211").getConnectionFactory().createLocator(nodes) instanceof KetamaNodeLocator);
+	}
+
+	@Test
+	public void testConnectionStats() throws Exception {
+		// nothing listens on the discard port
+		SpyMemcachedClient client = new SpyMemcachedClient("127.0.0.1:9");
+		assertEquals(0, client.getServers());
+		client.establish();
+		try {
+			assertEquals(1, client.getServers());
+			assertEquals(0, client.getConnections());
+			client.setAsync("SpyMemcachedClientTest::testConnectionStats", 1, new byte[] {1}, 60);
+			// the operation waits for the connection
+			assertTrue(0 < client.getQueuedOperations());
+		} finally {
+			client.shutdown();
+		}
+	}
+
+	@Test
+	public void testInterleavedWriters() throws Exception {
+		interleaveWriters("SpyMemcachedClientTest::testInterleavedWriters", false);
+		interleaveWriters("SpyMemcachedClientTest::testInterleavedWriters::async", true);
+	}
+
+	/**
+	 * two writers which have loaded the same version store their sessions as B
+	 * then A, and their version keys as A then B.
+	 */
+	private void interleaveWriters(final String key, boolean async) throws Exception {
+		final CountDownLatch storedB = new CountDownLatch(1);
+		final CountDownLatch versionedA = new CountDownLatch(1);
+		final AtomicInteger connectionB = new AtomicInteger(-1);
+		FakeMemcached server = new FakeMemcached() {
+			@Override
+			protected void before(int connection, String command, String k, byte[] data) throws InterruptedException {
+				if (k.equals(key) && command.equals("set") && data[0] == 'A') {
+					storedB.await(5, TimeUnit.SECONDS);
+				}
+				if (k.equals(key + ":version") && connection == connectionB.get()) {
+					versionedA.await(5, TimeUnit.SECONDS);
+				}
+			}
+
+			@Override
+			protected void after(int connection, String command, String k, byte[] data) {
+				if (k.equals(key) && command.equals("set") && data[0] == 'B') {
+					connectionB.set(connection);
+					storedB.countDown();
+				}
+				if (k.equals(key + ":version") && connection != connectionB.get() && data != null) {
+					versionedA.countDown();
+				}
+			}
+		};
+		SpyMemcachedClient a = new SpyMemcachedClient(server.getAddress());
+		SpyMemcachedClient b = new SpyMemcachedClient(server.getAddress());
+		a.establish();
+		b.establish();
+		try {
+			long versionA = (5L << KeyValueStoreSessionManager.VERSION_NODE_BITS) | 1;
+			long versionB = (5L << KeyValueStoreSessionManager.VERSION_NODE_BITS) | 2;
+			CompletableFuture<Boolean> setA, setB;
+			if (async) {
+				setA = a.setAsync(key, versionA, new byte[] {'A'}, 60);
+				setB = b.setAsync(key, versionB, new byte[] {'B'}, 60);
+			} else {
+				setA = CompletableFuture.supplyAsync(() -> set(a, key, versionA, 'A'));
+				setB = CompletableFuture.supplyAsync(() -> set(b, key, versionB, 'B'));
+			}
+			assertTrue(setA.get(5, TimeUnit.SECONDS));
+			assertTrue(setB.get(5, TimeUnit.SECONDS));
+
+			// the session of A has been stored last. the version key must not tell the version of B
+			assertEquals('A', a.get(key)[0]);
+			long version = a.version(key);
+			assertTrue("version " + version, version == 0 || version == versionA);
+		} finally {
+			a.shutdown();
+			b.shutdown();
+			server.close();
+		}
+	}
+
+	private static boolean set(SpyMemcachedClient client, String key, long version, char value) {
+		try {
+			return client.set(key, version, new byte[] {(byte) value}, 60);
+		} catch (KeyValueStoreClientException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}